@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package benchmark;
+
+import java.util.Random;
+
+/**
+ * A single benchmarked operation over a synthetic ontology. The runner calls
+ * {@link #setUp(SyntheticOntology)} once per ontology size, then
+ * {@link #run(int)} repeatedly, timing each call.
+ * 
+ * @author Sam Sarjant
+ */
+public abstract class Benchmark {
+	/** The number of pre-selected arguments cycled through. */
+	protected static final int NUM_SAMPLES = 256;
+
+	private String name_;
+
+	/** The ontology being benchmarked. */
+	protected SyntheticOntology ontology_;
+
+	public Benchmark(String name) {
+		name_ = name;
+	}
+
+	public String getName() {
+		return name_;
+	}
+
+	/**
+	 * @return True if the operation modifies the ontology, so it cannot be
+	 *         shared with later benchmarks.
+	 */
+	public boolean isMutating() {
+		return false;
+	}
+
+	/**
+	 * Runs the operation once.
+	 * 
+	 * @param iteration
+	 *            The iteration number, for choosing arguments.
+	 * @return A value derived from the result, so the work cannot be
+	 *         optimised away.
+	 */
+	public abstract Object run(int iteration);
+
+	/**
+	 * Prepares the arguments of the operation. Arguments should be chosen
+	 * with {@link #samplingRandom()} so runs are reproducible.
+	 * 
+	 * @param ontology
+	 *            The ontology to benchmark.
+	 */
+	public void setUp(SyntheticOntology ontology) {
+		ontology_ = ontology;
+	}
+
+	/**
+	 * @return True if the benchmark needs the transitive interval schema.
+	 */
+	public boolean usesIntervalSchema() {
+		return true;
+	}
+
+	/**
+	 * @return A random generator seeded by the ontology and benchmark.
+	 */
+	protected Random samplingRandom() {
+		return new Random(ontology_.getSeed() * 31 + name_.hashCode());
+	}
+
+	@Override
+	public String toString() {
+		return name_;
+	}
+}
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the benchmarks over synthetic ontologies of several sizes, reporting
+ * the throughput and latency percentiles of each. Each benchmark is warmed up
+ * before it is measured, and every operation is timed individually.
+ * <p>
+ * Run from the project root, as the DAG reads its module configuration from
+ * the working directory. Arguments:
+ * <ul>
+ * <li>-s sizes: Comma-separated ontology sizes in collections (default
+ * 1000,10000).</li>
+ * <li>-w seconds: Warmup time per benchmark (default 2).</li>
+ * <li>-m seconds: Measurement time per benchmark (default 5).</li>
+ * <li>-f regex: Only run benchmarks with matching names.</li>
+ * <li>-seed seed: The ontology generation seed.</li>
+ * <li>-o file: Append the results to a CSV file.</li>
+ * <li>-cache: Leave the query cache enabled.</li>
+ * </ul>
+ * 
+ * @author Sam Sarjant
+ */
+public class BenchmarkRunner {
+	private static final String CSV_HEADER = "benchmark,size,ops,opsPerSec,"
+			+ "meanUs,p50Us,p90Us,p99Us,maxUs";
+
+	/** Prevents results from being optimised away. */
+	public static volatile Object sink_;
+
+	private boolean cache_ = false;
+
+	private File csvFile_;
+
+	private Pattern filter_;
+
+	private double measureSeconds_ = 5;
+
+	private long seed_ = SyntheticOntology.DEFAULT_SEED;
+
+	private int[] sizes_ = { 1000, 10000 };
+
+	private double warmupSeconds_ = 2;
+
+	/**
+	 * Parses the arguments.
+	 */
+	private void parseArgs(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-s")) {
+				String[] split = args[++i].split(",");
+				sizes_ = new int[split.length];
+				for (int j = 0; j < split.length; j++)
+					sizes_[j] = Integer.parseInt(split[j].trim());
+			} else if (arg.equals("-w"))
+				warmupSeconds_ = Double.parseDouble(args[++i]);
+			else if (arg.equals("-m"))
+				measureSeconds_ = Double.parseDouble(args[++i]);
+			else if (arg.equals("-f"))
+				filter_ = Pattern.compile(args[++i]);
+			else if (arg.equals("-seed"))
+				seed_ = Long.parseLong(args[++i]);
+			else if (arg.equals("-o"))
+				csvFile_ = new File(args[++i]);
+			else if (arg.equals("-cache"))
+				cache_ = true;
+			else
+				throw new IllegalArgumentException("Unknown argument: " + arg);
+		}
+	}
+
+	/**
+	 * Loads an ontology for a benchmark.
+	 */
+	private SyntheticOntology loadOntology(int size, boolean intervalSchema)
+			throws IOException {
+		System.out.println("Generating ontology of " + size
+				+ " collections (interval schema: " + intervalSchema + ")");
+		long start = System.currentTimeMillis();
+		SyntheticOntology ontology = new SyntheticOntology(size, seed_,
+				intervalSchema);
+		ontology.getQuerier().getQueryCache().setEnabled(cache_);
+		System.out.println("Loaded " + ontology.getDAG().getNumNodes()
+				+ " nodes and " + ontology.getDAG().getNumEdges()
+				+ " edges in " + (System.currentTimeMillis() - start) + "ms");
+		return ontology;
+	}
+
+	/**
+	 * Runs a benchmark for a period of time.
+	 * 
+	 * @return The nanosecond time of each operation.
+	 */
+	private long[] measure(Benchmark benchmark, double seconds) {
+		long[] times = new long[1024];
+		int count = 0;
+		long end = System.nanoTime() + (long) (seconds * 1e9);
+		Object result = null;
+		long now;
+		do {
+			long start = System.nanoTime();
+			result = benchmark.run(count);
+			now = System.nanoTime();
+			if (count == times.length)
+				times = Arrays.copyOf(times, times.length * 2);
+			times[count++] = now - start;
+		} while (now < end);
+		sink_ = result;
+		return Arrays.copyOf(times, count);
+	}
+
+	/**
+	 * Formats a nanosecond time as microseconds.
+	 */
+	private static String micros(double nanos) {
+		return String.format("%.2f", nanos / 1000);
+	}
+
+	/**
+	 * Measures a benchmark and reports its statistics.
+	 */
+	private String runBenchmark(Benchmark benchmark, int size) {
+		measure(benchmark, warmupSeconds_);
+		long[] times = measure(benchmark, measureSeconds_);
+		Arrays.sort(times);
+		long total = 0;
+		for (long time : times)
+			total += time;
+		double mean = 1.0 * total / times.length;
+		String row = benchmark.getName() + "," + size + "," + times.length
+				+ "," + String.format("%.1f", times.length * 1e9 / total)
+				+ "," + micros(mean) + "," + micros(percentile(times, 0.5))
+				+ "," + micros(percentile(times, 0.9)) + ","
+				+ micros(percentile(times, 0.99)) + ","
+				+ micros(times[times.length - 1]);
+		System.out.println(String.format(
+				"%-36s %8d %12s ops/s  mean %10s us  p50 %10s us  "
+						+ "p99 %10s us", benchmark.getName(), size,
+				String.format("%.1f", times.length * 1e9 / total),
+				micros(mean), micros(percentile(times, 0.5)),
+				micros(percentile(times, 0.99))));
+		return row;
+	}
+
+	/**
+	 * Gets a percentile of sorted times.
+	 */
+	private static long percentile(long[] sorted, double fraction) {
+		int index = (int) Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	/**
+	 * Runs every selected benchmark at every size.
+	 */
+	public void run() throws IOException {
+		List<Benchmark> benchmarks = new ArrayList<>();
+		for (Benchmark benchmark : QueryBenchmarks.createAll())
+			if (filter_ == null
+					|| filter_.matcher(benchmark.getName()).find())
+				benchmarks.add(benchmark);
+
+		List<String> rows = new ArrayList<>();
+		for (int size : sizes_) {
+			SyntheticOntology ontology = null;
+			for (Benchmark benchmark : benchmarks) {
+				// Reuse the ontology unless the schema differs
+				if (ontology == null
+						|| ontology.hasIntervalSchema() != benchmark
+								.usesIntervalSchema()) {
+					if (ontology != null)
+						ontology.close();
+					ontology = loadOntology(size,
+							benchmark.usesIntervalSchema());
+				}
+				benchmark.setUp(ontology);
+				rows.add(runBenchmark(benchmark, size));
+				if (benchmark.isMutating()) {
+					ontology.close();
+					ontology = null;
+				}
+			}
+			if (ontology != null)
+				ontology.close();
+		}
+
+		if (csvFile_ != null) {
+			boolean header = !csvFile_.exists();
+			BufferedWriter out = new BufferedWriter(new FileWriter(csvFile_,
+					true));
+			if (header)
+				out.write(CSV_HEADER + "\n");
+			for (String row : rows)
+				out.write(row + "\n");
+			out.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		BenchmarkRunner runner = new BenchmarkRunner();
+		runner.parseArgs(args);
+		runner.run();
+		System.exit(0);
+	}
+}
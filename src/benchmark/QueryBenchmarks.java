@@ -0,0 +1,371 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package benchmark;
+
+import graph.core.CommonConcepts;
+import graph.core.CycDAG;
+import graph.core.DAGNode;
+import graph.core.Edge;
+import graph.core.Node;
+import graph.core.OntologyFunction;
+import graph.core.PrimitiveNode;
+import graph.core.StringNode;
+import graph.inference.CommonQuery;
+import graph.inference.VariableNode;
+import graph.module.QueryModule;
+import graph.module.SemanticSimilarityModule;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The benchmarks of the query workers, the common queries and edge
+ * creation.
+ * 
+ * @author Sam Sarjant
+ */
+public class QueryBenchmarks {
+	private QueryBenchmarks() {
+	}
+
+	/**
+	 * Creates every benchmark. Benchmarks without the interval schema come
+	 * first and mutating benchmarks last, so ontologies can be shared.
+	 * 
+	 * @return The benchmarks, in run order.
+	 */
+	public static List<Benchmark> createAll() {
+		List<Benchmark> benchmarks = new ArrayList<>();
+		benchmarks.add(new TransitiveBenchmark("TransitiveWorker.up", true,
+				false));
+		benchmarks.add(new TransitiveBenchmark("TransitiveWorker.down",
+				false, false));
+		benchmarks.add(new TransitiveBenchmark(
+				"TransitiveWorker.up.interval", true, true));
+		benchmarks.add(new TransitiveBenchmark(
+				"TransitiveWorker.down.interval", false, true));
+		benchmarks.add(new IsaBenchmark("IsaWorker.up", true));
+		benchmarks.add(new IsaBenchmark("IsaWorker.down", false));
+		benchmarks.add(new DisjointBenchmark("DisjointWithWorker.prove"));
+		benchmarks.add(new AndBenchmark("AndWorker.isaRelation"));
+		benchmarks.add(new GenlPredBenchmark("GenlPredTransitiveWorker"));
+		for (CommonQuery cq : CommonQuery.values())
+			benchmarks.add(new CommonQueryBenchmark(cq));
+		benchmarks.add(new SimilarityBenchmark(
+				"SemanticSimilarity.pairwise", false));
+		benchmarks.add(new SimilarityBenchmark("SemanticSimilarity.topK",
+				true));
+		benchmarks.add(new EdgeCreationBenchmark("CycDAG.findOrCreateEdge"));
+		return benchmarks;
+	}
+
+	/**
+	 * Picks random nodes by name.
+	 */
+	private static DAGNode[] sample(SyntheticOntology ontology,
+			Random random, boolean collections) {
+		DAGNode[] nodes = new DAGNode[Benchmark.NUM_SAMPLES];
+		int range = (collections) ? ontology.getNumCollections() : ontology
+				.numInstances();
+		for (int i = 0; i < nodes.length; i++) {
+			int index = random.nextInt(range);
+			nodes[i] = ontology.getNode((collections) ? SyntheticOntology
+					.collection(index) : SyntheticOntology.instance(index));
+		}
+		return nodes;
+	}
+
+	/**
+	 * A benchmark of a query worker, run through the query module.
+	 */
+	private abstract static class QueryBenchmark extends Benchmark {
+		protected QueryModule querier_;
+
+		public QueryBenchmark(String name) {
+			super(name);
+		}
+
+		protected Object execute(Node... nodes) {
+			Collection<?> results = querier_.execute((Object[]) nodes);
+			return (results == null) ? 0 : results.size();
+		}
+
+		@Override
+		public void setUp(SyntheticOntology ontology) {
+			super.setUp(ontology);
+			querier_ = ontology.getQuerier();
+		}
+	}
+
+	private static class TransitiveBenchmark extends QueryBenchmark {
+		private DAGNode genls_;
+		private DAGNode[] nodes_;
+		private boolean upwards_;
+		private boolean intervalSchema_;
+
+		public TransitiveBenchmark(String name, boolean upwards,
+				boolean intervalSchema) {
+			super(name);
+			upwards_ = upwards;
+			intervalSchema_ = intervalSchema;
+		}
+
+		@Override
+		public Object run(int iteration) {
+			DAGNode node = nodes_[iteration % nodes_.length];
+			if (upwards_)
+				return execute(genls_, node, VariableNode.DEFAULT);
+			return execute(genls_, VariableNode.DEFAULT, node);
+		}
+
+		@Override
+		public void setUp(SyntheticOntology ontology) {
+			super.setUp(ontology);
+			genls_ = CommonConcepts.GENLS.getNode(ontology.getDAG());
+			nodes_ = sample(ontology, samplingRandom(), true);
+		}
+
+		@Override
+		public boolean usesIntervalSchema() {
+			return intervalSchema_;
+		}
+	}
+
+	private static class IsaBenchmark extends QueryBenchmark {
+		private DAGNode isa_;
+		private DAGNode[] nodes_;
+		private boolean upwards_;
+
+		public IsaBenchmark(String name, boolean upwards) {
+			super(name);
+			upwards_ = upwards;
+		}
+
+		@Override
+		public Object run(int iteration) {
+			DAGNode node = nodes_[iteration % nodes_.length];
+			if (upwards_)
+				return execute(isa_, node, VariableNode.DEFAULT);
+			return execute(isa_, VariableNode.DEFAULT, node);
+		}
+
+		@Override
+		public void setUp(SyntheticOntology ontology) {
+			super.setUp(ontology);
+			isa_ = CommonConcepts.ISA.getNode(ontology.getDAG());
+			nodes_ = sample(ontology, samplingRandom(), !upwards_);
+		}
+	}
+
+	private static class DisjointBenchmark extends QueryBenchmark {
+		private DAGNode disjoint_;
+		private DAGNode[] first_;
+		private DAGNode[] second_;
+
+		public DisjointBenchmark(String name) {
+			super(name);
+		}
+
+		@Override
+		public Object run(int iteration) {
+			int i = iteration % first_.length;
+			return execute(disjoint_, first_[i], second_[i]);
+		}
+
+		@Override
+		public void setUp(SyntheticOntology ontology) {
+			super.setUp(ontology);
+			disjoint_ = CommonConcepts.DISJOINTWITH.getNode(ontology.getDAG());
+			Random random = samplingRandom();
+			first_ = sample(ontology, random, true);
+			second_ = sample(ontology, random, true);
+		}
+	}
+
+	private static class AndBenchmark extends QueryBenchmark {
+		private DAGNode and_;
+		private DAGNode isa_;
+		private DAGNode[] collections_;
+		private DAGNode[] predicates_;
+
+		public AndBenchmark(String name) {
+			super(name);
+		}
+
+		@Override
+		public Object run(int iteration) {
+			int i = iteration % collections_.length;
+			VariableNode x = VariableNode.DEFAULT;
+			VariableNode y = new VariableNode("?Y");
+			return execute(and_, new OntologyFunction(isa_, x,
+					collections_[i]), new OntologyFunction(predicates_[i], x,
+					y));
+		}
+
+		@Override
+		public void setUp(SyntheticOntology ontology) {
+			super.setUp(ontology);
+			and_ = CommonConcepts.AND.getNode(ontology.getDAG());
+			isa_ = CommonConcepts.ISA.getNode(ontology.getDAG());
+			Random random = samplingRandom();
+			collections_ = sample(ontology, random, true);
+			predicates_ = new DAGNode[collections_.length];
+			for (int i = 0; i < predicates_.length; i++)
+				predicates_[i] = ontology.getNode(SyntheticOntology
+						.predicate(random.nextInt(ontology.getNumPredicates())));
+		}
+	}
+
+	private static class GenlPredBenchmark extends QueryBenchmark {
+		private DAGNode predicate_;
+		private DAGNode[] nodes_;
+
+		public GenlPredBenchmark(String name) {
+			super(name);
+		}
+
+		@Override
+		public Object run(int iteration) {
+			return execute(predicate_, nodes_[iteration % nodes_.length],
+					VariableNode.DEFAULT);
+		}
+
+		@Override
+		public void setUp(SyntheticOntology ontology) {
+			super.setUp(ontology);
+			// The root predicate has every other predicate as a spec
+			predicate_ = ontology.getNode(SyntheticOntology.predicate(0));
+			nodes_ = sample(ontology, samplingRandom(), false);
+		}
+	}
+
+	private static class CommonQueryBenchmark extends Benchmark {
+		private Node[][] args_;
+		private CommonQuery query_;
+
+		public CommonQueryBenchmark(CommonQuery query) {
+			super("CommonQuery." + query);
+			query_ = query;
+		}
+
+		@Override
+		public Object run(int iteration) {
+			Collection<Node> results = query_.runQuery(ontology_.getDAG(),
+					args_[iteration % args_.length]);
+			// Proofs have no variable results
+			return (results == null) ? 0 : results.size();
+		}
+
+		@Override
+		public void setUp(SyntheticOntology ontology) {
+			super.setUp(ontology);
+			Random random = samplingRandom();
+			DAGNode[] collections = sample(ontology, random, true);
+			DAGNode[] others = sample(ontology, random, true);
+			args_ = new Node[collections.length][];
+			for (int i = 0; i < args_.length; i++) {
+				switch (query_) {
+				case ARGNGENL:
+				case ARGNISA:
+				case MINARGNGENL:
+				case MINARGNISA:
+					args_[i] = new Node[] {
+							ontology.getNode(SyntheticOntology.predicate(random
+									.nextInt(ontology.getNumPredicates()))),
+							PrimitiveNode.parseNode("" + (1 + random.nextInt(2))) };
+					break;
+				case DISJOINT:
+					args_[i] = new Node[] { collections[i], others[i] };
+					break;
+				case GENLPREDS:
+				case SPECPREDS:
+					args_[i] = new Node[] { ontology.getNode(SyntheticOntology
+							.predicate(random.nextInt(ontology
+									.getNumPredicates()))) };
+					break;
+				default:
+					args_[i] = new Node[] { collections[i] };
+				}
+			}
+		}
+	}
+
+	private static class SimilarityBenchmark extends Benchmark {
+		/** The number of concepts a top-k search returns. */
+		private static final int K = 10;
+		private DAGNode[] first_;
+		private DAGNode[] second_;
+		private SemanticSimilarityModule similarity_;
+		private boolean topK_;
+
+		public SimilarityBenchmark(String name, boolean topK) {
+			super(name);
+			topK_ = topK;
+		}
+
+		@Override
+		public Object run(int iteration) {
+			int i = iteration % first_.length;
+			if (topK_)
+				return similarity_.getMostSimilar(first_[i], K).size();
+			return similarity_.semanticSimilarity(first_[i], second_[i]);
+		}
+
+		@Override
+		public void setUp(SyntheticOntology ontology) {
+			super.setUp(ontology);
+			similarity_ = (SemanticSimilarityModule) ontology.getDAG()
+					.getModule(SemanticSimilarityModule.class);
+			Random random = samplingRandom();
+			first_ = sample(ontology, random, true);
+			second_ = sample(ontology, random, true);
+		}
+	}
+
+	private static class EdgeCreationBenchmark extends Benchmark {
+		private Node creator_;
+		private DAGNode isa_;
+		private DAGNode[] collections_;
+		private DAGNode[] instances_;
+
+		public EdgeCreationBenchmark(String name) {
+			super(name);
+		}
+
+		@Override
+		public boolean isMutating() {
+			return true;
+		}
+
+		@Override
+		public Object run(int iteration) {
+			// Checks (semantic and disjointness) are on by default
+			CycDAG dag = ontology_.getDAG();
+			Edge edge = dag.findOrCreateEdge(new Node[] { isa_,
+					instances_[iteration % instances_.length],
+					collections_[(iteration / instances_.length)
+							% collections_.length] }, creator_, true);
+			return edge.hashCode();
+		}
+
+		@Override
+		public void setUp(SyntheticOntology ontology) {
+			super.setUp(ontology);
+			creator_ = new StringNode("Benchmark");
+			isa_ = CommonConcepts.ISA.getNode(ontology.getDAG());
+			Random random = samplingRandom();
+			collections_ = sample(ontology, random, true);
+			instances_ = sample(ontology, random, false);
+		}
+	}
+}
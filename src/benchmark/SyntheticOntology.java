@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package benchmark;
+
+import graph.core.CommonConcepts;
+import graph.core.CycDAG;
+import graph.core.DAGNode;
+import graph.core.Node;
+import graph.core.StringNode;
+import graph.module.QueryModule;
+import graph.module.TransitiveIntervalSchemaModule;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * A reproducible synthetic ontology for benchmarking. The ontology is
+ * generated from a size and a seed, so the same parameters always produce
+ * the same assertions. It contains:
+ * <ul>
+ * <li>A genls hierarchy of collections, a 4-ary tree with some multiple
+ * inheritance.</li>
+ * <li>Instances of the collections, five per collection.</li>
+ * <li>Sibling disjoint collection types and explicit disjointWith
+ * assertions.</li>
+ * <li>A genlPreds hierarchy of binary predicates with assertions between
+ * instances.</li>
+ * <li>Comments, term strings and argument constraints.</li>
+ * </ul>
+ * The assertions are written to a file and loaded through
+ * {@link CycDAG#readAssertionFile(File, Node)}, as a real ontology is.
+ * 
+ * @author Sam Sarjant
+ */
+public class SyntheticOntology {
+	/** The default generation seed. */
+	public static final long DEFAULT_SEED = 2425;
+
+	/** The number of instances per collection. */
+	private static final int INSTANCES_PER_COLLECTION = 5;
+
+	/** The number of binary predicates. */
+	private static final int NUM_PREDICATES = 16;
+
+	/** The number of collections per sibling disjoint type. */
+	private static final int TYPE_SIZE = 50;
+
+	private final CycDAG dag_;
+
+	private final boolean intervalSchema_;
+
+	private final int numCollections_;
+
+	private final long seed_;
+
+	/**
+	 * Generates and loads a synthetic ontology.
+	 * 
+	 * @param numCollections
+	 *            The number of collections (the ontology size).
+	 * @param seed
+	 *            The generation seed.
+	 * @param intervalSchema
+	 *            If the transitive interval schema should be built.
+	 */
+	public SyntheticOntology(int numCollections, long seed,
+			boolean intervalSchema) throws IOException {
+		numCollections_ = numCollections;
+		seed_ = seed;
+		intervalSchema_ = intervalSchema;
+
+		File rootDir = File.createTempFile("benchmark", "");
+		rootDir.delete();
+		rootDir.mkdirs();
+		rootDir.deleteOnExit();
+		dag_ = new CycDAG(rootDir);
+		CommonConcepts.initialise(dag_);
+		CommonConcepts.createCommonAssertions(dag_);
+
+		File assertions = File.createTempFile("assertions", ".txt");
+		assertions.deleteOnExit();
+		writeAssertions(assertions);
+		dag_.readAssertionFile(assertions, new StringNode("Benchmark"));
+		assertions.delete();
+
+		if (intervalSchema) {
+			TransitiveIntervalSchemaModule intervalModule = (TransitiveIntervalSchemaModule) dag_
+					.getModule(TransitiveIntervalSchemaModule.class);
+			intervalModule.initialisationComplete(dag_.getNodes(),
+					dag_.getEdges(), true);
+		}
+	}
+
+	/**
+	 * Writes an assertion line.
+	 */
+	private static void write(BufferedWriter out, String... nodes)
+			throws IOException {
+		out.write("(");
+		for (int i = 0; i < nodes.length; i++) {
+			if (i > 0)
+				out.write(" ");
+			out.write(nodes[i].startsWith("\"") ? nodes[i] : "#$" + nodes[i]);
+		}
+		out.write(")\n");
+	}
+
+	/**
+	 * Generates the assertions of the ontology.
+	 * 
+	 * @param file
+	 *            The file to write to.
+	 */
+	private void writeAssertions(File file) throws IOException {
+		Random random = new Random(seed_ ^ numCollections_);
+		BufferedWriter out = new BufferedWriter(new FileWriter(file));
+
+		// Collection hierarchy
+		write(out, "isa", "DisjointCollectionType", "Collection");
+		write(out, "genls", "DisjointCollectionType",
+				"SiblingDisjointCollectionType");
+		int numTypes = Math.max(1, numCollections_ / TYPE_SIZE);
+		for (int t = 0; t < numTypes; t++) {
+			write(out, "isa", type(t), "Collection");
+			write(out, "isa", type(t), "DisjointCollectionType");
+		}
+		for (int i = 0; i < numCollections_; i++) {
+			write(out, "isa", collection(i), "Collection");
+			if (i == 0)
+				write(out, "genls", collection(i), "Thing");
+			else {
+				int parent = (i - 1) / 4;
+				write(out, "genls", collection(i), collection(parent));
+				if (i > 8 && random.nextInt(5) == 0) {
+					int other = random.nextInt(i);
+					if (other != parent)
+						write(out, "genls", collection(i), collection(other));
+				}
+			}
+			// Collections of the same type are sibling disjoint
+			if (i > 0 && i % 2 == 0)
+				write(out, "isa", collection(i), type(i % numTypes));
+			if (i % 10 == 0) {
+				write(out, "comment", collection(i), "\"The " + i
+						+ "th synthetic collection.\"");
+				write(out, "termStrings", collection(i), "\"collection " + i
+						+ "\"");
+			}
+		}
+		for (int i = 0; i < numCollections_ / 20; i++)
+			write(out, "disjointWith",
+					collection(random.nextInt(numCollections_)),
+					collection(random.nextInt(numCollections_)));
+
+		// Instances
+		for (int i = 0; i < numInstances(); i++)
+			write(out, "isa", instance(i),
+					collection(random.nextInt(numCollections_)));
+
+		// Predicates
+		for (int p = 0; p < NUM_PREDICATES; p++) {
+			write(out, "isa", predicate(p), "BinaryPredicate");
+			write(out, "arity", predicate(p), "2");
+			write(out, "arg1Isa", predicate(p), "Thing");
+			write(out, "arg2Isa", predicate(p), "Thing");
+			if (p > 0)
+				write(out, "genlPreds", predicate(p), predicate((p - 1) / 2));
+		}
+		for (int i = 0; i < 2 * numInstances(); i++)
+			write(out, predicate(random.nextInt(NUM_PREDICATES)),
+					instance(random.nextInt(numInstances())),
+					instance(random.nextInt(numInstances())));
+		out.close();
+	}
+
+	public static String collection(int i) {
+		return "SynColl" + i;
+	}
+
+	public static String instance(int i) {
+		return "SynInst" + i;
+	}
+
+	public static String predicate(int p) {
+		return "synRelation" + p;
+	}
+
+	public static String type(int t) {
+		return "SynType" + t;
+	}
+
+	/**
+	 * Gets a node of the ontology by name.
+	 * 
+	 * @param name
+	 *            The node name.
+	 * @return The node, or null if it does not exist.
+	 */
+	public DAGNode getNode(String name) {
+		return (DAGNode) dag_.findOrCreateNode(name, null, false);
+	}
+
+	public CycDAG getDAG() {
+		return dag_;
+	}
+
+	public int getNumCollections() {
+		return numCollections_;
+	}
+
+	public int getNumPredicates() {
+		return NUM_PREDICATES;
+	}
+
+	public QueryModule getQuerier() {
+		return (QueryModule) dag_.getModule(QueryModule.class);
+	}
+
+	public long getSeed() {
+		return seed_;
+	}
+
+	public boolean hasIntervalSchema() {
+		return intervalSchema_;
+	}
+
+	public int numInstances() {
+		return numCollections_ * INSTANCES_PER_COLLECTION;
+	}
+
+	/**
+	 * Clears the DAG, releasing its memory.
+	 */
+	public void close() {
+		dag_.clear();
+	}
+}
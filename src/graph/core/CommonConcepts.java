@@ -80,6 +80,7 @@ public enum CommonConcepts {
 	THE_FN("TheFn"),
 	THE_YEAR("TheYear-Indexical"),
 	THING("Thing"),
+	TRANSITIVE_BINARY("TransitiveBinaryPredicate"),
 	TRUE("True"),
 	UNREIFIABLE_FUNCTION("UnreifiableFunction"),
 	YEARFN("YearFn"),
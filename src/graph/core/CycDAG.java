@@ -11,11 +11,14 @@
 package graph.core;
 
 import graph.inference.CommonQuery;
+import graph.inference.QueryCache;
 import graph.inference.Substitution;
 import graph.inference.VariableNode;
 import graph.module.DAGModule;
 import graph.module.DepthModule;
+import graph.module.ForwardChainingModule;
 import graph.module.FunctionIndex;
+import graph.module.IndexModule;
 import graph.module.NodeAliasModule;
 import graph.module.QueryModule;
 import graph.module.RelatedEdgeModule;
@@ -25,14 +28,18 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
@@ -52,7 +59,7 @@ public class CycDAG extends DirectedAcyclicGraph {
 
 	private static final String CSV_FUNCTION_PREFIX = "FUNCTION_";
 
-	private static final Node CYC_IMPORT = new StringNode("CYCImport");
+	static final Node CYC_IMPORT = new StringNode("CYCImport");
 
 	private static final Node FORWARD_CHAIN = new StringNode("ForwardChain");
 
@@ -61,19 +68,111 @@ public class CycDAG extends DirectedAcyclicGraph {
 	private static final Pattern UNCODED_PATTERN = Pattern
 			.compile("(?<!<code>)\\(#\\$\\S+( ((#\\$\\S+)|[^a-z\\s]+))+\\)");
 
+	private static final LatencyHistogram ARITY_TIMER = Metrics.getInstance()
+			.histogram("edge.arity");
+
+	private static final LatencyHistogram ARG_CHECK_TIMER = Metrics
+			.getInstance().histogram("edge.semanticArgCheck");
+
+	private static final LatencyHistogram DISJOINT_TIMER = Metrics
+			.getInstance().histogram("edge.disjointness");
+
+	private static final LatencyHistogram CYCLIC_TIMER = Metrics
+			.getInstance().histogram("edge.cyclicity");
+
+	/** The commit, including every module's addEdge. */
+	private static final LatencyHistogram COMMIT_TIMER = Metrics
+			.getInstance().histogram("edge.modules");
+
+	private static final LatencyHistogram PROPAGATE_TIMER = Metrics
+			.getInstance().histogram("edge.propagation");
+
+	private static final LatencyHistogram EDGE_TIMER = Metrics.getInstance()
+			.histogram("edge.total");
+
 	public static final String MICROTHEORY = "MT";
 
+	/** The types of logged changes. */
+	private static final byte LOG_NODE = 0;
+	private static final byte LOG_EDGE = 1;
+	private static final byte LOG_REMOVE_EDGE = 2;
+	private static final byte LOG_REMOVE_NODE = 3;
+	private static final byte LOG_ADD_PROPERTY = 4;
+	private static final byte LOG_REMOVE_PROPERTY = 5;
+	private static final byte LOG_GROUND_EPHEMERAL = 6;
+	private static final byte LOG_ADD_RULE = 7;
+	private static final byte LOG_REMOVE_RULE = 8;
+
+	/** The flag of a change logged while checks were disabled. */
+	private static final int LOG_NO_CHECKS = 0x80;
+
+	/** The flag of a property change on an edge. */
+	private static final int LOG_EDGE_PROPERTY = 1;
+
 	private transient QueryModule querier_;
 
+	private transient StripedCommitLock commitLock_;
+
 	public boolean loadAssertions_ = true;
 
+	/**
+	 * If a binary snapshot ({@link GraphSnapshot}) is written when saving
+	 * state. An existing snapshot is loaded regardless.
+	 */
+	public static boolean writeSnapshot_ = true;
+
+	/** Set (without an initialiser) during the super constructor. */
+	private transient boolean snapshotChecked_;
+
+	private transient GraphSnapshot snapshot_;
+
+	/** If the graph was loaded from the snapshot. */
+	private transient boolean snapshotLoaded_;
+
+	/** If the module sections of the snapshot are out of date. */
+	private transient boolean snapshotStale_;
+
+	private transient Thread rebuildThread_;
+
+	/**
+	 * If changes are recorded in a {@link WriteAheadLog} between saves. An
+	 * existing log is replayed regardless.
+	 */
+	public static boolean writeAheadLog_ = true;
+
+	private transient WriteAheadLog log_;
+
+	/**
+	 * The nesting of changes on each thread. Only the outermost is logged.
+	 * Null during the super constructor, which makes no logged changes.
+	 */
+	private final transient ThreadLocal<int[]> changeDepth_ = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	/** If logged changes are synced at the end of a bulk load. */
+	private transient volatile boolean bulkLoad_;
+
+	/** The number of logged changes replayed on initialisation. */
+	private transient int replayed_;
+
+	private transient Thread compactThread_;
+
+	/** The number of parse threads used when bulk loading assertions. */
+	public int loaderThreads_ = Runtime.getRuntime().availableProcessors();
+
 	public CycDAG() {
 		this(new File("cyc"));
 	}
 
 	public CycDAG(File rootDir) {
 		super(rootDir);
+		loadSnapshot();
 		querier_ = (QueryModule) getModule(QueryModule.class);
+		getCommitLock();
 	}
 
 	private DAGErrorEdge checkArity(DAGNode predNode, Node[] edgeNodes) {
@@ -217,42 +316,7 @@ public class CycDAG extends DirectedAcyclicGraph {
 	}
 
 	private StringNode processComment(Node[] nodes) {
-		String comment = nodes[2].toString();
-		// Find uncoded expressions
-		Matcher m = UNCODED_PATTERN.matcher(comment);
-		comment = m.replaceAll("<code>$0</code>");
-
-		// Remove #$ in code tags
-		m = CODE_PATTERN.matcher(comment);
-		StringBuilder replComment = new StringBuilder();
-		int start = 0;
-		while (m.find()) {
-			int end = m.start();
-			replComment.append(comment.substring(start, end));
-			replComment.append(m.group().replaceAll("#\\$", ""));
-			start = m.end();
-		}
-		replComment.append(comment.substring(start, comment.length()));
-
-		// Markup #$ tagged non-commented concepts (with depluralisation)
-		comment = replComment.toString();
-		m = CONCEPT_PATTERN.matcher(comment);
-		replComment = new StringBuilder();
-		start = 0;
-		while (m.find()) {
-			int end = m.start();
-			replComment.append(comment.substring(start, end));
-			String concept = m.group(1);
-			if (findDAGNode(concept) == null) {
-				if (findDAGNode(concept.substring(0, concept.length() - 1)) != null)
-					concept = concept.substring(0, concept.length() - 1);
-			}
-			replComment.append("[[" + concept + "]]");
-			start = m.end();
-		}
-		replComment.append(comment.substring(start, comment.length()));
-
-		return new StringNode(replComment.toString());
+		return markupConcepts(markupCode(nodes[2].toString()));
 	}
 
 	private void processEdgeString(Node creator, String edgeStr,
@@ -323,6 +387,435 @@ public class CycDAG extends DirectedAcyclicGraph {
 		return edge;
 	}
 
+	/**
+	 * Begins a change on the current thread. Changes made within another
+	 * change (propagated edges, module marks, the edges of a removed node)
+	 * are not logged, as replaying the outer change makes them again.
+	 * 
+	 * @return True if this is the outermost change on the thread.
+	 */
+	private boolean beginChange() {
+		return changeDepth_ != null && changeDepth_.get()[0]++ == 0;
+	}
+
+	/**
+	 * Invalidates the cached queries a change affects, once every module has
+	 * processed it.
+	 */
+	private void changeCommitted(DAGObject changed) {
+		QueryModule querier = (QueryModule) getModule(QueryModule.class);
+		if (querier != null)
+			querier.changeCommitted(changed);
+	}
+
+	/**
+	 * Asserts and retracts the edges derived from the changes made on the
+	 * current thread. Called at the end of the outermost change, once its
+	 * commit locks are released, so derived changes are nested within it.
+	 */
+	private void chainForward() {
+		ForwardChainingModule chainer = (ForwardChainingModule) getModule(ForwardChainingModule.class);
+		if (chainer != null)
+			chainer.processAgenda();
+	}
+
+	private void endChange() {
+		if (changeDepth_ != null)
+			changeDepth_.get()[0]--;
+	}
+
+	/**
+	 * @return The flags of a logged change.
+	 */
+	private int logFlags(BooleanFlags bFlags, String... names) {
+		int flags = (noChecks_) ? LOG_NO_CHECKS : 0;
+		for (int i = 0; i < names.length; i++)
+			if (bFlags.getFlag(names[i]))
+				flags |= 1 << i;
+		return flags;
+	}
+
+	/**
+	 * @return The boolean flags of a logged change.
+	 */
+	private static boolean[] loggedFlags(int flags, int numFlags) {
+		boolean[] bFlags = new boolean[numFlags];
+		for (int i = 0; i < numFlags; i++)
+			bFlags[i] = (flags & (1 << i)) != 0;
+		return bFlags;
+	}
+
+	/**
+	 * @return The identifier a node is logged by, which resolves back to it.
+	 */
+	private static String loggedName(Node node) {
+		return (node == null) ? null : node.getIdentifier(true);
+	}
+
+	/**
+	 * @return The identifier the target of a property change is logged by.
+	 */
+	private static String loggedTarget(DAGObject dagObj) {
+		if (dagObj instanceof DAGEdge)
+			return ((DAGEdge) dagObj).toString(false);
+		return loggedName((Node) dagObj);
+	}
+
+	/**
+	 * Finds the node or edge a logged property change applies to.
+	 */
+	private DAGObject findLoggedObject(int flags, String identifier) {
+		if ((flags & LOG_EDGE_PROPERTY) != 0) {
+			Node[] nodes = parseNodes(identifier, null, false, false);
+			Edge edge = (nodes == null) ? null : findEdge(nodes);
+			return (edge instanceof DAGObject) ? (DAGObject) edge : null;
+		}
+		Node node = findOrCreateNode(identifier, null, false);
+		return (node instanceof DAGObject) ? (DAGObject) node : null;
+	}
+
+	/**
+	 * Appends a change to the write-ahead log, if it is the outermost change
+	 * and the log is open.
+	 * 
+	 * @return The sequence number of the logged change, or 0.
+	 */
+	private long logChange(boolean outermost, byte type, int flags,
+			String... fields) {
+		WriteAheadLog log = log_;
+		if (!outermost || log == null)
+			return 0;
+		try {
+			return log.append(type, flags, fields);
+		} catch (IOException e) {
+			System.err.println("Could not log change: " + e.getMessage());
+			return 0;
+		}
+	}
+
+	/**
+	 * Closes the write-ahead log, syncing any changes still buffered.
+	 */
+	private void closeLog() {
+		WriteAheadLog log = log_;
+		log_ = null;
+		if (log != null) {
+			try {
+				log.close();
+			} catch (IOException e) {
+				System.err.println("Could not close write-ahead log: "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Replays the write-ahead log on top of the loaded graph, then opens a new
+	 * log segment for the changes that follow.
+	 */
+	private void openLog() {
+		if (rootDir_ == null || log_ != null)
+			return;
+		try {
+			if (WriteAheadLog.segments(rootDir_).length > 0) {
+				// Replayed changes fire the rules
+				ForwardChainingModule chainer = (ForwardChainingModule) getModule(ForwardChainingModule.class);
+				if (chainer != null)
+					chainer.compileRules();
+				System.out.print("Replaying write-ahead log... ");
+				replayed_ = WriteAheadLog.replay(rootDir_,
+						new WriteAheadLog.Replayer() {
+							@Override
+							public void replay(byte type, int flags,
+									String[] fields) {
+								try {
+									replayChange(type, flags, fields);
+								} catch (Exception e) {
+									e.printStackTrace();
+								}
+							}
+						});
+				System.out.println("Done! (" + replayed_ + " changes)");
+			}
+			if (writeAheadLog_)
+				log_ = new WriteAheadLog(rootDir_);
+		} catch (IOException e) {
+			System.err.println("Could not open write-ahead log: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Applies a logged change.
+	 */
+	private void replayChange(byte type, int flags, String[] fields) {
+		boolean noChecks = noChecks_;
+		noChecks_ = (flags & LOG_NO_CHECKS) != 0;
+		try {
+			switch (type) {
+			case LOG_NODE:
+				findOrCreateNode(fields[0], replayCreator(fields[1]),
+						loggedFlags(flags, 4));
+				break;
+			case LOG_EDGE:
+				Node creator = replayCreator(fields[1]);
+				Node[] nodes = parseNodes(fields[0], creator, true, false);
+				if (nodes != null)
+					findOrCreateEdge(nodes, creator, fields[2],
+							loggedFlags(flags, 3));
+				break;
+			case LOG_REMOVE_EDGE:
+				nodes = parseNodes(fields[0], null, false, false);
+				if (nodes != null)
+					removeEdge(findEdge(nodes));
+				break;
+			case LOG_REMOVE_NODE:
+				Node node = findOrCreateNode(fields[0], null, false);
+				if (node instanceof DAGNode)
+					removeNode((DAGNode) node);
+				break;
+			case LOG_ADD_PROPERTY:
+				DAGObject dagObj = findLoggedObject(flags, fields[0]);
+				if (dagObj != null)
+					addProperty(dagObj, fields[1], fields[2]);
+				break;
+			case LOG_REMOVE_PROPERTY:
+				dagObj = findLoggedObject(flags, fields[0]);
+				if (dagObj != null)
+					removeProperty(dagObj, fields[1]);
+				break;
+			case LOG_GROUND_EPHEMERAL:
+				groundEphemeral();
+				break;
+			case LOG_ADD_RULE:
+			case LOG_REMOVE_RULE:
+				changeRule(fields, type == LOG_ADD_RULE);
+				break;
+			default:
+				System.err.println("Unknown logged change " + type);
+			}
+		} finally {
+			noChecks_ = noChecks;
+		}
+	}
+
+	private Node replayCreator(String creator) {
+		return (creator == null) ? null : findOrCreateNode(creator, null,
+				false);
+	}
+
+	/**
+	 * Makes the logged changes up to a sequence number durable, unless a bulk
+	 * load is in progress.
+	 */
+	private void syncLog(long sequence) {
+		WriteAheadLog log = log_;
+		if (sequence == 0 || log == null || bulkLoad_)
+			return;
+		try {
+			log.sync(sequence);
+		} catch (IOException e) {
+			System.err.println("Could not sync write-ahead log: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Loads the nodes and edges from the snapshot, if the serialised node and
+	 * edge files were absent. This is called when the first module resolves a
+	 * node or edge by ID, or at the end of construction.
+	 */
+	private void loadSnapshot() {
+		if (snapshotChecked_ || nodes_ == null || edges_ == null
+				|| rootDir_ == null)
+			return;
+		snapshotChecked_ = true;
+		File file = new File(rootDir_, GraphSnapshot.SNAPSHOT_FILE);
+		if (!file.exists() || !nodes_.isEmpty() || !edges_.isEmpty())
+			return;
+		System.out.print("Loading snapshot... ");
+		try {
+			GraphSnapshot snapshot = GraphSnapshot.open(file);
+			snapshot.load(nodes_, edges_);
+			snapshot_ = snapshot;
+			snapshotLoaded_ = true;
+			System.out.println("Done! (" + nodes_.size() + " nodes, "
+					+ edges_.size() + " edges)");
+		} catch (IOException e) {
+			System.err.println("Could not load snapshot: " + e.getMessage());
+			nodes_.clear();
+			edges_.clear();
+		}
+	}
+
+	/**
+	 * Locks the commit stripes of a change. A thread already within the DAG
+	 * lock is serialised against every commit, so it takes no stripes.
+	 * 
+	 * @param stripes
+	 *            The stripes to lock.
+	 * @return True if the stripes were locked and must be unlocked.
+	 */
+	private boolean lockStripes(int[] stripes) {
+		return !Thread.holdsLock(this) && getCommitLock().lock(stripes);
+	}
+
+	/**
+	 * Runs the semantic, disjointness and cyclicity checks of a new edge,
+	 * recording the predicates whose edges the checks consulted.
+	 * 
+	 * @param edgeNodes
+	 *            The nodes of the edge.
+	 * @param microtheory
+	 *            The optional microtheory for the edge.
+	 * @param bFlags
+	 *            The edge creation flags.
+	 * @param dependencies
+	 *            The collection to add the consulted predicates to.
+	 * @return The error edge describing why the edge is invalid, or null if
+	 *         it is valid.
+	 */
+	private DAGErrorEdge validateEdge(Node[] edgeNodes, String microtheory,
+			BooleanFlags bFlags, Collection<Node> dependencies) {
+		QueryCache cache = querier_.getQueryCache();
+		cache.beginRecording();
+		try {
+			return validateEdge(edgeNodes, microtheory, bFlags);
+		} finally {
+			dependencies.addAll(cache.endRecording());
+		}
+	}
+
+	/**
+	 * Runs the semantic, disjointness and cyclicity checks of a new edge.
+	 * 
+	 * @param edgeNodes
+	 *            The nodes of the edge.
+	 * @param microtheory
+	 *            The optional microtheory for the edge.
+	 * @param bFlags
+	 *            The edge creation flags.
+	 * @return The error edge describing why the edge is invalid, or null if
+	 *         it is valid.
+	 */
+	private DAGErrorEdge validateEdge(Node[] edgeNodes, String microtheory,
+			BooleanFlags bFlags) {
+		// Check if the edge is semantically valid
+		DAGErrorEdge semError = semanticArgCheck(edgeNodes, microtheory,
+				bFlags.getFlag("forceConstraints"), bFlags.getFlag("ephemeral"));
+		if (semError != null)
+			return semError;
+
+		// Check disjointness
+		long start = System.nanoTime();
+		DisjointErrorEdge disjointEdge = isDisjoint(edgeNodes);
+		DISJOINT_TIMER.recordSince(start);
+		if (disjointEdge != null)
+			return disjointEdge;
+
+		// Check symmetry
+		start = System.nanoTime();
+		CyclicErrorEdge cyclicEdge = isCyclic(edgeNodes);
+		CYCLIC_TIMER.recordSince(start);
+		return cyclicEdge;
+	}
+
+	/**
+	 * Saves the state in the background, compacting the replayed log into the
+	 * saved graph. This waits for any background rebuild of modules first.
+	 */
+	private void compactInBackground() {
+		compactThread_ = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					waitForRebuild();
+				} catch (InterruptedException e) {
+					return;
+				}
+				System.out.println("Compacting write-ahead log.");
+				saveState();
+			}
+		}, "LogCompaction");
+		compactThread_.setDaemon(true);
+		compactThread_.start();
+	}
+
+	/**
+	 * Rebuilds index modules in the background. Commits wait until the
+	 * rebuild is complete, but queries are answered from the graph.
+	 */
+	private void rebuildInBackground(final List<DAGModule<?>> modules) {
+		rebuildThread_ = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				StripedCommitLock commitLock = getCommitLock();
+				int[] stripes = commitLock.allStripes();
+				boolean locked = commitLock.lock(stripes);
+				try {
+					Collection<DAGNode> nodes = null;
+					Collection<DAGEdge> edges = null;
+					synchronized (CycDAG.this) {
+						nodes = new ArrayList<>(nodes_);
+						edges = new ArrayList<>(edges_);
+					}
+					for (DAGModule<?> module : modules) {
+						System.out.println("Rebuilding "
+								+ module.getClass().getSimpleName()
+								+ " in the background.");
+						module.initialisationComplete(nodes, edges, true);
+					}
+					synchronized (CycDAG.this) {
+						for (DAGModule<?> module : modules)
+							module.saveModule(rootDir_);
+						snapshotStale_ = true;
+					}
+					System.out.println("Background rebuild complete.");
+				} finally {
+					if (locked)
+						commitLock.unlock(stripes);
+				}
+			}
+		}, "ModuleRebuild");
+		rebuildThread_.setDaemon(true);
+		rebuildThread_.start();
+	}
+
+	/**
+	 * Writes the snapshot, if the node and edge files have been (re)written
+	 * since the last one or modules have been rebuilt. Once written, the
+	 * snapshot replaces the node and edge files.
+	 */
+	private void writeSnapshot() {
+		File file = new File(rootDir_, GraphSnapshot.SNAPSHOT_FILE);
+		File[] dagFiles = rootDir_.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith("nodes.dat")
+						|| name.startsWith("edges.dat");
+			}
+		});
+		if (file.exists() && (dagFiles == null || dagFiles.length == 0)
+				&& !snapshotStale_)
+			return;
+
+		System.out.print("Writing snapshot... ");
+		try {
+			List<ModuleSection> sections = new ArrayList<>();
+			for (DAGModule<?> module : getModules())
+				sections.add(new ModuleSection(module, rootDir_));
+			GraphSnapshot.write(file, nodes_, edges_, sections);
+			snapshotStale_ = false;
+			snapshot_ = GraphSnapshot.open(file);
+			if (dagFiles != null)
+				for (File dagFile : dagFiles)
+					dagFile.delete();
+			System.out.println("Done!");
+		} catch (IOException e) {
+			System.err.println("Could not write snapshot: " + e.getMessage());
+		}
+	}
+
 	@Override
 	protected void exportToCSV(BufferedWriter out, DAGExportFormat format)
 			throws IOException {
@@ -356,19 +849,31 @@ public class CycDAG extends DirectedAcyclicGraph {
 
 	@Override
 	protected SortedSet<DAGEdge> orderedReassertables() {
+		final DepthModule depthModule = (DepthModule) getModule(
+				DepthModule.class);
 		Comparator<DAGEdge> depthComparator = new Comparator<DAGEdge>() {
+			/**
+			 * Gets the depth of an edge's first argument, or -1 if unknown.
+			 */
+			private int depth(DAGEdge edge) {
+				Node[] nodes = edge.getNodes();
+				if (depthModule == null || nodes.length < 2
+						|| !(nodes[1] instanceof DAGNode))
+					return -1;
+				return depthModule.getDepth((DAGNode) nodes[1]);
+			}
+
 			@Override
 			public int compare(DAGEdge o1, DAGEdge o2) {
-				String depthStr1 = o1.getProperty(DepthModule.DEPTH_PROPERTY);
-				String depthStr2 = o2.getProperty(DepthModule.DEPTH_PROPERTY);
+				int depth1 = depth(o1);
+				int depth2 = depth(o2);
 				int result = 0;
-				if (depthStr1 != null) {
-					if (depthStr2 != null) {
-						result = Integer.compare(Integer.parseInt(depthStr1),
-								Integer.parseInt(depthStr2));
-					} else
+				if (depth1 != -1) {
+					if (depth2 != -1)
+						result = Integer.compare(depth1, depth2);
+					else
 						return -1;
-				} else if (depthStr2 != null)
+				} else if (depth2 != -1)
 					return 1;
 
 				if (result == 0)
@@ -394,15 +899,62 @@ public class CycDAG extends DirectedAcyclicGraph {
 		return nodeStr;
 	}
 
+	@Override
+	public void addProperty(DAGObject dagObj, String key, String value) {
+		boolean outermost = beginChange();
+		long sequence = 0;
+		try {
+			synchronized (this) {
+				super.addProperty(dagObj, key, value);
+				sequence = logChange(outermost, LOG_ADD_PROPERTY,
+						(dagObj instanceof DAGEdge) ? LOG_EDGE_PROPERTY : 0,
+						loggedTarget(dagObj), key, value);
+			}
+		} finally {
+			endChange();
+		}
+		syncLog(sequence);
+	}
+
+	/**
+	 * Adds or removes a forward chaining rule as a logged change. The edges
+	 * the rule derives or retracts are changed within it, so they are not
+	 * logged: replaying the rule change changes them again.
+	 * 
+	 * @param rule
+	 *            The strings of the rule's head and body literals.
+	 * @param add
+	 *            True to add the rule, false to remove it.
+	 * @return True if the rules changed.
+	 */
+	public boolean changeRule(String[] rule, boolean add) {
+		ForwardChainingModule chainer = (ForwardChainingModule) getModule(ForwardChainingModule.class);
+		if (chainer == null)
+			return false;
+		boolean outermost = beginChange();
+		long sequence = 0;
+		try {
+			if (!chainer.applyRuleChange(rule, add))
+				return false;
+			sequence = logChange(outermost, (add) ? LOG_ADD_RULE
+					: LOG_REMOVE_RULE, (noChecks_) ? LOG_NO_CHECKS : 0, rule);
+			return true;
+		} finally {
+			endChange();
+			syncLog(sequence);
+		}
+	}
+
 	@Override
 	public void clear() {
+		closeLog();
 		super.clear();
 		for (CommonConcepts cc : CommonConcepts.values())
 			cc.clearNode();
 	}
 
 	@Override
-	public synchronized Edge findOrCreateEdge(Node[] edgeNodes, Node creator,
+	public Edge findOrCreateEdge(Node[] edgeNodes, Node creator,
 			boolean... flags) {
 		return findOrCreateEdge(edgeNodes, creator, null, flags);
 	}
@@ -412,6 +964,11 @@ public class CycDAG extends DirectedAcyclicGraph {
 	 * already exists, or is newly created and added. Edges can specify a
 	 * microtheory as well.
 	 * 
+	 * New edges are validated without holding any lock. Only the commit locks
+	 * the stripes of the edge's nodes and of the predicates the validation
+	 * consulted, re-validating first if another writer committed to those
+	 * stripes during validation.
+	 * 
 	 * @param edgeNodes
 	 *            The nodes of the edge.
 	 * @param creator
@@ -427,6 +984,22 @@ public class CycDAG extends DirectedAcyclicGraph {
 	 */
 	public Edge findOrCreateEdge(Node[] edgeNodes, Node creator,
 			String microtheory, boolean... flags) {
+		long start = System.nanoTime();
+		boolean outermost = beginChange();
+		try {
+			Edge edge = findOrCreateEdgeInternal(edgeNodes, creator,
+					microtheory, outermost, flags);
+			if (outermost)
+				chainForward();
+			return edge;
+		} finally {
+			endChange();
+			EDGE_TIMER.recordSince(start);
+		}
+	}
+
+	private Edge findOrCreateEdgeInternal(Node[] edgeNodes, Node creator,
+			String microtheory, boolean outermost, boolean... flags) {
 		BooleanFlags bFlags = edgeFlags_.loadFlags(flags);
 		boolean createNew = bFlags.getFlag("createNew");
 		QueryModule qm = (QueryModule) getModule(QueryModule.class);
@@ -434,45 +1007,92 @@ public class CycDAG extends DirectedAcyclicGraph {
 		if (containsVariables(edgeNodes))
 			return VariableErrorEdge.getInstance();
 
-		if (!noChecks_ && createNew) {
-			// Cannot have non-DAG node as 1st argument
-			if (!(edgeNodes[1] instanceof DAGNode))
-				return new NonDAGNodeErrorEdge(edgeNodes);
-
-			// Check if the edge is semantically valid
-			DAGErrorEdge semError = semanticArgCheck(edgeNodes, microtheory,
-					bFlags.getFlag("forceConstraints"),
-					bFlags.getFlag("ephemeral"));
-			if (semError != null)
-				return semError;
-
-			// Check disjointness
-			DisjointErrorEdge disjointEdge = isDisjoint(edgeNodes);
-			if (disjointEdge != null)
-				return disjointEdge;
-
-			// Check symmetry
-			CyclicErrorEdge cyclicEdge = isCyclic(edgeNodes);
-			if (cyclicEdge != null)
-				return cyclicEdge;
+		boolean validate = !noChecks_ && createNew;
+		// Cannot have non-DAG node as 1st argument
+		if (validate && !(edgeNodes[1] instanceof DAGNode))
+			return new NonDAGNodeErrorEdge(edgeNodes);
+
+		StripedCommitLock commitLock = getCommitLock();
+		int[] stripes = commitLock.stripes(edgeNodes);
+		long[] snapshot = commitLock.snapshot();
+		Set<Node> dependencies = new HashSet<>();
+		if (validate) {
+			DAGErrorEdge error = validateEdge(edgeNodes, microtheory, bFlags,
+					dependencies);
+			if (error != null)
+				return error;
 		}
+		boolean alias = qm.execute(CommonConcepts.GENLPREDS.getNode(this),
+				edgeNodes[0], CommonConcepts.TERM_STRING.getNode(this)) != null;
+
+		// Commit the edge
+		Edge edge = null;
+		boolean added = false;
+		long sequence = 0;
+		// The checks read other nodes' edges, so lock their stripes too
+		int[] lockedStripes = commitLock.stripes(stripes, dependencies);
+		boolean locked = lockStripes(lockedStripes);
+		try {
+			while (validate
+					&& !commitLock.isUnchanged(snapshot, lockedStripes)) {
+				snapshot = commitLock.snapshot();
+				dependencies.clear();
+				DAGErrorEdge error = validateEdge(edgeNodes, microtheory,
+						bFlags, dependencies);
+				if (error != null)
+					return error;
+				int[] required = commitLock.stripes(stripes, dependencies);
+				if (!locked
+						|| StripedCommitLock
+								.containsAll(lockedStripes, required))
+					break;
 
-		// Create the edge
-		Edge edge = super.findOrCreateEdge(edgeNodes, creator, flags);
-		if (edge != null && !(edge instanceof ErrorEdge)
-				&& ((DAGEdge) edge).getProperty(MICROTHEORY) == null) {
-			if (microtheory != null)
-				addProperty((DAGObject) edge, MICROTHEORY, microtheory);
+				// The checks now read further stripes
+				commitLock.unlock(lockedStripes);
+				locked = false;
+				lockedStripes = required;
+				locked = lockStripes(lockedStripes);
+			}
 
-			// Add alias info
-			if (qm.execute(CommonConcepts.GENLPREDS.getNode(this),
-					edgeNodes[0], CommonConcepts.TERM_STRING.getNode(this)) != null) {
-				addProperty((DAGEdge) edge, NodeAliasModule.ALIAS_PROP, "T");
-				getModule(NodeAliasModule.class).addEdge((DAGEdge) edge);
+			commitLock.beginCommit(stripes);
+			long start = System.nanoTime();
+			try {
+				edge = super.findOrCreateEdge(edgeNodes, creator, flags);
+				added = edge != null && !(edge instanceof ErrorEdge)
+						&& ((DAGEdge) edge).getProperty(MICROTHEORY) == null;
+				if (added) {
+					if (microtheory != null)
+						addProperty((DAGObject) edge, MICROTHEORY, microtheory);
+
+					// Add alias info
+					if (alias) {
+						addProperty((DAGEdge) edge, NodeAliasModule.ALIAS_PROP,
+								"T");
+						getModule(NodeAliasModule.class).addEdge((DAGEdge) edge);
+					}
+					qm.changeCommitted((DAGEdge) edge);
+					sequence = logChange(
+							outermost,
+							LOG_EDGE,
+							logFlags(bFlags, "createNew", "ephemeral",
+									"forceConstraints"), edge.toString(false),
+							loggedName(creator), microtheory);
+				}
+			} finally {
+				COMMIT_TIMER.recordSince(start);
+				commitLock.endCommit(stripes);
 			}
+		} finally {
+			if (locked)
+				commitLock.unlock(lockedStripes);
+		}
+		syncLog(sequence);
 
-			// Propagate subpreds
+		// Propagate subpreds
+		if (added) {
+			long start = System.nanoTime();
 			Edge propEdge = propagateEdge(edge, creator, microtheory, flags);
+			PROPAGATE_TIMER.recordSince(start);
 			if (propEdge instanceof ErrorEdge) {
 				removeEdge(edge);
 				return propEdge;
@@ -484,9 +1104,25 @@ public class CycDAG extends DirectedAcyclicGraph {
 
 	public OntologyFunction findOrCreateFunctionNode(boolean createNew,
 			boolean ephemeral, Node creator, Node... args) {
+		boolean outermost = beginChange();
+		try {
+			return findOrCreateFunctionNodeInternal(createNew, ephemeral,
+					creator, outermost, args);
+		} finally {
+			endChange();
+		}
+	}
+
+	/**
+	 * Finds or creates a function node, logging it if this call created it.
+	 */
+	private OntologyFunction findOrCreateFunctionNodeInternal(
+			boolean createNew, boolean ephemeral, Node creator,
+			boolean outermost, Node... args) {
 		if (args != null
 				&& (!createNew || semanticArgCheck(args, null, false, ephemeral) == null)) {
 			FunctionIndex functionIndexer = (FunctionIndex) getModule(FunctionIndex.class);
+			long sequence = 0;
 			nodeLock_.lock();
 			try {
 				OntologyFunction ontFunc = functionIndexer
@@ -501,36 +1137,164 @@ public class CycDAG extends DirectedAcyclicGraph {
 							// Trigger modules
 							for (DAGModule<?> module : getModules())
 								module.addNode(ontFunc);
+							int flags = (ephemeral) ? 3 : 1;
+							if (noChecks_)
+								flags |= LOG_NO_CHECKS;
+							sequence = logChange(outermost, LOG_NODE, flags,
+									loggedName(ontFunc), loggedName(creator));
 						}
 					}
 				}
 				return ontFunc;
 			} finally {
 				nodeLock_.unlock();
+				syncLog(sequence);
 			}
 		}
 		return null;
 	}
 
 	@Override
-	public synchronized Node findOrCreateNode(String nodeStr, Node creator,
+	public Node findOrCreateNode(String nodeStr, Node creator,
 			boolean... flags) {
 		BooleanFlags bFlags = nodeFlags_.loadFlags(flags);
 		boolean createNew = bFlags.getFlag("createNew");
 		boolean allowVariables = bFlags.getFlag("allowVariables");
-		Node node = super.findOrCreateNode(nodeStr, creator, flags);
-		if (node != null)
+		boolean outermost = beginChange();
+		long sequence = 0;
+		try {
+			// Holding both locks, only this call can add a node meanwhile
+			Node node = null;
+			boolean created = false;
+			synchronized (this) {
+				nodeLock_.lock();
+				try {
+					int numNodes = nodes_.size();
+					node = super.findOrCreateNode(nodeStr, creator, flags);
+					created = nodes_.size() > numNodes;
+				} finally {
+					nodeLock_.unlock();
+				}
+			}
+			if (node == null) {
+				// Function nodes log their own creation
+				if (nodeStr.startsWith("(")) {
+					Node[] subNodes = parseNodes(nodeStr, creator, createNew,
+							true, allowVariables);
+					return findOrCreateFunctionNodeInternal(createNew,
+							bFlags.getFlag("ephemeral"), creator, outermost,
+							subNodes);
+				} else if (allowVariables && nodeStr.startsWith("?")) {
+					return new VariableNode(nodeStr);
+				}
+			}
+			if (created)
+				sequence = logChange(
+						outermost,
+						LOG_NODE,
+						logFlags(bFlags, "createNew", "ephemeral",
+								"dagNodeOnly", "allowVariables"),
+						loggedName(node), loggedName(creator));
 			return node;
+		} finally {
+			endChange();
+			syncLog(sequence);
+		}
+	}
 
-		if (nodeStr.startsWith("(")) {
-			Node[] subNodes = parseNodes(nodeStr, creator, createNew, true,
-					allowVariables);
-			return findOrCreateFunctionNode(createNew,
-					bFlags.getFlag("ephemeral"), creator, subNodes);
-		} else if (allowVariables && nodeStr.startsWith("?")) {
-			return new VariableNode(nodeStr);
+	/**
+	 * Marks up the #$ tagged concepts in a comment as [[Concept]] links,
+	 * depluralising concepts that are not in the DAG. This depends on the
+	 * current state of the DAG.
+	 * 
+	 * @param comment
+	 *            The comment, already processed by {@link #markupCode(String)}.
+	 * @return The marked up comment node.
+	 */
+	StringNode markupConcepts(String comment) {
+		Matcher m = CONCEPT_PATTERN.matcher(comment);
+		StringBuilder replComment = new StringBuilder();
+		int start = 0;
+		while (m.find()) {
+			int end = m.start();
+			replComment.append(comment.substring(start, end));
+			String concept = m.group(1);
+			if (findDAGNode(concept) == null) {
+				if (findDAGNode(concept.substring(0, concept.length() - 1)) != null)
+					concept = concept.substring(0, concept.length() - 1);
+			}
+			replComment.append("[[" + concept + "]]");
+			start = m.end();
 		}
-		return null;
+		replComment.append(comment.substring(start, comment.length()));
+
+		return new StringNode(replComment.toString());
+	}
+
+	/**
+	 * Wraps uncoded expressions within a comment in code tags and removes the
+	 * #$ markers within code tags. This is independent of the DAG, so it can
+	 * be safely run on any thread.
+	 * 
+	 * @param comment
+	 *            The raw comment string.
+	 * @return The comment with its code markup processed.
+	 */
+	static String markupCode(String comment) {
+		// Find uncoded expressions
+		Matcher m = UNCODED_PATTERN.matcher(comment);
+		comment = m.replaceAll("<code>$0</code>");
+
+		// Remove #$ in code tags
+		m = CODE_PATTERN.matcher(comment);
+		StringBuilder replComment = new StringBuilder();
+		int start = 0;
+		while (m.find()) {
+			int end = m.start();
+			replComment.append(comment.substring(start, end));
+			replComment.append(m.group().replaceAll("#\\$", ""));
+			start = m.end();
+		}
+		replComment.append(comment.substring(start, comment.length()));
+		return replComment.toString();
+	}
+
+	/**
+	 * Splits a node string into its argument strings, without resolving any
+	 * of them.
+	 * 
+	 * @param strNodes
+	 *            The node string to split.
+	 * @return The argument strings.
+	 */
+	static ArrayList<String> tokeniseNodes(String strNodes) {
+		if (strNodes.startsWith("("))
+			strNodes = UtilityMethods.shrinkString(strNodes, 1);
+		return UtilityMethods.split(strNodes, ' ');
+	}
+
+	/**
+	 * @return The lock coordinating edge commits with concurrent writers and
+	 *         readers.
+	 */
+	public StripedCommitLock getCommitLock() {
+		if (commitLock_ == null)
+			commitLock_ = new StripedCommitLock();
+		return commitLock_;
+	}
+
+	@Override
+	public DAGEdge getEdgeByID(int id) {
+		if (!snapshotChecked_)
+			loadSnapshot();
+		return super.getEdgeByID(id);
+	}
+
+	@Override
+	public DAGNode getNodeByID(int id) {
+		if (!snapshotChecked_)
+			loadSnapshot();
+		return super.getNodeByID(id);
 	}
 
 	public Edge getRandomEdge(boolean allowFunction) {
@@ -558,6 +1322,35 @@ public class CycDAG extends DirectedAcyclicGraph {
 		return n;
 	}
 
+	/**
+	 * @return The most recently loaded or written snapshot, or null.
+	 */
+	public GraphSnapshot getSnapshot() {
+		return snapshot_;
+	}
+
+	@Override
+	public void groundEphemeral() {
+		StripedCommitLock commitLock = getCommitLock();
+		int[] stripes = commitLock.allStripes();
+		boolean outermost = beginChange();
+		long sequence = 0;
+		boolean locked = lockStripes(stripes);
+		commitLock.beginCommit(stripes);
+		try {
+			super.groundEphemeral();
+			sequence = logChange(outermost, LOG_GROUND_EPHEMERAL, 0);
+		} finally {
+			commitLock.endCommit(stripes);
+			if (locked)
+				commitLock.unlock(stripes);
+			if (outermost)
+				chainForward();
+			endChange();
+			syncLog(sequence);
+		}
+	}
+
 	@Override
 	public void initialiseInternal() {
 		// Register the compressable types
@@ -588,6 +1381,8 @@ public class CycDAG extends DirectedAcyclicGraph {
 			}
 			saveState();
 		}
+
+		openLog();
 	}
 
 	@Override
@@ -598,10 +1393,30 @@ public class CycDAG extends DirectedAcyclicGraph {
 
 	public Node[] parseNodes(String strNodes, Node creator,
 			boolean createNodes, boolean dagNodeOnly, boolean allowVariables) {
-		if (strNodes.startsWith("("))
-			strNodes = UtilityMethods.shrinkString(strNodes, 1);
-		ArrayList<String> split = UtilityMethods.split(strNodes, ' ');
+		return resolveNodes(tokeniseNodes(strNodes), creator, createNodes,
+				dagNodeOnly, allowVariables);
+	}
 
+	/**
+	 * Resolves (finds or creates) the nodes for a set of tokenised argument
+	 * strings.
+	 * 
+	 * @param split
+	 *            The argument strings, as produced by
+	 *            {@link #tokeniseNodes(String)}.
+	 * @param creator
+	 *            The creator of any new nodes.
+	 * @param createNodes
+	 *            If new nodes can be created.
+	 * @param dagNodeOnly
+	 *            If the first argument must be a DAG node.
+	 * @param allowVariables
+	 *            If variables are permitted as arguments.
+	 * @return The resolved nodes, or null if any argument could not be
+	 *         resolved.
+	 */
+	public Node[] resolveNodes(ArrayList<String> split, Node creator,
+			boolean createNodes, boolean dagNodeOnly, boolean allowVariables) {
 		Node[] nodes = new Node[split.size()];
 		int i = 0;
 		for (String arg : split) {
@@ -619,8 +1434,102 @@ public class CycDAG extends DirectedAcyclicGraph {
 		return nodes;
 	}
 
+	/**
+	 * Completes the initialisation of the modules. If the graph was loaded
+	 * from a snapshot, only the modules that no longer match it are rebuilt:
+	 * index modules in the background (with their indexes disabled, so
+	 * queries are answered from the graph) and other modules immediately.
+	 */
+	@Override
+	public boolean reloadModules(boolean forceRebuild) {
+		boolean rebuilt = (forceRebuild || !snapshotLoaded_) ? super
+				.reloadModules(forceRebuild) : reloadFromSnapshot();
+
+		// A rebuild is saved (compacting the log) once this returns
+		if (replayed_ > 0 && !rebuilt)
+			compactInBackground();
+		replayed_ = 0;
+		return rebuilt;
+	}
+
+	/**
+	 * Completes the initialisation of the modules of a graph loaded from a
+	 * snapshot.
+	 * 
+	 * @return True if any module was rebuilt immediately.
+	 */
+	private boolean reloadFromSnapshot() {
+		boolean rebuilt = false;
+		List<DAGModule<?>> stale = new ArrayList<>();
+		for (DAGModule<?> module : getModules()) {
+			if (!ModuleSection.hasSection(snapshot_, module)
+					|| ModuleSection.restore(snapshot_, module, this))
+				rebuilt |= module.initialisationComplete(nodes_, edges_, false);
+			else if (module instanceof IndexModule) {
+				((IndexModule) module).disableIndex();
+				stale.add(module);
+			} else {
+				System.out.println(module.getClass().getSimpleName()
+						+ " does not match the snapshot.");
+				rebuilt |= module.initialisationComplete(nodes_, edges_, true);
+			}
+		}
+		if (!stale.isEmpty())
+			rebuildInBackground(stale);
+		return rebuilt;
+	}
+
+	/**
+	 * Reads and asserts every assertion in an assertion file. If more than one
+	 * loader thread is configured, the file is loaded using a
+	 * {@link PipelinedAssertionLoader}, which produces the same DAG as the
+	 * sequential load. The logged changes are synced once, at the end of the
+	 * file.
+	 * 
+	 * @param assertionFile
+	 *            The file of assertions (one per line).
+	 * @param creator
+	 *            The creator of the new nodes.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 */
 	public void readAssertionFile(File assertionFile, Node creator)
 			throws IOException {
+		bulkLoad_ = true;
+		try {
+			if (loaderThreads_ > 1) {
+				if (!assertionFile.exists())
+					return;
+				noChecks_ = true;
+				try {
+					new PipelinedAssertionLoader(this, creator, loaderThreads_)
+							.load(assertionFile);
+				} finally {
+					noChecks_ = false;
+				}
+			} else
+				readAssertionFileSequential(assertionFile, creator);
+		} finally {
+			bulkLoad_ = false;
+			WriteAheadLog log = log_;
+			if (log != null)
+				syncLog(log.getAppended());
+		}
+	}
+
+	/**
+	 * Reads and asserts every assertion in an assertion file one line at a
+	 * time on the calling thread.
+	 * 
+	 * @param assertionFile
+	 *            The file of assertions (one per line).
+	 * @param creator
+	 *            The creator of the new nodes.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 */
+	public void readAssertionFileSequential(File assertionFile, Node creator)
+			throws IOException {
 		if (!assertionFile.exists())
 			return;
 
@@ -655,10 +1564,13 @@ public class CycDAG extends DirectedAcyclicGraph {
 
 					String microtheory = (split.length == 2) ? split[1]
 							.replaceAll("#\\$", "") : null;
+					int numEdges = getNumEdges();
 					Edge edge = findOrCreateEdge(nodes, CYC_IMPORT,
 							microtheory, true);
 					if (edge instanceof ErrorEdge)
 						nullCount++;
+					else if (getNumEdges() == numEdges)
+						duplicateCount++;
 				} else
 					nullCount++;
 			} catch (Exception e) {
@@ -706,6 +1618,137 @@ public class CycDAG extends DirectedAcyclicGraph {
 		reader.close();
 	}
 
+	@Override
+	public boolean removeEdge(Edge edge) {
+		if (edge == null)
+			return super.removeEdge(edge);
+		StripedCommitLock commitLock = getCommitLock();
+		int[] stripes = commitLock.stripes(edge.getNodes());
+		boolean outermost = beginChange();
+		long sequence = 0;
+		boolean locked = lockStripes(stripes);
+		commitLock.beginCommit(stripes);
+		try {
+			boolean removed = super.removeEdge(edge);
+			if (removed) {
+				changeCommitted((DAGEdge) edge);
+				sequence = logChange(outermost, LOG_REMOVE_EDGE, 0,
+						edge.toString(false));
+			}
+			return removed;
+		} finally {
+			commitLock.endCommit(stripes);
+			if (locked)
+				commitLock.unlock(stripes);
+			if (outermost)
+				chainForward();
+			endChange();
+			syncLog(sequence);
+		}
+	}
+
+	@Override
+	public boolean removeEdge(int edgeID) {
+		return removeEdge(getEdgeByID(edgeID));
+	}
+
+	@Override
+	public boolean removeNode(DAGNode node) {
+		// Removes every edge the node is in, so commits to every stripe
+		StripedCommitLock commitLock = getCommitLock();
+		int[] stripes = commitLock.allStripes();
+		boolean outermost = beginChange();
+		long sequence = 0;
+		boolean locked = lockStripes(stripes);
+		commitLock.beginCommit(stripes);
+		try {
+			boolean removed = super.removeNode(node);
+			if (removed) {
+				changeCommitted(node);
+				sequence = logChange(outermost, LOG_REMOVE_NODE, 0,
+						loggedName(node));
+			}
+			return removed;
+		} finally {
+			commitLock.endCommit(stripes);
+			if (locked)
+				commitLock.unlock(stripes);
+			if (outermost)
+				chainForward();
+			endChange();
+			syncLog(sequence);
+		}
+	}
+
+	@Override
+	public boolean removeNode(int nodeID) {
+		return removeNode(getNodeByID(nodeID));
+	}
+
+	@Override
+	public void removeProperty(DAGObject dagObj, String key) {
+		boolean outermost = beginChange();
+		long sequence = 0;
+		try {
+			synchronized (this) {
+				super.removeProperty(dagObj, key);
+				sequence = logChange(outermost, LOG_REMOVE_PROPERTY,
+						(dagObj instanceof DAGEdge) ? LOG_EDGE_PROPERTY : 0,
+						loggedTarget(dagObj), key);
+			}
+		} finally {
+			endChange();
+		}
+		syncLog(sequence);
+	}
+
+	/**
+	 * Saves the state, then deletes the log segments it covers. The log is
+	 * rotated first, so a change logged during the save is replayed on top of
+	 * it.
+	 */
+	@Override
+	public synchronized void saveState() {
+		long segment = 0;
+		if (log_ != null) {
+			try {
+				segment = log_.rotate();
+			} catch (IOException e) {
+				System.err.println("Could not rotate write-ahead log: "
+						+ e.getMessage());
+			}
+		}
+		super.saveState();
+		if (writeSnapshot_ && rootDir_ != null)
+			writeSnapshot();
+		if (segment > 0)
+			WriteAheadLog.deleteBefore(rootDir_, segment);
+	}
+
+	/**
+	 * Waits for any background rebuild of modules to complete.
+	 * 
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	public void waitForRebuild() throws InterruptedException {
+		Thread rebuildThread = rebuildThread_;
+		if (rebuildThread != null)
+			rebuildThread.join();
+	}
+
+	/**
+	 * Waits for any background compaction of the write-ahead log to complete.
+	 * 
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	public void waitForCompaction() throws InterruptedException {
+		Thread compactThread = compactThread_;
+		if (compactThread != null)
+			compactThread.join();
+	}
+
 	/**
 	 * Checks the arguments of an edge based on the argNIsa/argNGenls defined by
 	 * the edge predicate.
@@ -727,7 +1770,9 @@ public class CycDAG extends DirectedAcyclicGraph {
 			return null;
 		DAGNode predNode = (DAGNode) edgeNodes[0];
 		// Check arity
+		long start = System.nanoTime();
 		DAGErrorEdge error = checkArity(predNode, edgeNodes);
+		ARITY_TIMER.recordSince(start);
 		if (error != null)
 			return error;
 
@@ -736,16 +1781,21 @@ public class CycDAG extends DirectedAcyclicGraph {
 				: null;
 
 		// Check each arg
-		for (int i = 1; i < edgeNodes.length; i++) {
-			if (!singleArgCheck(predNode, i, edgeNodes[i], microtheory,
-					forwardEdges, ephemeral)) {
-				if (forwardChainCreate) {
-					// Unassert the edges
-					for (Edge e : forwardEdges)
-						removeEdge(e);
+		start = System.nanoTime();
+		try {
+			for (int i = 1; i < edgeNodes.length; i++) {
+				if (!singleArgCheck(predNode, i, edgeNodes[i], microtheory,
+						forwardEdges, ephemeral)) {
+					if (forwardChainCreate) {
+						// Unassert the edges
+						for (Edge e : forwardEdges)
+							removeEdge(e);
+					}
+					return new SemanticArgErrorEdge(predNode, i, edgeNodes[i]);
 				}
-				return new SemanticArgErrorEdge(predNode, i, edgeNodes[i]);
 			}
+		} finally {
+			ARG_CHECK_TIMER.recordSince(start);
 		}
 
 		return null;
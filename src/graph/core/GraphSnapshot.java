@@ -0,0 +1,655 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import util.collection.IndexedCollection;
+
+/**
+ * A versioned binary snapshot of a DAG, opened through read-only memory
+ * mappings so opening it costs the same regardless of its size, and several
+ * JVMs on a host share the same pages. The file is a sequence of named
+ * sections followed by a directory and a fixed-size trailer:
+ * <ul>
+ * <li><code>strings</code>: the interned string heap: a count, a table of
+ * offsets and the UTF-8 bytes of every distinct string.</li>
+ * <li><code>nodes</code>: the node table: the ID, kind, name (or function
+ * arguments) and properties of every node.</li>
+ * <li><code>edges</code>: the edge table: the ID, argument references and
+ * properties of every edge.</li>
+ * <li><code>module:&lt;name&gt;</code>: the index of a module, written by a
+ * {@link Section}.</li>
+ * </ul>
+ * Arguments are stored as references: DAG nodes by ID, string and primitive
+ * nodes by string reference, and anonymous functions inline.
+ * 
+ * @author Sam Sarjant
+ */
+public class GraphSnapshot {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long MAGIC = 0x4359434441475350L;
+	private static final int TRAILER_SIZE = 32;
+
+	/** Argument tags. */
+	private static final byte DAG_NODE = 0;
+	private static final byte STRING_NODE = 1;
+	private static final byte PRIMITIVE_NODE = 2;
+	private static final byte FUNCTION = 3;
+
+	/** Node kinds. */
+	private static final byte PLAIN_NODE = 0;
+	private static final byte FUNCTION_NODE = 1;
+
+	public static final String EDGES = "edges";
+	public static final String MODULE_PREFIX = "module:";
+	public static final String NODES = "nodes";
+	public static final String SNAPSHOT_FILE = "graph.snap";
+	public static final String STRINGS = "strings";
+	public static final int VERSION = 1;
+
+	private Map<String, Long> checksums_;
+	private int edgeCounter_;
+	private File file_;
+	private long graphChecksum_;
+	private int nodeCounter_;
+	private Map<String, ByteBuffer> sections_;
+	private String[] strings_;
+	private ByteBuffer stringBytes_;
+	private ByteBuffer stringOffsets_;
+
+	private GraphSnapshot(File file) {
+		file_ = file;
+		sections_ = new LinkedHashMap<>();
+		checksums_ = new HashMap<>();
+	}
+
+	/**
+	 * Reads a property list and applies it to an object.
+	 */
+	private void readProperties(ByteBuffer in, DAGObject object) {
+		// Replace the properties set on construction, preserving order
+		String[] defaults = object.getProperties();
+		if (defaults != null)
+			for (int i = 0; i < defaults.length; i += 2)
+				object.remove(defaults[i]);
+		int numProperties = in.getShort() & 0xffff;
+		for (int i = 0; i < numProperties; i++) {
+			String key = getString(in.getInt());
+			object.put(key, getString(in.getInt()));
+		}
+	}
+
+	/**
+	 * Reads a sequence of argument references.
+	 */
+	private Node[] readArgs(ByteBuffer in, Map<Integer, DAGNode> nodes)
+			throws IOException {
+		Node[] args = new Node[in.getShort() & 0xffff];
+		for (int i = 0; i < args.length; i++) {
+			byte tag = in.get();
+			switch (tag) {
+			case DAG_NODE:
+				int id = in.getInt();
+				args[i] = nodes.get(id);
+				if (args[i] == null)
+					throw new IOException("Unknown node ID " + id);
+				break;
+			case STRING_NODE:
+				args[i] = new StringNode(getString(in.getInt()));
+				break;
+			case PRIMITIVE_NODE:
+				args[i] = PrimitiveNode.parseNode(getString(in.getInt()));
+				break;
+			case FUNCTION:
+				args[i] = new OntologyFunction(readArgs(in, nodes));
+				break;
+			default:
+				throw new IOException("Unknown argument tag " + tag);
+			}
+		}
+		return args;
+	}
+
+	/**
+	 * Skips a sequence of argument references.
+	 */
+	private void skipArgs(ByteBuffer in) {
+		int numArgs = in.getShort() & 0xffff;
+		for (int i = 0; i < numArgs; i++) {
+			if (in.get() == FUNCTION)
+				skipArgs(in);
+			else
+				in.getInt();
+		}
+	}
+
+	/**
+	 * @return The checksum of each section, as recorded when it was written.
+	 */
+	public long getChecksum(String section) {
+		Long checksum = checksums_.get(section);
+		return (checksum == null) ? 0 : checksum;
+	}
+
+	public int getEdgeCounter() {
+		return edgeCounter_;
+	}
+
+	public File getFile() {
+		return file_;
+	}
+
+	/**
+	 * @return A checksum of the node, edge and string sections, identifying
+	 *         the state of the graph the snapshot was taken of.
+	 */
+	public long getGraphChecksum() {
+		return graphChecksum_;
+	}
+
+	public int getNodeCounter() {
+		return nodeCounter_;
+	}
+
+	/**
+	 * Gets a section of the snapshot.
+	 * 
+	 * @param name
+	 *            The name of the section.
+	 * @return A read-only buffer over the section, positioned at its start,
+	 *         or null if there is no such section.
+	 */
+	public ByteBuffer getSection(String name) {
+		ByteBuffer section = sections_.get(name);
+		return (section == null) ? null : section.duplicate();
+	}
+
+	public Set<String> getSectionNames() {
+		return Collections.unmodifiableSet(sections_.keySet());
+	}
+
+	/**
+	 * Gets a string from the heap.
+	 * 
+	 * @param ref
+	 *            The string reference.
+	 * @return The string.
+	 */
+	public String getString(int ref) {
+		String string = strings_[ref];
+		if (string == null) {
+			int start = stringOffsets_.getInt(ref * 4);
+			int end = stringOffsets_.getInt(ref * 4 + 4);
+			byte[] bytes = new byte[end - start];
+			ByteBuffer source = stringBytes_.duplicate();
+			source.position(start);
+			source.get(bytes);
+			string = new String(bytes, UTF8);
+			strings_[ref] = string;
+		}
+		return string;
+	}
+
+	/**
+	 * Decodes the nodes and edges of the snapshot into a DAG's collections.
+	 * 
+	 * @param nodes
+	 *            The collection to add the nodes to.
+	 * @param edges
+	 *            The collection to add the edges to.
+	 * @throws IOException
+	 *             If the snapshot is malformed.
+	 */
+	public void load(IndexedCollection<DAGNode> nodes,
+			IndexedCollection<DAGEdge> edges) throws IOException {
+		try {
+			// Create every node, then fill in function arguments
+			ByteBuffer in = getSection(NODES);
+			int numNodes = in.getInt();
+			Map<Integer, DAGNode> byID = new HashMap<>(numNodes * 2);
+			List<DAGNode> loaded = new ArrayList<>(numNodes);
+			// Functions hash on their arguments, so cannot be map keys yet
+			List<OntologyFunction> functions = new ArrayList<>();
+			List<Integer> functionArgs = new ArrayList<>();
+			for (int i = 0; i < numNodes; i++) {
+				int id = in.getInt();
+				byte kind = in.get();
+				DAGNode node = null;
+				if (kind == PLAIN_NODE) {
+					node = new DAGNode();
+					node.nodeName_ = getString(in.getInt());
+				} else if (kind == FUNCTION_NODE) {
+					OntologyFunction function = new OntologyFunction();
+					functions.add(function);
+					functionArgs.add(in.position());
+					skipArgs(in);
+					node = function;
+				} else
+					throw new IOException("Unknown node kind " + kind);
+				node.setID(id);
+				readProperties(in, node);
+				byID.put(id, node);
+				loaded.add(node);
+			}
+			for (int i = 0; i < functions.size(); i++) {
+				in.position(functionArgs.get(i));
+				functions.get(i).nodes_ = readArgs(in, byID);
+			}
+			for (DAGNode node : loaded)
+				nodes.add(node);
+
+			in = getSection(EDGES);
+			int numEdges = in.getInt();
+			for (int i = 0; i < numEdges; i++) {
+				DAGEdge edge = new DAGEdge();
+				edge.setID(in.getInt());
+				edge.edgeNodes_ = readArgs(in, byID);
+				readProperties(in, edge);
+				edges.add(edge);
+			}
+		} catch (BufferUnderflowException | IndexOutOfBoundsException
+				| NullPointerException e) {
+			throw new IOException("Malformed snapshot " + file_, e);
+		}
+
+		// Creating objects advances the ID counters
+		DAGNode.idCounter_ = nodeCounter_;
+		DAGEdge.setCounter(edgeCounter_);
+	}
+
+	/**
+	 * Checks the stored checksum of every section against its contents.
+	 * 
+	 * @return True if every section is intact.
+	 */
+	public boolean verify() {
+		for (Map.Entry<String, ByteBuffer> entry : sections_.entrySet()) {
+			CRC32 crc = new CRC32();
+			ByteBuffer section = entry.getValue().duplicate();
+			byte[] chunk = new byte[8192];
+			while (section.hasRemaining()) {
+				int length = Math.min(chunk.length, section.remaining());
+				section.get(chunk, 0, length);
+				crc.update(chunk, 0, length);
+			}
+			if (crc.getValue() != getChecksum(entry.getKey()))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Combines the checksums of the graph sections.
+	 */
+	private static long graphChecksum(long strings, long nodes, long edges) {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocate(24);
+		buffer.putLong(strings).putLong(nodes).putLong(edges);
+		crc.update(buffer.array());
+		return crc.getValue();
+	}
+
+	/**
+	 * Opens a snapshot by mapping its sections read-only. Nothing is decoded
+	 * until it is asked for.
+	 * 
+	 * @param file
+	 *            The snapshot file.
+	 * @return The opened snapshot.
+	 * @throws IOException
+	 *             If the file is not a snapshot of a supported version.
+	 */
+	public static GraphSnapshot open(File file) throws IOException {
+		GraphSnapshot snapshot = new GraphSnapshot(file);
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < TRAILER_SIZE)
+				throw new IOException("Not a snapshot: " + file);
+			ByteBuffer trailer = channel.map(MapMode.READ_ONLY, size
+					- TRAILER_SIZE, TRAILER_SIZE);
+			long directoryOffset = trailer.getLong();
+			int version = trailer.getInt();
+			snapshot.nodeCounter_ = trailer.getInt();
+			snapshot.edgeCounter_ = trailer.getInt();
+			trailer.getInt();
+			if (trailer.getLong() != MAGIC)
+				throw new IOException("Not a snapshot: " + file);
+			if (version != VERSION)
+				throw new IOException("Unsupported snapshot version "
+						+ version + " (expected " + VERSION + ")");
+
+			ByteBuffer directory = channel.map(MapMode.READ_ONLY,
+					directoryOffset, size - TRAILER_SIZE - directoryOffset);
+			int numSections = directory.getInt();
+			for (int i = 0; i < numSections; i++) {
+				byte[] name = new byte[directory.getShort() & 0xffff];
+				directory.get(name);
+				long offset = directory.getLong();
+				long length = directory.getLong();
+				long checksum = directory.getLong();
+				if (length > Integer.MAX_VALUE)
+					throw new IOException("Section too large to map: "
+							+ new String(name, UTF8));
+				String sectionName = new String(name, UTF8);
+				snapshot.sections_.put(sectionName,
+						channel.map(MapMode.READ_ONLY, offset, length));
+				snapshot.checksums_.put(sectionName, checksum);
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Malformed snapshot " + file, e);
+		}
+
+		if (snapshot.getSection(STRINGS) == null
+				|| snapshot.getSection(NODES) == null
+				|| snapshot.getSection(EDGES) == null)
+			throw new IOException("Incomplete snapshot " + file);
+		ByteBuffer strings = snapshot.getSection(STRINGS);
+		int numStrings = strings.getInt();
+		snapshot.strings_ = new String[numStrings];
+		strings.limit(4 + (numStrings + 1) * 4);
+		snapshot.stringOffsets_ = strings.slice();
+		strings = snapshot.getSection(STRINGS);
+		strings.position(4 + (numStrings + 1) * 4);
+		snapshot.stringBytes_ = strings.slice();
+		snapshot.graphChecksum_ = graphChecksum(
+				snapshot.getChecksum(STRINGS), snapshot.getChecksum(NODES),
+				snapshot.getChecksum(EDGES));
+		return snapshot;
+	}
+
+	/**
+	 * Writes a snapshot, replacing any existing file only once the new one is
+	 * complete.
+	 * 
+	 * @param file
+	 *            The snapshot file.
+	 * @param nodes
+	 *            The nodes of the graph.
+	 * @param edges
+	 *            The edges of the graph.
+	 * @param sections
+	 *            Any additional (e.g. module index) sections.
+	 * @return The checksum of the graph sections.
+	 * @throws IOException
+	 *             If the graph contains something that cannot be snapshotted,
+	 *             or the file cannot be written.
+	 */
+	public static long write(File file, Collection<DAGNode> nodes,
+			Collection<DAGEdge> edges, Collection<? extends Section> sections)
+			throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		long graphChecksum = 0;
+		try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+			Writer writer = new Writer(new BufferedOutputStream(fileOut,
+					1 << 16));
+			writer.writeNodes(nodes);
+			writer.writeEdges(edges);
+			writer.writeStrings();
+			graphChecksum = graphChecksum(writer.checksums_.get(STRINGS),
+					writer.checksums_.get(NODES), writer.checksums_.get(EDGES));
+			if (sections != null)
+				for (Section section : sections) {
+					writer.beginSection(MODULE_PREFIX + section.getName());
+					section.write(writer.out_, graphChecksum);
+					writer.endSection();
+				}
+			writer.writeDirectory();
+			writer.out_.flush();
+			fileOut.getFD().sync();
+		} catch (IOException | RuntimeException e) {
+			temp.delete();
+			throw e;
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		return graphChecksum;
+	}
+
+	/**
+	 * An additional section of the snapshot, such as a module's index.
+	 */
+	public interface Section {
+		/**
+		 * @return The name of the section, unique within the snapshot.
+		 */
+		String getName();
+
+		/**
+		 * Writes the section.
+		 * 
+		 * @param out
+		 *            The output to write to.
+		 * @param graphChecksum
+		 *            The checksum of the graph sections of the snapshot.
+		 * @throws IOException
+		 *             Should something go wrong.
+		 */
+		void write(DataOutputStream out, long graphChecksum)
+				throws IOException;
+	}
+
+	/**
+	 * Counts and checksums the bytes written to each section.
+	 */
+	private static class SectionStream extends FilterOutputStream {
+		private CRC32 crc_ = new CRC32();
+		private long position_;
+
+		public SectionStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			crc_.update(b, off, len);
+			position_ += len;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			crc_.update(b);
+			position_++;
+		}
+	}
+
+	/**
+	 * Writes the sections of a snapshot in a single pass, interning strings
+	 * as they are encountered.
+	 */
+	private static class Writer {
+		private Map<String, Long> checksums_;
+		private List<Object[]> directory_;
+		private DataOutputStream out_;
+		private Map<Integer, DAGNode> nodes_;
+		private String section_;
+		private long sectionStart_;
+		private SectionStream stream_;
+		private Map<String, Integer> stringRefs_;
+		private List<String> strings_;
+
+		public Writer(OutputStream out) {
+			stream_ = new SectionStream(out);
+			out_ = new DataOutputStream(stream_);
+			checksums_ = new HashMap<>();
+			directory_ = new ArrayList<>();
+			stringRefs_ = new HashMap<>();
+			strings_ = new ArrayList<>();
+		}
+
+		private int intern(String string) {
+			Integer ref = stringRefs_.get(string);
+			if (ref == null) {
+				ref = strings_.size();
+				strings_.add(string);
+				stringRefs_.put(string, ref);
+			}
+			return ref;
+		}
+
+		private void writeArgs(Node[] args) throws IOException {
+			if (args.length > 0xffff)
+				throw new IOException("Too many arguments to snapshot");
+			out_.writeShort(args.length);
+			for (Node arg : args) {
+				if (arg instanceof OntologyFunction
+						&& ((OntologyFunction) arg).getID() == -1) {
+					out_.writeByte(FUNCTION);
+					writeArgs(((OntologyFunction) arg).getNodes());
+				} else if (arg instanceof DAGNode) {
+					if (nodes_.get(((DAGNode) arg).getID()) != arg)
+						throw new IOException("Edge argument " + arg
+								+ " is not in the node table");
+					out_.writeByte(DAG_NODE);
+					out_.writeInt(((DAGNode) arg).getID());
+				} else if (arg instanceof StringNode) {
+					out_.writeByte(STRING_NODE);
+					out_.writeInt(intern(arg.getName()));
+				} else if (arg instanceof PrimitiveNode) {
+					out_.writeByte(PRIMITIVE_NODE);
+					out_.writeInt(intern(arg.toString()));
+				} else
+					throw new IOException("Cannot snapshot "
+							+ arg.getClass().getSimpleName() + " " + arg);
+			}
+		}
+
+		private void writeProperties(DAGObject object) throws IOException {
+			String[] properties = object.getProperties();
+			if (properties == null) {
+				out_.writeShort(0);
+				return;
+			}
+			out_.writeShort(properties.length / 2);
+			for (int i = 0; i + 1 < properties.length; i += 2) {
+				out_.writeInt(intern(properties[i]));
+				out_.writeInt(intern(properties[i + 1]));
+			}
+		}
+
+		public void beginSection(String name) throws IOException {
+			out_.flush();
+			section_ = name;
+			sectionStart_ = stream_.position_;
+			stream_.crc_.reset();
+		}
+
+		public void endSection() throws IOException {
+			out_.flush();
+			long checksum = stream_.crc_.getValue();
+			checksums_.put(section_, checksum);
+			directory_.add(new Object[] { section_, sectionStart_,
+					stream_.position_ - sectionStart_, checksum });
+		}
+
+		public void writeDirectory() throws IOException {
+			out_.flush();
+			long directoryOffset = stream_.position_;
+			out_.writeInt(directory_.size());
+			for (Object[] entry : directory_) {
+				byte[] name = ((String) entry[0]).getBytes(UTF8);
+				out_.writeShort(name.length);
+				out_.write(name);
+				out_.writeLong((Long) entry[1]);
+				out_.writeLong((Long) entry[2]);
+				out_.writeLong((Long) entry[3]);
+			}
+			out_.writeLong(directoryOffset);
+			out_.writeInt(VERSION);
+			out_.writeInt(DAGNode.idCounter_);
+			out_.writeInt(DAGEdge.idCounter_);
+			out_.writeInt(0);
+			out_.writeLong(MAGIC);
+		}
+
+		public void writeEdges(Collection<DAGEdge> edges) throws IOException {
+			beginSection(EDGES);
+			List<DAGEdge> list = new ArrayList<>(edges);
+			out_.writeInt(list.size());
+			for (DAGEdge edge : list) {
+				if (edge.getClass() != DAGEdge.class)
+					throw new IOException("Cannot snapshot "
+							+ edge.getClass().getSimpleName());
+				out_.writeInt(edge.getID());
+				writeArgs(edge.getNodes());
+				writeProperties(edge);
+			}
+			endSection();
+		}
+
+		public void writeNodes(Collection<DAGNode> nodes) throws IOException {
+			beginSection(NODES);
+			List<DAGNode> list = new ArrayList<>(nodes);
+			nodes_ = new HashMap<>(list.size() * 2);
+			for (DAGNode node : list)
+				nodes_.put(node.getID(), node);
+			out_.writeInt(list.size());
+			for (DAGNode node : list) {
+				out_.writeInt(node.getID());
+				if (node.getClass() == DAGNode.class) {
+					out_.writeByte(PLAIN_NODE);
+					out_.writeInt(intern(node.getName()));
+				} else if (node.getClass() == OntologyFunction.class) {
+					out_.writeByte(FUNCTION_NODE);
+					writeArgs(((OntologyFunction) node).getNodes());
+				} else
+					throw new IOException("Cannot snapshot "
+							+ node.getClass().getSimpleName());
+				writeProperties(node);
+			}
+			endSection();
+		}
+
+		public void writeStrings() throws IOException {
+			beginSection(STRINGS);
+			List<byte[]> encoded = new ArrayList<>(strings_.size());
+			out_.writeInt(strings_.size());
+			int offset = 0;
+			out_.writeInt(offset);
+			for (String string : strings_) {
+				byte[] bytes = string.getBytes(UTF8);
+				encoded.add(bytes);
+				offset += bytes.length;
+				out_.writeInt(offset);
+			}
+			for (byte[] bytes : encoded)
+				out_.write(bytes);
+			endSection();
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds. Like an HDR histogram,
+ * each power of two is split into a fixed number of linear sub-buckets, so
+ * every recorded value is kept to within about 6% using a small, fixed amount
+ * of memory, and recording is a couple of atomic increments.
+ * 
+ * @author Sam Sarjant
+ */
+public class LatencyHistogram {
+	/** The log2 of the number of sub-buckets per power of two. */
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int NUM_BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets_;
+	private final AtomicLong count_;
+	private final AtomicLong max_;
+	private final String name_;
+	private final AtomicLong total_;
+
+	public LatencyHistogram(String name) {
+		name_ = name;
+		buckets_ = new AtomicLongArray(NUM_BUCKETS);
+		count_ = new AtomicLong();
+		max_ = new AtomicLong();
+		total_ = new AtomicLong();
+	}
+
+	/**
+	 * Gets the bucket a value is recorded in.
+	 */
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Gets the largest value recorded in a bucket.
+	 */
+	private static long highestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	public long getCount() {
+		return count_.get();
+	}
+
+	/**
+	 * @return The largest recorded latency, in nanoseconds.
+	 */
+	public long getMax() {
+		return max_.get();
+	}
+
+	/**
+	 * @return The mean latency, in nanoseconds.
+	 */
+	public double getMean() {
+		long count = count_.get();
+		if (count == 0)
+			return 0;
+		return 1d * total_.get() / count;
+	}
+
+	public String getName() {
+		return name_;
+	}
+
+	/**
+	 * Gets a percentile of the recorded latencies.
+	 * 
+	 * @param percentile
+	 *            The percentile, between 0 and 100.
+	 * @return The latency (in nanoseconds) at or below which the percentile of
+	 *         recorded latencies fall, to within the histogram's precision.
+	 */
+	public long getPercentile(double percentile) {
+		long count = count_.get();
+		if (count == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += buckets_.get(i);
+			if (seen >= target)
+				return Math.min(highestValueOf(i), max_.get());
+		}
+		return max_.get();
+	}
+
+	/**
+	 * @return The sum of the recorded latencies, in nanoseconds.
+	 */
+	public long getTotal() {
+		return total_.get();
+	}
+
+	/**
+	 * Records a latency.
+	 * 
+	 * @param nanos
+	 *            The latency in nanoseconds.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		buckets_.incrementAndGet(bucketOf(nanos));
+		count_.incrementAndGet();
+		total_.addAndGet(nanos);
+		long max = max_.get();
+		while (nanos > max && !max_.compareAndSet(max, nanos))
+			max = max_.get();
+	}
+
+	/**
+	 * Records the time since a start time, if metrics are enabled.
+	 * 
+	 * @param startNanos
+	 *            The start time, from {@link System#nanoTime()}.
+	 */
+	public void recordSince(long startNanos) {
+		if (Metrics.getInstance().isEnabled())
+			record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Clears every recorded latency.
+	 */
+	public void reset() {
+		for (int i = 0; i < NUM_BUCKETS; i++)
+			buckets_.set(i, 0);
+		count_.set(0);
+		max_.set(0);
+		total_.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return name_ + ": " + count_.get() + " calls, mean "
+				+ (long) getMean() + "ns, p99 " + getPercentile(99) + "ns";
+	}
+}
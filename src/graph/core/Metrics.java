@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The registry of latency histograms for the query and assertion paths.
+ * Histograms are named by dotted paths: <code>query.execute</code> for every
+ * query, <code>worker.&lt;module&gt;</code> for each query worker,
+ * <code>commonQuery.&lt;CommonQuery&gt;</code> for each common query and
+ * <code>edge.&lt;phase&gt;</code> for each phase of edge creation.
+ * 
+ * @author Sam Sarjant
+ */
+public class Metrics implements MetricsMBean {
+	private static final Metrics INSTANCE = new Metrics();
+	public static final String OBJECT_NAME = "graph.core:type=Metrics";
+
+	private volatile boolean enabled_ = true;
+	private final ConcurrentMap<String, LatencyHistogram> histograms_;
+
+	private Metrics() {
+		histograms_ = new ConcurrentHashMap<>();
+	}
+
+	@Override
+	public long getCount(String name) {
+		LatencyHistogram histogram = histograms_.get(name);
+		return (histogram == null) ? 0 : histogram.getCount();
+	}
+
+	/**
+	 * Gets every histogram whose name starts with a prefix.
+	 * 
+	 * @param prefix
+	 *            The prefix, or null for every histogram.
+	 * @return The matching histograms, sorted by name.
+	 */
+	public List<LatencyHistogram> getHistograms(String prefix) {
+		List<String> names = new ArrayList<>();
+		for (String name : histograms_.keySet())
+			if (prefix == null || name.startsWith(prefix))
+				names.add(name);
+		Collections.sort(names);
+		List<LatencyHistogram> histograms = new ArrayList<>(names.size());
+		for (String name : names)
+			histograms.add(histograms_.get(name));
+		return histograms;
+	}
+
+	@Override
+	public double getMeanMicros(String name) {
+		LatencyHistogram histogram = histograms_.get(name);
+		return (histogram == null) ? 0 : histogram.getMean() / 1000;
+	}
+
+	@Override
+	public String[] getNames() {
+		List<LatencyHistogram> histograms = getHistograms(null);
+		String[] names = new String[histograms.size()];
+		for (int i = 0; i < names.length; i++)
+			names[i] = histograms.get(i).getName();
+		return names;
+	}
+
+	@Override
+	public double getPercentileMicros(String name, double percentile) {
+		LatencyHistogram histogram = histograms_.get(name);
+		return (histogram == null) ? 0
+				: histogram.getPercentile(percentile) / 1000d;
+	}
+
+	@Override
+	public String getReport() {
+		StringBuilder buffer = new StringBuilder();
+		for (LatencyHistogram histogram : getHistograms(null))
+			buffer.append(histogram).append('\n');
+		return buffer.toString();
+	}
+
+	/**
+	 * Gets a histogram by name, creating it if necessary. Callers on hot paths
+	 * should hold on to the histogram rather than look it up each time.
+	 * 
+	 * @param name
+	 *            The name of the histogram.
+	 * @return The histogram of that name.
+	 */
+	public LatencyHistogram histogram(String name) {
+		LatencyHistogram histogram = histograms_.get(name);
+		if (histogram == null) {
+			histogram = new LatencyHistogram(name);
+			LatencyHistogram existing = histograms_.putIfAbsent(name,
+					histogram);
+			if (existing != null)
+				histogram = existing;
+		}
+		return histogram;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled_;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server, so they can be
+	 * read with JConsole or any other JMX client.
+	 * 
+	 * @return True if the metrics are registered.
+	 */
+	public boolean registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(this, new ObjectName(OBJECT_NAME));
+			return true;
+		} catch (InstanceAlreadyExistsException e) {
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	@Override
+	public void reset() {
+		for (LatencyHistogram histogram : histograms_.values())
+			histogram.reset();
+	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		enabled_ = enabled;
+	}
+
+	public static Metrics getInstance() {
+		return INSTANCE;
+	}
+}
@@ -0,0 +1,34 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.core;
+
+/**
+ * The JMX view of {@link Metrics}.
+ * 
+ * @author Sam Sarjant
+ */
+public interface MetricsMBean {
+	long getCount(String name);
+
+	double getMeanMicros(String name);
+
+	String[] getNames();
+
+	double getPercentileMicros(String name, double percentile);
+
+	String getReport();
+
+	boolean isEnabled();
+
+	void reset();
+
+	void setEnabled(boolean enabled);
+}
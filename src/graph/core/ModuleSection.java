@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.core;
+
+import graph.module.DAGModule;
+import graph.module.IndexModule;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * The snapshot section of a module. It ties the serialised module file to the
+ * graph by recording the checksum of the graph and of the module file, and
+ * holds any part of the module's index not serialised with it (see
+ * {@link IndexModule}).
+ * 
+ * @author Sam Sarjant
+ */
+public class ModuleSection implements GraphSnapshot.Section {
+	private static final String MODULE_DIR = "modules";
+
+	private DAGModule<?> module_;
+	private File rootDir_;
+
+	public ModuleSection(DAGModule<?> module, File rootDir) {
+		module_ = module;
+		rootDir_ = rootDir;
+	}
+
+	@Override
+	public String getName() {
+		return module_.getClass().getSimpleName();
+	}
+
+	@Override
+	public void write(DataOutputStream out, long graphChecksum)
+			throws IOException {
+		// An index that is not built cannot match the graph
+		boolean ready = !(module_ instanceof IndexModule)
+				|| ((IndexModule) module_).isReady();
+		out.writeLong((ready) ? graphChecksum : 0);
+		out.writeLong(checksum(moduleFile(module_, rootDir_)));
+		out.writeBoolean(module_ instanceof IndexModule);
+		if (module_ instanceof IndexModule)
+			((IndexModule) module_).writeIndex(out);
+	}
+
+	/**
+	 * Computes the checksum of a file.
+	 * 
+	 * @param file
+	 *            The file.
+	 * @return The CRC32 of the file, or 0 if it does not exist.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 */
+	public static long checksum(File file) throws IOException {
+		if (!file.exists())
+			return 0;
+		CRC32 crc = new CRC32();
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buffer = new byte[1 << 16];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				crc.update(buffer, 0, read);
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * @return The file a module is serialised to.
+	 */
+	public static File moduleFile(DAGModule<?> module, File rootDir) {
+		return new File(new File(rootDir, MODULE_DIR), module.getClass()
+				.getSimpleName());
+	}
+
+	/**
+	 * Checks a module against its section of a snapshot, restoring any index
+	 * stored in the section.
+	 * 
+	 * @param snapshot
+	 *            The snapshot the graph was loaded from.
+	 * @param module
+	 *            The module, as deserialised from its file.
+	 * @param dag
+	 *            The DAG the module belongs to.
+	 * @return True if the module matches the graph and its index was
+	 *         restored, false if the module has no section or must be
+	 *         rebuilt.
+	 */
+	public static boolean restore(GraphSnapshot snapshot,
+			DAGModule<?> module, DirectedAcyclicGraph dag) {
+		ByteBuffer in = snapshot.getSection(GraphSnapshot.MODULE_PREFIX
+				+ module.getClass().getSimpleName());
+		if (in == null || in.getLong() != snapshot.getGraphChecksum())
+			return false;
+		try {
+			if (in.getLong() != checksum(moduleFile(module, dag.rootDir_)))
+				return false;
+		} catch (IOException e) {
+			return false;
+		}
+		try {
+			if (in.get() != 0 && module instanceof IndexModule)
+				return ((IndexModule) module).readIndex(in, dag);
+		} catch (BufferUnderflowException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if a module has a section in a snapshot.
+	 */
+	public static boolean hasSection(GraphSnapshot snapshot,
+			DAGModule<?> module) {
+		return snapshot.getSection(GraphSnapshot.MODULE_PREFIX
+				+ module.getClass().getSimpleName()) != null;
+	}
+}
@@ -0,0 +1,546 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads an assertion file through a pipeline of stages connected by bounded
+ * queues: a reader thread, a pool of parse threads, a node resolution thread
+ * and the edge insertion stage (the calling thread).
+ * 
+ * Parsing (tab splitting, tokenising, microtheory cleaning and the code markup
+ * of comments) does not touch the DAG, so it runs in parallel. Node resolution
+ * and edge insertion are each applied in file order, so the resulting node
+ * IDs, comments and edges are identical to those of
+ * {@link CycDAG#readAssertionFileSequential(File, Node)}. Resolution runs ahead
+ * of insertion, except for assertions containing functions, as function
+ * reification depends on the edges asserted before them.
+ * 
+ * @author Sam Sarjant
+ */
+public class PipelinedAssertionLoader {
+	/** The number of lines passed between stages at a time. */
+	private static final int BATCH_SIZE = 256;
+
+	/** The signal for a parse thread to stop. */
+	private static final Batch POISON = new Batch(-1, null);
+
+	/** The maximum time to wait on a queue before checking for failure. */
+	private static final long POLL_MILLIS = 100;
+
+	private Node creator_;
+
+	private CycDAG dag_;
+
+	/** Set if any stage fails outside of a single assertion. */
+	private volatile Throwable failure_;
+
+	/** Set when the pipeline has finished or failed. */
+	private volatile boolean stopped_;
+
+	/** The number of assertions passed through the insertion stage. */
+	private long inserted_;
+
+	/** The lock the resolution stage waits on for insertion to catch up. */
+	private final Object insertLock_ = new Object();
+
+	private StageStats insertStats_ = new StageStats("Insert");
+
+	private int numThreads_;
+
+	private StageStats parseStats_ = new StageStats("Parse");
+
+	/** Parsed batches, in no particular order. */
+	private BlockingQueue<Batch> parsedQueue_;
+
+	/** Raw batches, in file order. */
+	private BlockingQueue<Batch> readQueue_;
+
+	private StageStats readStats_ = new StageStats("Read");
+
+	/** Resolved batches, in file order. */
+	private BlockingQueue<Batch> resolvedQueue_;
+
+	private StageStats resolveStats_ = new StageStats("Resolve");
+
+	/** Bounds the number of batches between the reader and resolver. */
+	private Semaphore window_;
+
+	/**
+	 * Constructor for a new PipelinedAssertionLoader.
+	 * 
+	 * @param dag
+	 *            The DAG to load the assertions into.
+	 * @param creator
+	 *            The creator of any new nodes.
+	 * @param numThreads
+	 *            The number of parse threads.
+	 */
+	public PipelinedAssertionLoader(CycDAG dag, Node creator, int numThreads) {
+		dag_ = dag;
+		creator_ = creator;
+		numThreads_ = Math.max(1, numThreads);
+		int capacity = 4 * numThreads_;
+		readQueue_ = new ArrayBlockingQueue<>(capacity);
+		parsedQueue_ = new ArrayBlockingQueue<>(capacity);
+		resolvedQueue_ = new ArrayBlockingQueue<>(capacity);
+		window_ = new Semaphore(capacity);
+	}
+
+	/**
+	 * Inserts the edges of a batch in order, printing any errors as they are
+	 * reached.
+	 * 
+	 * @param batch
+	 *            The resolved batch.
+	 */
+	private void insertBatch(Batch batch) {
+		long start = System.nanoTime();
+		for (Assertion assertion : batch.assertions_) {
+			if (assertion.invalid_) {
+				System.err.println("Edge has more than one tab field! "
+						+ assertion.line_);
+				System.exit(1);
+			}
+			try {
+				if (assertion.error_ != null)
+					throw assertion.error_;
+				if (assertion.nodes_ != null) {
+					// The DAG coordinates concurrent writers, so readers and
+					// other writers are not held up by the import
+					int numEdges = dag_.getNumEdges();
+					Edge edge = dag_.findOrCreateEdge(assertion.nodes_,
+							CycDAG.CYC_IMPORT, assertion.microtheory_, true);
+					if (edge instanceof ErrorEdge)
+						insertStats_.nulls_.incrementAndGet();
+					else if (dag_.getNumEdges() == numEdges)
+						insertStats_.duplicates_.incrementAndGet();
+				}
+			} catch (Exception e) {
+				System.err.println(assertion.line_);
+				e.printStackTrace();
+			}
+		}
+		insertStats_.record(batch.assertions_.size(), System.nanoTime()
+				- start);
+
+		synchronized (insertLock_) {
+			inserted_ += batch.assertions_.size();
+			insertLock_.notifyAll();
+		}
+	}
+
+	/**
+	 * Parses an assertion line without resolving any nodes.
+	 * 
+	 * @param assertion
+	 *            The assertion to parse.
+	 */
+	private void parse(Assertion assertion) {
+		// Check for multiline comments.
+		String[] split = assertion.line_.split("\\t");
+		if (split.length > 2) {
+			assertion.invalid_ = true;
+			parseStats_.nulls_.incrementAndGet();
+			return;
+		}
+
+		try {
+			assertion.tokens_ = CycDAG.tokeniseNodes(split[0]);
+			for (String token : assertion.tokens_)
+				if (token.startsWith("("))
+					assertion.hasFunction_ = true;
+			if (split.length == 2)
+				assertion.microtheory_ = split[1].replaceAll("#\\$", "");
+
+			// Speculatively markup comments
+			if (assertion.tokens_.size() > 2
+					&& isComment(assertion.tokens_.get(0))) {
+				assertion.commentSource_ = assertion.tokens_.get(2);
+				assertion.codeComment_ = CycDAG
+						.markupCode(assertion.commentSource_);
+			}
+		} catch (Exception e) {
+			assertion.error_ = e;
+			parseStats_.nulls_.incrementAndGet();
+		}
+	}
+
+	/**
+	 * If a predicate token looks like the comment predicate. This is only a
+	 * hint; the resolved node is checked before the markup is used.
+	 * 
+	 * @param token
+	 *            The predicate token.
+	 * @return True if the token names the comment predicate.
+	 */
+	private boolean isComment(String token) {
+		if (token.startsWith("#$"))
+			token = token.substring(2);
+		return token.equals(CommonConcepts.COMMENT.getNodeName());
+	}
+
+	/**
+	 * Resolves the nodes of a single assertion, in file order.
+	 * 
+	 * @param assertion
+	 *            The parsed assertion.
+	 */
+	private void resolve(Assertion assertion) {
+		if (assertion.invalid_ || assertion.error_ != null)
+			return;
+
+		try {
+			Node[] nodes = dag_.resolveNodes(assertion.tokens_, creator_,
+					true, false, false);
+			if (nodes != null) {
+				// Comment cleaning
+				if (nodes[0].equals(CommonConcepts.COMMENT.getNode(dag_))) {
+					String comment = nodes[2].toString();
+					String codeComment = (comment
+							.equals(assertion.commentSource_)) ? assertion.codeComment_
+							: CycDAG.markupCode(comment);
+					synchronized (dag_) {
+						nodes[2] = dag_.markupConcepts(codeComment);
+					}
+				}
+				assertion.nodes_ = nodes;
+			} else
+				resolveStats_.nulls_.incrementAndGet();
+		} catch (Exception e) {
+			assertion.error_ = e;
+		}
+		assertion.tokens_ = null;
+		assertion.codeComment_ = null;
+	}
+
+	/**
+	 * Resolves the nodes of a batch in order, forwarding the batch to the
+	 * insertion stage. If an assertion contains a function, the preceding
+	 * assertions are forwarded first and resolution waits for them to be
+	 * inserted.
+	 * 
+	 * @param batch
+	 *            The parsed batch.
+	 * @param resolvedCount
+	 *            The number of assertions resolved before this batch.
+	 * @return The number of assertions resolved including this batch.
+	 * @throws InterruptedException
+	 *             If the stage is interrupted.
+	 */
+	private long resolveBatch(Batch batch, long resolvedCount)
+			throws InterruptedException {
+		long start = System.nanoTime();
+		Batch current = new Batch(batch.seq_,
+				new ArrayList<Assertion>(batch.assertions_.size()));
+		for (Assertion assertion : batch.assertions_) {
+			if (assertion.hasFunction_) {
+				// Function reification depends on the prior edges
+				if (!current.assertions_.isEmpty()) {
+					resolveStats_.record(current.assertions_.size(),
+							System.nanoTime() - start);
+					put(resolvedQueue_, current);
+					current = new Batch(batch.seq_, new ArrayList<Assertion>());
+				}
+				synchronized (insertLock_) {
+					while (inserted_ < resolvedCount && !stopped_)
+						insertLock_.wait(POLL_MILLIS);
+				}
+				start = System.nanoTime();
+			}
+			resolve(assertion);
+			current.assertions_.add(assertion);
+			resolvedCount++;
+		}
+		current.last_ = batch.last_;
+		resolveStats_.record(current.assertions_.size(), System.nanoTime()
+				- start);
+		put(resolvedQueue_, current);
+		return resolvedCount;
+	}
+
+	/**
+	 * Takes the next item from a queue, giving up if the pipeline has failed.
+	 * 
+	 * @param queue
+	 *            The queue to take from.
+	 * @return The next item.
+	 * @throws InterruptedException
+	 *             If interrupted or the pipeline has failed.
+	 */
+	private Batch take(BlockingQueue<Batch> queue) throws InterruptedException {
+		while (true) {
+			Batch batch = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			if (batch != null)
+				return batch;
+			if (stopped_)
+				throw new InterruptedException("Pipeline stopped");
+		}
+	}
+
+	/**
+	 * Puts an item into a queue, giving up if the pipeline has failed.
+	 * 
+	 * @param queue
+	 *            The queue to put into.
+	 * @param batch
+	 *            The item to put.
+	 * @throws InterruptedException
+	 *             If interrupted or the pipeline has failed.
+	 */
+	private void put(BlockingQueue<Batch> queue, Batch batch)
+			throws InterruptedException {
+		while (!queue.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+			if (stopped_)
+				throw new InterruptedException("Pipeline stopped");
+		}
+	}
+
+	/**
+	 * Records the first failure of a stage.
+	 * 
+	 * @param t
+	 *            The failure.
+	 */
+	private synchronized void fail(Throwable t) {
+		if (failure_ == null)
+			failure_ = t;
+		stopped_ = true;
+	}
+
+	public long getDuplicateCount() {
+		return insertStats_.duplicates_.get();
+	}
+
+	public long getNullCount() {
+		return resolveStats_.nulls_.get() + insertStats_.nulls_.get();
+	}
+
+	/**
+	 * Loads every assertion in a file into the DAG.
+	 * 
+	 * @param assertionFile
+	 *            The file of assertions (one per line).
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 */
+	public void load(final File assertionFile) throws IOException {
+		long start = System.nanoTime();
+		ArrayList<Thread> threads = new ArrayList<>();
+
+		// Reader stage
+		threads.add(new Thread("AssertionReader") {
+			@Override
+			public void run() {
+				long seq = 0;
+				try (BufferedReader reader = new BufferedReader(new FileReader(
+						assertionFile))) {
+					long readStart = System.nanoTime();
+					ArrayList<Assertion> assertions = new ArrayList<>(
+							BATCH_SIZE);
+					String line = null;
+					while ((line = reader.readLine()) != null) {
+						assertions.add(new Assertion(line));
+						if (assertions.size() == BATCH_SIZE) {
+							readStats_.record(assertions.size(),
+									System.nanoTime() - readStart);
+							window_.acquire();
+							put(readQueue_, new Batch(seq++, assertions));
+							assertions = new ArrayList<>(BATCH_SIZE);
+							readStart = System.nanoTime();
+						}
+					}
+					readStats_.record(assertions.size(), System.nanoTime()
+							- readStart);
+					Batch last = new Batch(seq, assertions);
+					last.last_ = true;
+					put(readQueue_, last);
+					for (int i = 0; i < numThreads_; i++)
+						put(readQueue_, POISON);
+				} catch (Throwable t) {
+					fail(t);
+				}
+			}
+		});
+
+		// Parse stage
+		for (int i = 0; i < numThreads_; i++) {
+			threads.add(new Thread("AssertionParser-" + i) {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							Batch batch = take(readQueue_);
+							if (batch == POISON)
+								return;
+							long parseStart = System.nanoTime();
+							for (Assertion assertion : batch.assertions_)
+								parse(assertion);
+							parseStats_.record(batch.assertions_.size(),
+									System.nanoTime() - parseStart);
+							put(parsedQueue_, batch);
+						}
+					} catch (Throwable t) {
+						fail(t);
+					}
+				}
+			});
+		}
+
+		// Resolution stage
+		threads.add(new Thread("AssertionResolver") {
+			@Override
+			public void run() {
+				try {
+					TreeMap<Long, Batch> pending = new TreeMap<>();
+					long nextSeq = 0;
+					long resolvedCount = 0;
+					while (true) {
+						Batch batch = take(parsedQueue_);
+						pending.put(batch.seq_, batch);
+						while ((batch = pending.remove(nextSeq)) != null) {
+							nextSeq++;
+							window_.release();
+							resolvedCount = resolveBatch(batch, resolvedCount);
+							if (batch.last_)
+								return;
+						}
+					}
+				} catch (Throwable t) {
+					fail(t);
+				}
+			}
+		});
+
+		for (Thread thread : threads) {
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		// Insertion stage
+		try {
+			while (true) {
+				Batch batch = take(resolvedQueue_);
+				insertBatch(batch);
+				if (batch.last_)
+					break;
+			}
+		} catch (InterruptedException e) {
+			fail(e);
+		} finally {
+			stopped_ = true;
+			for (Thread thread : threads)
+				thread.interrupt();
+		}
+
+		if (failure_ != null) {
+			if (failure_ instanceof IOException)
+				throw (IOException) failure_;
+			throw new IOException("Assertion loading failed", failure_);
+		}
+
+		printStatistics(System.nanoTime() - start);
+	}
+
+	/**
+	 * Prints the per-stage throughput and the overall null and duplicate
+	 * counts.
+	 * 
+	 * @param elapsed
+	 *            The total loading time in nanoseconds.
+	 */
+	private void printStatistics(long elapsed) {
+		System.out.println();
+		for (StageStats stats : new StageStats[] { readStats_, parseStats_,
+				resolveStats_, insertStats_ })
+			System.out.println(stats);
+		System.out.println("Total: " + insertStats_.items_.get()
+				+ " assertions in "
+				+ String.format("%.2fs", elapsed / 1000000000.0) + " ("
+				+ numThreads_ + " parse threads)");
+		System.out.println("\nNull count: " + getNullCount()
+				+ ", Duplicate count: " + getDuplicateCount() + "\n");
+	}
+
+	/**
+	 * A single line of the assertion file, as it passes through the stages.
+	 */
+	private static class Assertion {
+		private String codeComment_;
+		private String commentSource_;
+		private Exception error_;
+		private boolean hasFunction_;
+		private boolean invalid_;
+		private String line_;
+		private String microtheory_;
+		private Node[] nodes_;
+		private ArrayList<String> tokens_;
+
+		public Assertion(String line) {
+			line_ = line;
+		}
+	}
+
+	/**
+	 * A sequenced group of assertions.
+	 */
+	private static class Batch {
+		private ArrayList<Assertion> assertions_;
+		private boolean last_;
+		private long seq_;
+
+		public Batch(long seq, ArrayList<Assertion> assertions) {
+			seq_ = seq;
+			assertions_ = assertions;
+		}
+	}
+
+	/**
+	 * The counts and busy time of a single stage.
+	 */
+	private static class StageStats {
+		private AtomicLong busyNanos_ = new AtomicLong();
+		private AtomicLong duplicates_ = new AtomicLong();
+		private AtomicLong items_ = new AtomicLong();
+		private String name_;
+		private AtomicLong nulls_ = new AtomicLong();
+
+		public StageStats(String name) {
+			name_ = name;
+		}
+
+		public void record(int items, long nanos) {
+			items_.addAndGet(items);
+			busyNanos_.addAndGet(nanos);
+		}
+
+		@Override
+		public String toString() {
+			double seconds = busyNanos_.get() / 1000000000.0;
+			return String.format(
+					"%-8s %d assertions, %.2fs busy (%.0f/s), "
+							+ "null: %d, duplicate: %d", name_ + ":",
+					items_.get(), seconds, (seconds > 0) ? items_.get()
+							/ seconds : 0.0, nulls_.get(), duplicates_.get());
+		}
+	}
+}
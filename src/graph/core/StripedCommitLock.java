@@ -0,0 +1,296 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.core;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coordinates concurrent writers and lock-free readers of a DAG. Nodes are
+ * hashed into stripes, each with a lock and a pair of commit counters.
+ * Writers validate their changes without holding any lock, then lock the
+ * stripes of the nodes they change and of the predicates their validation
+ * read for the short commit step, re-validating only if another commit
+ * touched those stripes in the meantime. Readers never
+ * block: they snapshot the counters before reading and afterwards check that
+ * no commit to the stripes they consulted overlapped the read.
+ * 
+ * @author Sam Sarjant
+ */
+public class StripedCommitLock {
+	public static final int DEFAULT_STRIPES = 64;
+
+	/** The number of commits begun on each stripe. */
+	private final AtomicLongArray begun_;
+	/** The number of commits ended on each stripe. */
+	private final AtomicLongArray ended_;
+	/** Whether the current thread holds stripe locks. */
+	private final ThreadLocal<int[]> held_;
+	private final ReentrantLock[] locks_;
+
+	public StripedCommitLock() {
+		this(DEFAULT_STRIPES);
+	}
+
+	public StripedCommitLock(int numStripes) {
+		locks_ = new ReentrantLock[numStripes];
+		for (int i = 0; i < numStripes; i++)
+			locks_[i] = new ReentrantLock();
+		begun_ = new AtomicLongArray(numStripes);
+		ended_ = new AtomicLongArray(numStripes);
+		held_ = new ThreadLocal<int[]>() {
+			@Override
+			protected int[] initialValue() {
+				return new int[1];
+			}
+		};
+	}
+
+	private int markStripes(Node[] nodes, boolean[] used) {
+		int count = 0;
+		for (Node node : nodes) {
+			if (node instanceof DAGNode) {
+				int stripe = stripe(node);
+				if (!used[stripe]) {
+					used[stripe] = true;
+					count++;
+				}
+			}
+			if (node instanceof OntologyFunction)
+				count += markStripes(((OntologyFunction) node).getNodes(), used);
+		}
+		return count;
+	}
+
+	/**
+	 * @return An array of every stripe, for commits that may touch anything.
+	 */
+	public int[] allStripes() {
+		int[] stripes = new int[locks_.length];
+		for (int i = 0; i < stripes.length; i++)
+			stripes[i] = i;
+		return stripes;
+	}
+
+	/**
+	 * Checks if a set of stripes includes every stripe of another.
+	 * 
+	 * @param stripes
+	 *            The sorted stripes.
+	 * @param required
+	 *            The sorted stripes to look for.
+	 * @return True if every required stripe is in stripes.
+	 */
+	public static boolean containsAll(int[] stripes, int[] required) {
+		int i = 0;
+		for (int stripe : required) {
+			while (i < stripes.length && stripes[i] < stripe)
+				i++;
+			if (i == stripes.length || stripes[i] != stripe)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Marks the start of a commit to a set of stripes.
+	 * 
+	 * @param stripes
+	 *            The stripes being changed.
+	 */
+	public void beginCommit(int[] stripes) {
+		for (int stripe : stripes)
+			begun_.incrementAndGet(stripe);
+	}
+
+	/**
+	 * Marks the end of a commit begun with {@link #beginCommit(int[])}.
+	 * 
+	 * @param stripes
+	 *            The stripes that were changed.
+	 */
+	public void endCommit(int[] stripes) {
+		for (int stripe : stripes)
+			ended_.incrementAndGet(stripe);
+	}
+
+	public int getNumStripes() {
+		return locks_.length;
+	}
+
+	/**
+	 * @return True if the current thread holds any stripe locks, i.e. it is
+	 *         within a commit.
+	 */
+	public boolean isCommitting() {
+		return held_.get()[0] > 0;
+	}
+
+	/**
+	 * Checks if any commit to a set of stripes overlapped the period since a
+	 * snapshot was taken.
+	 * 
+	 * @param snapshot
+	 *            The snapshot taken with {@link #snapshot()}.
+	 * @param stripes
+	 *            The stripes to check, or null to check every stripe.
+	 * @return True if no commit to the stripes began before the snapshot
+	 *         without ending, or began after it.
+	 */
+	public boolean isUnchanged(long[] snapshot, int[] stripes) {
+		if (stripes == null) {
+			for (int i = 0; i < snapshot.length; i++)
+				if (begun_.get(i) != snapshot[i])
+					return false;
+		} else {
+			for (int stripe : stripes)
+				if (begun_.get(stripe) != snapshot[stripe])
+					return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if any commit to the stripes of a set of predicates overlapped
+	 * the period since a snapshot was taken. Non-DAG predicates (e.g.
+	 * variables) may match any edge, so they check every stripe.
+	 * 
+	 * @param snapshot
+	 *            The snapshot taken with {@link #snapshot()}.
+	 * @param predicates
+	 *            The predicates consulted since the snapshot.
+	 * @return True if none of the predicates' stripes were changed.
+	 */
+	public boolean isUnchanged(long[] snapshot, Collection<Node> predicates) {
+		for (Node predicate : predicates) {
+			if (!(predicate instanceof DAGNode))
+				return isUnchanged(snapshot, (int[]) null);
+			int stripe = stripe(predicate);
+			if (begun_.get(stripe) != snapshot[stripe])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Locks a set of stripes in ascending order. If the current thread
+	 * already holds stripe locks (i.e. this is a commit nested within
+	 * another, such as a propagated edge) no further locks are taken, so
+	 * threads never wait on a stripe while holding one.
+	 * 
+	 * @param stripes
+	 *            The sorted stripes to lock.
+	 * @return True if the locks were taken and must be released with
+	 *         {@link #unlock(int[])}.
+	 */
+	public boolean lock(int[] stripes) {
+		int[] held = held_.get();
+		if (held[0] > 0)
+			return false;
+		for (int stripe : stripes)
+			locks_[stripe].lock();
+		held[0] = 1;
+		return true;
+	}
+
+	/**
+	 * Takes a snapshot of the commit counters, for later comparison with
+	 * {@link #isUnchanged(long[], Collection)}.
+	 * 
+	 * @return The number of commits ended on each stripe.
+	 */
+	public long[] snapshot() {
+		long[] snapshot = new long[locks_.length];
+		for (int i = 0; i < snapshot.length; i++)
+			snapshot[i] = ended_.get(i);
+		return snapshot;
+	}
+
+	/**
+	 * Gets the stripe of a node.
+	 * 
+	 * @param node
+	 *            The node.
+	 * @return The stripe index of the node.
+	 */
+	public int stripe(Node node) {
+		int hash = node.hashCode();
+		hash ^= (hash >>> 16);
+		return (hash & Integer.MAX_VALUE) % locks_.length;
+	}
+
+	/**
+	 * Gets the distinct stripes of the DAG nodes (including those within
+	 * functions) of an edge, in ascending order.
+	 * 
+	 * @param nodes
+	 *            The nodes of the edge.
+	 * @return The sorted, distinct stripes.
+	 */
+	public int[] stripes(Node[] nodes) {
+		boolean[] used = new boolean[locks_.length];
+		int count = markStripes(nodes, used);
+		int[] stripes = new int[count];
+		for (int i = 0, j = 0; i < used.length && j < count; i++)
+			if (used[i])
+				stripes[j++] = i;
+		return stripes;
+	}
+
+	/**
+	 * Gets the distinct stripes of a set of stripes and the stripes of a set
+	 * of predicates, in ascending order. Non-DAG predicates (e.g. variables)
+	 * may match any edge, so they require every stripe.
+	 * 
+	 * @param stripes
+	 *            The sorted stripes.
+	 * @param predicates
+	 *            The predicates consulted.
+	 * @return The sorted, distinct stripes.
+	 */
+	public int[] stripes(int[] stripes, Collection<Node> predicates) {
+		boolean[] used = new boolean[locks_.length];
+		int count = 0;
+		for (int stripe : stripes) {
+			used[stripe] = true;
+			count++;
+		}
+		for (Node predicate : predicates) {
+			if (!(predicate instanceof DAGNode))
+				return allStripes();
+			int stripe = stripe(predicate);
+			if (!used[stripe]) {
+				used[stripe] = true;
+				count++;
+			}
+		}
+		if (count == stripes.length)
+			return stripes;
+		int[] union = new int[count];
+		for (int i = 0, j = 0; i < used.length && j < count; i++)
+			if (used[i])
+				union[j++] = i;
+		return union;
+	}
+
+	/**
+	 * Unlocks stripes locked by {@link #lock(int[])}.
+	 * 
+	 * @param stripes
+	 *            The stripes that were locked.
+	 */
+	public void unlock(int[] stripes) {
+		for (int i = stripes.length - 1; i >= 0; i--)
+			locks_[stripes[i]].unlock();
+		held_.get()[0] = 0;
+	}
+}
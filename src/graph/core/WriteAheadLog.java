@@ -0,0 +1,363 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the changes made to a DAG since it was last saved.
+ * The log is split into numbered segment files (<code>graph.wal.N</code>).
+ * Every record is framed by its length and CRC32, so a record torn by a crash
+ * ends the replay of its segment.
+ * 
+ * Appending only buffers a record. A call to {@link #sync(long)} writes the
+ * buffer and forces it to disk, and every record appended by other threads in
+ * the meantime is made durable by the same fsync. When saving state, the log
+ * is rotated before the graph is written, and the segments before the
+ * rotation are deleted once the save is complete. Records are replayed on top
+ * of the saved graph, so replaying a change the save already contains must
+ * have no effect.
+ * 
+ * @author Sam Sarjant
+ */
+public class WriteAheadLog {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The number of buffered bytes written to the segment without a sync. */
+	private static final int MAX_BUFFER = 1 << 20;
+
+	public static final String LOG_PREFIX = "graph.wal.";
+
+	private long appended_;
+	private ByteArrayOutputStream buffer_;
+	private FileChannel channel_;
+	private File dir_;
+	private long segment_;
+	private long segmentSize_;
+	private final Object syncLock_ = new Object();
+	private volatile long synced_;
+
+	/**
+	 * Opens a new log segment after any existing segments, so existing
+	 * segments are left to be replayed.
+	 * 
+	 * @param dir
+	 *            The directory of the log.
+	 * @throws IOException
+	 *             If the segment cannot be created.
+	 */
+	public WriteAheadLog(File dir) throws IOException {
+		dir_ = dir;
+		buffer_ = new ByteArrayOutputStream();
+		long[] segments = segments(dir);
+		openSegment((segments.length == 0) ? 1
+				: segments[segments.length - 1] + 1);
+	}
+
+	/**
+	 * Writes the buffered records to the current segment.
+	 */
+	private void flushBuffer() throws IOException {
+		if (buffer_.size() == 0)
+			return;
+		ByteBuffer bytes = ByteBuffer.wrap(buffer_.toByteArray());
+		buffer_.reset();
+		segmentSize_ += bytes.remaining();
+		while (bytes.hasRemaining())
+			channel_.write(bytes);
+	}
+
+	private void openSegment(long segment) throws IOException {
+		channel_ = FileChannel.open(segmentFile(dir_, segment).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		segment_ = segment;
+		segmentSize_ = channel_.size();
+	}
+
+	/**
+	 * Appends a record to the log. The record is only durable once
+	 * {@link #sync(long)} has been called with the returned sequence number.
+	 * 
+	 * @param type
+	 *            The type of the record.
+	 * @param flags
+	 *            Any flags of the record.
+	 * @param fields
+	 *            The fields of the record. Fields may be null.
+	 * @return The sequence number of the record.
+	 * @throws IOException
+	 *             If the buffer could not be written to the segment.
+	 */
+	public synchronized long append(byte type, int flags, String... fields)
+			throws IOException {
+		if (channel_ == null)
+			throw new IOException("The log is closed.");
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(payload);
+		out.writeByte(type);
+		out.writeByte(flags);
+		out.writeShort(fields.length);
+		for (String field : fields) {
+			if (field == null) {
+				out.writeInt(-1);
+			} else {
+				byte[] bytes = field.getBytes(UTF8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+		out.flush();
+
+		CRC32 crc = new CRC32();
+		crc.update(payload.toByteArray());
+		DataOutputStream record = new DataOutputStream(buffer_);
+		record.writeInt(payload.size());
+		record.writeInt((int) crc.getValue());
+		payload.writeTo(record);
+		record.flush();
+
+		// Bulk changes should not be held in memory until the next sync
+		if (buffer_.size() > MAX_BUFFER)
+			flushBuffer();
+		return ++appended_;
+	}
+
+	/**
+	 * Closes the log, syncing any buffered records.
+	 * 
+	 * @throws IOException
+	 *             If the records could not be synced.
+	 */
+	public void close() throws IOException {
+		synchronized (syncLock_) {
+			synchronized (this) {
+				if (channel_ == null)
+					return;
+				try {
+					flushBuffer();
+					channel_.force(false);
+					synced_ = appended_;
+				} finally {
+					channel_.close();
+					channel_ = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The sequence number of the last appended record.
+	 */
+	public synchronized long getAppended() {
+		return appended_;
+	}
+
+	/**
+	 * @return The current segment.
+	 */
+	public synchronized long getSegment() {
+		return segment_;
+	}
+
+	/**
+	 * Starts a new segment, unless the current segment is empty. Buffered
+	 * records are synced to the previous segment.
+	 * 
+	 * @return The first segment that is not covered by a save starting now.
+	 * @throws IOException
+	 *             If the records could not be synced or the segment created.
+	 */
+	public long rotate() throws IOException {
+		synchronized (syncLock_) {
+			synchronized (this) {
+				if (channel_ == null)
+					throw new IOException("The log is closed.");
+				flushBuffer();
+				if (segmentSize_ == 0)
+					return segment_;
+				channel_.force(false);
+				channel_.close();
+				synced_ = appended_;
+				openSegment(segment_ + 1);
+				return segment_;
+			}
+		}
+	}
+
+	/**
+	 * Makes a record, and every record appended before it, durable. If
+	 * another thread is syncing, this waits for it and then syncs every
+	 * record appended in the meantime in one go.
+	 * 
+	 * @param sequence
+	 *            The sequence number of the record.
+	 * @throws IOException
+	 *             If the records could not be written or forced to disk.
+	 */
+	public void sync(long sequence) throws IOException {
+		if (synced_ >= sequence)
+			return;
+		synchronized (syncLock_) {
+			if (synced_ >= sequence)
+				return;
+			FileChannel channel = null;
+			long appended = 0;
+			synchronized (this) {
+				if (channel_ == null)
+					throw new IOException("The log is closed.");
+				flushBuffer();
+				channel = channel_;
+				appended = appended_;
+			}
+			// Appends continue during the fsync
+			channel.force(false);
+			synced_ = appended;
+		}
+	}
+
+	/**
+	 * Deletes the segments before a given segment.
+	 * 
+	 * @param dir
+	 *            The directory of the log.
+	 * @param segment
+	 *            The first segment to keep.
+	 */
+	public static void deleteBefore(File dir, long segment) {
+		for (long existing : segments(dir))
+			if (existing < segment)
+				segmentFile(dir, existing).delete();
+	}
+
+	/**
+	 * Replays the records of every segment in order. The replay of a segment
+	 * ends at the first torn or corrupt record.
+	 * 
+	 * @param dir
+	 *            The directory of the log.
+	 * @param replayer
+	 *            The replayer to apply each record with.
+	 * @return The number of records replayed.
+	 * @throws IOException
+	 *             If a segment cannot be read.
+	 */
+	public static int replay(File dir, Replayer replayer) throws IOException {
+		int count = 0;
+		for (long segment : segments(dir)) {
+			ByteBuffer in = null;
+			try (FileChannel channel = FileChannel.open(segmentFile(dir,
+					segment).toPath(), StandardOpenOption.READ)) {
+				in = ByteBuffer.allocate((int) channel.size());
+				while (in.hasRemaining() && channel.read(in) != -1)
+					continue;
+				in.flip();
+			}
+
+			while (in.remaining() >= 8) {
+				int length = in.getInt();
+				int checksum = in.getInt();
+				if (length < 0 || length > in.remaining())
+					break;
+				byte[] payload = new byte[length];
+				in.get(payload);
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if ((int) crc.getValue() != checksum)
+					break;
+
+				ByteBuffer record = ByteBuffer.wrap(payload);
+				byte type = 0;
+				int flags = 0;
+				String[] fields = null;
+				try {
+					type = record.get();
+					flags = record.get() & 0xff;
+					fields = new String[record.getShort() & 0xffff];
+					for (int i = 0; i < fields.length; i++) {
+						int fieldLength = record.getInt();
+						if (fieldLength >= 0) {
+							fields[i] = new String(payload, record.position(),
+									fieldLength, UTF8);
+							record.position(record.position() + fieldLength);
+						}
+					}
+				} catch (BufferUnderflowException
+						| IllegalArgumentException
+						| IndexOutOfBoundsException e) {
+					break;
+				}
+				replayer.replay(type, flags, fields);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return The existing segments of a log, in order.
+	 */
+	public static long[] segments(File dir) {
+		String[] names = dir.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(LOG_PREFIX);
+			}
+		});
+		if (names == null)
+			return new long[0];
+		long[] segments = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			try {
+				segments[count] = Long.parseLong(name.substring(LOG_PREFIX
+						.length()));
+				count++;
+			} catch (NumberFormatException e) {
+			}
+		}
+		segments = Arrays.copyOf(segments, count);
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private static File segmentFile(File dir, long segment) {
+		return new File(dir, LOG_PREFIX + segment);
+	}
+
+	/**
+	 * Applies the records of a log.
+	 */
+	public interface Replayer {
+		/**
+		 * Applies a record.
+		 * 
+		 * @param type
+		 *            The type of the record.
+		 * @param flags
+		 *            The flags of the record.
+		 * @param fields
+		 *            The fields of the record.
+		 */
+		void replay(byte type, int flags, String[] fields);
+	}
+}
@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.core.cli;
+
+import java.io.BufferedReader;
+
+import commands.Batch;
+import core.Command;
+import core.CommandParser;
+
+/**
+ * A batch command that runs each of its commands through the session's
+ * scheduler, so batched writes run on the write lane.
+ * 
+ * @author Sam Sarjant
+ */
+public class CycBatchCommand extends Batch {
+	@Override
+	protected void executeImpl() {
+		// Format each element into individual commands
+		if (data.length() == 0) {
+			print("No command or delimiter specified.\n");
+			return;
+		}
+		String[] split = data.trim().split("\\s+");
+		if (split.length != 2) {
+			print("Incorrect number of arguments.\n");
+			return;
+		}
+
+		BufferedReader in = getPortHandler().getReader();
+		String commandName = split[0];
+		String delimiter = split[1];
+
+		try {
+			String line = null;
+			while ((line = in.readLine()) != null
+					&& !(line = line.trim()).equals(delimiter)) {
+				Command command = CommandParser.parse(commandName + " " + line);
+				command.setPortHandler(handler);
+				QueryScheduler.runSubcommand(command);
+				print(command.getResult());
+				print(delimiter + "\n");
+			}
+		} catch (Exception x) {
+			print("" + x);
+		}
+	}
+}
@@ -12,7 +12,10 @@ package graph.core.cli;
 
 import graph.core.CycDAG;
 import graph.core.DirectedAcyclicGraph;
+import graph.module.cli.ExplainCommand;
 import graph.module.cli.PredsForCommand;
+import graph.module.cli.SimilarConceptsCommand;
+import graph.module.cli.SlowQueryCommand;
 import graph.module.cli.ValidArgCommand;
 
 import java.io.IOException;
@@ -25,8 +28,26 @@ import core.PortHandler;
 public class CycDAGCLI extends DAGCommandLineInterface {
 	public static final String EDGES_FORWARD_INSTANTIATE = "/env/instantiateEdgeConstraints";
 
+	private QueryScheduler scheduler_;
+
 	public CycDAGCLI(int aPort, DirectedAcyclicGraph dag) {
+		this(aPort, dag, new QueryScheduler());
+	}
+
+	/**
+	 * Creates a CLI whose sessions run their commands through a scheduler.
+	 * 
+	 * @param aPort
+	 *            The port to listen on.
+	 * @param dag
+	 *            The DAG to serve.
+	 * @param scheduler
+	 *            The scheduler running every session's commands.
+	 */
+	public CycDAGCLI(int aPort, DirectedAcyclicGraph dag,
+			QueryScheduler scheduler) {
 		super(aPort, dag);
+		scheduler_ = scheduler;
 
 		CommandParser.addCommand("randomNode", RandomCycNodeCommand.class);
 		CommandParser.addCommand("randomEdge", RandomCycEdgeCommand.class);
@@ -36,6 +57,14 @@ public class CycDAGCLI extends DAGCommandLineInterface {
 		CommandParser.addCommand("addedge", AddCycEdgeCommand.class);
 		CommandParser.addCommand("varhelp", CycDAGVarHelpCommand.class);
 		CommandParser.addCommand("predsFor", PredsForCommand.class);
+		CommandParser.addCommand("similar", SimilarConceptsCommand.class);
+		CommandParser.addCommand("scheduler", SchedulerCommand.class);
+		CommandParser.addCommand("metrics", MetricsCommand.class);
+		CommandParser.addCommand("explain", ExplainCommand.class);
+		CommandParser.addCommand("slowlog", SlowQueryCommand.class);
+		CommandParser.addCommand("batch", CycBatchCommand.class);
+		CommandParser.addCommand("map", CycMapCommand.class);
+		CommandParser.addCommand("script", CycScriptCommand.class);
 	}
 
 	public static void main(String[] args) {
@@ -52,6 +81,7 @@ public class CycDAGCLI extends DAGCommandLineInterface {
 	@Override
 	protected PortHandler createPortHandler(Socket serverSocket,
 			CommandQueue commandQueue) throws IOException {
-		return new CycDAGPortHandler(serverSocket, commandQueue, dag_);
+		// Sessions share the scheduler's lanes rather than the plain queue
+		return new CycDAGPortHandler(serverSocket, scheduler_, dag_);
 	}
 }
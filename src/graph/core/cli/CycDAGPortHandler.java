@@ -25,9 +25,33 @@ import java.util.Map;
 import core.CommandQueue;
 
 public class CycDAGPortHandler extends DAGPortHandler {
+	private QueryScheduler scheduler_;
+
 	public CycDAGPortHandler(Socket aSocket, CommandQueue aQueue,
 			DirectedAcyclicGraph dag) {
 		super(aSocket, aQueue, dag);
+		if (aQueue instanceof QueryScheduler)
+			scheduler_ = (QueryScheduler) aQueue;
+		set(QueryScheduler.LANE, "auto");
+	}
+
+	/**
+	 * If results can be truncated to a range before post-processing, which is
+	 * only possible when post-processing neither sorts nor filters them.
+	 * 
+	 * @return True if the first N results are the first N post-processed
+	 *         results.
+	 */
+	public boolean canTruncateResults() {
+		return getComparator() == null && getFilters().isEmpty();
+	}
+
+	/**
+	 * @return The scheduler running this session's commands, or null if they
+	 *         are run by a plain command queue.
+	 */
+	public QueryScheduler getScheduler() {
+		return scheduler_;
 	}
 
 	@Override
@@ -20,6 +20,12 @@ public class CycDAGVarHelpCommand extends DAGVarHelpCommand {
 					+ "alphabetical; alphaNoCase, for alphabetical "
 					+ "(caseless); id, for ID ordered results; depth, "
 					+ "for depth (from Thing) ordered results.";
+		if (variable.equals(QueryScheduler.LANE))
+			return "[STRING] The lane this session's read-only commands "
+					+ "run on: interactive, for short commands; batch, for "
+					+ "long running commands; or auto, to choose by "
+					+ "command. Commands that modify the DAG always run "
+					+ "on the write lane.";
 		return super.getVarHelp(variable);
 	}
 }
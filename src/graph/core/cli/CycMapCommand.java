@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.core.cli;
+
+import java.io.BufferedReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import util.UtilityMethods;
+import commands.MapCommand;
+import core.Command;
+import core.CommandParser;
+
+/**
+ * A map command that runs its collection and mapped commands through the
+ * session's scheduler, so mapped writes run on the write lane.
+ * 
+ * @author Sam Sarjant
+ */
+public class CycMapCommand extends MapCommand {
+	@Override
+	protected void executeImpl() {
+		// Format each element into individual commands
+		int spaceIndex = data.indexOf(' ');
+		if (spaceIndex == -1) {
+			print("No function or args specified.\n");
+			return;
+		}
+		String[] split = data.split("\\s+");
+		if (split.length <= 2) {
+			print("No args or delimiter specified.\n");
+			return;
+		}
+
+		BufferedReader in = getPortHandler().getReader();
+		int funcExtent = split.length - 1;
+		String delimiter = split[funcExtent];
+
+		// Parse mapped function
+		String functionName = split[0];
+		String[] funcArgs = Arrays.copyOfRange(split, 1, funcExtent);
+		StringBuffer funcArgsStr = new StringBuffer();
+		for (String arg : funcArgs)
+			funcArgsStr.append(arg + " ");
+
+		try {
+			// Read collection
+			String collectionCommand = in.readLine().trim();
+			spaceIndex = collectionCommand.indexOf(' ');
+			String collectionName = collectionCommand;
+			String collectionArgs = "";
+			if (spaceIndex != -1) {
+				collectionName = collectionCommand.substring(0, spaceIndex);
+				collectionArgs = collectionCommand.substring(spaceIndex + 1)
+						.trim();
+			}
+
+			// Run the command
+			Command command = CommandParser.parse(collectionName + " "
+					+ collectionArgs);
+			command.setPortHandler(handler);
+			QueryScheduler.runSubcommand(command);
+			String output = command.getResult();
+
+			// Read regex
+			String regexStr = in.readLine().trim();
+			Pattern regex = Pattern.compile(regexStr);
+
+			// Map function to it
+			Matcher m = regex.matcher(output);
+			Collection<String> mappedResults = new ArrayList<>();
+			while (m.find()) {
+				String[] groups = new String[m.groupCount() + 1];
+				for (int i = 0; i < groups.length; i++)
+					groups[i] = m.group(i);
+
+				Command funcCommand = CommandParser.parse(functionName
+						+ " "
+						+ UtilityMethods.replaceToken(funcArgsStr.toString(),
+								groups));
+				funcCommand.setPortHandler(handler);
+				QueryScheduler.runSubcommand(funcCommand);
+				mappedResults.add(funcCommand.getResult());
+			}
+
+			for (String result : mappedResults) {
+				print(result + "\n");
+				print(delimiter + "\n");
+			}
+		} catch (Exception e) {
+			print("" + e);
+		}
+	}
+}
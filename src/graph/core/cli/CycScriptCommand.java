@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.core.cli;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import util.UtilityMethods;
+import commands.ScriptCommand;
+import core.Command;
+import core.CommandParser;
+
+/**
+ * A script command that runs each line of the script through the session's
+ * scheduler, so scripted writes run on the write lane.
+ * 
+ * @author Sam Sarjant
+ */
+public class CycScriptCommand extends ScriptCommand {
+	private static final Pattern NEW_LINE = Pattern.compile("(?<!\\\\)\\\\n");
+
+	@Override
+	protected void executeImpl() {
+		if (data.isEmpty()) {
+			print("-1|No filepath provided.\n");
+			return;
+		}
+
+		File scriptFile = new File(data);
+		if (!scriptFile.exists()) {
+			print("-1|Could not find file.\n");
+			return;
+		}
+
+		BufferedReader inReader = handler.getReader();
+		Collection<String> unprocessables = new ArrayList<>();
+		try {
+			// Modify PortHandler reader
+			PipedWriter multilineOut = new PipedWriter();
+			BufferedReader multiLineInput = new BufferedReader(new PipedReader(
+					multilineOut));
+			handler.setReader(multiLineInput);
+
+			String input = null;
+			String[] split = null;
+			boolean storeOutput = false;
+			boolean skip = false;
+			BufferedReader in = new BufferedReader(new FileReader(scriptFile));
+			while ((input = in.readLine()) != null) {
+				if (input.startsWith("%"))
+					continue;
+				storeOutput = false;
+				// Check if storing output
+				Matcher m = SCRIPT_STORE.matcher(input);
+				if (m.matches()) {
+					storeOutput = true;
+					input = m.group(2);
+					skip = false;
+				} else if (skip)
+					continue;
+
+				// Dealing with multiline
+				input = UtilityMethods.replaceToken(input, split,
+						SCRIPT_PATTERN);
+				String comStr = input;
+				if (input.contains("\\n")) {
+					input = NEW_LINE.matcher(input).replaceAll("\n");
+					multilineOut.write(input + System.lineSeparator());
+					comStr = multiLineInput.readLine();
+				}
+
+				try {
+					Command command = CommandParser.parse(comStr);
+					command.setPortHandler(handler);
+					QueryScheduler.runSubcommand(command);
+					String result = command.getResult();
+					if (storeOutput) {
+						if (result.startsWith("-")) {
+							System.out.println("Error running: " + input
+									+ ": " + result);
+							skip = true;
+						} else
+							split = result.split("\\|");
+					}
+				} catch (Exception e) {
+					unprocessables.add(comStr);
+					System.err.println("Exception while processing: "
+							+ comStr);
+				}
+			}
+
+			multiLineInput.close();
+			multilineOut.close();
+			in.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			print("-1|Exception while processing file. " + e + "\n");
+			return;
+		} finally {
+			handler.setReader(inReader);
+		}
+
+		if (unprocessables.isEmpty())
+			print("Successfully completed.\n");
+		else {
+			print("Completed. Some commands could not be processed:"
+					+ System.lineSeparator());
+			for (String unprocess : unprocessables)
+				print(unprocess + System.lineSeparator());
+		}
+	}
+}
@@ -48,7 +48,7 @@ public class ExtractCommand extends Command {
 
 		Command command = CommandParser.parse(commandStr);
 		command.setPortHandler(handler);
-		command.execute();
+		QueryScheduler.runSubcommand(command);
 		print(command.getResult().replaceAll(Pattern.quote(variable) + "/", ""));
 	}
 
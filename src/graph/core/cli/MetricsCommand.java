@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.core.cli;
+
+import graph.core.LatencyHistogram;
+import graph.core.Metrics;
+
+import java.util.List;
+
+import core.Command;
+
+public class MetricsCommand extends Command {
+	public MetricsCommand() {
+		// Must respond even when every lane is busy
+		addToQueue = false;
+	}
+
+	private static String micros(double nanos) {
+		return String.format("%.1f", nanos / 1000);
+	}
+
+	@Override
+	public String helpText() {
+		return "{0} [prefix|reset|on|off|jmx] : Returns the latency of each "
+				+ "instrumented operation (optionally only those starting with "
+				+ "prefix, e.g. worker., commonQuery., edge.) in the format "
+				+ "<Name>,<Count>,<Mean>,<P50>,<P90>,<P99>,<P999>,<Max>, with "
+				+ "times in microseconds. reset clears the metrics, on/off "
+				+ "enables or disables recording and jmx registers the metrics "
+				+ "as a JMX bean (" + Metrics.OBJECT_NAME + ").";
+	}
+
+	@Override
+	public String shortDescription() {
+		return "Shows the latency histograms of the query and assertion paths.";
+	}
+
+	@Override
+	protected void executeImpl() {
+		Metrics metrics = Metrics.getInstance();
+		String arg = data.trim();
+		if (arg.equalsIgnoreCase("reset")) {
+			metrics.reset();
+			print("1|Metrics reset.\n");
+			return;
+		} else if (arg.equalsIgnoreCase("on") || arg.equalsIgnoreCase("off")) {
+			metrics.setEnabled(arg.equalsIgnoreCase("on"));
+			print("1|Metrics " + (metrics.isEnabled() ? "enabled" : "disabled")
+					+ ".\n");
+			return;
+		} else if (arg.equalsIgnoreCase("jmx")) {
+			if (metrics.registerMBean())
+				print("1|Registered " + Metrics.OBJECT_NAME + ".\n");
+			else
+				print("-1|Could not register the metrics bean.\n");
+			return;
+		}
+
+		List<LatencyHistogram> histograms = metrics
+				.getHistograms((arg.isEmpty()) ? null : arg);
+		print(histograms.size() + "|");
+		for (LatencyHistogram histogram : histograms)
+			print(histogram.getName() + "," + histogram.getCount() + ","
+					+ micros(histogram.getMean()) + ","
+					+ micros(histogram.getPercentile(50)) + ","
+					+ micros(histogram.getPercentile(90)) + ","
+					+ micros(histogram.getPercentile(99)) + ","
+					+ micros(histogram.getPercentile(99.9)) + ","
+					+ micros(histogram.getMax()) + "|");
+		print("\n");
+	}
+}
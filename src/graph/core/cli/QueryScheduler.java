@@ -0,0 +1,565 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.core.cli;
+
+import graph.module.cli.ExplainCommand;
+import graph.module.cli.ManualDisjointnessCommand;
+import graph.module.cli.QueryCommand;
+import graph.module.cli.SemanticSiblingsCommand;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import commands.Batch;
+import commands.MapCommand;
+import commands.ScriptCommand;
+import core.Command;
+import core.CommandQueue;
+import core.PortHandler;
+
+/**
+ * A command queue that runs commands on separate lanes of threads, so a long
+ * command from one session does not hold up every other session. Read-only
+ * commands run in parallel on either the interactive or the batch lane, while
+ * commands that modify the DAG run one at a time on the write lane, in the
+ * order they were received. Each lane admits a bounded number of waiting
+ * commands; further commands are rejected with an error rather than queued.
+ * 
+ * Sessions wait for each command to complete before sending their next, so
+ * the commands of a session are always run in order. Commands that run other
+ * commands (e.g. batches and scripts) pass them to {@link #submit(Command)},
+ * so any writes among them still run on the write lane.
+ * 
+ * @author Sam Sarjant
+ */
+public class QueryScheduler extends CommandQueue {
+	/** The number of commands that may wait on each lane by default. */
+	public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+	/** The session variable for choosing a lane. */
+	public static final String LANE = "/env/lane";
+
+	/** The commands that run on the batch lane unless a lane is chosen. */
+	private static final Class<?>[] BATCH_COMMANDS = { QueryCommand.class,
+			ExplainCommand.class, ManualDisjointnessCommand.class,
+			SemanticSiblingsCommand.class, ExtractCommand.class,
+			ExportCommand.class, Batch.class, MapCommand.class,
+			ScriptCommand.class };
+
+	/** The commands that modify the DAG. */
+	private static final Class<?>[] WRITE_COMMANDS = { AddEdgeCommand.class,
+			AddNodeCommand.class, AddPropertyCommand.class,
+			RemoveEdgeCommand.class, RemoveNodeCommand.class,
+			RemovePropertyCommand.class, RemoveCommand.class,
+			GroundEphemeralCommand.class, SyncCommand.class };
+
+	/** The lanes whose commands may be handed out to other threads. */
+	private static final Lane[] READ_LANES = { Lane.INTERACTIVE, Lane.BATCH };
+
+	/** The lane of the current thread, if it is running a command. */
+	private final ThreadLocal<Lane> currentLane_;
+
+	private final LaneExecutor[] lanes_;
+
+	/** The latest command of each session, until it completes. */
+	private final ConcurrentMap<Object, Task> pending_;
+
+	/** Notified whenever a command is queued, for {@link #getNextCommand()}. */
+	private final Object waiting_ = new Object();
+
+	/**
+	 * Creates a scheduler with an interactive thread per core, a batch thread
+	 * per four cores and the default queue capacity.
+	 */
+	public QueryScheduler() {
+		this(Runtime.getRuntime().availableProcessors(), Math.max(1, Runtime
+				.getRuntime().availableProcessors() / 4),
+				DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Creates a new scheduler.
+	 * 
+	 * @param interactiveThreads
+	 *            The number of threads running interactive commands.
+	 * @param batchThreads
+	 *            The number of threads running batch commands.
+	 * @param queueCapacity
+	 *            The number of commands that may wait on each lane.
+	 */
+	public QueryScheduler(int interactiveThreads, int batchThreads,
+			int queueCapacity) {
+		// The inherited queue is unused, so it needs no threads
+		super(0);
+		currentLane_ = new ThreadLocal<>();
+		pending_ = new ConcurrentHashMap<>();
+		lanes_ = new LaneExecutor[Lane.values().length];
+		lanes_[Lane.INTERACTIVE.ordinal()] = new LaneExecutor(
+				Lane.INTERACTIVE, interactiveThreads, queueCapacity);
+		lanes_[Lane.BATCH.ordinal()] = new LaneExecutor(Lane.BATCH,
+				batchThreads, queueCapacity);
+		lanes_[Lane.WRITE.ordinal()] = new LaneExecutor(Lane.WRITE, 1,
+				queueCapacity);
+	}
+
+	private static boolean isInstance(Class<?>[] classes, Command command) {
+		for (Class<?> c : classes)
+			if (c.isInstance(command))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Gets the key identifying the session of a command.
+	 */
+	private static Object sessionOf(Command command) {
+		PortHandler handler = command.getPortHandler();
+		return (handler != null) ? handler : command;
+	}
+
+	/**
+	 * Runs a command started by another command (e.g. each command of a
+	 * batch), through the scheduler of the command's session if it has one.
+	 * 
+	 * @param command
+	 *            The command to run, with its port handler set.
+	 * @see #submit(Command)
+	 */
+	public static void runSubcommand(Command command) {
+		PortHandler handler = command.getPortHandler();
+		QueryScheduler scheduler = null;
+		if (handler instanceof CycDAGPortHandler)
+			scheduler = ((CycDAGPortHandler) handler).getScheduler();
+		if (scheduler != null)
+			scheduler.submit(command);
+		else
+			command.execute();
+	}
+
+	@Override
+	public void addCommand(Command command) {
+		addCommand(command, chooseLane(command));
+	}
+
+	/**
+	 * Runs a command on a given lane. If the lane's queue is full the command
+	 * is rejected and completes immediately with an error.
+	 * 
+	 * @param command
+	 *            The command to run.
+	 * @param lane
+	 *            The lane to run the command on.
+	 * @return True if the command was admitted to the lane.
+	 */
+	public boolean addCommand(Command command, Lane lane) {
+		Object session = sessionOf(command);
+		// Keep the session's commands in order
+		Task previous = pending_.get(session);
+		if (previous != null)
+			previous.await();
+
+		Task task = new Task(command, lane);
+		pending_.put(session, task);
+		if (!admit(task))
+			return false;
+		synchronized (waiting_) {
+			waiting_.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Queues a task on its lane, rejecting it with an error if the lane is
+	 * full.
+	 * 
+	 * @return True if the task was queued.
+	 */
+	private boolean admit(Task task) {
+		if (task.lane_.admit(task))
+			return true;
+		if (task.command_.getPortHandler() != null)
+			task.command_.print("-1|Server busy: the " + task.lane_.lane_
+					+ " queue is full. Try again later.\n");
+		task.finish(false);
+		return false;
+	}
+
+	/**
+	 * Chooses the lane for a command. Commands that modify the DAG always run
+	 * on the write lane. Otherwise the session's {@link #LANE} variable is
+	 * used, falling back to the command's usual lane.
+	 * 
+	 * @param command
+	 *            The command to run.
+	 * @return The lane to run it on.
+	 */
+	public Lane chooseLane(Command command) {
+		if (isInstance(WRITE_COMMANDS, command))
+			return Lane.WRITE;
+		PortHandler handler = command.getPortHandler();
+		String lane = (handler != null) ? handler.get(LANE) : null;
+		if (lane != null) {
+			if (lane.equalsIgnoreCase("interactive"))
+				return Lane.INTERACTIVE;
+			if (lane.equalsIgnoreCase("batch"))
+				return Lane.BATCH;
+		}
+		return (isInstance(BATCH_COMMANDS, command)) ? Lane.BATCH
+				: Lane.INTERACTIVE;
+	}
+
+	/**
+	 * Marks a command taken with {@link #getNextCommand()} as complete.
+	 * Commands run by the lanes complete themselves.
+	 */
+	@Override
+	public void completed(Command command) {
+		Task task = pending_.get(sessionOf(command));
+		if (task != null && task.command_ == command)
+			task.finish(true);
+	}
+
+	/**
+	 * @return The number of commands currently running on a lane.
+	 */
+	public int getActiveCount(Lane lane) {
+		return lanes_[lane.ordinal()].executor_.getActiveCount();
+	}
+
+	/**
+	 * @return The number of commands that may wait on a lane.
+	 */
+	public int getCapacity(Lane lane) {
+		return lanes_[lane.ordinal()].capacity_;
+	}
+
+	/**
+	 * @return The number of commands a lane has completed.
+	 */
+	public long getCompleted(Lane lane) {
+		return lanes_[lane.ordinal()].completed_.get();
+	}
+
+	/**
+	 * @return The mean time (in milliseconds) commands waited on a lane before
+	 *         running.
+	 */
+	public double getMeanWaitMillis(Lane lane) {
+		LaneExecutor executor = lanes_[lane.ordinal()];
+		long completed = executor.completed_.get();
+		if (completed == 0)
+			return 0;
+		return executor.waitNanos_.get() / 1000000d / completed;
+	}
+
+	/**
+	 * Takes the next command waiting on the interactive or batch lane, so an
+	 * outside thread can help run them. The caller must run the command and
+	 * then call {@link #completed(Command)}. Commands on the write lane are
+	 * never handed out, so writes still run one at a time.
+	 * 
+	 * @return The next waiting read-only command, waiting until there is one.
+	 */
+	@Override
+	public Command getNextCommand() {
+		synchronized (waiting_) {
+			while (true) {
+				for (Lane lane : READ_LANES) {
+					Task task = lanes_[lane.ordinal()].poll();
+					if (task != null) {
+						task.start();
+						return task.command_;
+					}
+				}
+				try {
+					waiting_.wait();
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The largest number of commands that have waited on a lane at
+	 *         once.
+	 */
+	public int getPeakQueueDepth(Lane lane) {
+		return lanes_[lane.ordinal()].peak_.get();
+	}
+
+	/**
+	 * @return The number of commands waiting to run on a lane.
+	 */
+	public int getQueueDepth(Lane lane) {
+		return lanes_[lane.ordinal()].queued_.get();
+	}
+
+	/**
+	 * @return The number of commands a lane has rejected.
+	 */
+	public long getRejected(Lane lane) {
+		return lanes_[lane.ordinal()].rejected_.get();
+	}
+
+	/**
+	 * @return The number of threads running a lane's commands.
+	 */
+	public int getThreads(Lane lane) {
+		return lanes_[lane.ordinal()].executor_.getMaximumPoolSize();
+	}
+
+	/**
+	 * Sets the number of commands that may wait on a lane.
+	 * 
+	 * @param lane
+	 *            The lane to configure.
+	 * @param capacity
+	 *            The new capacity.
+	 */
+	public void setCapacity(Lane lane, int capacity) {
+		lanes_[lane.ordinal()].capacity_ = capacity;
+	}
+
+	/**
+	 * Sets the number of threads running a lane's commands. The write lane
+	 * always runs commands one at a time.
+	 * 
+	 * @param lane
+	 *            The lane to configure.
+	 * @param threads
+	 *            The new number of threads.
+	 */
+	public void setThreads(Lane lane, int threads) {
+		if (lane == Lane.WRITE || threads < 1)
+			return;
+		ThreadPoolExecutor executor = lanes_[lane.ordinal()].executor_;
+		if (threads > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(threads);
+			executor.setCorePoolSize(threads);
+		} else {
+			executor.setCorePoolSize(threads);
+			executor.setMaximumPoolSize(threads);
+		}
+	}
+
+	/**
+	 * Runs a command started by another, already running, command. Commands
+	 * that modify the DAG are queued on the write lane (unless this is the
+	 * write lane) and waited for, so they stay ordered with every other
+	 * write. Other commands run on the calling thread, as the parent command
+	 * already holds a place on a lane. Subcommands are not part of the
+	 * session's ordering, as the parent command is.
+	 * 
+	 * @param command
+	 *            The command to run.
+	 * @return True if the command was run, false if the write lane rejected
+	 *         it.
+	 */
+	public boolean submit(Command command) {
+		if (chooseLane(command) != Lane.WRITE
+				|| currentLane_.get() == Lane.WRITE) {
+			command.execute();
+			return true;
+		}
+		Task task = new Task(command, Lane.WRITE);
+		if (!admit(task))
+			return false;
+		task.await();
+		return true;
+	}
+
+	/**
+	 * Stops every lane once its queued commands are complete.
+	 */
+	public void shutdown() {
+		for (LaneExecutor lane : lanes_)
+			lane.executor_.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buffer = new StringBuilder("Query scheduler:");
+		for (Lane lane : Lane.values())
+			buffer.append(" " + lane + " (" + getActiveCount(lane) + "/"
+					+ getThreads(lane) + " active, " + getQueueDepth(lane)
+					+ "/" + getCapacity(lane) + " queued)");
+		return buffer.toString();
+	}
+
+	@Override
+	public void waitForCompletion(PortHandler handler) {
+		Task task = pending_.get(handler);
+		if (task != null) {
+			task.await();
+			pending_.remove(handler, task);
+		}
+	}
+
+	/**
+	 * Waits for a command added without a session to complete.
+	 * 
+	 * @param command
+	 *            The command to wait for.
+	 */
+	public void waitForCompletion(Command command) {
+		Object session = sessionOf(command);
+		Task task = pending_.get(session);
+		if (task != null) {
+			task.await();
+			pending_.remove(session, task);
+		}
+	}
+
+	/**
+	 * The lanes commands may run on.
+	 */
+	public enum Lane {
+		BATCH, INTERACTIVE, WRITE;
+
+		@Override
+		public String toString() {
+			return name().toLowerCase();
+		}
+	}
+
+	/**
+	 * The threads and admission control of a single lane.
+	 */
+	private static class LaneExecutor {
+		private volatile int capacity_;
+		private final AtomicLong completed_ = new AtomicLong();
+		private final ThreadPoolExecutor executor_;
+		private final Lane lane_;
+		private final AtomicInteger peak_ = new AtomicInteger();
+		private final AtomicInteger queued_ = new AtomicInteger();
+		private final AtomicLong rejected_ = new AtomicLong();
+		private final AtomicLong waitNanos_ = new AtomicLong();
+
+		public LaneExecutor(final Lane lane, int threads, int capacity) {
+			lane_ = lane;
+			capacity_ = capacity;
+			executor_ = new ThreadPoolExecutor(threads, threads, 60,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+						private final AtomicInteger count_ = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, lane + "-command-"
+									+ count_.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+
+		/**
+		 * Queues a task if the lane has room for it.
+		 * 
+		 * @return True if the task was queued.
+		 */
+		public boolean admit(Task task) {
+			int queued = queued_.incrementAndGet();
+			if (queued > capacity_) {
+				queued_.decrementAndGet();
+				rejected_.incrementAndGet();
+				return false;
+			}
+			int peak = peak_.get();
+			while (queued > peak && !peak_.compareAndSet(peak, queued))
+				peak = peak_.get();
+			executor_.execute(task);
+			return true;
+		}
+
+		/**
+		 * Removes the next waiting task from the lane, if there is one.
+		 * 
+		 * @return The removed task, or null if none are waiting.
+		 */
+		public Task poll() {
+			return (Task) executor_.getQueue().poll();
+		}
+	}
+
+	/**
+	 * A command queued on a lane.
+	 */
+	private class Task implements Runnable {
+		private final Command command_;
+		private final CountDownLatch done_ = new CountDownLatch(1);
+		private final long enqueued_ = System.nanoTime();
+		private final LaneExecutor lane_;
+
+		public Task(Command command, Lane lane) {
+			command_ = command;
+			lane_ = lanes_[lane.ordinal()];
+		}
+
+		/**
+		 * Waits for the command to complete.
+		 */
+		public void await() {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					done_.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		/**
+		 * Marks the task as complete, releasing any waiting commands of its
+		 * session.
+		 * 
+		 * @param ran
+		 *            If the command was run, rather than rejected.
+		 */
+		public void finish(boolean ran) {
+			if (ran)
+				lane_.completed_.incrementAndGet();
+			pending_.remove(sessionOf(command_), this);
+			done_.countDown();
+		}
+
+		@Override
+		public void run() {
+			start();
+			currentLane_.set(lane_.lane_);
+			try {
+				command_.execute();
+			} finally {
+				currentLane_.remove();
+				finish(true);
+			}
+		}
+
+		/**
+		 * Records the task leaving its lane's queue.
+		 */
+		public void start() {
+			lane_.queued_.decrementAndGet();
+			lane_.waitNanos_.addAndGet(System.nanoTime() - enqueued_);
+		}
+	}
+}
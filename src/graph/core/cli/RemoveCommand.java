@@ -40,7 +40,7 @@ public class RemoveCommand extends Command {
 		try {
 			Command commandA = CommandParser.parse(data);
 			commandA.setPortHandler(handler);
-			commandA.execute();
+			QueryScheduler.runSubcommand(commandA);
 			String resultA = commandA.getResult();
 			String[] resultASplit = resultA.split("\\|");
 			Collection<String> resultACol = new HashSet<>();
@@ -52,7 +52,7 @@ public class RemoveCommand extends Command {
 			String commandBStr = in.readLine().trim();
 			Command commandB = CommandParser.parse(commandBStr);
 			commandB.setPortHandler(handler);
-			commandB.execute();
+			QueryScheduler.runSubcommand(commandB);
 			String resultB = commandB.getResult();
 			String[] resultBSplit = resultB.split("\\|");
 			Collection<String> resultBCol = new HashSet<>();
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.core.cli;
+
+import graph.core.cli.QueryScheduler.Lane;
+
+import core.Command;
+
+public class SchedulerCommand extends Command {
+	public SchedulerCommand() {
+		// Must respond even when every lane is busy
+		addToQueue = false;
+	}
+
+	@Override
+	public String helpText() {
+		return "{0} [lane threads|capacity N] : Returns the state of each "
+				+ "command lane in the format <Lane>,<Threads>,<Active>,"
+				+ "<Queued>,<Capacity>,<PeakQueued>,<Completed>,<Rejected>,"
+				+ "<MeanWaitMillis>. If a lane (interactive, batch or write) "
+				+ "is given, sets its number of threads or queue capacity.";
+	}
+
+	@Override
+	public String shortDescription() {
+		return "Shows or configures the command lanes of the query scheduler.";
+	}
+
+	@Override
+	protected void executeImpl() {
+		QueryScheduler scheduler = null;
+		if (handler instanceof CycDAGPortHandler)
+			scheduler = ((CycDAGPortHandler) handler).getScheduler();
+		if (scheduler == null) {
+			print("-1|Commands are not being scheduled by lane.\n");
+			return;
+		}
+
+		if (!data.isEmpty()) {
+			String[] split = data.trim().split("\\s+");
+			Lane lane = null;
+			int value = 0;
+			try {
+				lane = Lane.valueOf(split[0].toUpperCase());
+				value = Integer.parseInt(split[2]);
+			} catch (Exception e) {
+				print("-1|Expected: lane threads|capacity N\n");
+				return;
+			}
+			if (split[1].equalsIgnoreCase("threads"))
+				scheduler.setThreads(lane, value);
+			else if (split[1].equalsIgnoreCase("capacity"))
+				scheduler.setCapacity(lane, value);
+			else {
+				print("-1|Unknown setting '" + split[1] + "'.\n");
+				return;
+			}
+		}
+
+		print(Lane.values().length + "|");
+		for (Lane lane : Lane.values())
+			print(lane + "," + scheduler.getThreads(lane) + ","
+					+ scheduler.getActiveCount(lane) + ","
+					+ scheduler.getQueueDepth(lane) + ","
+					+ scheduler.getCapacity(lane) + ","
+					+ scheduler.getPeakQueueDepth(lane) + ","
+					+ scheduler.getCompleted(lane) + ","
+					+ scheduler.getRejected(lane) + ","
+					+ scheduler.getMeanWaitMillis(lane) + "|");
+		print("\n");
+	}
+}
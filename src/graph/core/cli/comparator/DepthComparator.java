@@ -15,29 +15,30 @@ import graph.core.cli.DAGPortHandler;
 import graph.module.DepthModule;
 
 public class DepthComparator extends IDComparator {
+	private DepthModule depthModule_;
+
 	public DepthComparator(DAGPortHandler handler) {
 		super(handler);
+		depthModule_ = (DepthModule) handler.getDAG().getModule(
+				DepthModule.class);
 	}
 
 	@Override
 	protected int compareInternal(Object o1, Object o2) {
-		if (o1 instanceof DAGNode && o2 instanceof DAGNode) {
-			String strDepth1 = ((DAGNode) o1)
-					.getProperty(DepthModule.DEPTH_PROPERTY);
-			String strDepth2 = ((DAGNode) o2)
-					.getProperty(DepthModule.DEPTH_PROPERTY);
-			if (strDepth1 != null) {
-				if (strDepth2 != null) {
-					int depth1 = Integer.parseInt(strDepth1);
-					int depth2 = Integer.parseInt(strDepth2);
+		if (depthModule_ != null && o1 instanceof DAGNode
+				&& o2 instanceof DAGNode) {
+			int depth1 = depthModule_.getDepth((DAGNode) o1);
+			int depth2 = depthModule_.getDepth((DAGNode) o2);
+			if (depth1 != -1) {
+				if (depth2 != -1) {
 					if (depth1 != depth2)
 						return Integer.compare(depth1, depth2);
 				} else
 					return -1;
-			} else if (strDepth2 != null)
+			} else if (depth2 != -1)
 				return 1;
 		}
 		return super.compareInternal(o1, o2);
 	}
 
-}
+}
\ No newline at end of file
@@ -13,6 +13,8 @@ package graph.inference;
 import graph.core.CommonConcepts;
 import graph.core.DAGNode;
 import graph.core.DirectedAcyclicGraph;
+import graph.core.LatencyHistogram;
+import graph.core.Metrics;
 import graph.core.Node;
 import graph.core.OntologyFunction;
 import graph.core.PrimitiveNode;
@@ -54,6 +56,8 @@ public enum CommonQuery {
 
 	private boolean specialQuery_;
 
+	private LatencyHistogram timer_;
+
 	private CommonQuery(String query) {
 		this(query, false);
 	}
@@ -62,6 +66,7 @@ public enum CommonQuery {
 		// TODO Convert the query to node ID form
 		queryStr_ = UtilityMethods.shrinkString(query, 1);
 		specialQuery_ = specialQuery;
+		timer_ = Metrics.getInstance().histogram("commonQuery." + name());
 	}
 
 	/**
@@ -218,6 +223,16 @@ public enum CommonQuery {
 	}
 
 	public Collection<Node> runQuery(DirectedAcyclicGraph dag, Node... args) {
+		long start = System.nanoTime();
+		try {
+			return runQueryInternal(dag, args);
+		} finally {
+			timer_.recordSince(start);
+		}
+	}
+
+	private Collection<Node> runQueryInternal(DirectedAcyclicGraph dag,
+			Node... args) {
 		String[] nodeIDs = new String[args.length];
 		for (int j = 0; j < nodeIDs.length; j++)
 			nodeIDs[j] = args[j].getIdentifier();
@@ -0,0 +1,516 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.inference;
+
+import graph.core.DAGNode;
+import graph.core.Node;
+import graph.core.OntologyFunction;
+import graph.core.StringNode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, memoising cache of query results. Queries are keyed on their
+ * nodes with variables normalised to their order of appearance, so (genls Dog
+ * ?X) and (genls Dog ?Y) share a single entry. Each entry records the
+ * predicates that were consulted while computing it, and is invalidated only
+ * when an edge with one of those predicates changes.
+ * 
+ * @author Sam Sarjant
+ */
+public class QueryCache {
+	/** The dependency recorded when any edge may affect a query. */
+	private static final Node ANY_PREDICATE = new StringNode("_ANY_PRED_");
+	/** The dependency recorded when a query result must never be cached. */
+	private static final Node UNCACHEABLE = new StringNode("_UNCACHEABLE_");
+	private static final String VARIABLE_PREFIX = "?_C";
+	public static final int DEFAULT_CAPACITY = 200000;
+
+	private int capacity_;
+	private Map<Node, Set<QueryKey>> dependents_;
+	private boolean enabled_ = true;
+	private LinkedHashMap<QueryKey, CacheEntry> entries_;
+	private final AtomicLong evictions_ = new AtomicLong();
+	private final AtomicLong hits_ = new AtomicLong();
+	private final AtomicLong invalidations_ = new AtomicLong();
+	private final AtomicLong misses_ = new AtomicLong();
+	private long modCount_;
+	private ThreadLocal<Deque<Set<Node>>> recording_;
+	private int totalWeight_;
+
+	public QueryCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param capacity
+	 *            The maximum total weight (number of cached substitutions plus
+	 *            one per entry) before least recently used entries are evicted.
+	 */
+	public QueryCache(int capacity) {
+		capacity_ = capacity;
+		entries_ = new LinkedHashMap<>(1024, 0.75f, true);
+		dependents_ = new HashMap<>();
+		recording_ = new ThreadLocal<Deque<Set<Node>>>() {
+			@Override
+			protected Deque<Set<Node>> initialValue() {
+				return new ArrayDeque<>();
+			}
+		};
+	}
+
+	/**
+	 * Normalises a node, replacing variables with their canonical form.
+	 * 
+	 * @param node
+	 *            The node to normalise.
+	 * @param variableMap
+	 *            The map of original to canonical variable names.
+	 * @return The normalised node, or null if the node cannot be keyed.
+	 */
+	private Node normalise(Node node, Map<String, String> variableMap) {
+		if (node == null)
+			return null;
+		if (node instanceof VariableNode) {
+			String canonical = variableMap.get(node.toString());
+			if (canonical == null) {
+				canonical = VARIABLE_PREFIX + variableMap.size();
+				variableMap.put(node.toString(), canonical);
+			}
+			return new VariableNode(canonical);
+		}
+		if (node instanceof OntologyFunction) {
+			Node[] funcNodes = ((OntologyFunction) node).getNodes();
+			Node[] normalised = normalise(funcNodes, variableMap);
+			if (normalised == null)
+				return null;
+			if (normalised == funcNodes)
+				return node;
+			return new OntologyFunction(normalised);
+		}
+		return node;
+	}
+
+	/**
+	 * Normalises an array of nodes.
+	 * 
+	 * @return The normalised array (the same array if no changes were made),
+	 *         or null if any node cannot be keyed.
+	 */
+	private Node[] normalise(Node[] nodes, Map<String, String> variableMap) {
+		if (nodes == null)
+			return null;
+		Node[] normalised = null;
+		for (int i = 0; i < nodes.length; i++) {
+			Node n = normalise(nodes[i], variableMap);
+			if (n == null)
+				return null;
+			if (n != nodes[i] && normalised == null)
+				normalised = Arrays.copyOf(nodes, nodes.length);
+			if (normalised != null)
+				normalised[i] = n;
+		}
+		return (normalised == null) ? nodes : normalised;
+	}
+
+	/**
+	 * Renames the variables of a substitution.
+	 * 
+	 * @param sub
+	 *            The substitution to rename.
+	 * @param renaming
+	 *            The variable renaming to apply. Unmapped variables are left
+	 *            as is.
+	 * @return A new substitution with renamed variables.
+	 */
+	private Substitution rename(Substitution sub, Map<String, String> renaming) {
+		Substitution renamed = new Substitution();
+		for (Map.Entry<String, Node> entry : sub.getSubstitutionMap()
+				.entrySet()) {
+			String var = renaming.get(entry.getKey());
+			renamed.addSubstitution((var == null) ? entry.getKey() : var,
+					entry.getValue());
+		}
+		return renamed;
+	}
+
+	/**
+	 * Removes an entry and its dependency links. Assumes the lock is held.
+	 */
+	private void removeEntry(QueryKey key, CacheEntry entry) {
+		totalWeight_ -= entry.weight_;
+		for (Node dependency : entry.dependencies_) {
+			Set<QueryKey> keys = dependents_.get(dependency);
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty())
+					dependents_.remove(dependency);
+			}
+		}
+	}
+
+	/**
+	 * Starts recording the dependencies of a query computation. Every call
+	 * must be paired with {@link #endRecording()}.
+	 */
+	public void beginRecording() {
+		recording_.get().push(new HashSet<Node>());
+	}
+
+	public synchronized void clear() {
+		entries_.clear();
+		dependents_.clear();
+		totalWeight_ = 0;
+		modCount_++;
+	}
+
+	/**
+	 * Creates the cache key for a query, if the query can be cached.
+	 * 
+	 * @param queryObj
+	 *            The query to key.
+	 * @return The key for the query or null if the query cannot be cached.
+	 */
+	public QueryKey createKey(QueryObject queryObj) {
+		if (!enabled_ || !queryObj.isCacheable()
+				|| queryObj.getPriorSubstitutions() != null
+				|| queryObj.getPriorSubstitution() != null
+				|| queryObj.getCandidates() != null)
+			return null;
+		Map<String, String> variableMap = new HashMap<>();
+		Node[] normalised = normalise(queryObj.getNodes(), variableMap);
+		if (normalised == null)
+			return null;
+		if (normalised == queryObj.getNodes())
+			normalised = Arrays.copyOf(normalised, normalised.length);
+		return new QueryKey(normalised, variableMap);
+	}
+
+	/**
+	 * Stops recording dependencies, passing the recorded dependencies on to
+	 * any enclosing computation.
+	 * 
+	 * @return The dependencies recorded since the matching
+	 *         {@link #beginRecording()}.
+	 */
+	public Set<Node> endRecording() {
+		Deque<Set<Node>> stack = recording_.get();
+		Set<Node> dependencies = stack.pop();
+		if (!stack.isEmpty())
+			stack.peek().addAll(dependencies);
+		return dependencies;
+	}
+
+	public int getCapacity() {
+		return capacity_;
+	}
+
+	public long getEvictions() {
+		return evictions_.get();
+	}
+
+	public long getHits() {
+		return hits_.get();
+	}
+
+	public long getInvalidations() {
+		return invalidations_.get();
+	}
+
+	public long getMisses() {
+		return misses_.get();
+	}
+
+	public synchronized long getModCount() {
+		return modCount_;
+	}
+
+	public synchronized int size() {
+		return entries_.size();
+	}
+
+	/**
+	 * Invalidates all entries that depend on a given predicate.
+	 * 
+	 * @param predicate
+	 *            The predicate of the edge that changed.
+	 */
+	public synchronized void invalidate(Node predicate) {
+		modCount_++;
+		if (entries_.isEmpty())
+			return;
+		Collection<QueryKey> invalid = new ArrayList<>();
+		Set<QueryKey> keys = dependents_.get(predicate);
+		if (keys != null)
+			invalid.addAll(keys);
+		keys = dependents_.get(ANY_PREDICATE);
+		if (keys != null)
+			invalid.addAll(keys);
+		for (QueryKey key : invalid) {
+			CacheEntry entry = entries_.remove(key);
+			if (entry != null) {
+				removeEntry(key, entry);
+				invalidations_.incrementAndGet();
+			}
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled_;
+	}
+
+	/**
+	 * @return True if the current thread is recording the dependencies of a
+	 *         computation, i.e. it is within another query.
+	 */
+	public boolean isRecording() {
+		return !recording_.get().isEmpty();
+	}
+
+	/**
+	 * Notes that the current computation consulted edges of a given
+	 * predicate. Non-DAG predicates (i.e. variables) depend upon every edge.
+	 * 
+	 * @param predicate
+	 *            The predicate consulted.
+	 */
+	public void recordDependency(Node predicate) {
+		Deque<Set<Node>> stack = recording_.get();
+		if (stack.isEmpty())
+			return;
+		if (predicate instanceof DAGNode)
+			stack.peek().add(predicate);
+		else
+			stack.peek().add(ANY_PREDICATE);
+	}
+
+	/**
+	 * Notes that the current computation depends on something other than the
+	 * graph (e.g. the current time), so it (and any enclosing computation)
+	 * cannot be cached.
+	 */
+	public void recordUncacheable() {
+		Deque<Set<Node>> stack = recording_.get();
+		if (!stack.isEmpty())
+			stack.peek().add(UNCACHEABLE);
+	}
+
+	/**
+	 * Attempts to answer a query from the cache. If successful, the results
+	 * and justification are added to the query object.
+	 * 
+	 * @param key
+	 *            The key of the query.
+	 * @param queryObj
+	 *            The query object to fill.
+	 * @return True if the query was answered from the cache.
+	 */
+	public boolean retrieve(QueryKey key, QueryObject queryObj) {
+		CacheEntry entry = null;
+		synchronized (this) {
+			entry = entries_.get(key);
+			if (entry == null) {
+				misses_.incrementAndGet();
+				return false;
+			}
+			hits_.incrementAndGet();
+		}
+
+		// Pass the dependencies on to any enclosing computation
+		Deque<Set<Node>> stack = recording_.get();
+		if (!stack.isEmpty())
+			stack.peek().addAll(entry.dependencies_);
+
+		queryObj.getJustification().addAll(entry.justification_);
+		if (entry.results_ != null) {
+			if (queryObj.isProof())
+				queryObj.addResult(new Substitution());
+			else {
+				Map<String, String> inverse = key.getInverseVariableMap();
+				for (Substitution sub : entry.results_) {
+					queryObj.addResult(rename(sub, inverse));
+					if (queryObj.isLimitReached())
+						break;
+				}
+			}
+		}
+		return true;
+	}
+
+	public synchronized void setCapacity(int capacity) {
+		capacity_ = capacity;
+		trim();
+	}
+
+	public synchronized void setEnabled(boolean enabled) {
+		enabled_ = enabled;
+		if (!enabled)
+			clear();
+	}
+
+	/**
+	 * Stores the results of a completed query. Queries that reached their
+	 * limit may be missing results, so they are not stored.
+	 * 
+	 * @param key
+	 *            The key of the query.
+	 * @param queryObj
+	 *            The completed query.
+	 * @param dependencies
+	 *            The predicates consulted during the query.
+	 * @param modCount
+	 *            The modification count at the start of the query. If the
+	 *            graph has changed since, the results are not stored.
+	 */
+	public void store(QueryKey key, QueryObject queryObj,
+			Set<Node> dependencies, long modCount) {
+		if (dependencies.contains(UNCACHEABLE) || queryObj.isLimitReached())
+			return;
+
+		// Build the entry outside of the lock
+		Collection<Substitution> results = queryObj.getResults();
+		ArrayList<Substitution> canonical = null;
+		if (results != null) {
+			canonical = new ArrayList<>(results.size());
+			if (!queryObj.isProof()) {
+				Map<String, String> variableMap = key.variableMap_;
+				for (Substitution sub : results)
+					canonical.add(rename(sub, variableMap));
+			}
+		}
+		CacheEntry entry = new CacheEntry(canonical, new ArrayList<>(
+				queryObj.getJustification()), dependencies);
+		if (entry.weight_ > capacity_)
+			return;
+
+		synchronized (this) {
+			if (modCount != modCount_ || !enabled_)
+				return;
+			CacheEntry old = entries_.put(key, entry);
+			if (old != null)
+				removeEntry(key, old);
+			totalWeight_ += entry.weight_;
+			for (Node dependency : dependencies) {
+				Set<QueryKey> keys = dependents_.get(dependency);
+				if (keys == null) {
+					keys = new HashSet<>();
+					dependents_.put(dependency, keys);
+				}
+				keys.add(key);
+			}
+			trim();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Query cache: " + entries_.size() + " entries (weight "
+				+ totalWeight_ + "/" + capacity_ + "), " + hits_.get()
+				+ " hits, " + misses_.get() + " misses, " + evictions_.get()
+				+ " evictions, " + invalidations_.get() + " invalidations";
+	}
+
+	/**
+	 * Evicts least recently used entries until the cache is within capacity.
+	 * Assumes the lock is held.
+	 */
+	private void trim() {
+		Iterator<Map.Entry<QueryKey, CacheEntry>> iter = entries_.entrySet()
+				.iterator();
+		while (totalWeight_ > capacity_ && iter.hasNext()) {
+			Map.Entry<QueryKey, CacheEntry> eldest = iter.next();
+			iter.remove();
+			removeEntry(eldest.getKey(), eldest.getValue());
+			evictions_.incrementAndGet();
+		}
+	}
+
+	/**
+	 * A cached query result.
+	 */
+	private class CacheEntry {
+		private Set<Node> dependencies_;
+		private List<Node[]> justification_;
+		/** The canonical results, or null for a failed proof. */
+		private ArrayList<Substitution> results_;
+		private int weight_;
+
+		public CacheEntry(ArrayList<Substitution> results,
+				List<Node[]> justification, Set<Node> dependencies) {
+			results_ = results;
+			justification_ = justification;
+			dependencies_ = dependencies;
+			weight_ = 1 + ((results == null) ? 0 : results.size());
+		}
+	}
+
+	/**
+	 * The normalised form of a query. Only the normalised nodes are used for
+	 * equality; the variable map records how the originating query's
+	 * variables were renamed.
+	 */
+	public static class QueryKey {
+		private int hash_;
+		private Node[] nodes_;
+		private Map<String, String> variableMap_;
+
+		private QueryKey(Node[] nodes, Map<String, String> variableMap) {
+			nodes_ = nodes;
+			variableMap_ = variableMap;
+			hash_ = Arrays.hashCode(nodes);
+		}
+
+		/**
+		 * @return A map of canonical variable names to the variable names of
+		 *         the query this key was created from.
+		 */
+		public Map<String, String> getInverseVariableMap() {
+			Map<String, String> inverse = new HashMap<>(variableMap_.size());
+			for (Map.Entry<String, String> entry : variableMap_.entrySet())
+				inverse.put(entry.getValue(), entry.getKey());
+			return inverse;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null || getClass() != obj.getClass())
+				return false;
+			QueryKey other = (QueryKey) obj;
+			return hash_ == other.hash_ && Arrays.equals(nodes_, other.nodes_);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash_;
+		}
+
+		@Override
+		public String toString() {
+			return Arrays.toString(nodes_);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.inference;
+
+import graph.core.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * How a query is routed through the query module's workers and, if it was
+ * run, what it cost.
+ * 
+ * @author Sam Sarjant
+ */
+public class QueryExplanation {
+	private boolean intervalSchema_;
+	private QueryPlan plan_;
+	private Node[] query_;
+	private String regex_;
+	private int results_ = QueryPlan.NOT_EVALUATED;
+	private long timeNanos_;
+	private long timestamp_;
+	private QueryTrace trace_;
+	private String worker_;
+	private String workerClass_;
+
+	public QueryExplanation(Node[] query) {
+		query_ = query;
+		timestamp_ = System.currentTimeMillis();
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.3f", nanos / 1000000d);
+	}
+
+	/**
+	 * @return The lines describing the route, plan and (if analysed) cost of
+	 *         the query.
+	 */
+	public List<String> getLines() {
+		List<String> lines = new ArrayList<>();
+		lines.add("query: (" + StringUtils.join(query_, ' ') + ")");
+		lines.add("worker: " + worker_ + " (" + workerClass_ + ")");
+		lines.add("regex redirect: " + ((regex_ == null) ? "none" : regex_));
+		lines.add("interval schema: " + ((intervalSchema_) ? "yes" : "no"));
+		if (plan_ != null) {
+			List<QueryPlan.Step> steps = plan_.getSteps();
+			for (int i = 0; i < steps.size(); i++) {
+				QueryPlan.Step step = steps.get(i);
+				String line = "conjunct " + (i + 1) + ": " + step;
+				if (step.getActual() != QueryPlan.NOT_EVALUATED)
+					line += " time=" + millis(step.getTimeNanos()) + "ms";
+				lines.add(line);
+			}
+		}
+		if (results_ != QueryPlan.NOT_EVALUATED)
+			lines.add("total: time=" + millis(timeNanos_) + "ms results="
+					+ results_
+					+ ((trace_ == null) ? "" : " edges="
+							+ trace_.getTotalEdges()));
+		if (trace_ != null)
+			for (QueryTrace.Step step : trace_.getSteps())
+				lines.add(step.toString());
+		return lines;
+	}
+
+	public QueryPlan getPlan() {
+		return plan_;
+	}
+
+	public Node[] getQuery() {
+		return query_;
+	}
+
+	/**
+	 * @return The regular expression that redirected the query, or null if
+	 *         none did.
+	 */
+	public String getRegex() {
+		return regex_;
+	}
+
+	/**
+	 * @return The number of results, or {@link QueryPlan#NOT_EVALUATED} if
+	 *         the query was not run.
+	 */
+	public int getResults() {
+		return results_;
+	}
+
+	public long getTimeNanos() {
+		return timeNanos_;
+	}
+
+	/**
+	 * @return The time this explanation was created, in epoch milliseconds.
+	 */
+	public long getTimestamp() {
+		return timestamp_;
+	}
+
+	/**
+	 * @return The trace of sub-queries, or null if the query was not traced.
+	 */
+	public QueryTrace getTrace() {
+		return trace_;
+	}
+
+	public String getWorker() {
+		return worker_;
+	}
+
+	/**
+	 * @return True if the query was routed to the transitive worker because
+	 *         the interval schema covers its predicate.
+	 */
+	public boolean isIntervalSchema() {
+		return intervalSchema_;
+	}
+
+	public void setIntervalSchema(boolean intervalSchema) {
+		intervalSchema_ = intervalSchema;
+	}
+
+	public void setPlan(QueryPlan plan) {
+		plan_ = plan;
+	}
+
+	public void setRegex(String regex) {
+		regex_ = regex;
+	}
+
+	/**
+	 * Records the cost of running the query.
+	 * 
+	 * @param timeNanos
+	 *            The time the query took.
+	 * @param results
+	 *            The number of results.
+	 * @param trace
+	 *            The trace of its sub-queries, or null if it was not traced.
+	 */
+	public void setRun(long timeNanos, int results, QueryTrace trace) {
+		timeNanos_ = timeNanos;
+		results_ = results;
+		trace_ = trace;
+	}
+
+	public void setWorker(String worker, Class<?> workerClass) {
+		worker_ = worker;
+		workerClass_ = workerClass.getSimpleName();
+	}
+
+	@Override
+	public String toString() {
+		return StringUtils.join(getLines(), '\n');
+	}
+}
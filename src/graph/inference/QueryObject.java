@@ -31,12 +31,20 @@ import java.util.Set;
 public class QueryObject {
 	private int atomicIndex_ = -1;
 	private ArrayList<DAGNode> atomics_;
+	private boolean cacheable_ = true;
+	private Set<Substitution> candidates_;
+	private List<String> candidateVars_;
 	private ArrayList<DAGNode> completed_;
 	private Set<DAGNode> completedSet_;
 	private List<Node[]> justification_;
+	private int limit_ = Integer.MAX_VALUE;
 	private Node[] nodes_;
+	private QueryPlan plan_;
 	private Substitution priorSubstitution_;
 	private ArrayList<Substitution> results_;
+	private VariableLayout resultLayout_;
+	/** The result slot of each query node, or -1 if not a variable. */
+	private int[] resultSlots_;
 	private Set<Substitution> resultsSet_;
 	private Set<Substitution> toComplete_;
 	private int variableIndex_ = -1;
@@ -84,6 +92,28 @@ public class QueryObject {
 		}
 	}
 
+	/**
+	 * Assigns the variables of the query nodes to slots, in the order they
+	 * first appear, so results share a single layout.
+	 */
+	private void buildResultLayout() {
+		int[] slots = new int[nodes_.length];
+		VariableLayout layout = VariableLayout.EMPTY;
+		for (int i = 0; i < nodes_.length; i++) {
+			slots[i] = -1;
+			if (nodes_[i] instanceof VariableNode) {
+				String varStr = nodes_[i].toString();
+				slots[i] = layout.indexOf(varStr);
+				if (slots[i] == -1) {
+					layout = layout.extend(varStr);
+					slots[i] = layout.size() - 1;
+				}
+			}
+		}
+		resultLayout_ = layout;
+		resultSlots_ = slots;
+	}
+
 	/**
 	 * Processes a function and extracts variables. Returns true if any
 	 * variables are found.
@@ -125,18 +155,19 @@ public class QueryObject {
 		justification_.add(nodes);
 
 		// Create a substitution
-		Substitution s = new Substitution();
+		if (resultSlots_ == null)
+			buildResultLayout();
+		Node[] values = new Node[resultLayout_.size()];
 		for (int i = 0; i < nodes_.length; i++) {
-			if (nodes_[i] instanceof VariableNode) {
-				String varStr = nodes_[i].toString();
-				if (s.containsVariable(varStr)
-						&& s.getSubstitution(varStr) != nodes[i])
+			int slot = resultSlots_[i];
+			if (slot != -1) {
+				if (values[slot] != null && values[slot] != nodes[i])
 					return false;
-				s.addSubstitution(varStr, nodes[i]);
+				values[slot] = nodes[i];
 			} else if (isProof() && !nodes[i].equals(nodes_[i]))
 				return false;
 		}
-		return addResult(s);
+		return addResult(new Substitution(resultLayout_, values));
 	}
 
 	/**
@@ -162,9 +193,10 @@ public class QueryObject {
 			resultsSet_.add(substitution);
 			return true;
 		} else {
+			if (!isCandidate(substitution))
+				return false;
 			if (priorSubstitution_ != null)
-				substitution.getSubstitutionMap().putAll(
-						priorSubstitution_.getSubstitutionMap());
+				substitution.addSubstitutions(priorSubstitution_);
 
 			if (!resultsSet_.contains(substitution)) {
 				results_.add(substitution);
@@ -173,9 +205,10 @@ public class QueryObject {
 
 			if (toComplete_ != null) {
 				toComplete_.remove(substitution);
-				return toComplete_.isEmpty();
+				if (toComplete_.isEmpty())
+					return true;
 			}
-			return false;
+			return isLimitReached();
 		}
 	}
 
@@ -187,6 +220,18 @@ public class QueryObject {
 				return;
 	}
 
+	/**
+	 * Discards the results, justification and completed nodes found so far,
+	 * so the query can be run again from scratch.
+	 */
+	public void clearResults() {
+		results_.clear();
+		resultsSet_.clear();
+		completed_.clear();
+		completedSet_.clear();
+		justification_ = new ArrayList<>();
+	}
+
 	public void cleanTransitiveJustification(List<Node[]> justifications) {
 		List<Node[]> transitiveJustification = new ArrayList<>();
 		Node transitiveNode = null;
@@ -226,6 +271,14 @@ public class QueryObject {
 		return justification_;
 	}
 
+	/**
+	 * @return The maximum number of results to find, or Integer.MAX_VALUE if
+	 *         unlimited.
+	 */
+	public int getLimit() {
+		return limit_;
+	}
+
 	public Node getNode(int i) {
 		return nodes_[i];
 	}
@@ -238,6 +291,18 @@ public class QueryObject {
 		return variables_.size();
 	}
 
+	/**
+	 * @return The evaluation plan of a conjunctive query, or null if the
+	 *         query was not planned.
+	 */
+	public QueryPlan getPlan() {
+		return plan_;
+	}
+
+	public Substitution getPriorSubstitution() {
+		return priorSubstitution_;
+	}
+
 	public Collection<Substitution> getPriorSubstitutions() {
 		return toComplete_;
 	}
@@ -263,10 +328,59 @@ public class QueryObject {
 		return variableIndex_;
 	}
 
+	/**
+	 * @return The candidate bindings results must agree with, or null if
+	 *         unrestricted.
+	 */
+	public Set<Substitution> getCandidates() {
+		return candidates_;
+	}
+
+	public List<String> getCandidateVariables() {
+		return candidateVars_;
+	}
+
+	/**
+	 * If this query's results may be served from (and stored in) the query
+	 * cache.
+	 * 
+	 * @return True if the query can be cached.
+	 */
+	public boolean isCacheable() {
+		return cacheable_;
+	}
+
+	/**
+	 * Checks if a result agrees with the candidate bindings.
+	 * 
+	 * @param substitution
+	 *            The result to check.
+	 * @return True if there are no candidate bindings or the result's
+	 *         projection onto the candidate variables is a candidate.
+	 */
+	public boolean isCandidate(Substitution substitution) {
+		if (candidates_ == null)
+			return true;
+		Substitution projection = SubstitutionJoin.project(substitution,
+				candidateVars_);
+		return projection == null || candidates_.contains(projection);
+	}
+
 	public boolean isCompleted(Node n) {
 		return completedSet_.contains(n);
 	}
 
+	/**
+	 * If the query has found as many results as its limit allows. If so, the
+	 * results may be a prefix of the full results. A proof is complete once
+	 * found, so it never reaches its limit.
+	 * 
+	 * @return True if no more results are required.
+	 */
+	public boolean isLimitReached() {
+		return !isProof() && results_.size() >= limit_;
+	}
+
 	public boolean isProof() {
 		return variables_.isEmpty();
 	}
@@ -286,6 +400,9 @@ public class QueryObject {
 		newObj.results_ = results_;
 		newObj.resultsSet_ = resultsSet_;
 		newObj.toComplete_ = toComplete_;
+		newObj.limit_ = limit_;
+		newObj.candidates_ = candidates_;
+		newObj.candidateVars_ = candidateVars_;
 		return newObj;
 	}
 
@@ -295,6 +412,42 @@ public class QueryObject {
 		return qo;
 	}
 
+	public void setCacheable(boolean cacheable) {
+		cacheable_ = cacheable;
+	}
+
+	/**
+	 * Restricts the results to those agreeing with a set of candidate
+	 * bindings (a semi-join with the bindings found so far). Workers may
+	 * also use the candidates to restrict their lookups.
+	 * 
+	 * @param variables
+	 *            The variables the candidates bind.
+	 * @param candidates
+	 *            The candidate bindings, projected onto the variables.
+	 */
+	public void setCandidates(List<String> variables,
+			Set<Substitution> candidates) {
+		candidateVars_ = variables;
+		candidates_ = candidates;
+	}
+
+	/**
+	 * Limits the number of results the query finds. Workers stop searching
+	 * once the limit is reached, so a limited query only costs what it
+	 * returns.
+	 * 
+	 * @param limit
+	 *            The maximum number of results to find.
+	 */
+	public void setLimit(int limit) {
+		limit_ = limit;
+	}
+
+	public void setPlan(QueryPlan plan) {
+		plan_ = plan;
+	}
+
 	public void setToComplete(Collection<Substitution> intersect) {
 		if (intersect != null)
 			toComplete_ = new HashSet<>(intersect);
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.inference;
+
+import graph.core.Node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The order a conjunctive query was evaluated in, with the estimated and
+ * actual number of results of each conjunct.
+ * 
+ * @author Sam Sarjant
+ */
+public class QueryPlan {
+	/** The value of the actual count before a step is evaluated. */
+	public static final int NOT_EVALUATED = -1;
+
+	private List<Step> steps_;
+
+	public QueryPlan() {
+		steps_ = new ArrayList<>();
+	}
+
+	/**
+	 * Adds a step to the end of the plan.
+	 * 
+	 * @param conjunct
+	 *            The conjunct evaluated at this step.
+	 * @param estimate
+	 *            The estimated number of results.
+	 * @return The new step.
+	 */
+	public Step addStep(Node conjunct, long estimate) {
+		Step step = new Step(conjunct, estimate);
+		steps_.add(step);
+		return step;
+	}
+
+	public List<Step> getSteps() {
+		return Collections.unmodifiableList(steps_);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buffer = new StringBuilder();
+		for (int i = 0; i < steps_.size(); i++) {
+			if (i > 0)
+				buffer.append("\n");
+			buffer.append((i + 1) + ". " + steps_.get(i));
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * A single conjunct of the plan.
+	 */
+	public static class Step {
+		private int actual_ = NOT_EVALUATED;
+		private Node conjunct_;
+		private long estimate_;
+		private long timeNanos_;
+
+		public Step(Node conjunct, long estimate) {
+			conjunct_ = conjunct;
+			estimate_ = estimate;
+		}
+
+		/**
+		 * @return The number of bindings after intersecting this step, or
+		 *         {@link QueryPlan#NOT_EVALUATED}.
+		 */
+		public int getActual() {
+			return actual_;
+		}
+
+		public Node getConjunct() {
+			return conjunct_;
+		}
+
+		public long getEstimate() {
+			return estimate_;
+		}
+
+		public long getTimeNanos() {
+			return timeNanos_;
+		}
+
+		public void setActual(int actual, long timeNanos) {
+			actual_ = actual;
+			timeNanos_ = timeNanos;
+		}
+
+		@Override
+		public String toString() {
+			String estimate = (estimate_ == Long.MAX_VALUE) ? "last" : ""
+					+ estimate_;
+			String actual = (actual_ == NOT_EVALUATED) ? "-" : "" + actual_;
+			return conjunct_ + " est=" + estimate + " actual=" + actual;
+		}
+	}
+}
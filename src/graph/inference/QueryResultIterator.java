@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.inference;
+
+import graph.core.Node;
+import graph.module.QueryModule;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A pull-based iterator over the results of a query. The query is run with a
+ * result limit that doubles each time the iterator runs out of results, so
+ * the total work is proportional to the number of results consumed rather
+ * than the full result set. Complete results are served from the query
+ * cache.
+ * 
+ * @author Sam Sarjant
+ */
+public class QueryResultIterator implements Iterator<Substitution> {
+	/** The limit of the first batch of results. */
+	private static final int INITIAL_LIMIT = 16;
+
+	private Node[] nodes_;
+
+	private int limit_;
+
+	private QueryModule querier_;
+
+	/** The results found in the current batch. */
+	private ArrayList<Substitution> results_;
+
+	/** The index of the next result in the current batch. */
+	private int index_;
+
+	/** If the current batch contains every result. */
+	private boolean complete_;
+
+	/** The results already returned, in case the DAG changes between batches. */
+	private Set<Substitution> returned_;
+
+	private Substitution next_;
+
+	public QueryResultIterator(QueryModule querier, Node... nodes) {
+		this(querier, INITIAL_LIMIT, nodes);
+	}
+
+	public QueryResultIterator(QueryModule querier, int initialLimit,
+			Node... nodes) {
+		querier_ = querier;
+		nodes_ = nodes;
+		limit_ = Math.max(1, initialLimit);
+		results_ = new ArrayList<>();
+		returned_ = new HashSet<>();
+	}
+
+	/**
+	 * Finds the next result not yet returned, running the query with a larger
+	 * limit if the current batch is exhausted.
+	 * 
+	 * @return The next result, or null if there are no more.
+	 */
+	private Substitution findNext() {
+		while (true) {
+			while (index_ < results_.size()) {
+				Substitution sub = results_.get(index_++);
+				if (returned_.add(sub))
+					return sub;
+			}
+			if (complete_)
+				return null;
+
+			// Run the next, larger, batch
+			if (!results_.isEmpty())
+				limit_ = (limit_ > Integer.MAX_VALUE / 2) ? Integer.MAX_VALUE
+						: limit_ * 2;
+			QueryObject queryObj = new QueryObject(nodes_);
+			queryObj.setLimit(limit_);
+			Collection<Substitution> results = querier_.execute(queryObj);
+			complete_ = !queryObj.isLimitReached();
+			results_ = (results == null) ? new ArrayList<Substitution>()
+					: new ArrayList<>(results);
+			index_ = 0;
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next_ == null)
+			next_ = findNext();
+		return next_ != null;
+	}
+
+	@Override
+	public Substitution next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Substitution sub = next_;
+		next_ = null;
+		return sub;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.inference;
+
+import graph.core.Node;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A record of every sub-query made while answering a query on one thread,
+ * with the worker, time, result size and edges touched of each. Tracing is
+ * off unless a trace is begun, in which case the cost to untraced threads is
+ * a single counter read per sub-query.
+ * 
+ * @author Sam Sarjant
+ */
+public class QueryTrace {
+	/** The number of traces in progress on any thread. */
+	private static final AtomicInteger ACTIVE = new AtomicInteger();
+	private static final ThreadLocal<QueryTrace> CURRENT = new ThreadLocal<>();
+
+	private Deque<Step> open_;
+	private List<Step> steps_;
+
+	private QueryTrace() {
+		open_ = new ArrayDeque<>();
+		steps_ = new ArrayList<>();
+	}
+
+	/**
+	 * Ends this trace, so sub-queries on this thread are no longer recorded.
+	 */
+	public void end() {
+		if (CURRENT.get() == this) {
+			CURRENT.remove();
+			ACTIVE.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Records the start of a sub-query.
+	 * 
+	 * @param query
+	 *            The nodes of the sub-query.
+	 * @param worker
+	 *            The worker answering it.
+	 * @return The step to pass to {@link #exit(Step, Collection)}.
+	 */
+	public Step enter(Node[] query, String worker) {
+		Step step = new Step(query, worker, open_.size());
+		steps_.add(step);
+		open_.push(step);
+		step.start_ = System.nanoTime();
+		return step;
+	}
+
+	/**
+	 * Records the end of a sub-query.
+	 * 
+	 * @param step
+	 *            The step returned by {@link #enter(Node[], String)}.
+	 * @param results
+	 *            The results of the sub-query, or null if there were none.
+	 */
+	public void exit(Step step, Collection<Substitution> results) {
+		step.timeNanos_ = System.nanoTime() - step.start_;
+		step.results_ = (results == null) ? 0 : results.size();
+		open_.remove(step);
+	}
+
+	/**
+	 * @return The sub-queries, in the order they were started.
+	 */
+	public List<Step> getSteps() {
+		return Collections.unmodifiableList(steps_);
+	}
+
+	/**
+	 * @return The edges touched by every sub-query.
+	 */
+	public long getTotalEdges() {
+		long total = 0;
+		for (Step step : steps_)
+			total += step.edges_;
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buffer = new StringBuilder();
+		for (Step step : steps_) {
+			if (buffer.length() > 0)
+				buffer.append("\n");
+			buffer.append(step);
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * Begins tracing the sub-queries made on the current thread.
+	 * 
+	 * @return The new trace, which must be ended with {@link #end()}.
+	 */
+	public static QueryTrace begin() {
+		QueryTrace trace = new QueryTrace();
+		if (CURRENT.get() == null)
+			ACTIVE.incrementAndGet();
+		CURRENT.set(trace);
+		return trace;
+	}
+
+	/**
+	 * @return The trace of the current thread, or null if it is not being
+	 *         traced.
+	 */
+	public static QueryTrace current() {
+		if (ACTIVE.get() == 0)
+			return null;
+		return CURRENT.get();
+	}
+
+	/**
+	 * Attributes a set of edges read from the edge index to the innermost
+	 * sub-query of the current thread's trace, if any.
+	 * 
+	 * @param edges
+	 *            The edges read, or null if there were none.
+	 */
+	public static void recordEdges(Collection<?> edges) {
+		QueryTrace trace = current();
+		if (trace == null || edges == null)
+			return;
+		Step step = trace.open_.peek();
+		if (step != null)
+			step.edges_ += edges.size();
+	}
+
+	/**
+	 * A single sub-query of the trace.
+	 */
+	public static class Step {
+		private int depth_;
+		private long edges_;
+		private Node[] query_;
+		private int results_;
+		private long start_;
+		private long timeNanos_;
+		private String worker_;
+
+		private Step(Node[] query, String worker, int depth) {
+			query_ = query;
+			worker_ = worker;
+			depth_ = depth;
+		}
+
+		/**
+		 * @return The recursion depth of the sub-query, 0 being outermost.
+		 */
+		public int getDepth() {
+			return depth_;
+		}
+
+		/**
+		 * @return The number of edges read from the edge index by this
+		 *         sub-query itself, excluding nested sub-queries.
+		 */
+		public long getEdges() {
+			return edges_;
+		}
+
+		public Node[] getQuery() {
+			return query_;
+		}
+
+		public int getResults() {
+			return results_;
+		}
+
+		/**
+		 * @return The time taken, including nested sub-queries.
+		 */
+		public long getTimeNanos() {
+			return timeNanos_;
+		}
+
+		public String getWorker() {
+			return worker_;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder buffer = new StringBuilder();
+			for (int i = 0; i < depth_; i++)
+				buffer.append("  ");
+			buffer.append("(" + StringUtils.join(query_, ' ') + ")");
+			buffer.append(" worker=" + worker_ + " time="
+					+ String.format("%.3f", timeNanos_ / 1000000d)
+					+ "ms results=" + results_ + " edges=" + edges_);
+			return buffer.toString();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.inference;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The most recent queries that took longer than a threshold, with their
+ * plans. The log is off until a threshold is set.
+ * 
+ * @author Sam Sarjant
+ */
+public class SlowQueryLog {
+	public static final int DEFAULT_CAPACITY = 100;
+
+	/** The threshold value that disables the log. */
+	public static final long DISABLED = -1;
+
+	private int capacity_;
+	private Deque<QueryExplanation> entries_;
+	private volatile long thresholdNanos_ = DISABLED;
+
+	public SlowQueryLog() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public SlowQueryLog(int capacity) {
+		capacity_ = capacity;
+		entries_ = new ArrayDeque<>();
+	}
+
+	public synchronized void clear() {
+		entries_.clear();
+	}
+
+	public synchronized int getCapacity() {
+		return capacity_;
+	}
+
+	/**
+	 * @return The logged queries, most recent first.
+	 */
+	public synchronized List<QueryExplanation> getEntries() {
+		return new ArrayList<>(entries_);
+	}
+
+	/**
+	 * @return The threshold in milliseconds, or {@link #DISABLED}.
+	 */
+	public long getThresholdMillis() {
+		long threshold = thresholdNanos_;
+		return (threshold == DISABLED) ? DISABLED : TimeUnit.NANOSECONDS
+				.toMillis(threshold);
+	}
+
+	/**
+	 * Checks if a query time is over the threshold.
+	 * 
+	 * @param timeNanos
+	 *            The time the query took.
+	 * @return True if the log is enabled and the time is over its threshold.
+	 */
+	public boolean isSlow(long timeNanos) {
+		long threshold = thresholdNanos_;
+		return threshold != DISABLED && timeNanos >= threshold;
+	}
+
+	/**
+	 * Logs a slow query, dropping the oldest entry if the log is full.
+	 * 
+	 * @param explanation
+	 *            The explanation of the query, with its run time.
+	 */
+	public synchronized void record(QueryExplanation explanation) {
+		entries_.addFirst(explanation);
+		while (entries_.size() > capacity_)
+			entries_.removeLast();
+	}
+
+	public synchronized void setCapacity(int capacity) {
+		capacity_ = Math.max(0, capacity);
+		while (entries_.size() > capacity_)
+			entries_.removeLast();
+	}
+
+	/**
+	 * Sets the time over which queries are logged.
+	 * 
+	 * @param thresholdMillis
+	 *            The threshold in milliseconds, or a negative value to disable
+	 *            the log.
+	 */
+	public void setThresholdMillis(long thresholdMillis) {
+		thresholdNanos_ = (thresholdMillis < 0) ? DISABLED : TimeUnit.MILLISECONDS
+				.toNanos(thresholdMillis);
+	}
+}
@@ -14,59 +14,134 @@ import graph.core.DAGNode;
 import graph.core.Node;
 import graph.core.OntologyFunction;
 
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
+/**
+ * A set of variable bindings. Bindings are stored compactly as an array of
+ * nodes indexed by the slots of an interned {@link VariableLayout}, with a
+ * cached hash code, so substitutions from the same query share their variable
+ * names and compare slot by slot. {@link #getSubstitutionMap()} is a live map
+ * view over the bindings.
+ *
+ * @author Sam Sarjant
+ */
 public class Substitution {
-	private Map<String, Node> substitutionMap_;
+	/** The cached hash code, or 0 if not computed. */
+	private int hash_;
+
+	private VariableLayout layout_;
+
+	private Node[] values_;
 
 	public Substitution() {
-		substitutionMap_ = new HashMap<>();
+		layout_ = VariableLayout.EMPTY;
+		values_ = new Node[0];
 	}
 
 	public Substitution(Map<String, Node> substitutionMap) {
-		substitutionMap_ = new HashMap<>(substitutionMap);
+		this();
+		for (Map.Entry<String, Node> entry : substitutionMap.entrySet())
+			addSubstitution(entry.getKey(), entry.getValue());
 	}
 
 	public Substitution(String var, DAGNode node) {
-		substitutionMap_ = new HashMap<>();
-		substitutionMap_.put(var, node);
+		layout_ = VariableLayout.EMPTY.extend(var);
+		values_ = new Node[] { node };
 	}
 
 	public Substitution(Object variable, DAGNode otherNode) {
 		this(variable.toString(), otherNode);
 	}
 
+	/**
+	 * Creates a substitution directly from a layout and its values.
+	 * 
+	 * @param layout
+	 *            The variables bound.
+	 * @param values
+	 *            The value of each variable slot. The array is not copied.
+	 */
+	public Substitution(VariableLayout layout, Node[] values) {
+		if (layout.size() != values.length)
+			throw new IllegalArgumentException("Layout has " + layout.size()
+					+ " variables, but " + values.length + " values given.");
+		layout_ = layout;
+		values_ = values;
+	}
+
+	private Substitution(Substitution other) {
+		layout_ = other.layout_;
+		values_ = other.values_.clone();
+		hash_ = other.hash_;
+	}
+
 	public void addSubstitution(String variable, Node substitution) {
-		substitutionMap_.put(variable, substitution);
+		int slot = layout_.indexOf(variable);
+		if (slot == -1) {
+			layout_ = layout_.extend(variable);
+			values_ = Arrays.copyOf(values_, values_.length + 1);
+			slot = values_.length - 1;
+		}
+		values_[slot] = substitution;
+		hash_ = 0;
 	}
 
 	public void addSubstitution(Object variable, Node substitution) {
 		addSubstitution(variable.toString(), substitution);
 	}
 
+	/**
+	 * Adds all bindings of another substitution, replacing existing values.
+	 * 
+	 * @param other
+	 *            The substitution to add.
+	 */
+	public void addSubstitutions(Substitution other) {
+		if (other.layout_ == layout_) {
+			System.arraycopy(other.values_, 0, values_, 0, values_.length);
+			hash_ = other.hash_;
+			return;
+		}
+		for (int i = 0; i < other.values_.length; i++)
+			addSubstitution(other.layout_.variable(i), other.values_[i]);
+	}
+
+	public Node getSubstitution(String variable) {
+		int slot = layout_.indexOf(variable);
+		return (slot == -1) ? null : values_[slot];
+	}
+
 	public Node getSubstitution(Object variable) {
-		return substitutionMap_.get(variable.toString());
+		return getSubstitution(variable.toString());
 	}
 
 	@Override
 	public Substitution clone() {
-		Substitution clone = new Substitution(substitutionMap_);
-		return clone;
+		return new Substitution(this);
 	}
 
 	public Map<String, Node> getSubstitutionMap() {
-		return substitutionMap_;
+		return new SubstitutionMap();
 	}
 
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime
-				* result
-				+ ((substitutionMap_ == null) ? 0 : substitutionMap_.hashCode());
-		return result;
+		int hash = hash_;
+		if (hash == 0) {
+			// Same as the equivalent HashMap, so independent of slot order
+			for (int i = 0; i < values_.length; i++)
+				hash += layout_.variable(i).hashCode()
+						^ values_[i].hashCode();
+			hash = 31 + hash;
+			hash_ = hash;
+		}
+		return hash;
 	}
 
 	@Override
@@ -78,46 +153,84 @@ public class Substitution {
 		if (getClass() != obj.getClass())
 			return false;
 		Substitution other = (Substitution) obj;
-		if (substitutionMap_ == null) {
-			if (other.substitutionMap_ != null)
-				return false;
-		} else if (!substitutionMap_.equals(other.substitutionMap_))
+		if (values_.length != other.values_.length)
+			return false;
+		if (hash_ != 0 && other.hash_ != 0 && hash_ != other.hash_)
 			return false;
+		if (layout_ == other.layout_)
+			return Arrays.equals(values_, other.values_);
+		for (int i = 0; i < values_.length; i++)
+			if (!values_[i].equals(other.getSubstitution(layout_.variable(i))))
+				return false;
 		return true;
 	}
 
 	public boolean containsVariable(String var) {
-		return substitutionMap_.containsKey(var);
+		return layout_.indexOf(var) != -1;
+	}
+
+	/**
+	 * @return The variables bound by this substitution, in slot order.
+	 */
+	public VariableLayout getLayout() {
+		return layout_;
 	}
 
 	@Override
 	public String toString() {
-		return substitutionMap_.toString();
+		return getSubstitutionMap().toString();
 	}
 
 	public Substitution inverseSub() {
 		Substitution inverse = new Substitution();
-		for (String key : substitutionMap_.keySet()) {
+		for (int i = 0; i < values_.length; i++) {
 			// TODO Inefficient!
-			inverse.addSubstitution(substitutionMap_.get(key).toString(),
-					new VariableNode(key));
+			inverse.addSubstitution(values_[i].toString(), new VariableNode(
+					layout_.variable(i)));
 		}
 		return inverse;
 	}
 
 	public Substitution applySubstitution(Substitution sub) {
 		Substitution subbedSub = new Substitution();
-		for (String key : substitutionMap_.keySet()) {
-			Node value = substitutionMap_.get(key);
+		for (int i = 0; i < values_.length; i++) {
+			String key = layout_.variable(i);
 			key = (sub.containsVariable(key)) ? sub.getSubstitution(key)
 					.toString() : key;
-			subbedSub.addSubstitution(key, value);
+			subbedSub.addSubstitution(key, values_[i]);
 		}
 		return subbedSub;
 	}
 
 	public boolean isEmpty() {
-		return substitutionMap_.isEmpty();
+		return values_.length == 0;
+	}
+
+	/**
+	 * Removes a variable binding, moving the remaining bindings to a new
+	 * layout.
+	 */
+	private Node removeSubstitution(String variable) {
+		int slot = layout_.indexOf(variable);
+		if (slot == -1)
+			return null;
+		Node removed = values_[slot];
+		VariableLayout layout = VariableLayout.EMPTY;
+		Node[] values = new Node[values_.length - 1];
+		for (int i = 0, j = 0; i < values_.length; i++) {
+			if (i == slot)
+				continue;
+			layout = layout.extend(layout_.variable(i));
+			values[j++] = values_[i];
+		}
+		layout_ = layout;
+		values_ = values;
+		hash_ = 0;
+		return removed;
+	}
+
+	public int size() {
+		return values_.length;
 	}
 
 	/**
@@ -144,8 +257,92 @@ public class Substitution {
 		if (node instanceof OntologyFunction) {
 			return new OntologyFunction(
 					applySubstitution(((OntologyFunction) node).getNodes()));
-		} else if (substitutionMap_.containsKey(node.toString()))
-			return substitutionMap_.get(node.toString());
+		} else if (!isEmpty()) {
+			Node value = getSubstitution(node.toString());
+			if (value != null)
+				return value;
+		}
 		return node;
 	}
+
+	/**
+	 * A live map view of the bindings.
+	 */
+	private class SubstitutionMap extends AbstractMap<String, Node> {
+		@Override
+		public boolean containsKey(Object key) {
+			return key != null && containsVariable(key.toString());
+		}
+
+		@Override
+		public Set<Map.Entry<String, Node>> entrySet() {
+			return new AbstractSet<Map.Entry<String, Node>>() {
+				@Override
+				public Iterator<Map.Entry<String, Node>> iterator() {
+					return new Iterator<Map.Entry<String, Node>>() {
+						private int slot_ = 0;
+
+						@Override
+						public boolean hasNext() {
+							return slot_ < values_.length;
+						}
+
+						@Override
+						public Map.Entry<String, Node> next() {
+							if (!hasNext())
+								throw new NoSuchElementException();
+							final int slot = slot_++;
+							return new AbstractMap.SimpleEntry<String, Node>(
+									layout_.variable(slot), values_[slot]) {
+								private static final long serialVersionUID = 1L;
+
+								@Override
+								public Node setValue(Node value) {
+									Node old = values_[slot];
+									values_[slot] = value;
+									hash_ = 0;
+									super.setValue(value);
+									return old;
+								}
+							};
+						}
+
+						@Override
+						public void remove() {
+							if (slot_ == 0)
+								throw new IllegalStateException();
+							removeSubstitution(layout_.variable(--slot_));
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return values_.length;
+				}
+			};
+		}
+
+		@Override
+		public Node get(Object key) {
+			return (key == null) ? null : getSubstitution(key.toString());
+		}
+
+		@Override
+		public Node put(String key, Node value) {
+			Node old = getSubstitution(key);
+			addSubstitution(key, value);
+			return old;
+		}
+
+		@Override
+		public Node remove(Object key) {
+			return (key == null) ? null : removeSubstitution(key.toString());
+		}
+
+		@Override
+		public int size() {
+			return values_.length;
+		}
+	}
 }
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.inference;
+
+import graph.core.Node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Join operators over collections of substitutions. Substitutions are joined
+ * by hashing on the variables every substitution on both sides binds, so a
+ * join costs time proportional to its inputs and outputs rather than the
+ * product of the inputs.
+ * 
+ * @author Sam Sarjant
+ */
+public final class SubstitutionJoin {
+	private SubstitutionJoin() {
+	}
+
+	/**
+	 * Checks if two substitutions agree on every variable they share.
+	 */
+	private static boolean compatible(Substitution subA, Substitution subB) {
+		VariableLayout layoutB = subB.getLayout();
+		for (int i = 0; i < layoutB.size(); i++) {
+			String var = layoutB.variable(i);
+			Node value = subA.getSubstitution(var);
+			if (value != null && !value.equals(subB.getSubstitution(var)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the variables bound by every substitution in a collection.
+	 * 
+	 * @param subs
+	 *            The substitutions.
+	 * @return The variables common to every substitution.
+	 */
+	public static Set<String> commonVariables(Collection<Substitution> subs) {
+		Set<String> common = null;
+		for (Substitution sub : subs) {
+			if (common == null)
+				common = new LinkedHashSet<>(sub.getSubstitutionMap().keySet());
+			else
+				common.retainAll(sub.getSubstitutionMap().keySet());
+			if (common.isEmpty())
+				break;
+		}
+		return (common == null) ? new HashSet<String>() : common;
+	}
+
+	/**
+	 * Joins two collections of substitutions, combining every pair that
+	 * agrees on its shared variables. The result keeps the order of the left
+	 * collection and contains no duplicates.
+	 * 
+	 * @param left
+	 *            The left substitutions, or null if unconstrained.
+	 * @param right
+	 *            The right substitutions, or null if unconstrained.
+	 * @return The joined substitutions.
+	 */
+	public static Collection<Substitution> join(Collection<Substitution> left,
+			Collection<Substitution> right) {
+		if (left == null)
+			return right;
+		if (right == null)
+			return left;
+		if (left.isEmpty() || right.isEmpty())
+			return new ArrayList<>(0);
+
+		List<String> keyVars = new ArrayList<>(commonVariables(left));
+		keyVars.retainAll(commonVariables(right));
+		VariableLayout keyLayout = VariableLayout.of(keyVars
+				.toArray(new String[keyVars.size()]));
+
+		// Build on the right, probe with the left
+		Map<Substitution, List<Substitution>> table = new HashMap<>();
+		for (Substitution sub : right) {
+			Substitution key = project(sub, keyLayout);
+			List<Substitution> bucket = table.get(key);
+			if (bucket == null) {
+				bucket = new ArrayList<>(1);
+				table.put(key, bucket);
+			}
+			bucket.add(sub);
+		}
+
+		Collection<Substitution> joined = new LinkedHashSet<>();
+		for (Substitution subL : left) {
+			List<Substitution> bucket = table.get(project(subL, keyLayout));
+			if (bucket == null)
+				continue;
+			for (Substitution subR : bucket) {
+				// Variables outside the key may still be shared
+				if (!compatible(subL, subR))
+					continue;
+				Substitution combined = subL.clone();
+				combined.addSubstitutions(subR);
+				joined.add(combined);
+			}
+		}
+		return new ArrayList<>(joined);
+	}
+
+	/**
+	 * Projects a substitution onto a set of variables.
+	 * 
+	 * @param sub
+	 *            The substitution to project.
+	 * @param variables
+	 *            The variables to keep.
+	 * @return A substitution of only the given variables, or null if the
+	 *         substitution does not bind them all.
+	 */
+	public static Substitution project(Substitution sub,
+			Collection<String> variables) {
+		return project(sub,
+				VariableLayout.of(variables.toArray(new String[variables
+						.size()])));
+	}
+
+	/**
+	 * Projects a substitution onto the variables of a layout.
+	 *
+	 * @param sub
+	 *            The substitution to project.
+	 * @param layout
+	 *            The variables to keep.
+	 * @return A substitution with the given layout, or null if the
+	 *         substitution does not bind every variable.
+	 */
+	public static Substitution project(Substitution sub, VariableLayout layout) {
+		Node[] values = new Node[layout.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = sub.getSubstitution(layout.variable(i));
+			if (values[i] == null)
+				return null;
+		}
+		return new Substitution(layout, values);
+	}
+
+	/**
+	 * Projects substitutions onto a set of variables, removing duplicates.
+	 * 
+	 * @param subs
+	 *            The substitutions to project.
+	 * @param variables
+	 *            The variables to keep.
+	 * @return The distinct projections, in order of first occurrence.
+	 */
+	public static Set<Substitution> projectAll(Collection<Substitution> subs,
+			Collection<String> variables) {
+		VariableLayout layout = VariableLayout.of(variables
+				.toArray(new String[variables.size()]));
+		Set<Substitution> projections = new LinkedHashSet<>();
+		for (Substitution sub : subs) {
+			Substitution projection = project(sub, layout);
+			if (projection != null)
+				projections.add(projection);
+		}
+		return projections;
+	}
+}
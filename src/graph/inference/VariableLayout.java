@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.inference;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An interned, immutable sequence of variables, assigning each variable a
+ * slot index. Layouts are only created by extending {@link #EMPTY} one
+ * variable at a time, so every substitution binding the same variables in the
+ * same order shares the same layout instance and can compare its bindings
+ * slot by slot.
+ * 
+ * Variable names come from user queries, so at most {@link #MAX_INTERNED}
+ * layouts are interned. Beyond that, extensions are created afresh and left
+ * to the garbage collector; substitutions using them are still correct, but
+ * compare by variable name rather than by layout identity.
+ * 
+ * @author Sam Sarjant
+ */
+public final class VariableLayout {
+	/** The layout with no variables. */
+	public static final VariableLayout EMPTY = new VariableLayout(
+			new String[0], true);
+
+	/** Layouts larger than this index their slots with a map. */
+	private static final int LINEAR_SEARCH_SIZE = 8;
+
+	/** The maximum number of interned layouts. */
+	public static final int MAX_INTERNED = 1 << 16;
+
+	/** The number of interned layouts. */
+	private static final AtomicInteger NUM_INTERNED = new AtomicInteger();
+
+	/**
+	 * The interned layouts made by adding a variable to this one, or null if
+	 * this layout is not interned.
+	 */
+	private final ConcurrentHashMap<String, VariableLayout> extensions_;
+
+	/** The slot of each variable, for large layouts. */
+	private final Map<String, Integer> slots_;
+
+	private final String[] variables_;
+
+	private VariableLayout(String[] variables, boolean interned) {
+		variables_ = variables;
+		if (interned)
+			extensions_ = new ConcurrentHashMap<>(4);
+		else
+			extensions_ = null;
+		if (variables.length > LINEAR_SEARCH_SIZE) {
+			slots_ = new HashMap<>(variables.length * 2);
+			for (int i = 0; i < variables.length; i++)
+				slots_.put(variables[i], i);
+		} else
+			slots_ = null;
+	}
+
+	/**
+	 * Gets the layout with a variable appended to this layout.
+	 * 
+	 * @param variable
+	 *            The variable to append. Must not already be in the layout.
+	 * @return The extended layout, interned unless this layout is not or
+	 *         {@link #MAX_INTERNED} layouts already are.
+	 */
+	public VariableLayout extend(String variable) {
+		VariableLayout extended = (extensions_ == null) ? null : extensions_
+				.get(variable);
+		if (extended == null) {
+			String[] variables = new String[variables_.length + 1];
+			System.arraycopy(variables_, 0, variables, 0, variables_.length);
+			variables[variables_.length] = variable;
+			if (extensions_ == null || NUM_INTERNED.get() >= MAX_INTERNED)
+				return new VariableLayout(variables, false);
+			extended = new VariableLayout(variables, true);
+			VariableLayout existing = extensions_.putIfAbsent(variable,
+					extended);
+			if (existing != null)
+				extended = existing;
+			else
+				NUM_INTERNED.incrementAndGet();
+		}
+		return extended;
+	}
+
+	/**
+	 * Gets the layout of a sequence of variables, interned where possible.
+	 * 
+	 * @param variables
+	 *            The distinct variables, in slot order.
+	 * @return The layout of the variables.
+	 */
+	public static VariableLayout of(String... variables) {
+		VariableLayout layout = EMPTY;
+		for (String var : variables)
+			layout = layout.extend(var);
+		return layout;
+	}
+
+	/**
+	 * Gets the slot of a variable.
+	 * 
+	 * @param variable
+	 *            The variable to find.
+	 * @return The slot index or -1 if the variable is not in the layout.
+	 */
+	public int indexOf(String variable) {
+		if (slots_ != null) {
+			Integer slot = slots_.get(variable);
+			return (slot == null) ? -1 : slot;
+		}
+		for (int i = 0; i < variables_.length; i++)
+			if (variables_[i].equals(variable))
+				return i;
+		return -1;
+	}
+
+	public int size() {
+		return variables_.length;
+	}
+
+	public String variable(int slot) {
+		return variables_[slot];
+	}
+}
@@ -14,20 +14,19 @@ import graph.core.Node;
 import graph.core.OntologyFunction;
 import graph.core.PrimitiveNode;
 import graph.inference.QueryObject;
+import graph.inference.QueryPlan;
 import graph.inference.QueryWorker;
 import graph.inference.Substitution;
+import graph.inference.SubstitutionJoin;
 import graph.module.QueryModule;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 public class AndWorker extends QueryWorker {
 	private static final long serialVersionUID = 3867218930317989260L;
-	private static final int LIMIT = 100000;
 
 	public AndWorker(QueryModule queryModule) {
 		super(queryModule);
@@ -36,17 +35,27 @@ public class AndWorker extends QueryWorker {
 	@Override
 	public void queryInternal(QueryObject queryObj)
 			throws IllegalArgumentException {
-		// Order the args to resolve smallest first
+		// Resolve the smallest conjunct first, re-planning as variables are
+		// bound
 		Node[] nodes = queryObj.getNodes();
 		List<Node> listNodes = Arrays.asList(nodes);
-		List<OntologyFunction> ordered = orderNodes(nodes);
-		if (ordered == null)
+		List<OntologyFunction> remaining = conjuncts(nodes);
+		if (remaining == null)
 			return;
+		ConjunctPlanner planner = new ConjunctPlanner(dag_, relatedModule_);
+		QueryPlan plan = new QueryPlan();
+		queryObj.setPlan(plan);
 
 		Collection<Substitution> intersect = null;
 		@SuppressWarnings("unchecked")
-		List<Node[]>[] justifications = new List[ordered.size()];
-		for (OntologyFunction func : ordered) {
+		List<Node[]>[] justifications = new List[remaining.size()];
+		while (!remaining.isEmpty()) {
+			OntologyFunction func = remaining.remove(planner.selectNext(
+					remaining, intersect));
+			QueryPlan.Step step = plan.addStep(func,
+					planner.getSelectedEstimate());
+			long start = System.nanoTime();
+
 			QueryObject funcObject = new QueryObject(func.getNodes());
 			funcObject.setToComplete(intersect);
 			Collection<Substitution> subs = querier_.execute(funcObject);
@@ -54,10 +63,13 @@ public class AndWorker extends QueryWorker {
 					.getJustification();
 
 			// Intersect results
-			intersect = intersectResults(intersect, subs, LIMIT);
+			intersect = intersectResults(intersect, subs);
+			step.setActual((intersect == null) ? 0 : intersect.size(),
+					System.nanoTime() - start);
 
 			// Quit if no proof is found or no variables can match.
-			if (queryObj.isProof() && subs == null || intersect.isEmpty())
+			if (queryObj.isProof() && subs == null || intersect == null
+					|| intersect.isEmpty())
 				return;
 		}
 
@@ -75,61 +87,59 @@ public class AndWorker extends QueryWorker {
 			queryObj.addResults(intersect);
 	}
 
-	private List<OntologyFunction> orderNodes(Node[] nodes) {
-		List<OntologyFunction> ordered = new ArrayList<>();
+	/**
+	 * Estimates the order the conjuncts of an and query would be evaluated
+	 * in, without running it. As no variables are bound yet, later steps may
+	 * be re-ordered when the query is actually run.
+	 * 
+	 * @param nodes
+	 *            The and query nodes.
+	 * @return The estimated plan, or null if an argument is not a function.
+	 */
+	public QueryPlan plan(Node[] nodes) {
+		List<OntologyFunction> remaining = conjuncts(nodes);
+		if (remaining == null)
+			return null;
+		ConjunctPlanner planner = new ConjunctPlanner(dag_, relatedModule_);
+		QueryPlan plan = new QueryPlan();
+		while (!remaining.isEmpty()) {
+			OntologyFunction func = remaining.remove(planner.selectNext(
+					remaining, null));
+			plan.addStep(func, planner.getSelectedEstimate());
+		}
+		return plan;
+	}
+
+	/**
+	 * Gets the conjuncts of an and query.
+	 * 
+	 * @param nodes
+	 *            The and query nodes.
+	 * @return The conjuncts, or null if an argument is not a function.
+	 */
+	private List<OntologyFunction> conjuncts(Node[] nodes) {
+		List<OntologyFunction> conjuncts = new ArrayList<>();
 		for (int i = 1; i < nodes.length; i++) {
 			if (nodes[i] instanceof OntologyFunction)
-				ordered.add((OntologyFunction) nodes[i]);
+				conjuncts.add((OntologyFunction) nodes[i]);
 			else if (!nodes[i].equals(PrimitiveNode.parseNode("true")))
 				return null;
 		}
-		Collections.sort(ordered, new NumAssertionsComparator(relatedModule_,
-				dag_));
-		return ordered;
+		return conjuncts;
 	}
 
+	/**
+	 * Intersects two sets of results, combining results that agree on their
+	 * shared variables.
+	 * 
+	 * @param intersect
+	 *            The results so far, or null if there are none.
+	 * @param subs
+	 *            The new results, or null if there are none.
+	 * @return The combined results.
+	 */
 	public static Collection<Substitution> intersectResults(
-			Collection<Substitution> intersect, Collection<Substitution> subs,
-			int resultsLimit) {
-		if (intersect == null)
-			return subs;
-		else if (subs == null)
-			return intersect;
-		else {
-			// Not quite as simple as a retain all, as different variables can
-			// be present.
-			int numResults = 0;
-			Collection<Substitution> newIntersect = new ArrayList<>(
-					intersect.size());
-			// For each intersect substitution
-			for (Substitution subI : intersect) {
-				// For each result substitution
-				for (Substitution subS : subs) {
-					// For each variable
-					Map<String, Node> subMap = subS.getSubstitutionMap();
-					boolean keepSub = true;
-					for (String key : subMap.keySet()) {
-						if (subI.containsVariable(key)
-								&& !subI.getSubstitution(key).equals(
-										subMap.get(key))) {
-							keepSub = false;
-							break;
-						}
-					}
-					// Keep the sub, adding any new variable matches
-					if (keepSub) {
-						Substitution newSub = new Substitution(
-								subI.getSubstitutionMap());
-						newSub.getSubstitutionMap().putAll(subMap);
-						newIntersect.add(newSub);
-						numResults++;
-						if (numResults >= resultsLimit)
-							return newIntersect;
-					}
-				}
-			}
-			// intersect.retainAll(subs);
-			return newIntersect;
-		}
+			Collection<Substitution> intersect, Collection<Substitution> subs) {
+		return SubstitutionJoin.join(intersect, subs);
 	}
 }
@@ -48,6 +48,7 @@ public class AssertedSentenceWorker extends QueryWorker {
 				CommonConcepts.ASSERTED_SENTENCE.getNode(dag_))) {
 			OntologyFunction assertion = (OntologyFunction) queryObj.getNode(1);
 			queryObj = queryObj.modifyNodes(assertion.getNodes());
+			querier_.recordDependency(queryObj.getNode(0));
 		}
 
 		Object[] relatedArgs = queryAsIndexedNodes(queryObj.getNodes());
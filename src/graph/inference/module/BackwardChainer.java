@@ -12,6 +12,7 @@ package graph.inference.module;
 
 import graph.core.DAGNode;
 import graph.core.Node;
+import graph.core.OntologyFunction;
 import graph.inference.HornClause;
 import graph.inference.Literal;
 import graph.inference.QueryObject;
@@ -29,449 +30,695 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import util.collection.MultiMap;
-
+/**
+ * A backward chainer over Horn clause rules, using tabled resolution. Every
+ * subgoal is a table keyed by its variant (the subgoal with its variables
+ * renamed in order of appearance), so a variant is only evaluated once and
+ * recursive calls to a variant under evaluation consume its answers so far
+ * rather than looping. A set of mutually recursive tables is re-evaluated by
+ * its leader (the earliest of them on the call stack) until no new answers
+ * are found, at which point every table of the set is complete. This is the
+ * linear form of SLG resolution, which is complete for definite clauses.
+ * 
+ * The base facts of a subgoal are taken from the {@link QueryModule} workers.
+ * Rules are indexed by head predicate and by the first argument of the head,
+ * and are tried in order of their {@link HornClause#hornWeight(int)}. The
+ * evaluation of a query is bounded by a table depth and a time budget; a query
+ * that exceeds either returns the answers found so far and is not cached.
+ * 
+ * @author Sam Sarjant
+ */
 public class BackwardChainer extends QueryWorker {
 	private static final long serialVersionUID = -3759651304054753667L;
-	private static final double EPSILON = 0.000001d;
-	private static final String UNIQUE_SUFFIX = "_unIQue_";
-	private MultiMap<DAGNode, HornClause> headHCMap_;
+
+	/**
+	 * The default maximum number of tables under evaluation at once, and of
+	 * nested functions in a subgoal or answer.
+	 */
+	public static final int DEFAULT_MAX_DEPTH = 100;
+
+	/** The default time budget of a query, in milliseconds. */
+	public static final long DEFAULT_TIME_BUDGET = 10000;
+
+	/** The prefix of normalised variables. */
+	private static final String NORMAL_PREFIX = "?X";
+
+	/** The prefix of standardised-apart variables. */
+	private static final String STANDARD_PREFIX = "?_";
+
+	private int maxDepth_ = DEFAULT_MAX_DEPTH;
+
+	/** The rules of each head predicate. */
+	private Map<DAGNode, RuleIndex> rules_;
+
+	private int ruleCount_;
+
+	private long timeBudget_ = DEFAULT_TIME_BUDGET;
 
 	public BackwardChainer(QueryModule queryModule) {
 		super(queryModule);
-		headHCMap_ = MultiMap.createListMultiMap();
+		rules_ = new HashMap<>();
 	}
 
-	// /**
-	// * Proves if a query is true or not.
-	// *
-	// * @param cnf
-	// * The query posed in CNF.
-	// * @return True if the query is true.
-	// */
-	// public boolean proveQuery(Literal... cnf) {
-	// try {
-	// ChainResult result = chainLiterals(cnf, 0, 0,
-	// new HashSet<Literal>());
-	// return result.result_;
-	// } catch (IllegalAccessException e) {
-	// e.printStackTrace();
-	// }
-	// return false;
-	// }
-	//
-	// /**
-	// * Asks for a set of variable bindings for a query.
-	// *
-	// * @param cnf
-	// * The query posed in CNF.
-	// * @return The set of substitutions.
-	// */
-	// public Collection<Substitution> askQuery(Literal... cnf) {
-	// try {
-	// // TODO Convert variables to unique values
-	// cnf = uniqueVariables(cnf);
-	//
-	// ChainResult result = chainLiterals(cnf, 0, 0,
-	// new HashSet<Literal>());
-	// if (result.result_) {
-	// return deUniqueVariables(result.substitutions_);
-	// }
-	// } catch (IllegalAccessException e) {
-	// e.printStackTrace();
-	// }
-	// return null;
-	// }
-
-	private Collection<Substitution> deUniqueVariables(
-			Collection<Substitution> substitutions) {
-		if (substitutions == null)
-			return null;
-		Collection<Substitution> replacedSubs = new HashSet<>();
-		for (Substitution sub : substitutions) {
-			Map<String, Node> subMap = sub.getSubstitutionMap();
-			Substitution replSub = new Substitution();
-			for (String key : subMap.keySet()) {
-				int uniqueIndex = key.indexOf(UNIQUE_SUFFIX);
-				if (uniqueIndex != -1)
-					replSub.addSubstitution(key.substring(0, uniqueIndex),
-							subMap.get(key));
-			}
-			replacedSubs.add(replSub);
+	/**
+	 * Adds a rule to the chainer. A rule without a body is a fact, which may
+	 * contain variables.
+	 * 
+	 * @param hc
+	 *            The rule to add.
+	 */
+	public synchronized void addRule(HornClause hc) {
+		if (hc.getHead() == null)
+			return;
+		Rule rule = new Rule(hc, ruleCount_++);
+		DAGNode predicate = hc.getHead().getEdgeName();
+		RuleIndex index = rules_.get(predicate);
+		if (index == null) {
+			index = new RuleIndex();
+			rules_.put(predicate, index);
 		}
-		return replacedSubs;
+		index.add(rule);
 	}
 
-	private Literal uniqueVariables(Literal lit) {
-		Node[] nodes = lit.getNodes();
-		Node[] replacedNodes = new Node[nodes.length - 1];
-		for (int j = 1; j < nodes.length; j++) {
-			if (nodes[j] instanceof VariableNode)
-				replacedNodes[j - 1] = new VariableNode(nodes[j].getName()
-						+ UNIQUE_SUFFIX);
+	/**
+	 * Finds the rules whose head may unify with a query, in ranked order.
+	 * 
+	 * @param query
+	 *            The query.
+	 * @param depth
+	 *            The depth of the query. Every rule is weighted equally by
+	 *            depth, so it does not affect the order.
+	 * @return The rules that may prove the query.
+	 */
+	public Collection<HornClause> findPertinentClauses(Literal query, int depth) {
+		List<Rule> rules = findRules(query.getNodes());
+		Collection<HornClause> clauses = new ArrayList<>(rules.size());
+		for (Rule rule : rules)
+			clauses.add(rule.clause_);
+		return clauses;
+	}
+
+	/**
+	 * Finds the rules whose head may unify with a goal, in ranked order.
+	 * 
+	 * @param goal
+	 *            The goal, with its predicate first.
+	 * @return The rules that may prove the goal.
+	 */
+	private synchronized List<Rule> findRules(Node[] goal) {
+		RuleIndex index = rules_.get(goal[0]);
+		if (index == null)
+			return new ArrayList<>(0);
+		if (goal.length < 2 || !isGround(goal[1]))
+			return new ArrayList<>(index.rules_);
+
+		// Merge the rules of the first argument with the unindexed rules
+		List<Rule> indexed = index.byFirstArg_.get(goal[1]);
+		if (indexed == null)
+			return new ArrayList<>(index.variableFirst_);
+		List<Rule> rules = new ArrayList<>(indexed.size()
+				+ index.variableFirst_.size());
+		int i = 0;
+		int j = 0;
+		while (i < indexed.size() || j < index.variableFirst_.size()) {
+			if (j == index.variableFirst_.size()
+					|| (i < indexed.size() && indexed.get(i).compareTo(
+							index.variableFirst_.get(j)) < 0))
+				rules.add(indexed.get(i++));
 			else
-				replacedNodes[j - 1] = nodes[j];
+				rules.add(index.variableFirst_.get(j++));
 		}
-		return new Literal(lit.getEdgeName(), replacedNodes);
+		return rules;
 	}
 
-	private Literal[] uniqueVariables(Literal[] lits) {
-		Literal[] replaced = new Literal[lits.length];
-		for (int i = 0; i < lits.length; i++)
-			replaced[i] = uniqueVariables(lits[i]);
-		return replaced;
+	public int getMaxDepth() {
+		return maxDepth_;
 	}
 
-	private ChainResult chainLiterals(Literal[] literals, int i, int depth,
-			Set<Literal> trace) throws IllegalAccessException {
-		if (literals.length == 0)
-			return new ChainResult(true, new HashSet<Substitution>(0));
-
-		if (i == 0)
-			Arrays.sort(literals);
-		Literal lit = literals[i];
-		ChainResult result = proveLiteral(lit, depth, trace);
-		// Stopping condition
-		if (i == literals.length - 1)
-			return result;
-
-		if (!result.result_)
-			return new ChainResult(false, null);
-		else {
-			if (result.substitutions_ == null
-					|| result.substitutions_.isEmpty())
-				return chainLiterals(literals, i + 1, depth, trace);
-
-			ChainResult combinedSubResult = null;
-			for (Substitution sub : result.substitutions_) {
-				// Apply sub
-				Literal[] subbedLiterals = HornClause.applySubstitution(
-						literals, sub);
-				ChainResult subResult = chainLiterals(subbedLiterals, i + 1,
-						depth, trace);
-				if (subResult.result_) {
-					if (combinedSubResult == null)
-						combinedSubResult = subResult;
-					else
-						combinedSubResult.substitutions_
-								.addAll(subResult.substitutions_);
-				}
-			}
+	public long getTimeBudget() {
+		return timeBudget_;
+	}
 
-			if (combinedSubResult == null)
-				return new ChainResult(false, null);
-			else
-				return combinedSubResult;
+	@Override
+	public void queryInternal(QueryObject queryObj) {
+		Resolution resolution = new Resolution();
+		Node[] goal = resolution.rename(queryObj.getNodes(),
+				new HashMap<String, VariableNode>(), null);
+		Table table = resolution.call(goal);
+		if (resolution.exhausted_)
+			queryObj.setCacheable(false);
+
+		Node[] query = queryObj.getNodes();
+		for (Node[] answer : table.answers_) {
+			int mark = resolution.trail_.size();
+			if (resolution.unify(goal,
+					resolution.rename(answer,
+							new HashMap<String, VariableNode>(), null))) {
+				// Results are in terms of the query's own variables
+				Node[] result = new Node[query.length];
+				for (int i = 0; i < query.length; i++)
+					result[i] = resolution.resolve(goal[i]);
+				if (queryObj.addResult(result))
+					return;
+			}
+			resolution.undo(mark);
 		}
 	}
 
-	private ChainResult proveLiteral(Literal query, int depth,
-			Set<Literal> trace) throws IllegalAccessException {
-		boolean isProveQuery = query.getVariables().isEmpty();
-
-		// Check if DAG contains result
-		Collection<Substitution> substitutions = querier_
-				.execute((Object[]) query.getNodes());
-		if (!substitutions.isEmpty() && isProveQuery)
-			return new ChainResult(true, substitutions);
-
-		// Check for loops
-		Literal normalised = query.normalised();
-		if (trace.contains(normalised)) {
-			if (substitutions.isEmpty())
-				return new ChainResult(false, null);
-			else
-				return new ChainResult(true, substitutions);
+	/**
+	 * Sets the maximum number of tables under evaluation at once, which also
+	 * bounds the nesting of functions in subgoals and answers. Subgoals and
+	 * answers beyond this depth are not evaluated.
+	 * 
+	 * @param maxDepth
+	 *            The maximum depth.
+	 */
+	public void setMaxDepth(int maxDepth) {
+		maxDepth_ = maxDepth;
+	}
+
+	/**
+	 * Sets the time a query may take before it stops evaluating subgoals.
+	 * 
+	 * @param timeBudget
+	 *            The budget in milliseconds, or 0 for no limit.
+	 */
+	public void setTimeBudget(long timeBudget) {
+		timeBudget_ = timeBudget;
+	}
+
+	@Override
+	public String toString() {
+		return "BackwardChainer " + ruleCount_ + " rules";
+	}
+
+	/**
+	 * Checks if a node contains no variables.
+	 */
+	private static boolean isGround(Node node) {
+		if (node instanceof VariableNode)
+			return false;
+		if (node instanceof OntologyFunction)
+			for (Node arg : ((OntologyFunction) node).getNodes())
+				if (!isGround(arg))
+					return false;
+		return true;
+	}
+
+	/**
+	 * The evaluation of a single query: its tables, call stack and variable
+	 * bindings.
+	 */
+	private class Resolution {
+		/** The number of answers added to any table. */
+		private int answerCount_;
+
+		private int iterationCount_;
+
+		/** The bindings of the standardised variables. */
+		private Map<String, Node> bindings_ = new HashMap<>();
+
+		private long deadline_;
+
+		private boolean exhausted_;
+
+		/** The incomplete tables awaiting completion by their leader. */
+		private ArrayList<Table> incomplete_ = new ArrayList<>();
+
+		/** The tables under evaluation. */
+		private ArrayList<Table> stack_ = new ArrayList<>();
+
+		private Map<List<Node>, Table> tables_ = new HashMap<>();
+
+		/** The variables bound, in order, so bindings can be undone. */
+		private ArrayList<String> trail_ = new ArrayList<>();
+
+		private int variableCount_;
+
+		public Resolution() {
+			deadline_ = (timeBudget_ > 0) ? System.currentTimeMillis()
+					+ timeBudget_ : Long.MAX_VALUE;
+		}
+
+		/**
+		 * Adds an answer to a table if it is new.
+		 */
+		private void addAnswer(Table table, Node[] answer) {
+			if (termDepth(answer) > maxDepth_) {
+				exhausted_ = true;
+				return;
+			}
+			Node[] normalised = rename(answer,
+					new HashMap<String, VariableNode>(), new int[1]);
+			if (table.answerSet_.add(Arrays.asList(normalised))) {
+				table.answers_.add(normalised);
+				answerCount_++;
+			}
 		}
-		trace.add(normalised);
-
-		// Find pertinent clauses
-		Collection<HornClause> sortedClauses = findPertinentClauses(query,
-				depth);
-
-		// Recurse into ranked clauses
-		for (HornClause clause : sortedClauses) {
-			ChainResult clauseResults = chainLiterals(clause.getBody(), 0,
-					depth + 1, trace);
-			if (clauseResults.result_) {
-				if (isProveQuery)
-					return clauseResults;
+
+		private void bind(VariableNode variable, Node value) {
+			bindings_.put(variable.getName(), value);
+			trail_.add(variable.getName());
+		}
+
+		/**
+		 * Calls a goal, evaluating its table if it is not yet complete.
+		 * 
+		 * @param goal
+		 *            The resolved goal.
+		 * @return The table of the goal.
+		 */
+		public Table call(Node[] goal) {
+			Node[] normalised = rename(goal,
+					new HashMap<String, VariableNode>(), new int[1]);
+			List<Node> key = Arrays.asList(normalised);
+			Table table = tables_.get(key);
+			if (table == null) {
+				table = new Table(normalised);
+				tables_.put(key, table);
+			}
+			// Incomplete tables off the stack belong to an unfinished leader,
+			// and are evaluated once per iteration of the table they depend on
+			if (!table.complete_ && table.stackIndex_ == -1
+					&& !isCurrent(table)) {
+				if (termDepth(goal) > maxDepth_)
+					exhausted_ = true;
 				else
-					substitutions.addAll(clauseResults.substitutions_);
+					evaluate(table);
 			}
+			return table;
 		}
 
-		if (substitutions.isEmpty())
-			return new ChainResult(false, null);
-		else
-			return new ChainResult(true, substitutions);
-	}
+		/**
+		 * Looks up a node's binding.
+		 */
+		private Node deref(Node node) {
+			while (node instanceof VariableNode) {
+				Node value = bindings_.get(((VariableNode) node).getName());
+				if (value == null)
+					return node;
+				node = value;
+			}
+			return node;
+		}
+
+		/**
+		 * Evaluates a table until it is complete or depends on a table lower
+		 * in the stack.
+		 * 
+		 * @param table
+		 *            The table to evaluate.
+		 */
+		private void evaluate(Table table) {
+			if (isExhausted())
+				return;
+			if (stack_.size() >= maxDepth_) {
+				exhausted_ = true;
+				return;
+			}
+			table.stackIndex_ = stack_.size();
+			stack_.add(table);
+			int incompleteMark = incomplete_.size();
+			int low = table.stackIndex_;
+			int count;
+			do {
+				table.iteration_ = ++iterationCount_;
+				count = answerCount_;
+				low = Math.min(low, evaluateRules(table));
+				// Followers are iterated by their leader
+			} while (low == table.stackIndex_ && count != answerCount_
+					&& !isExhausted());
+			stack_.remove(stack_.size() - 1);
+			table.stackIndex_ = -1;
+
+			if (low < stack_.size()) {
+				table.low_ = low;
+				table.lowIteration_ = stack_.get(low).iteration_;
+				if (!table.following_) {
+					table.following_ = true;
+					incomplete_.add(table);
+				}
+			} else if (!exhausted_) {
+				// A leader completes every table that depends on it
+				table.complete_ = true;
+				for (int i = incompleteMark; i < incomplete_.size(); i++)
+					incomplete_.get(i).complete_ = true;
+				while (incomplete_.size() > incompleteMark)
+					incomplete_.remove(incomplete_.size() - 1);
+			}
+		}
 
-	private class ChainResult {
-		public boolean result_;
-		public Collection<Substitution> substitutions_;
+		/**
+		 * Resolves a table's goal once against the base facts and every
+		 * pertinent rule.
+		 * 
+		 * @return The lowest stack index of the tables the goal depends on.
+		 */
+		private int evaluateRules(Table table) {
+			int low = Integer.MAX_VALUE;
+			Node[] goal = rename(table.goal_,
+					new HashMap<String, VariableNode>(), null);
+			if (!table.factsLoaded_) {
+				table.factsLoaded_ = true;
+				loadFacts(table, goal);
+			}
 
-		public ChainResult(boolean result,
-				Collection<Substitution> substitutions) {
-			result_ = result;
-			substitutions_ = substitutions;
+			for (Rule rule : findRules(goal)) {
+				if (isExhausted())
+					break;
+				Map<String, VariableNode> renaming = new HashMap<>();
+				int mark = trail_.size();
+				if (unify(rename(rule.head_, renaming, null), goal)) {
+					Node[][] body = new Node[rule.body_.length][];
+					for (int i = 0; i < body.length; i++)
+						body[i] = rename(rule.body_[i], renaming, null);
+					low = Math.min(low, solveBody(table, goal, body,
+							new boolean[body.length], 0));
+				}
+				undo(mark);
+			}
+			return low;
 		}
 
-		@Override
-		public String toString() {
-			return result_ + " " + substitutions_;
+		/**
+		 * Checks if an incomplete table has been evaluated in the current
+		 * iteration of the table it depends on.
+		 */
+		private boolean isCurrent(Table table) {
+			return table.low_ < stack_.size()
+					&& stack_.get(table.low_).iteration_ == table.lowIteration_;
 		}
-	}
 
-	public Collection<HornClause> findPertinentClauses(Literal query, int depth)
-			throws IllegalAccessException {
-		List<HornClause> relatedClauses = headHCMap_.getList(query
-				.getEdgeName());
-		if (relatedClauses == null)
-			return new ArrayList<>(0);
-		return relatedClauses;
-		// SortedMap<Double, HornClause> sortedClauses = new TreeMap<>();
-		// if (relatedClauses != null) {
-		// // Rank the clauses
-		// for (HornClause clause : relatedClauses) {
-		// MultiMap<String, Integer> queryIndices = QueryModule
-		// .indexVariables(clause.getHead().getNodes());
-		// Substitution revisedSubstitution = QueryModule
-		// .createSubstitution(queryIndices, query);
-		// if (revisedSubstitution != null) {
-		// clause = clause.applySubstitution(revisedSubstitution);
-		//
-		// double weight = clause.hornWeight(depth);
-		// while (sortedClauses.containsKey(weight))
-		// weight += EPSILON;
-		// sortedClauses.put(weight, clause);
-		// }
-		// }
-		// }
-		// return sortedClauses.values();
-	}
+		private boolean isExhausted() {
+			if (!exhausted_ && System.currentTimeMillis() > deadline_)
+				exhausted_ = true;
+			return exhausted_;
+		}
 
-	public void addRule(HornClause hc) {
-		if (hc.getHead() != null)
-			headHCMap_.put(hc.getHead().getEdgeName(), hc);
-	}
+		/**
+		 * Adds the asserted instances of a goal to its table.
+		 */
+		private void loadFacts(Table table, Node[] goal) {
+			Collection<Substitution> facts = querier_.execute(new QueryObject(
+					goal));
+			if (facts == null)
+				return;
+			for (Substitution fact : facts)
+				addAnswer(table, fact.applySubstitution(goal));
+		}
 
-	@Override
-	public void queryInternal(QueryObject queryObj) {
-		try {
-			// TODO This method needs rewriting to conform with queryObj
-			Node[] nodes = queryObj.getNodes();
-			Literal query = new Literal((DAGNode) queryObj.getNode(0),
-					Arrays.copyOfRange(nodes, 1, nodes.length));
-			query = uniqueVariables(query);
-			queryObj.addResults(deUniqueVariables(folBCOr(query, 0,
-					new CachedResults())));
-		} catch (IllegalAccessException e) {
-			e.printStackTrace();
+		/**
+		 * Copies resolved nodes with their variables renamed. Every variable
+		 * of a name is renamed to the same variable.
+		 * 
+		 * @param nodes
+		 *            The nodes to rename.
+		 * @param renaming
+		 *            The variables renamed so far.
+		 * @param normalCount
+		 *            The number of normalised variables so far, or null to
+		 *            rename each variable to a fresh one.
+		 * @return The renamed nodes.
+		 */
+		public Node[] rename(Node[] nodes, Map<String, VariableNode> renaming,
+				int[] normalCount) {
+			Node[] renamed = new Node[nodes.length];
+			for (int i = 0; i < nodes.length; i++)
+				renamed[i] = rename(nodes[i], renaming, normalCount);
+			return renamed;
 		}
-	}
 
-	/**
-	 * Attempt to prove a goal using the KB knowledge and rules.
-	 * 
-	 * @param goal
-	 *            The goal to prove.
-	 * @param depth
-	 *            The current depth.
-	 * @param trace
-	 *            The computed proofs thus far.
-	 * @return A collection of substitutions which prove the goal, or null if no
-	 *         solution possible.
-	 * @throws IllegalAccessException
-	 *             Should something go awry...
-	 */
-	private Collection<Substitution> folBCOr(Literal goal, int depth,
-			CachedResults trace) throws IllegalAccessException {
-		// Check for loops/use known results
-		System.out.println(goal);
-		Literal normalised = goal.normalised();
-		Substitution normalSub = unify(goal, normalised);
-		if (trace.contains(normalised)) {
-			return trace.getResults(normalised, normalSub.inverseSub());
+		private Node rename(Node node, Map<String, VariableNode> renaming,
+				int[] normalCount) {
+			if (node instanceof VariableNode) {
+				String name = ((VariableNode) node).getName();
+				VariableNode variable = renaming.get(name);
+				if (variable == null) {
+					variable = (normalCount == null) ? new VariableNode(
+							STANDARD_PREFIX + variableCount_++)
+							: new VariableNode(NORMAL_PREFIX
+									+ normalCount[0]++);
+					renaming.put(name, variable);
+				}
+				return variable;
+			}
+			if (node instanceof OntologyFunction && !isGround(node))
+				return new OntologyFunction(rename(
+						((OntologyFunction) node).getNodes(), renaming,
+						normalCount));
+			return node;
 		}
 
-		// TODO Get direct assertions
-		// Collection<Substitution> results = querier_.applyModule(
-		// "assertedSentence", new QueryObject(goal.getNodes()));
-		// trace.addResults(normalised, null, normalSub);
-		Collection<Substitution> results = null;
-
-		// Run through the horn clauses
-		// TODO order these heuristically.
-		Collection<HornClause> sortedClauses = findPertinentClauses(goal, depth);
-		for (HornClause hc : sortedClauses) {
-			hc = standardiseHC(hc, depth);
-			System.out.println("HC: " + hc);
-			Collection<Substitution> hcResult = folBCAnd(hc.getBody(),
-					unify(hc.getHead(), goal), depth, trace);
-			if (hcResult != null) {
-				results.addAll(hcResult);
+		/**
+		 * Applies the bindings to a node.
+		 */
+		public Node resolve(Node node) {
+			node = deref(node);
+			if (node instanceof OntologyFunction && !isGround(node)) {
+				Node[] args = ((OntologyFunction) node).getNodes();
+				Node[] resolved = new Node[args.length];
+				for (int i = 0; i < args.length; i++)
+					resolved[i] = resolve(args[i]);
+				return new OntologyFunction(resolved);
 			}
+			return node;
 		}
-		if (results.isEmpty())
-			return null;
-		trace.addResults(normalised, results, normalSub);
-		return results;
-	}
 
-	private HornClause standardiseHC(HornClause hc, int standardVal) {
-		Substitution sub = new Substitution();
-		// TODO Really need to step through here, but this works for now.
-		sub.addSubstitution("?X", new VariableNode("?Xstan" + standardVal));
-		sub.addSubstitution("?Y", new VariableNode("?Ystan" + standardVal));
-		sub.addSubstitution("?Z", new VariableNode("?Zstan" + standardVal));
-		return hc.applySubstitution(sub);
-	}
+		/**
+		 * Counts the unbound variables of a literal.
+		 */
+		private int countUnbound(Node[] literal) {
+			Set<Node> unbound = new HashSet<>();
+			for (Node node : literal)
+				countUnbound(deref(node), unbound);
+			return unbound.size();
+		}
 
-	/**
-	 * Applies a substitution to a set of substitutions.
-	 * 
-	 * @param targets
-	 *            The targets to apply the substitutions to.
-	 * @param sub
-	 *            The sub to apply.
-	 * @return The target set with their substitutions modified per sub.
-	 */
-	public static Collection<Substitution> applySubstitution(
-			Collection<Substitution> targets, Substitution sub) {
-		if (targets == null)
-			return null;
-		if (sub == null)
-			return targets;
-		Collection<Substitution> newTargets = new HashSet<>();
-		for (Substitution tarSub : targets) {
-			newTargets.add(tarSub.applySubstitution(sub));
+		private void countUnbound(Node node, Set<Node> unbound) {
+			if (node instanceof VariableNode)
+				unbound.add(node);
+			else if (node instanceof OntologyFunction)
+				for (Node arg : ((OntologyFunction) node).getNodes())
+					countUnbound(deref(arg), unbound);
 		}
-		return newTargets;
-	}
 
-	/**
-	 * Attempts to prove a conjoined set of literals, using a provided
-	 * substitution.
-	 * 
-	 * @param goals
-	 *            The goals to prove.
-	 * @param substitution
-	 *            The substitution to apply to the goals.
-	 * @param depth
-	 *            The current depth.
-	 * @param trace
-	 *            The computed proofs thus far...
-	 * @return A collection of substitutions which prove the goal, or null if no
-	 *         solution possible.
-	 * @throws IllegalAccessException
-	 *             Should something go awry...
-	 */
-	private Collection<Substitution> folBCAnd(Literal[] goals,
-			Substitution substitution, int depth, CachedResults trace)
-			throws IllegalAccessException {
-		if (substitution == null)
-			return null;
-		if (goals.length == 0) {
-			Collection<Substitution> single = new ArrayList<>(1);
-			single.add(substitution);
-			return single;
+		/**
+		 * Proves the remaining literals of a rule body, adding the instances
+		 * of the goal they prove to its table. The most bound literal is
+		 * proved first.
+		 * 
+		 * @param table
+		 *            The table of the goal.
+		 * @param goal
+		 *            The goal the rule head was unified with.
+		 * @param body
+		 *            The standardised rule body.
+		 * @param proved
+		 *            The literals already proved.
+		 * @param numProved
+		 *            The number of literals already proved.
+		 * @return The lowest stack index of the tables the body depends on.
+		 */
+		private int solveBody(Table table, Node[] goal, Node[][] body,
+				boolean[] proved, int numProved) {
+			if (numProved == body.length) {
+				Node[] answer = new Node[goal.length];
+				for (int i = 0; i < goal.length; i++)
+					answer[i] = resolve(goal[i]);
+				addAnswer(table, answer);
+				return Integer.MAX_VALUE;
+			}
+			if (isExhausted())
+				return Integer.MAX_VALUE;
+
+			int next = -1;
+			int nextUnbound = Integer.MAX_VALUE;
+			for (int i = 0; i < body.length; i++) {
+				if (proved[i])
+					continue;
+				int unbound = countUnbound(body[i]);
+				if (unbound < nextUnbound) {
+					next = i;
+					nextUnbound = unbound;
+				}
+			}
+
+			Node[] literal = new Node[body[next].length];
+			for (int i = 0; i < literal.length; i++)
+				literal[i] = resolve(body[next][i]);
+			Table called = call(literal);
+			int low = Integer.MAX_VALUE;
+			if (called.stackIndex_ != -1)
+				low = called.stackIndex_;
+			else if (!called.complete_)
+				low = called.low_;
+
+			// Answers added to a table under evaluation are consumed too
+			proved[next] = true;
+			for (int a = 0; a < called.answers_.size() && !isExhausted(); a++) {
+				int mark = trail_.size();
+				if (unify(literal, rename(called.answers_.get(a),
+						new HashMap<String, VariableNode>(), null)))
+					low = Math.min(low, solveBody(table, goal, body, proved,
+							numProved + 1));
+				undo(mark);
+			}
+			proved[next] = false;
+			return low;
 		}
 
-		// Proves the first goal
-		Literal first = goals[0];
-		Literal[] rest = Arrays.copyOfRange(goals, 1, goals.length);
-		Collection<Substitution> firstSubs = folBCOr(
-				first.applySubstitution(substitution), depth + 1, trace);
-		if (firstSubs == null)
-			return null;
-
-		// Recurses to the rest.
-		Collection<Substitution> resultSubs = new HashSet<>();
-		for (Substitution sub : firstSubs) {
-			sub.getSubstitutionMap().putAll(substitution.getSubstitutionMap());
-			Collection<Substitution> restResults = folBCAnd(rest, sub, depth,
-					trace);
-			if (restResults == null)
-				return null;
-			resultSubs.addAll(restResults);
+		/**
+		 * Measures the deepest nesting of functions in a set of nodes.
+		 */
+		private int termDepth(Node[] nodes) {
+			int depth = 0;
+			for (Node node : nodes)
+				if (node instanceof OntologyFunction)
+					depth = Math.max(depth, 1 + termDepth(((OntologyFunction) node)
+							.getNodes()));
+			return depth;
 		}
-		return resultSubs;
-	}
 
-	private Substitution unify(Literal x, Literal y) {
-		Substitution newSub = new Substitution();
-		if (x.equals(y))
-			return newSub;
-		Node[] xNodes = x.getNodes();
-		Node[] yNodes = y.getNodes();
-		if (xNodes.length != yNodes.length)
-			return null;
-
-		for (int i = 0; i < xNodes.length; i++) {
-			newSub = unify(xNodes[i], yNodes[i], newSub);
-			if (newSub == null)
-				return null;
+		/**
+		 * Unifies two nodes, binding variables as necessary.
+		 * 
+		 * @return True if the nodes unify. Bindings made by a failed
+		 *         unification are left for the caller to undo.
+		 */
+		private boolean unify(Node a, Node b) {
+			a = deref(a);
+			b = deref(b);
+			if (a.equals(b))
+				return true;
+			if (a instanceof VariableNode) {
+				bind((VariableNode) a, b);
+				return true;
+			}
+			if (b instanceof VariableNode) {
+				bind((VariableNode) b, a);
+				return true;
+			}
+			if (a instanceof OntologyFunction && b instanceof OntologyFunction)
+				return unify(((OntologyFunction) a).getNodes(),
+						((OntologyFunction) b).getNodes());
+			return false;
 		}
-		return newSub;
-	}
 
-	private Substitution unify(Node x, Node y, Substitution sub) {
-		if (x.equals(y))
-			return sub;
-		if (x instanceof VariableNode) {
-			return unifyVar(x, y, sub);
+		public boolean unify(Node[] a, Node[] b) {
+			if (a.length != b.length)
+				return false;
+			for (int i = 0; i < a.length; i++)
+				if (!unify(a[i], b[i]))
+					return false;
+			return true;
 		}
-		if (y instanceof VariableNode) {
-			return unifyVar(y, x, sub);
+
+		/**
+		 * Undoes the bindings made since a point in the trail.
+		 */
+		public void undo(int mark) {
+			while (trail_.size() > mark)
+				bindings_.remove(trail_.remove(trail_.size() - 1));
 		}
-		return null;
 	}
 
-	public Substitution unifyVar(Node x, Node y, Substitution sub) {
-		if (sub.containsVariable(x.toString()))
-			return unify(sub.getSubstitution(x.toString()), y, sub);
-		else if (sub.containsVariable(y.toString()))
-			return unify(x, sub.getSubstitution(y.toString()), sub);
-		else {
-			Substitution newSub = sub.clone();
-			newSub.addSubstitution(x.toString(), y);
-			return newSub;
+	/**
+	 * A Horn clause compiled for resolution.
+	 */
+	private static class Rule implements Comparable<Rule> {
+		private Node[][] body_;
+		private HornClause clause_;
+		private Node[] head_;
+		private int order_;
+		private double weight_;
+
+		public Rule(HornClause clause, int order) {
+			clause_ = clause;
+			order_ = order;
+			head_ = clause.getHead().getNodes();
+			Literal[] body = clause.getBody();
+			body_ = new Node[(body == null) ? 0 : body.length][];
+			for (int i = 0; i < body_.length; i++)
+				body_[i] = body[i].getNodes();
+			if (body == null)
+				clause_ = new HornClause(clause.getHead());
+			weight_ = clause_.hornWeight(0);
+		}
+
+		@Override
+		public int compareTo(Rule o) {
+			int result = Double.compare(weight_, o.weight_);
+			if (result != 0)
+				return result;
+			return Integer.compare(order_, o.order_);
+		}
+
+		@Override
+		public String toString() {
+			return clause_.toString();
 		}
 	}
 
 	/**
-	 * The stored partial or complete results, in normalised form.
-	 * 
-	 * @author Sam Sarjant
+	 * The rules of a predicate, ranked, and indexed by the first argument of
+	 * their heads.
 	 */
-	private class CachedResults {
-		private Map<Literal, Collection<Substitution>> results_ = new HashMap<>();
-
-		public Collection<Substitution> getResults(Literal normalisedLit,
-				Substitution unNormalSub) {
-			Collection<Substitution> normalisedResults = results_
-					.get(normalisedLit);
-			return applySubstitution(normalisedResults, unNormalSub);
+	private static class RuleIndex {
+		/** The rules with a ground first argument. */
+		private Map<Node, List<Rule>> byFirstArg_ = new HashMap<>();
+		private List<Rule> rules_ = new ArrayList<>();
+		/** The rules with a variable (or no) first argument. */
+		private List<Rule> variableFirst_ = new ArrayList<>();
+
+		public void add(Rule rule) {
+			insert(rules_, rule);
+			if (rule.head_.length < 2 || !isGround(rule.head_[1])) {
+				insert(variableFirst_, rule);
+			} else {
+				List<Rule> indexed = byFirstArg_.get(rule.head_[1]);
+				if (indexed == null) {
+					indexed = new ArrayList<>();
+					byFirstArg_.put(rule.head_[1], indexed);
+				}
+				insert(indexed, rule);
+			}
 		}
 
-		public boolean contains(Literal normalisedLit) {
-			return results_.containsKey(normalisedLit);
+		private static void insert(List<Rule> rules, Rule rule) {
+			int index = rules.size();
+			while (index > 0 && rules.get(index - 1).compareTo(rule) > 0)
+				index--;
+			rules.add(index, rule);
 		}
+	}
 
-		public void addResults(Literal normalisedLit,
-				Collection<Substitution> results, Substitution normalSub) {
-			if (results == null || results.isEmpty())
-				results_.put(normalisedLit, null);
-			else
-				// Store as normalised substitution.
-				results_.put(normalisedLit,
-						applySubstitution(results, normalSub));
+	/**
+	 * The answers of a goal variant.
+	 */
+	private static class Table {
+		private List<Node[]> answers_ = new ArrayList<>();
+		private Set<List<Node>> answerSet_ = new HashSet<>();
+		private boolean complete_;
+		private boolean factsLoaded_;
+		/** If the table is awaiting completion by a leader. */
+		private boolean following_;
+		private Node[] goal_;
+		/** The iteration of the table while it is under evaluation. */
+		private int iteration_;
+		/** The lowest stack index the table depended on when last evaluated. */
+		private int low_ = Integer.MAX_VALUE;
+		/** The iteration of the table at the low index at that time. */
+		private int lowIteration_;
+		/** The index of the table on the stack, or -1 if not on the stack. */
+		private int stackIndex_ = -1;
+
+		public Table(Node[] goal) {
+			goal_ = goal;
 		}
 
 		@Override
 		public String toString() {
-			return results_.toString();
+			return Arrays.toString(goal_) + " " + answers_.size() + " answers";
 		}
 	}
 }
@@ -0,0 +1,265 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.inference.module;
+
+import graph.core.CommonConcepts;
+import graph.core.DAGNode;
+import graph.core.DirectedAcyclicGraph;
+import graph.core.Node;
+import graph.core.OntologyFunction;
+import graph.inference.Substitution;
+import graph.inference.VariableNode;
+import graph.module.EdgeStatisticsModule;
+import graph.module.OntologyEdgeModule;
+import graph.module.TransitiveIntervalSchemaModule;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Chooses the evaluation order of the conjuncts of an and query. Each step
+ * greedily picks the remaining conjunct with the smallest estimated result
+ * size given the variables bound so far, using the edge statistics and the
+ * transitive interval schemas. Without edge statistics, conjuncts are ordered
+ * by their number of related edges.
+ * 
+ * @author Sam Sarjant
+ */
+public class ConjunctPlanner {
+	/** The maximum closure size counted when estimating transitive results. */
+	private static final int MAX_CLOSURE = 4096;
+
+	/**
+	 * The maximum number of distinct bound values estimated individually. Above
+	 * this, the average number of edges per value is used.
+	 */
+	private static final int MAX_ENUMERATED_VALUES = 64;
+
+	private DirectedAcyclicGraph dag_;
+
+	private OntologyEdgeModule relatedModule_;
+
+	/** The estimate of the last selected conjunct. */
+	private long selectedEstimate_;
+
+	private EdgeStatisticsModule statsModule_;
+
+	private TransitiveIntervalSchemaModule transIntModule_;
+
+	public ConjunctPlanner(DirectedAcyclicGraph dag,
+			OntologyEdgeModule relatedModule) {
+		dag_ = dag;
+		relatedModule_ = relatedModule;
+		statsModule_ = (EdgeStatisticsModule) dag
+				.getModule(EdgeStatisticsModule.class);
+		transIntModule_ = (TransitiveIntervalSchemaModule) dag
+				.getModule(TransitiveIntervalSchemaModule.class);
+	}
+
+	/**
+	 * Estimates the number of edges a constant argument matches, including
+	 * transitive closures where an interval schema is available.
+	 */
+	private long estimateConstant(DAGNode predicate, int argIndex,
+			Node[] nodes, DAGNode node) {
+		if (transIntModule_ != null && nodes.length == 3) {
+			if (transIntModule_.isReady(predicate)) {
+				int closure = transIntModule_.countTransitive(predicate,
+						argIndex == 1, node, MAX_CLOSURE);
+				if (closure >= 0)
+					return closure;
+			} else if (argIndex == 2
+					&& predicate.equals(CommonConcepts.ISA.getNode(dag_))
+					&& transIntModule_.isReady()) {
+				// Instances of the collection and all of its specs
+				Iterator<DAGNode> specs = transIntModule_.iterate(
+						CommonConcepts.GENLS.getNode(dag_), false, node);
+				if (specs != null) {
+					long count = 0;
+					for (int i = 0; i < MAX_CLOSURE && specs.hasNext(); i++)
+						count += statsModule_.getCount(predicate, argIndex,
+								specs.next());
+					return count;
+				}
+			}
+		}
+		return statsModule_.getCount(predicate, argIndex, node);
+	}
+
+	/**
+	 * Estimates the number of results a conjunct produces given the bindings
+	 * found so far.
+	 * 
+	 * @param conjunct
+	 *            The conjunct to estimate.
+	 * @param bindings
+	 *            The bindings of the conjuncts already evaluated, or null if
+	 *            none have been.
+	 * @return The estimated number of results. Different and equals
+	 *         conjuncts are estimated as Long.MAX_VALUE so they come last.
+	 */
+	public long estimate(OntologyFunction conjunct,
+			Collection<Substitution> bindings) {
+		return estimate(conjunct.getNodes(), bindings);
+	}
+
+	/**
+	 * Estimates the number of results a query produces given a set of
+	 * bindings.
+	 * 
+	 * @param nodes
+	 *            The query nodes.
+	 * @param bindings
+	 *            The bindings the query is evaluated under, or null.
+	 * @return The estimated number of results.
+	 * @see #estimate(OntologyFunction, Collection)
+	 */
+	public long estimate(Node[] nodes, Collection<Substitution> bindings) {
+		if (nodes[0].equals(CommonConcepts.DIFFERENT.getNode(dag_))
+				|| nodes[0].equals(CommonConcepts.EQUALS.getNode(dag_)))
+			return Long.MAX_VALUE;
+		if (!(nodes[0] instanceof DAGNode) || statsModule_ == null)
+			return Long.MAX_VALUE - 1;
+		DAGNode predicate = (DAGNode) nodes[0];
+
+		long predicateCount = statsModule_.getCount(predicate);
+		long estimate = -1;
+		boolean hasVariable = false;
+		for (int i = 1; i < nodes.length; i++) {
+			long argEstimate = -1;
+			if (nodes[i] instanceof VariableNode) {
+				hasVariable = true;
+				Set<Node> values = boundValues(nodes[i], bindings);
+				if (values == null)
+					continue;
+				if (values.size() > MAX_ENUMERATED_VALUES) {
+					// Average edges per value
+					int distinct = Math.max(1,
+							statsModule_.getDistinctCount(predicate, i));
+					argEstimate = Math.min(predicateCount, bindings.size()
+							* Math.max(1, predicateCount / distinct));
+				} else {
+					argEstimate = 0;
+					for (Node value : values)
+						argEstimate += (value instanceof DAGNode) ? estimateConstant(
+								predicate, i, nodes, (DAGNode) value)
+								: statsModule_.getCount(predicate, i, value);
+				}
+			} else if (nodes[i] instanceof DAGNode)
+				argEstimate = estimateConstant(predicate, i, nodes,
+						(DAGNode) nodes[i]);
+			else if (!(nodes[i] instanceof OntologyFunction))
+				argEstimate = statsModule_.getCount(predicate, i, nodes[i]);
+
+			if (argEstimate >= 0)
+				estimate = (estimate == -1) ? argEstimate : Math.min(estimate,
+						argEstimate);
+		}
+
+		// Proofs produce at most one result
+		if (!hasVariable)
+			return 1;
+		if (estimate == -1)
+			estimate = predicateCount;
+		// Inferred results may exist without asserted edges
+		return Math.max(1, estimate);
+	}
+
+	/**
+	 * Gets the distinct values a variable is bound to.
+	 * 
+	 * @return The bound values, or null if the variable is not bound by every
+	 *         binding.
+	 */
+	private Set<Node> boundValues(Node variable, Collection<Substitution> bindings) {
+		if (bindings == null || bindings.isEmpty())
+			return null;
+		Set<Node> values = new HashSet<>();
+		String var = variable.toString();
+		for (Substitution sub : bindings) {
+			Node value = sub.getSubstitution(var);
+			if (value == null)
+				return null;
+			// Only the count matters past the enumeration limit
+			if (values.size() <= MAX_ENUMERATED_VALUES)
+				values.add(value);
+		}
+		return values;
+	}
+
+	/**
+	 * Counts the variables of a conjunct not bound by the current bindings.
+	 */
+	private int countUnbound(OntologyFunction conjunct,
+			Collection<Substitution> bindings) {
+		Substitution sample = (bindings == null || bindings.isEmpty()) ? null
+				: bindings.iterator().next();
+		int unbound = 0;
+		for (Node n : conjunct.getNodes())
+			if (n instanceof VariableNode
+					&& (sample == null || !sample.containsVariable(n
+							.toString())))
+				unbound++;
+		return unbound;
+	}
+
+	/**
+	 * @return The estimated result size of the last selected conjunct, or
+	 *         Long.MAX_VALUE - 1 if there are no edge statistics.
+	 */
+	public long getSelectedEstimate() {
+		return selectedEstimate_;
+	}
+
+	/**
+	 * Selects the next conjunct to evaluate.
+	 * 
+	 * @param remaining
+	 *            The conjuncts not yet evaluated, in query order.
+	 * @param bindings
+	 *            The bindings of the conjuncts already evaluated, or null if
+	 *            none have been.
+	 * @return The index of the next conjunct in remaining.
+	 */
+	public int selectNext(List<OntologyFunction> remaining,
+			Collection<Substitution> bindings) {
+		if (statsModule_ == null) {
+			NumAssertionsComparator comparator = new NumAssertionsComparator(
+					relatedModule_, dag_);
+			int best = 0;
+			for (int i = 1; i < remaining.size(); i++)
+				if (comparator.compare(remaining.get(i), remaining.get(best)) < 0)
+					best = i;
+			selectedEstimate_ = Long.MAX_VALUE - 1;
+			return best;
+		}
+
+		int best = -1;
+		long bestEstimate = 0;
+		int bestUnbound = 0;
+		for (int i = 0; i < remaining.size(); i++) {
+			OntologyFunction conjunct = remaining.get(i);
+			long estimate = estimate(conjunct, bindings);
+			int unbound = countUnbound(conjunct, bindings);
+			if (best == -1 || estimate < bestEstimate
+					|| (estimate == bestEstimate && unbound < bestUnbound)) {
+				best = i;
+				bestEstimate = estimate;
+				bestUnbound = unbound;
+			}
+		}
+		selectedEstimate_ = bestEstimate;
+		return best;
+	}
+}
@@ -21,6 +21,7 @@ import graph.inference.QueryObject;
 import graph.inference.QueryWorker;
 import graph.inference.Substitution;
 import graph.inference.VariableNode;
+import graph.module.DisjointnessModule;
 import graph.module.QueryModule;
 import graph.module.SiblingDisjointModule;
 import graph.module.TransitiveIntervalSchemaModule;
@@ -29,22 +30,81 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 
 import org.apache.commons.collections4.CollectionUtils;
 
 public class DisjointWithWorker extends QueryWorker {
 	private static final long serialVersionUID = -2014914913163958118L;
+	private transient DisjointnessModule disjointModule_;
 	private transient SiblingDisjointModule sibModule_;
 
 	public DisjointWithWorker(QueryModule queryModule) {
 		super(queryModule);
 	}
 
+	/**
+	 * Finds explicit disjointness through the disjointness index.
+	 * 
+	 * @param queryObj
+	 *            The disjointWith query.
+	 * @return True if the index was used.
+	 */
+	private boolean findDisjointViaIndex(QueryObject queryObj) {
+		if (disjointModule_ == null)
+			disjointModule_ = (DisjointnessModule) dag_
+					.getModule(DisjointnessModule.class);
+		if (disjointModule_ == null || !disjointModule_.isReady())
+			return false;
+
+		DAGNode atomic = queryObj.getAtomic();
+		if (queryObj.isProof()) {
+			if (!(queryObj.getNode(1) instanceof DAGNode)
+					|| !(queryObj.getNode(2) instanceof DAGNode))
+				return false;
+			DAGNode nodeA = (DAGNode) queryObj.getNode(1);
+			DAGNode nodeB = (DAGNode) queryObj.getNode(2);
+			DAGNode[] roots = disjointModule_.findDisjointRoots(nodeA, nodeB);
+			if (roots == null)
+				return true;
+
+			// Only justify the proof once it is found
+			TransitiveIntervalSchemaModule transModule = (TransitiveIntervalSchemaModule) dag_
+					.getModule(TransitiveIntervalSchemaModule.class);
+			queryObj.getJustification().addAll(
+					transModule.justifyTransitive(nodeA, roots[0]));
+			queryObj.addResult(new Substitution(),
+					disjointModule_.getDisjointEdge(roots[0], roots[1]));
+			List<Node[]> justification = transModule.justifyTransitive(nodeB,
+					roots[1]);
+			Collections.reverse(justification);
+			queryObj.getJustification().addAll(justification);
+			return true;
+		}
+
+		VariableNode varNode = queryObj.getVariable();
+		for (DAGNode root : disjointModule_.getDisjointRoots(atomic)) {
+			for (Node[] edgeNodes : disjointModule_.getDisjointEdges(root)) {
+				Node otherNode = (edgeNodes[1].equals(root)) ? edgeNodes[2]
+						: edgeNodes[1];
+				queryObj.addResult(new Substitution(varNode,
+						(DAGNode) otherNode), edgeNodes);
+			}
+		}
+		return true;
+	}
+
 	private void findDisjoint(QueryObject queryObj,
 			Collection<Edge> disjointWithEdges) {
 		if (queryObj.getAtomic() == null)
 			return;
+		if (findDisjointViaIndex(queryObj)) {
+			// A proven disjointness needs no sibling check
+			if (!queryObj.isProof() || queryObj.getResults() == null)
+				checkSiblingDisjoint(queryObj);
+			return;
+		}
 		VariableNode varNode = (queryObj.isProof()) ? VariableNode.DEFAULT
 				: queryObj.getVariable();
 		QueryObject genlResults1 = new QueryObject(
@@ -220,42 +280,25 @@ public class DisjointWithWorker extends QueryWorker {
 
 	private void siblingDisjointViaModule(DAGNode atomic, QueryObject queryObj) {
 		if (queryObj.isProof()) {
-			DAGNode otherNode = (DAGNode) queryObj.getNode(2);
-
-			// Find the unique parents for each set
-			Collection<Node> atomicParents = CommonQuery.ALLGENLS.runQuery(
-					dag_, atomic);
-			Collection<Node> otherParents = CommonQuery.ALLGENLS.runQuery(dag_,
-					otherNode);
-			Collection<Node> commonParents = CollectionUtils.retainAll(
-					atomicParents, otherParents);
-			atomicParents.removeAll(commonParents);
-			otherParents.removeAll(commonParents);
-
-			// Find the sibling disjoint collections for atomics
-			Collection<DAGNode> atomicSibCols = new HashSet<>();
-			for (Node atomicParent : atomicParents)
-				if (atomicParent instanceof DAGNode)
-					atomicSibCols.addAll(sibModule_
-							.getSiblingDisjointParents((DAGNode) atomicParent));
-
-			// Search for match in others
-			for (Node otherParent : otherParents) {
-				if (otherParent instanceof DAGNode)
-					if (CollectionUtils.containsAny(atomicSibCols, sibModule_
-							.getSiblingDisjointParents((DAGNode) otherParent))) {
-						// A match!
-						if (!isException(atomic, otherNode)) {
-							queryObj.addResult(new Substitution());
-							// processSiblingJustification(,
-							// sub.getSubstitution(transTwo),
-							// sub.getSubstitution(queryVar), queryObj);
-						}
-						return;
-					}
+			if (!(queryObj.getNode(1) instanceof DAGNode)
+					|| !(queryObj.getNode(2) instanceof DAGNode))
+				return;
+			DAGNode[] sibling = sibModule_.findSiblingDisjoint(
+					(DAGNode) queryObj.getNode(1),
+					(DAGNode) queryObj.getNode(2));
+			if (sibling != null) {
+				queryObj.addResult(new Substitution());
+				processSiblingJustification(sibling[0], sibling[1],
+						sibling[2], queryObj);
 			}
 		} else {
-
+			VariableNode varNode = queryObj.getVariable();
+			Iterator<DAGNode> siblings = sibModule_
+					.iterateSiblingDisjoint(atomic);
+			while (siblings.hasNext())
+				if (queryObj.addResult(new Substitution(varNode, siblings
+						.next())))
+					return;
 		}
 	}
 
@@ -333,6 +376,10 @@ public class DisjointWithWorker extends QueryWorker {
 	@Override
 	public void queryInternal(QueryObject queryObj)
 			throws IllegalArgumentException {
+		// Sibling disjointness is derived from isa and genls edges
+		querier_.recordDependency(CommonConcepts.ISA.getNode(dag_));
+		querier_.recordDependency(CommonConcepts.GENLS.getNode(dag_));
+
 		// Disjoint edges
 		Collection<Edge> disjointWithEdges = relatedModule_
 				.findEdgeByNodes(CommonConcepts.DISJOINTWITH.getNode(dag_));
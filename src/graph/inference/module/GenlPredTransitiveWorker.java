@@ -45,8 +45,10 @@ public class GenlPredTransitiveWorker extends QueryWorker {
 				nonPreds.add(i + 1);
 			}
 		}
-		Collection<Edge> nonPredEdges = relatedModule_.execute(nonPreds
-				.toArray(new Object[nonPreds.size()]));
+		// With no bound args, every edge of the predicate is a result
+		Collection<Edge> nonPredEdges = (nonPreds.isEmpty()) ? null
+				: relatedModule_.execute(nonPreds.toArray(new Object[nonPreds
+						.size()]));
 
 		// Sub preds
 		VariableNode varNode = new VariableNode("?SUB_PREDS");
@@ -58,10 +60,11 @@ public class GenlPredTransitiveWorker extends QueryWorker {
 					.getNode(0)));
 		for (Substitution sub : subPreds) {
 			Node subPred = sub.getSubstitution(varNode);
+			querier_.recordDependency(subPred);
 			Collection<Edge> predEdges = relatedModule_
 					.findEdgeByNodes(subPred);
-			Collection<Edge> intersect = CollectionUtils.retainAll(
-					nonPredEdges, predEdges);
+			Collection<Edge> intersect = (nonPredEdges == null) ? predEdges
+					: CollectionUtils.retainAll(nonPredEdges, predEdges);
 			for (Edge interEdge : intersect) {
 				Node[] edgeNodes = Arrays.copyOf(interEdge.getNodes(),
 						interEdge.getNodes().length);
@@ -20,15 +20,20 @@ import graph.inference.QueryObject;
 import graph.inference.QueryWorker;
 import graph.inference.Substitution;
 import graph.inference.VariableNode;
+import graph.module.IsaClosureModule;
 import graph.module.QueryModule;
+import graph.module.TransitiveIntervalSchemaModule;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 
 import org.apache.commons.collections4.CollectionUtils;
 
 public class IsaWorker extends QueryWorker {
 	private static final long serialVersionUID = 5976403575945727071L;
+	private transient IsaClosureModule isaClosureModule_;
+	private transient TransitiveIntervalSchemaModule transIntModule_;
 
 	public IsaWorker(QueryModule queryModule) {
 		super(queryModule);
@@ -51,6 +56,55 @@ public class IsaWorker extends QueryWorker {
 		return transitiveObj;
 	}
 
+	/**
+	 * Answers an isa query from the materialised isa closure. Proofs are only
+	 * answered when they fail, as a successful proof needs its justification.
+	 * 
+	 * @param queryObj
+	 *            The isa query.
+	 * @param atomicIndex
+	 *            The index of the constant argument.
+	 * @param atomic
+	 *            The constant argument.
+	 * @return True if the query was answered.
+	 */
+	private boolean queryClosure(QueryObject queryObj, int atomicIndex,
+			DAGNode atomic) {
+		if (isaClosureModule_ == null)
+			isaClosureModule_ = (IsaClosureModule) dag_
+					.getModule(IsaClosureModule.class);
+		if (isaClosureModule_ == null || atomic instanceof OntologyFunction
+				|| !queryObj.getNode(0).equals(CommonConcepts.ISA.getNode(dag_))
+				|| !isaClosureModule_.isReady())
+			return false;
+
+		querier_.recordDependency(CommonConcepts.GENLS.getNode(dag_));
+		if (queryObj.isProof()) {
+			Boolean isInstance = isaClosureModule_.isInstance(
+					queryObj.getNode(1), queryObj.getNode(2));
+			return isInstance != null && !isInstance;
+		}
+
+		int varIndex = (atomicIndex == 1) ? 2 : 1;
+		Collection<Node> closure = (atomicIndex == 1) ? isaClosureModule_
+				.getAllCollections(atomic) : isaClosureModule_
+				.getAllInstances(atomic);
+		if (closure == null)
+			return false;
+		Node[] resultNodes = new Node[3];
+		resultNodes[0] = queryObj.getNode(0);
+		resultNodes[atomicIndex] = atomic;
+		for (Node n : closure) {
+			if (queryObj.isCompleted(n))
+				continue;
+			resultNodes[varIndex] = n;
+			queryObj.getJustification().clear();
+			if (queryObj.addResult(resultNodes.clone()))
+				break;
+		}
+		return true;
+	}
+
 	@Override
 	public void queryInternal(QueryObject queryObj)
 			throws IllegalArgumentException {
@@ -59,26 +113,40 @@ public class IsaWorker extends QueryWorker {
 		DAGNode atomic = queryObj.getAtomic();
 		if (atomic == null)
 			return;
+		if (queryClosure(queryObj, atomicIndex, atomic))
+			return;
 
 		VariableNode varNode = new VariableNode("?_T_");
 		// Find downwards transitive if atomic is not first arg.
 		QueryObject transitiveQO = null;
-		if (atomicIndex != 1)
-			transitiveQO = composeTransitive(
-					CommonConcepts.GENLS.getNode(dag_), atomicIndex, atomic,
-					varNode, null);
+		Iterator<? extends Node> specs = null;
+		if (atomicIndex != 1) {
+			DAGNode genls = CommonConcepts.GENLS.getNode(dag_);
+			if (queryObj.getLimit() != Integer.MAX_VALUE
+					&& transIntModule_ != null && transIntModule_.isReady(genls)) {
+				// Limited query, so only walk the specs that are needed
+				querier_.recordDependency(genls);
+				specs = transIntModule_.iterate(genls, false, atomic);
+			} else
+				transitiveQO = composeTransitive(genls, atomicIndex, atomic,
+						varNode, null);
+		}
 
-		Collection<Substitution> genlsSubs = new ArrayList<>(1);
-		if (transitiveQO != null)
-			genlsSubs = transitiveQO.getResults();
-		if (genlsSubs.isEmpty())
-			genlsSubs.add(new Substitution(varNode, atomic));
+		if (specs == null || !specs.hasNext()) {
+			Collection<Substitution> genlsSubs = new ArrayList<>(1);
+			if (transitiveQO != null)
+				genlsSubs = transitiveQO.getResults();
+			if (genlsSubs.isEmpty())
+				genlsSubs.add(new Substitution(varNode, atomic));
+			specs = QueryModule.parseResultsFromSubstitutions(varNode,
+					genlsSubs).iterator();
+		}
 
 		Collection<Edge> isaPred = relatedModule_.findEdgeByNodes(queryObj
 				.getNode(0));
 
-		for (Substitution s : genlsSubs) {
-			Node n = s.getSubstitution(varNode);
+		while (specs.hasNext()) {
+			Node n = specs.next();
 			Collection<Edge> isas = relatedModule_.execute(n, atomicIndex + 1);
 			isas = CollectionUtils.retainAll(isas, isaPred);
 
@@ -112,11 +180,13 @@ public class IsaWorker extends QueryWorker {
 								transitiveQO.getJustification());
 						return;
 					}
+					if (queryObj.isLimitReached())
+						return;
 				}
 			}
 		}
 
-		if (atomicIndex != 1) {
+		if (transitiveQO != null && atomicIndex != 1) {
 			transitiveQO.cleanTransitiveJustification(transitiveQO
 					.getJustification());
 			queryObj.getJustification().addAll(transitiveQO.getJustification());
@@ -126,5 +196,7 @@ public class IsaWorker extends QueryWorker {
 	@Override
 	public void setDAG(DirectedAcyclicGraph dag) {
 		super.setDAG(dag);
+		transIntModule_ = (TransitiveIntervalSchemaModule) dag_
+				.getModule(TransitiveIntervalSchemaModule.class);
 	}
 }
@@ -34,6 +34,8 @@ public class LaterThanWorker extends QueryWorker {
 	@Override
 	public void queryInternal(QueryObject queryObj)
 			throws IllegalArgumentException {
+		// Results are relative to the current time
+		querier_.recordUncacheable();
 		if (!(queryObj.getNode(1) instanceof DAGNode && queryObj.getNode(2) instanceof DAGNode))
 			return;
 		DAGNode dateA = (DAGNode) queryObj.getNode(1);
@@ -24,6 +24,7 @@ import graph.module.TransitiveIntervalSchemaModule;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -49,29 +50,34 @@ public class TransitiveWorker extends QueryWorker {
 		// TODO Ensure node is a collection.
 		if (queryObj.isProof()) {
 			// Find the proof and justify it.
-			Collection<DAGNode> result = transIntModule_.execute(true,
-					queryObj.getNode(1), queryObj.getNode(2));
+			Collection<DAGNode> result = transIntModule_.execute(
+					queryObj.getNode(0), true, queryObj.getNode(1),
+					queryObj.getNode(2));
 			if (result != null) {
 				queryObj.addResult(new Substitution(), queryObj.getNodes());
 				List<Node[]> justification = queryObj.getJustification();
 				justification.clear();
 				justification.addAll(transIntModule_.justifyTransitive(
+						(DAGNode) queryObj.getNode(0),
 						(DAGNode) queryObj.getNode(1),
 						(DAGNode) queryObj.getNode(2)));
 			}
 		} else {
-			// Find the results and add them to the query object.
+			// Lazily add the results to the query object, stopping early if
+			// the query is limited.
 			boolean upwards = queryObj.getAtomicIndex() == 1;
 			DAGNode baseNode = queryObj.getAtomic();
-			Collection<DAGNode> transitiveNodes = transIntModule_.execute(
-					upwards, baseNode);
+			Iterator<DAGNode> transitiveNodes = transIntModule_.iterate(
+					(DAGNode) queryObj.getNode(0), upwards, baseNode);
 			if (transitiveNodes == null)
 				return;
-			for (DAGNode n : transitiveNodes) {
+			while (transitiveNodes.hasNext()) {
+				DAGNode n = transitiveNodes.next();
 				queryObj.addCompleted(n);
 				Node[] nodes = Arrays.copyOf(queryObj.getNodes(), 3);
 				nodes[queryObj.getVariableIndex()] = n;
-				queryObj.addResult(nodes);
+				if (queryObj.addResult(nodes))
+					return;
 			}
 		}
 	}
@@ -156,9 +162,7 @@ public class TransitiveWorker extends QueryWorker {
 			throws IllegalArgumentException {
 		// Use the interval module if available
 		if (transIntModule_ != null
-				&& transIntModule_.isReady()
-				&& transIntModule_.getTransitiveNode().equals(
-						queryObj.getNode(0))) {
+				&& transIntModule_.isReady(queryObj.getNode(0))) {
 			runIntervalModule(queryObj);
 		} else {
 			transitiveSearch(queryObj);
@@ -247,10 +247,8 @@ public class BubbleUpDisjointModule extends DAGModule<Collection<DAGEdge>> {
 			int allParentA = getAllGenlsParent(right).size();
 			int allParentB = getAllGenlsParent(left).size();
 
-			int depthA = Integer.parseInt(((DAGNode) right)
-					.getProperty("depth"));
-			int depthB = Integer
-					.parseInt(((DAGNode) left).getProperty("depth"));
+			int depthA = getDepth(right);
+			int depthB = getDepth(left);
 
 			out.print(right.getName() + ",");
 			out.print(left.getName() + ",");
@@ -319,10 +317,8 @@ public class BubbleUpDisjointModule extends DAGModule<Collection<DAGEdge>> {
 			int allParentA = getAllGenlsParent(mRight).size();
 			int allParentB = getAllGenlsParent(mLeft).size();
 
-			int depthA = Integer.parseInt(((DAGNode) mRight)
-					.getProperty("depth"));
-			int depthB = Integer.parseInt(((DAGNode) mLeft)
-					.getProperty("depth"));
+			int depthA = getDepth(mRight);
+			int depthB = getDepth(mLeft);
 
 			printToFile(pAB, countAB, pBA, countBA, sim, abstRight, abstLeft,
 					MaxChildA, MaxChildB, allChildA, allChildB, allParentA,
@@ -572,4 +568,16 @@ public class BubbleUpDisjointModule extends DAGModule<Collection<DAGEdge>> {
 		return semanticSimilarityModule_.taxonomicSimilarity(nodeA, nodeB);
 	}
 
+	/**
+	 * Gets the depth of a node from the depth module.
+	 * 
+	 * @return The depth of the node, or -1 if it is unknown.
+	 */
+	private int getDepth(Node node) {
+		DepthModule depthModule = (DepthModule) dag_
+				.getModule(DepthModule.class);
+		if (depthModule == null || !(node instanceof DAGNode))
+			return -1;
+		return depthModule.getDepth((DAGNode) node);
+	}
 }
@@ -906,13 +906,12 @@ public class ConceptNetAnalyzerImporter extends DAGModule<Collection<DAGEdge>> {
 	private ArrayList<Node> removeInferiorNodes(
 			ArrayList<Node> candidates) {
 		ArrayList<Node> r = new ArrayList<Node>();
-		int tang = Integer
-				.parseInt(this.partiallyTangible.getProperty("depth"));
+		int tang = getDepth(partiallyTangible);
 
 		for (Node node : candidates) {
-			if (((DAGObject) node).getProperty("depth") == null)
+			if (getDepth(node) == -1)
 				continue;
-			int d = Integer.parseInt(((DAGNode) node).getProperty("depth"));
+			int d = getDepth(node);
 			if (d > 26)
 				r.add(node);
 		}
@@ -1133,10 +1132,10 @@ public class ConceptNetAnalyzerImporter extends DAGModule<Collection<DAGEdge>> {
 		int d;
 		for (Node n : r) {
 
-			if (((DAGObject) n).getProperty("depth") == null)
+			if (getDepth(n) == -1)
 				continue;
 
-			d = Integer.parseInt(((DAGNode) n).getProperty("depth"));
+			d = getDepth(n);
 
 			if (deepest == null) {
 				deepest = n;
@@ -1208,4 +1207,16 @@ public class ConceptNetAnalyzerImporter extends DAGModule<Collection<DAGEdge>> {
 		return queryModule_.prove(isa, node, secondordercyc);
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Gets the depth of a node from the depth module.
+	 * 
+	 * @return The depth of the node, or -1 if it is unknown.
+	 */
+	private int getDepth(Node node) {
+		DepthModule depthModule = (DepthModule) dag_
+				.getModule(DepthModule.class);
+		if (depthModule == null || !(node instanceof DAGNode))
+			return -1;
+		return depthModule.getDepth((DAGNode) node);
+	}
+}
@@ -13,32 +13,103 @@ package graph.module;
 import graph.core.CommonConcepts;
 import graph.core.DAGEdge;
 import graph.core.DAGNode;
+import graph.core.DirectedAcyclicGraph;
 import graph.core.Node;
 import graph.core.OntologyFunction;
 import graph.inference.CommonQuery;
 import graph.inference.QueryObject;
 import graph.inference.VariableNode;
 
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import org.apache.commons.collections4.CollectionUtils;
 
 import util.collection.MultiMap;
 
-public class DepthModule extends DAGModule<Collection<DAGNode>> {
+/**
+ * Calculates the depth of every node: the length of the longest chain of
+ * minimum parents (genls, isa, genlPreds, genlMt and function results) from
+ * the node up to Thing, which is at depth 0. Depths are held in an array
+ * indexed by node ID. They are calculated with a parallel topological pass:
+ * the minimum parents of each node are found once, then the nodes are
+ * released level by level from the roots, each level in parallel. Edge
+ * changes are propagated incrementally: only the subject and the descendants
+ * whose depth actually changes are recalculated.
+ * 
+ * @author Sam Sarjant
+ */
+public class DepthModule extends DAGModule<Collection<DAGNode>> implements
+		IndexModule {
 	private static final long serialVersionUID = 7586206693104940128L;
+	/** The former node property. Depths are now read with getDepth(). */
 	public static final String DEPTH_PROPERTY = "depth";
 
+	/** The number of indices a parallel task processes sequentially. */
+	private static final int TASK_SIZE = 256;
+
+	/** The relations minimum parents are asserted through. */
+	private static final CommonConcepts[] PARENT_RELATIONS = {
+			CommonConcepts.GENLS, CommonConcepts.ISA, CommonConcepts.GENLPREDS,
+			CommonConcepts.GENLMT };
+
 	private boolean depthCalculated_ = false;
 	private MultiMap<Integer, DAGNode> depthMap_;
-	private boolean incrementalSupported_ = false;
+	/** The depth of each node, indexed by node ID (-1 if unknown). */
+	private volatile int[] depths_;
 
 	public DepthModule() {
 		super();
 	}
 
+	/**
+	 * Processes a single index of a parallel range.
+	 */
+	private interface IndexProcessor {
+		void process(int index);
+	}
+
+	/**
+	 * Processes a range of indices, splitting it in half until it is small
+	 * enough to process sequentially.
+	 */
+	private static class RangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int end_;
+		private final IndexProcessor processor_;
+		private final int start_;
+
+		public RangeTask(IndexProcessor processor, int start, int end) {
+			processor_ = processor;
+			start_ = start;
+			end_ = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end_ - start_ <= TASK_SIZE) {
+				for (int i = start_; i < end_; i++)
+					processor_.process(i);
+			} else {
+				int mid = (start_ + end_) >>> 1;
+				invokeAll(new RangeTask(processor_, start_, mid),
+						new RangeTask(processor_, mid, end_));
+			}
+		}
+	}
+
 	private Collection<Node> getMinimumParents(DAGNode node) {
 		// Check for rewrite
 		RewriteOfModule rewriteModule = (RewriteOfModule) dag_
@@ -81,6 +152,18 @@ public class DepthModule extends DAGModule<Collection<DAGNode>> {
 		return CommonQuery.minGeneralFilter(minParents, dag_);
 	}
 
+	/**
+	 * Gets the minimum parents of a node that are DAG nodes.
+	 */
+	private DAGNode[] getMinimumParentNodes(DAGNode node) {
+		Collection<Node> minParents = getMinimumParents(node);
+		List<DAGNode> parents = new ArrayList<>(minParents.size());
+		for (Node parent : minParents)
+			if (parent instanceof DAGNode && !parent.equals(node))
+				parents.add((DAGNode) parent);
+		return parents.toArray(new DAGNode[parents.size()]);
+	}
+
 	/**
 	 * Searches for all assertions with a given relationship and node placement
 	 * and returns all second arg values for found assertions.
@@ -108,75 +191,318 @@ public class DepthModule extends DAGModule<Collection<DAGNode>> {
 	}
 
 	/**
-	 * Recursively calculate the node depth.
+	 * Calculates the depths of a set of nodes (and of any parents outside of
+	 * the set) in parallel.
 	 * 
-	 * @param node
-	 *            The node to calculate depth for.
-	 * @param seen
-	 *            If the node has been seen already in this calculation.
-	 * @return The minimum depth of the above node.
-	 */
-	private int processNode(DAGNode node, HashSet<Integer> seen) {
-		if (node.equals(CommonConcepts.THING.getNode(dag_))) {
-			dag_.addProperty(node, DEPTH_PROPERTY, "0");
-			depthMap_.put(0, node);
-			return 0;
+	 * @param nodes
+	 *            The nodes to calculate depths for.
+	 * @param pool
+	 *            The pool to run the parallel tasks in.
+	 * @return The depths, indexed by node ID (-1 for nodes not calculated).
+	 */
+	private int[] calculateDepths(Collection<DAGNode> nodes, ForkJoinPool pool) {
+		int maxID = 0;
+		for (DAGNode node : nodes)
+			maxID = Math.max(maxID, node.getID());
+		DAGNode[] byID = new DAGNode[maxID + 1];
+		int[][] parents = new int[maxID + 1][];
+
+		// Find the minimum parents of every node once, in parallel batches
+		// until parents outside of the set are also covered
+		List<DAGNode> pending = new ArrayList<>(nodes);
+		for (DAGNode node : nodes)
+			byID[node.getID()] = node;
+		while (!pending.isEmpty()) {
+			final DAGNode[] batch = pending.toArray(new DAGNode[pending.size()]);
+			final DAGNode[][] batchParents = new DAGNode[batch.length][];
+			pool.invoke(new RangeTask(new IndexProcessor() {
+				@Override
+				public void process(int index) {
+					batchParents[index] = getMinimumParentNodes(batch[index]);
+				}
+			}, 0, batch.length));
+
+			pending.clear();
+			for (int i = 0; i < batch.length; i++) {
+				int[] parentIDs = new int[batchParents[i].length];
+				for (int j = 0; j < parentIDs.length; j++) {
+					DAGNode parent = batchParents[i][j];
+					parentIDs[j] = parent.getID();
+					if (parentIDs[j] >= byID.length) {
+						byID = Arrays.copyOf(byID, parentIDs[j] + 1);
+						parents = Arrays.copyOf(parents, parentIDs[j] + 1);
+					}
+					if (byID[parentIDs[j]] == null) {
+						byID[parentIDs[j]] = parent;
+						pending.add(parent);
+					}
+				}
+				parents[batch[i].getID()] = parentIDs;
+			}
 		}
-		if (seen.contains(node.getID()))
-			return 0;
-		seen.add(node.getID());
 
-		int depth = 1;
-		String depthStr = node.getProperty(DEPTH_PROPERTY);
-		if (depthStr == null || depthStr.equals("-1")) {
-			Collection<Node> minCol = getMinimumParents(node);
-			for (Node superGenls : minCol) {
-				depth = Math
-						.max(processNode((DAGNode) superGenls, new HashSet<>(
-								seen)) + 1, depth);
+		// Thing is the root, regardless of any parents
+		DAGNode thing = CommonConcepts.THING.getNode(dag_);
+		if (thing != null && thing.getID() < parents.length
+				&& parents[thing.getID()] != null)
+			parents[thing.getID()] = new int[0];
+		return topologicalDepths(byID, parents, pool);
+	}
+
+	/**
+	 * Assigns depths with Kahn's algorithm. Each level of nodes whose parents
+	 * all have depths is released in parallel. Nodes in (or below) cycles are
+	 * assigned afterwards.
+	 */
+	private int[] topologicalDepths(DAGNode[] byID, final int[][] parents,
+			ForkJoinPool pool) {
+		final int[] depths = new int[byID.length];
+		Arrays.fill(depths, -1);
+
+		// Invert the parents into children
+		int[] childCounts = new int[byID.length];
+		final AtomicIntegerArray remaining = new AtomicIntegerArray(
+				byID.length);
+		for (int id = 0; id < parents.length; id++) {
+			if (parents[id] == null)
+				continue;
+			for (int parent : parents[id])
+				childCounts[parent]++;
+			remaining.set(id, parents[id].length);
+		}
+		final int[][] children = new int[byID.length][];
+		for (int id = 0; id < children.length; id++)
+			children[id] = new int[childCounts[id]];
+		for (int id = 0; id < parents.length; id++) {
+			if (parents[id] == null)
+				continue;
+			for (int parent : parents[id])
+				children[parent][--childCounts[parent]] = id;
+		}
+
+		// The roots
+		DAGNode thing = CommonConcepts.THING.getNode(dag_);
+		int[] level = new int[byID.length];
+		int levelSize = 0;
+		for (int id = 0; id < parents.length; id++) {
+			if (parents[id] != null && parents[id].length == 0) {
+				depths[id] = (byID[id].equals(thing)) ? 0 : 1;
+				level[levelSize++] = id;
 			}
-			dag_.addProperty(node, DEPTH_PROPERTY, depth + "");
-			depthMap_.put(depth, node);
-		} else
-			depth = Integer.parseInt(depthStr);
+		}
+
+		// Release the children of each level in parallel
+		final int[] next = new int[byID.length];
+		while (levelSize > 0) {
+			final int[] current = level;
+			final AtomicInteger nextSize = new AtomicInteger();
+			pool.invoke(new RangeTask(new IndexProcessor() {
+				@Override
+				public void process(int index) {
+					for (int child : children[current[index]]) {
+						if (remaining.decrementAndGet(child) == 0) {
+							depths[child] = maxParentDepth(parents[child],
+									depths) + 1;
+							next[nextSize.getAndIncrement()] = child;
+						}
+					}
+				}
+			}, 0, levelSize));
+			levelSize = nextSize.get();
+			level = Arrays.copyOf(next, levelSize);
+		}
+
+		// Nodes in (or below) cycles
+		boolean[] onPath = new boolean[depths.length];
+		for (int id = 0; id < parents.length; id++)
+			if (parents[id] != null && depths[id] == -1)
+				cyclicDepth(id, parents, depths, onPath);
+		return depths;
+	}
+
+	/**
+	 * Gets the maximum depth of a set of parents (0 if there are none).
+	 */
+	private static int maxParentDepth(int[] parents, int[] depths) {
+		int max = 0;
+		for (int parent : parents)
+			max = Math.max(max, depths[parent]);
+		return max;
+	}
+
+	/**
+	 * Recursively calculates the depth of a node with a cycle above it. A
+	 * parent already on the path counts as depth 0.
+	 */
+	private int cyclicDepth(int id, int[][] parents, int[] depths,
+			boolean[] onPath) {
+		if (depths[id] != -1)
+			return depths[id];
+		onPath[id] = true;
+		int depth = 1;
+		for (int parent : parents[id]) {
+			int parentDepth = (onPath[parent]) ? 0 : cyclicDepth(parent,
+					parents, depths, onPath);
+			depth = Math.max(depth, parentDepth + 1);
+		}
+		onPath[id] = false;
+		depths[id] = depth;
 		return depth;
 	}
 
 	@Override
 	public void clear() {
 		depthCalculated_ = false;
-		depthMap_.clear();
+		depths_ = null;
+		if (depthMap_ != null)
+			depthMap_.clear();
 	}
 
 	@Override
 	public boolean addEdge(DAGEdge edge) {
-		if (!(edge instanceof DAGEdge) || !depthCalculated_)
-			return true;
+		edgeChanged(edge);
+		return true;
+	}
 
-		if (!incrementalSupported_) {
-			depthCalculated_ = false;
-			return true;
+	@Override
+	public synchronized boolean addNode(DAGNode node) {
+		if (depthCalculated_ && getDepth(node) == -1)
+			setDepth(node, calculateDepth(node, new HashSet<DAGNode>()));
+		return true;
+	}
+
+	/**
+	 * Calculates the depth of a single node from the current depths of its
+	 * minimum parents. Parents without a depth are calculated first.
+	 * 
+	 * @param node
+	 *            The node to calculate the depth for.
+	 * @param path
+	 *            The nodes currently being calculated, to break cycles.
+	 * @return The depth of the node.
+	 */
+	private int calculateDepth(DAGNode node, Set<DAGNode> path) {
+		if (node.equals(CommonConcepts.THING.getNode(dag_)))
+			return 0;
+		path.add(node);
+		int depth = 1;
+		for (DAGNode parent : getMinimumParentNodes(node)) {
+			int parentDepth = getDepth(parent);
+			if (parentDepth == -1) {
+				if (path.contains(parent))
+					parentDepth = 0;
+				else {
+					parentDepth = calculateDepth(parent, path);
+					setDepth(parent, parentDepth);
+				}
+			}
+			depth = Math.max(depth, parentDepth + 1);
 		}
+		path.remove(node);
+		return depth;
+	}
 
-		DAGNode edgePred = (DAGNode) edge.getNodes()[0];
-		if (edgePred.equals(CommonConcepts.GENLS.getNode(dag_))
-				|| edgePred.equals(CommonConcepts.GENLPREDS.getNode(dag_))
-				|| edgePred.equals(CommonConcepts.GENLMT.getNode(dag_))
-				|| edgePred.equals(CommonConcepts.ISA.getNode(dag_))) {
-			if (!(edge.getNodes()[1] instanceof DAGNode))
-				return true;
+	/**
+	 * Updates the depths for a changed edge, if it is a parent edge.
+	 */
+	private synchronized void edgeChanged(DAGEdge edge) {
+		if (!depthCalculated_)
+			return;
+		Node[] nodes = edge.getNodes();
+		if (nodes.length < 3)
+			return;
+		Node pred = nodes[0];
+		if (pred.equals(CommonConcepts.RESULT_ISA.getNode(dag_))
+				|| pred.equals(CommonConcepts.RESULT_GENL.getNode(dag_))) {
+			// Affects an open set of functions
+			depthCalculated_ = false;
+			return;
+		}
+		if (!isParentRelation(pred) || !(nodes[1] instanceof DAGNode))
+			return;
+		propagate((DAGNode) nodes[1]);
+	}
 
-			DAGNode subjectNode = (DAGNode) edge.getNodes()[1];
+	/**
+	 * Finds the asserted children of a node through the parent relations.
+	 */
+	private Collection<DAGNode> getChildren(DAGNode node) {
+		QueryModule querier = (QueryModule) dag_.getModule(QueryModule.class);
+		Collection<DAGNode> children = new ArrayList<>();
+		for (CommonConcepts relation : PARENT_RELATIONS) {
+			VariableNode x = new VariableNode("?X");
+			QueryObject qo = new QueryObject(relation.getNode(dag_), x, node);
+			querier.applyModule(
+					CommonConcepts.ASSERTED_SENTENCE.getNodeName(), qo);
+			Collection<Node> results = QueryModule
+					.parseResultsFromSubstitutions(x, qo.getResults());
+			if (results != null)
+				for (Node child : results)
+					if (child instanceof DAGNode)
+						children.add((DAGNode) child);
+		}
+		return children;
+	}
 
-			String oldStr = subjectNode.getProperty(DEPTH_PROPERTY);
-			int oldDepth = (oldStr == null) ? -1 : Integer.parseInt(oldStr);
-			int newDepth = processNode(subjectNode, new HashSet<Integer>());
+	/**
+	 * Checks if a predicate is one of the relations parents are found
+	 * through.
+	 */
+	private boolean isParentRelation(Node pred) {
+		for (CommonConcepts relation : PARENT_RELATIONS)
+			if (pred.equals(relation.getNode(dag_)))
+				return true;
+		return false;
+	}
 
-			if (newDepth != oldDepth) {
-				// TODO Propagate the changes down.
+	/**
+	 * Recalculates the depth of a node and pushes any change down to its
+	 * children, stopping at children whose depth is unchanged. If the number
+	 * of recalculations exceeds the number of nodes (a cycle), the depths are
+	 * marked as needing a full recalculation.
+	 * 
+	 * @param start
+	 *            The node whose parents have changed.
+	 */
+	private void propagate(DAGNode start) {
+		int limit = Math.max(dag_.getNumNodes(), 1) * 2;
+		Deque<DAGNode> queue = new ArrayDeque<>();
+		queue.add(start);
+		int steps = 0;
+		while (!queue.isEmpty()) {
+			if (++steps > limit) {
+				depthCalculated_ = false;
+				return;
 			}
+			DAGNode node = queue.poll();
+			int depth = calculateDepth(node, new HashSet<DAGNode>());
+			if (depth == getDepth(node))
+				continue;
+			setDepth(node, depth);
+			queue.addAll(getChildren(node));
 		}
-		return true;
+	}
+
+	/**
+	 * Sets the depth of a node, moving it to its new depth in the depth map.
+	 */
+	private void setDepth(DAGNode node, int depth) {
+		int id = node.getID();
+		int[] depths = depths_;
+		if (id >= depths.length) {
+			int oldLength = depths.length;
+			depths = Arrays.copyOf(depths, Math.max(id + 1, oldLength * 3 / 2));
+			Arrays.fill(depths, oldLength, depths.length, -1);
+		}
+		int oldDepth = depths[id];
+		if (oldDepth == depth)
+			return;
+		if (oldDepth != -1 && depthMap_.containsKey(oldDepth))
+			depthMap_.get(oldDepth).remove(node);
+		if (depth != -1)
+			depthMap_.put(depth, node);
+		depths[id] = depth;
+		depths_ = depths;
 	}
 
 	@Override
@@ -188,53 +514,97 @@ public class DepthModule extends DAGModule<Collection<DAGNode>> {
 		return null;
 	}
 
+	/**
+	 * Gets the depth of a node.
+	 * 
+	 * @param node
+	 *            The node.
+	 * @return The depth of the node (Thing is at depth 0), or -1 if it is
+	 *         unknown.
+	 */
+	public int getDepth(DAGNode node) {
+		int[] depths = depths_;
+		if (depths == null || node.getID() >= depths.length)
+			return -1;
+		return depths[node.getID()];
+	}
+
 	public Collection<DAGNode> getNodesAtDepth(int depth) {
+		if (depthMap_ == null)
+			return null;
 		return depthMap_.get(depth);
 	}
 
 	@Override
-	public boolean initialisationComplete(Collection<DAGNode> nodes,
-			Collection<DAGEdge> edges, boolean forceRebuild) {
-		if (depthCalculated_ && !forceRebuild)
+	public synchronized boolean initialisationComplete(
+			Collection<DAGNode> nodes, Collection<DAGEdge> edges,
+			boolean forceRebuild) {
+		if (depthCalculated_ && depths_ != null && !forceRebuild)
 			return false;
 
 		// Compute the depths of each node in the graph
 		System.out.print("Calculating node depths... ");
-		depthMap_ = MultiMap.createConcurrentHashSetMultiMap();
-		int count = 0;
-		int tenPercent = nodes.size() / 10;
-		// TODO Embarrassingly parallel.
-		for (DAGNode node : nodes) {
-			count++;
-			processNode(node, new HashSet<Integer>());
-			if (count % tenPercent == 0)
-				System.out.print((count / tenPercent * 10) + "% ");
+		long start = System.currentTimeMillis();
+		ForkJoinPool pool = new ForkJoinPool();
+		int[] depths;
+		try {
+			depths = calculateDepths(nodes, pool);
+		} finally {
+			pool.shutdown();
 		}
-		System.out.println("Depth calculation complete!");
+		MultiMap<Integer, DAGNode> depthMap = MultiMap
+				.createConcurrentHashSetMultiMap();
+		for (DAGNode node : nodes)
+			if (depths[node.getID()] >= 0)
+				depthMap.put(depths[node.getID()], node);
+		depths_ = depths;
+		depthMap_ = depthMap;
+		System.out.println("Depth calculation complete! ("
+				+ (System.currentTimeMillis() - start) + "ms)");
 		depthCalculated_ = true;
 		return true;
 	}
 
+	/**
+	 * @return True if the depths have been calculated.
+	 */
+	public boolean isReady() {
+		return depthCalculated_ && depths_ != null;
+	}
+
+	@Override
+	public boolean readIndex(ByteBuffer in, DirectedAcyclicGraph dag) {
+		// The depths are serialised with the module
+		return true;
+	}
+
 	@Override
 	public boolean removeEdge(DAGEdge edge) {
-		if (!incrementalSupported_) {
-			depthCalculated_ = false;
-			return true;
-		}
-
+		edgeChanged(edge);
 		return true;
 	}
 
 	@Override
-	public Collection<String> getPertinentProperties() {
-		Collection<String> props = new ArrayList<String>(1);
-		props.add(DEPTH_PROPERTY);
-		return props;
+	public synchronized boolean removeNode(DAGNode node) {
+		if (depths_ != null && depthMap_ != null)
+			setDepth(node, -1);
+		return true;
 	}
 
 	@Override
 	public void disableCached() {
 		depthCalculated_ = false;
 		depthMap_ = null;
+		depths_ = null;
+	}
+
+	@Override
+	public void disableIndex() {
+		disableCached();
+	}
+
+	@Override
+	public void writeIndex(DataOutputStream out) {
+		// The depths are serialised with the module
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,363 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.module;
+
+import graph.core.CommonConcepts;
+import graph.core.DAGEdge;
+import graph.core.DAGNode;
+import graph.core.DirectedAcyclicGraph;
+import graph.core.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indexes explicit disjointWith assertions for fast disjointness proofs. Every
+ * collection that is an argument of a disjointWith edge is a disjoint root
+ * with an integer ID. For any collection, the IDs of the roots among its genls
+ * closure (read from the {@link TransitiveIntervalSchemaModule}) are kept as a
+ * sorted array, so two collections are disjoint if a root of one has a
+ * disjointWith partner in the root array of the other. Root arrays are
+ * computed on demand and discarded when a genls or disjointWith change
+ * affects them.
+ * 
+ * @author Sam Sarjant
+ */
+public class DisjointnessModule extends DAGModule<Boolean> {
+	private static final long serialVersionUID = -6390145771904512265L;
+
+	/** The maximum number of root arrays held. */
+	public static final int DEFAULT_CAPACITY = 500000;
+
+	private static final int[] NO_ROOTS = new int[0];
+
+	private int capacity_ = DEFAULT_CAPACITY;
+
+	/** The asserted disjointWith edges of each root. */
+	private Map<DAGNode, List<Node[]>> disjointEdges_;
+
+	/** If the disjointWith edges have been indexed. */
+	private boolean indexed_;
+
+	/** The ID of each root. */
+	private Map<DAGNode, Integer> rootIDs_;
+
+	/** The root of each ID. */
+	private List<DAGNode> roots_;
+
+	/** The roots among the genls closure of each collection. */
+	private transient LinkedHashMap<DAGNode, int[]> rootArrays_;
+
+	private transient TransitiveIntervalSchemaModule schemaModule_;
+
+	public DisjointnessModule() {
+		disjointEdges_ = new HashMap<>();
+		rootIDs_ = new HashMap<>();
+		roots_ = new ArrayList<>();
+	}
+
+	/**
+	 * Gets the sorted IDs of the roots a collection is a spec of (including
+	 * itself).
+	 */
+	private int[] getRoots(DAGNode collection) {
+		int[] roots = rootArrays_.get(collection);
+		if (roots != null)
+			return roots;
+
+		int[] ids = new int[8];
+		int size = 0;
+		Integer id = rootIDs_.get(collection);
+		if (id != null)
+			ids[size++] = id;
+		Iterator<DAGNode> iter = schemaModule_.iterate(
+				CommonConcepts.GENLS.getNode(dag_), true, collection);
+		while (iter != null && iter.hasNext()) {
+			DAGNode genl = iter.next();
+			if (genl.equals(collection))
+				continue;
+			id = rootIDs_.get(genl);
+			if (id != null) {
+				if (size == ids.length)
+					ids = Arrays.copyOf(ids, size * 2);
+				ids[size++] = id;
+			}
+		}
+		roots = (size == 0) ? NO_ROOTS : Arrays.copyOf(ids, size);
+		Arrays.sort(roots);
+		rootArrays_.put(collection, roots);
+		return roots;
+	}
+
+	/**
+	 * Gets the node at the other side of a disjointWith edge.
+	 */
+	private static Node otherSide(Node[] edgeNodes, DAGNode root) {
+		return (edgeNodes[1].equals(root)) ? edgeNodes[2] : edgeNodes[1];
+	}
+
+	/**
+	 * Discards the root arrays of a collection and its specs.
+	 */
+	private void invalidateBelow(DAGNode collection) {
+		if (rootArrays_.isEmpty())
+			return;
+		rootArrays_.remove(collection);
+		Iterator<DAGNode> iter = schemaModule_.iterate(
+				CommonConcepts.GENLS.getNode(dag_), false, collection);
+		while (iter != null && iter.hasNext())
+			rootArrays_.remove(iter.next());
+	}
+
+	/**
+	 * Updates the index for a disjointWith edge.
+	 */
+	private void disjointChanged(Node[] nodes, boolean added) {
+		for (int i = 1; i <= 2; i++) {
+			if (!(nodes[i] instanceof DAGNode))
+				continue;
+			DAGNode root = (DAGNode) nodes[i];
+			List<Node[]> edges = disjointEdges_.get(root);
+			if (added) {
+				if (edges == null) {
+					edges = new ArrayList<>(2);
+					disjointEdges_.put(root, edges);
+				}
+				edges.add(nodes);
+				if (!rootIDs_.containsKey(root)) {
+					// A new root changes the root arrays below it
+					rootIDs_.put(root, roots_.size());
+					roots_.add(root);
+					if (isReady())
+						invalidateBelow(root);
+				}
+			} else if (edges != null) {
+				// Roots keep their ID, as an unpartnered root is harmless
+				for (Iterator<Node[]> iter = edges.iterator(); iter.hasNext();)
+					if (Arrays.equals(iter.next(), nodes))
+						iter.remove();
+				if (edges.isEmpty())
+					disjointEdges_.remove(root);
+			}
+		}
+	}
+
+	/**
+	 * Processes an edge change.
+	 */
+	private synchronized void edgeChanged(DAGEdge edge, boolean added) {
+		Node[] nodes = edge.getNodes();
+		if (nodes.length != 3)
+			return;
+		if (nodes[0].equals(CommonConcepts.DISJOINTWITH.getNode(dag_)))
+			disjointChanged(nodes, added);
+		else if (nodes[0].equals(CommonConcepts.GENLS.getNode(dag_))
+				&& nodes[1] instanceof DAGNode && isReady())
+			invalidateBelow((DAGNode) nodes[1]);
+	}
+
+	@Override
+	public boolean addEdge(DAGEdge edge) {
+		edgeChanged(edge, true);
+		return true;
+	}
+
+	@Override
+	public synchronized void clear() {
+		indexed_ = false;
+		disjointEdges_.clear();
+		rootIDs_.clear();
+		roots_.clear();
+		disableCached();
+	}
+
+	@Override
+	public synchronized void disableCached() {
+		final int capacity = capacity_;
+		rootArrays_ = new LinkedHashMap<DAGNode, int[]>(1024, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<DAGNode, int[]> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Takes two collections and returns true if they are disjoint through
+	 * explicit disjointWith assertions.
+	 */
+	@Override
+	public Boolean execute(Object... args) throws IllegalArgumentException,
+			ModuleException {
+		if (args.length != 2)
+			throw new IllegalArgumentException("Requires two collections.");
+		return findDisjointRoots((DAGNode) args[0], (DAGNode) args[1]) != null;
+	}
+
+	/**
+	 * Finds the pair of roots that makes two collections disjoint. The
+	 * justification can then be built from the genls paths to the roots and
+	 * the disjointWith edge between them.
+	 * 
+	 * @param collectionA
+	 *            The first collection.
+	 * @param collectionB
+	 *            The second collection.
+	 * @return The root above the first collection and the root above the
+	 *         second, or null if the collections are not explicitly disjoint
+	 *         (or the index is not ready).
+	 */
+	public synchronized DAGNode[] findDisjointRoots(DAGNode collectionA,
+			DAGNode collectionB) {
+		if (!isReady() || disjointEdges_.isEmpty())
+			return null;
+		int[] rootsA = getRoots(collectionA);
+		if (rootsA.length == 0)
+			return null;
+		int[] rootsB = getRoots(collectionB);
+		if (rootsB.length == 0)
+			return null;
+
+		// Scan the edges of the smaller side
+		boolean swapped = rootsA.length > rootsB.length;
+		DAGNode scanned = (swapped) ? collectionB : collectionA;
+		int[] probed = (swapped) ? rootsA : rootsB;
+		for (DAGNode root : getRootNodes(scanned)) {
+			for (Node[] edgeNodes : disjointEdges_.get(root)) {
+				Node other = otherSide(edgeNodes, root);
+				Integer otherID = rootIDs_.get(other);
+				if (otherID != null
+						&& Arrays.binarySearch(probed, otherID) >= 0) {
+					if (swapped)
+						return new DAGNode[] { (DAGNode) other, root };
+					return new DAGNode[] { root, (DAGNode) other };
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the asserted disjointWith edge between two roots.
+	 * 
+	 * @param rootA
+	 *            One root.
+	 * @param rootB
+	 *            The other root.
+	 * @return The nodes of the edge as asserted, or null if there is none.
+	 */
+	public synchronized Node[] getDisjointEdge(DAGNode rootA, DAGNode rootB) {
+		List<Node[]> edges = disjointEdges_.get(rootA);
+		if (edges != null)
+			for (Node[] edgeNodes : edges)
+				if (otherSide(edgeNodes, rootA).equals(rootB))
+					return edgeNodes;
+		return null;
+	}
+
+	/**
+	 * Gets the asserted disjointWith edges of a root.
+	 * 
+	 * @param root
+	 *            The root.
+	 * @return The nodes of each disjointWith edge the root is an argument of.
+	 */
+	public synchronized List<Node[]> getDisjointEdges(DAGNode root) {
+		List<Node[]> edges = disjointEdges_.get(root);
+		if (edges == null)
+			return new ArrayList<>(0);
+		return new ArrayList<>(edges);
+	}
+
+	/**
+	 * Gets the roots among the genls closure of a collection that have
+	 * disjointWith edges.
+	 * 
+	 * @param collection
+	 *            The collection.
+	 * @return The disjoint roots of the collection (including itself), or
+	 *         null if the index is not ready.
+	 */
+	public synchronized Collection<DAGNode> getDisjointRoots(DAGNode collection) {
+		if (!isReady())
+			return null;
+		return getRootNodes(collection);
+	}
+
+	/**
+	 * Gets the partnered roots of a collection.
+	 */
+	private Collection<DAGNode> getRootNodes(DAGNode collection) {
+		int[] roots = getRoots(collection);
+		Collection<DAGNode> rootNodes = new ArrayList<>(roots.length);
+		for (int id : roots) {
+			DAGNode root = roots_.get(id);
+			if (disjointEdges_.containsKey(root))
+				rootNodes.add(root);
+		}
+		return rootNodes;
+	}
+
+	@Override
+	public boolean initialisationComplete(Collection<DAGNode> nodes,
+			Collection<DAGEdge> edges, boolean forceRebuild) {
+		if (forceRebuild || (rootIDs_.isEmpty() && !edges.isEmpty())) {
+			clear();
+			System.out.print("Indexing disjointWith edges... ");
+			defaultRebuild(nodes, false, edges, true);
+			System.out.println("Done!");
+			indexed_ = true;
+			return true;
+		}
+		// The genls schema may have been rebuilt
+		disableCached();
+		indexed_ = true;
+		return false;
+	}
+
+	/**
+	 * @return True if the disjointWith edges are indexed and the genls schema
+	 *         is ready.
+	 */
+	public boolean isReady() {
+		if (!indexed_)
+			return false;
+		if (schemaModule_ == null)
+			schemaModule_ = (TransitiveIntervalSchemaModule) dag_
+					.getModule(TransitiveIntervalSchemaModule.class);
+		return schemaModule_ != null && schemaModule_.isReady();
+	}
+
+	@Override
+	public boolean removeEdge(DAGEdge edge) {
+		edgeChanged(edge, false);
+		return true;
+	}
+
+	@Override
+	public void setDAG(DirectedAcyclicGraph directedAcyclicGraph) {
+		super.setDAG(directedAcyclicGraph);
+		disableCached();
+	}
+
+	@Override
+	public String toString() {
+		return "Disjointness Module: " + disjointEdges_.size() + " roots";
+	}
+}
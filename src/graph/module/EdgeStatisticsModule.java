@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.module;
+
+import graph.core.DAGEdge;
+import graph.core.DAGNode;
+import graph.core.Node;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maintains cardinality statistics over the asserted edges: the number of
+ * edges per predicate, per predicate argument value (with the number of
+ * distinct values per argument) and per node argument position. The
+ * statistics are updated incrementally as edges are added and removed, so
+ * query planning can estimate result sizes without materialising edge
+ * collections.
+ * 
+ * @author Sam Sarjant
+ */
+public class EdgeStatisticsModule extends DAGModule<Integer> {
+	private static final long serialVersionUID = -2364786163245286133L;
+
+	/** The number of edges each node is an argument of, per argument index. */
+	private Map<Node, int[]> nodeCounts_;
+
+	/** The statistics for each predicate. */
+	private Map<Node, PredicateStatistics> predicateStats_;
+
+	/** The total number of edges counted. */
+	private int totalCount_;
+
+	public EdgeStatisticsModule() {
+		nodeCounts_ = new HashMap<>();
+		predicateStats_ = new HashMap<>();
+	}
+
+	/**
+	 * Adds or removes an edge from the statistics.
+	 * 
+	 * @param edge
+	 *            The edge to count.
+	 * @param delta
+	 *            1 if adding the edge, -1 if removing.
+	 */
+	private synchronized void count(DAGEdge edge, int delta) {
+		Node[] nodes = edge.getNodes();
+		totalCount_ += delta;
+
+		PredicateStatistics stats = predicateStats_.get(nodes[0]);
+		if (stats == null) {
+			if (delta < 0)
+				return;
+			stats = new PredicateStatistics();
+			predicateStats_.put(nodes[0], stats);
+		}
+		stats.count(nodes, delta);
+		if (stats.count_ <= 0)
+			predicateStats_.remove(nodes[0]);
+
+		for (int i = 1; i < nodes.length; i++) {
+			if (!(nodes[i] instanceof DAGNode))
+				continue;
+			int[] counts = nodeCounts_.get(nodes[i]);
+			if (counts == null || counts.length <= i) {
+				if (delta < 0)
+					continue;
+				int[] grown = new int[i + 1];
+				if (counts != null)
+					System.arraycopy(counts, 0, grown, 0, counts.length);
+				counts = grown;
+				nodeCounts_.put(nodes[i], counts);
+			}
+			counts[i] = Math.max(0, counts[i] + delta);
+		}
+	}
+
+	@Override
+	public boolean addEdge(DAGEdge edge) {
+		count(edge, 1);
+		return true;
+	}
+
+	@Override
+	public synchronized void clear() {
+		nodeCounts_.clear();
+		predicateStats_.clear();
+		totalCount_ = 0;
+	}
+
+	/**
+	 * Takes a predicate, and optionally an argument index and argument node,
+	 * and returns the number of asserted edges matching them.
+	 */
+	@Override
+	public Integer execute(Object... args) throws IllegalArgumentException,
+			ModuleException {
+		if (args.length == 1)
+			return getCount((Node) args[0]);
+		if (args.length == 3)
+			return getCount((Node) args[0], (Integer) args[1], (Node) args[2]);
+		throw new IllegalArgumentException(
+				"Requires a predicate and optional argument index and node.");
+	}
+
+	/**
+	 * Gets the number of asserted edges using a predicate.
+	 * 
+	 * @param predicate
+	 *            The predicate.
+	 * @return The number of edges using the predicate.
+	 */
+	public synchronized int getCount(Node predicate) {
+		PredicateStatistics stats = predicateStats_.get(predicate);
+		return (stats == null) ? 0 : stats.count_;
+	}
+
+	/**
+	 * Gets the number of asserted edges using a predicate with a given node
+	 * as an argument.
+	 * 
+	 * @param predicate
+	 *            The predicate.
+	 * @param argIndex
+	 *            The index of the argument (1 for the first argument).
+	 * @param node
+	 *            The argument node.
+	 * @return The number of matching edges.
+	 */
+	public synchronized int getCount(Node predicate, int argIndex, Node node) {
+		PredicateStatistics stats = predicateStats_.get(predicate);
+		if (stats == null)
+			return 0;
+		if (!(node instanceof DAGNode))
+			return (argIndex < stats.nonDAGCounts_.length) ? Math.min(1,
+					stats.nonDAGCounts_[argIndex]) : 0;
+		Map<Node, int[]> argCounts = stats.getArgCounts(argIndex);
+		if (argCounts == null)
+			return 0;
+		int[] count = argCounts.get(node);
+		return (count == null) ? 0 : count[0];
+	}
+
+	/**
+	 * Gets the number of distinct values an argument of a predicate takes.
+	 * 
+	 * @param predicate
+	 *            The predicate.
+	 * @param argIndex
+	 *            The index of the argument (1 for the first argument).
+	 * @return The number of distinct values (non-DAG nodes are assumed to be
+	 *         distinct).
+	 */
+	public synchronized int getDistinctCount(Node predicate, int argIndex) {
+		PredicateStatistics stats = predicateStats_.get(predicate);
+		if (stats == null)
+			return 0;
+		Map<Node, int[]> argCounts = stats.getArgCounts(argIndex);
+		int distinct = (argCounts == null) ? 0 : argCounts.size();
+		if (argIndex < stats.nonDAGCounts_.length)
+			distinct += stats.nonDAGCounts_[argIndex];
+		return distinct;
+	}
+
+	/**
+	 * Gets the number of asserted edges with a given node at an argument
+	 * index, regardless of predicate.
+	 * 
+	 * @param node
+	 *            The node.
+	 * @param argIndex
+	 *            The index of the argument (0 for the predicate).
+	 * @return The number of edges with the node at the index.
+	 */
+	public synchronized int getNodeCount(Node node, int argIndex) {
+		if (argIndex == 0)
+			return getCount(node);
+		int[] counts = nodeCounts_.get(node);
+		if (counts == null || counts.length <= argIndex)
+			return 0;
+		return counts[argIndex];
+	}
+
+	/**
+	 * @return The total number of asserted edges.
+	 */
+	public synchronized int getTotalCount() {
+		return totalCount_;
+	}
+
+	@Override
+	public boolean initialisationComplete(Collection<DAGNode> nodes,
+			Collection<DAGEdge> edges, boolean forceRebuild) {
+		if (forceRebuild || (totalCount_ == 0 && !edges.isEmpty())) {
+			clear();
+			System.out.print("Counting edge statistics... ");
+			defaultRebuild(nodes, false, edges, true);
+			System.out.println("Done!");
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean removeEdge(DAGEdge edge) {
+		count(edge, -1);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean removeNode(DAGNode node) {
+		nodeCounts_.remove(node);
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "Edge Statistics Module: " + predicateStats_.size()
+				+ " predicates, " + totalCount_ + " edges";
+	}
+
+	/**
+	 * The counts of a single predicate.
+	 */
+	private static class PredicateStatistics implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The number of edges per DAG node argument, indexed by argument
+		 * index. Counts are single element arrays so they can be updated in
+		 * place.
+		 */
+		private ArrayList<Map<Node, int[]>> argCounts_ = new ArrayList<>();
+
+		/** The number of edges using the predicate. */
+		private int count_;
+
+		/** The number of non-DAG node arguments, by argument index. */
+		private int[] nonDAGCounts_ = new int[0];
+
+		public void count(Node[] nodes, int delta) {
+			count_ += delta;
+			for (int i = 1; i < nodes.length; i++) {
+				if (!(nodes[i] instanceof DAGNode)) {
+					if (nonDAGCounts_.length <= i) {
+						int[] grown = new int[i + 1];
+						System.arraycopy(nonDAGCounts_, 0, grown, 0,
+								nonDAGCounts_.length);
+						nonDAGCounts_ = grown;
+					}
+					nonDAGCounts_[i] = Math.max(0, nonDAGCounts_[i] + delta);
+					continue;
+				}
+
+				while (argCounts_.size() <= i)
+					argCounts_.add(new HashMap<Node, int[]>());
+				Map<Node, int[]> argCounts = argCounts_.get(i);
+				int[] count = argCounts.get(nodes[i]);
+				if (count == null) {
+					if (delta < 0)
+						continue;
+					count = new int[1];
+					argCounts.put(nodes[i], count);
+				}
+				count[0] += delta;
+				if (count[0] <= 0)
+					argCounts.remove(nodes[i]);
+			}
+		}
+
+		public Map<Node, int[]> getArgCounts(int argIndex) {
+			if (argIndex < 1 || argIndex >= argCounts_.size())
+				return null;
+			return argCounts_.get(argIndex);
+		}
+	}
+}
@@ -0,0 +1,820 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.module;
+
+import graph.core.CycDAG;
+import graph.core.DAGEdge;
+import graph.core.DAGNode;
+import graph.core.DirectedAcyclicGraph;
+import graph.core.Edge;
+import graph.core.ErrorEdge;
+import graph.core.Node;
+import graph.core.OntologyFunction;
+import graph.core.StringNode;
+import graph.inference.HornClause;
+import graph.inference.Literal;
+import graph.inference.VariableNode;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Materialises Horn clause rules as edges when edges are asserted, so
+ * rule-derived queries are answered from the edge indexes instead of being
+ * searched for at read time. Rules are compiled into a TREAT network: every
+ * body literal is a pattern indexed by its predicate, and the memory of a
+ * pattern is the {@link OntologyEdgeModule} index itself, so no partial joins
+ * are stored. An added edge is matched against the patterns of its predicate
+ * and joined with the other literals of the rule, and every head it completes
+ * is asserted with {@link #CREATOR} as its creator.
+ * 
+ * Removals use delete and re-derive: every derived edge that may depend on a
+ * removed edge is removed, then those that still have a derivation are
+ * asserted again. Changes are queued by the edge callbacks and processed once
+ * the outermost change on the thread has committed, so derived edges are
+ * never asserted under a commit lock and, like propagated edges, are not
+ * written to the log. On a {@link CycDAG} the rule changes themselves are
+ * logged, and the rules are compiled before the log is replayed, so replaying
+ * the log derives the same edges again.
+ * 
+ * @author Sam Sarjant
+ */
+public class ForwardChainingModule extends DAGModule<Collection<Edge>> {
+	private static final long serialVersionUID = -2301778474946163504L;
+
+	/** The creator of derived edges. */
+	public static final StringNode CREATOR = new StringNode(
+			"ForwardChainingModule");
+
+	private static final String CREATOR_ID = CREATOR.getIdentifier(true);
+
+	/** The changes queued on each thread. */
+	private transient ThreadLocal<Agenda> agenda_;
+
+	/** Serialises the processing of changes. */
+	private transient ReentrantLock chainLock_;
+
+	private transient OntologyEdgeModule edgeModule_;
+
+	/** The compiled rules, replaced whenever the rules change. */
+	private transient volatile Network network_;
+
+	/** The rules, as the strings of their head and body literals. */
+	private ArrayList<String[]> ruleStrings_;
+
+	public ForwardChainingModule() {
+		ruleStrings_ = new ArrayList<>();
+		init();
+	}
+
+	/**
+	 * Adds a rule and asserts every edge it derives from the current graph.
+	 * 
+	 * @param rule
+	 *            The rule to add. Every variable of its head must be in its
+	 *            body, and the head may not contain a function with a
+	 *            variable.
+	 * @return True if the rule was added, false if it already exists.
+	 * @throws IllegalArgumentException
+	 *             If the rule cannot be materialised.
+	 */
+	public boolean addRule(HornClause rule) throws IllegalArgumentException {
+		return changeRule(compile(rule), true);
+	}
+
+	/**
+	 * Adds a compiled rule and asserts every edge it derives.
+	 */
+	private boolean addRule(Rule compiled) {
+		Agenda agenda = agenda_.get();
+		boolean processing = agenda.processing_;
+		agenda.processing_ = true;
+		chainLock_.lock();
+		try {
+			for (Rule existing : network_.rules_)
+				if (Arrays.equals(existing.strings_, compiled.strings_))
+					return false;
+			ruleStrings_.add(compiled.strings_);
+			List<Rule> rules = new ArrayList<>(network_.rules_);
+			rules.add(compiled);
+			network_ = new Network(rules);
+
+			Collection<Node[]> heads = new ArrayList<>();
+			join(compiled, new boolean[compiled.body_.length], 0,
+					new HashMap<String, Node>(), null, heads,
+					Integer.MAX_VALUE);
+			for (Node[] head : heads)
+				assertDerived(head);
+		} finally {
+			chainLock_.unlock();
+			agenda.processing_ = processing;
+		}
+		if (!processing)
+			processAgenda();
+		return true;
+	}
+
+	/**
+	 * Applies a change to the rules, without logging it. This is called by
+	 * the {@link CycDAG} within the logged change, and when the change is
+	 * replayed.
+	 * 
+	 * @param rule
+	 *            The strings of the rule's head and body literals.
+	 * @param add
+	 *            True to add the rule, false to remove it.
+	 * @return True if the rules changed.
+	 * @throws IllegalArgumentException
+	 *             If the rule cannot be materialised.
+	 */
+	public boolean applyRuleChange(String[] rule, boolean add)
+			throws IllegalArgumentException {
+		Rule compiled = compile(rule);
+		return (add) ? addRule(compiled) : removeRule(compiled);
+	}
+
+	/**
+	 * Asserts a derived edge.
+	 */
+	private void assertDerived(Node[] nodes) {
+		Edge edge = dag_.findOrCreateEdge(nodes, CREATOR, true);
+		if (edge instanceof ErrorEdge)
+			System.err.println("Could not derive " + Arrays.toString(nodes)
+					+ ": " + edge);
+	}
+
+	/**
+	 * Finds the edges that may match a literal, from the edge index and any
+	 * extra edges.
+	 */
+	private Collection<Edge> candidates(Node[] literal,
+			Map<String, Node> bindings, Collection<DAGEdge> extra) {
+		ArrayList<Object> args = new ArrayList<>();
+		for (int i = 0; i < literal.length; i++) {
+			Node node = substitute(literal[i], bindings);
+			if (node instanceof DAGNode && !(node instanceof OntologyFunction)) {
+				args.add(node);
+				args.add(i + 1);
+			}
+		}
+		Collection<Edge> edges = edgeModule_.execute(args
+				.toArray(new Object[args.size()]));
+		if (extra == null || extra.isEmpty())
+			return edges;
+		edges = new ArrayList<>(edges);
+		for (DAGEdge edge : extra)
+			if (edge.getNodes()[0].equals(literal[0]))
+				edges.add(edge);
+		return edges;
+	}
+
+	/**
+	 * Changes the rules, as a logged change if the DAG logs its changes.
+	 */
+	private boolean changeRule(Rule rule, boolean add) {
+		if (dag_ instanceof CycDAG)
+			return ((CycDAG) dag_).changeRule(rule.strings_, add);
+		return (add) ? addRule(rule) : removeRule(rule);
+	}
+
+	/**
+	 * Compiles a rule.
+	 */
+	private Rule compile(HornClause rule) {
+		Literal[] body = rule.getBody();
+		if (rule.getHead() == null || body == null || body.length == 0)
+			throw new IllegalArgumentException(
+					"Rules require a head and a body: " + rule);
+		String[] strings = new String[body.length + 1];
+		strings[0] = toString(rule.getHead().getNodes());
+		for (int i = 0; i < body.length; i++)
+			strings[i + 1] = toString(body[i].getNodes());
+		return compile(strings);
+	}
+
+	/**
+	 * Compiles a rule from the strings of its literals.
+	 */
+	private Rule compile(String[] strings) {
+		Node[][] literals = new Node[strings.length][];
+		for (int i = 0; i < strings.length; i++) {
+			literals[i] = dag_.parseNodes(strings[i], null, false, false);
+			if (literals[i] == null)
+				throw new IllegalArgumentException("Unknown literal "
+						+ strings[i]);
+		}
+
+		// Every head variable must be bound by the body
+		Set<String> bodyVariables = new HashSet<>();
+		for (int i = 1; i < literals.length; i++)
+			for (Node node : literals[i])
+				variables(node, bodyVariables);
+		for (Node node : literals[0]) {
+			if (node instanceof VariableNode
+					&& !bodyVariables.contains(node.getName()))
+				throw new IllegalArgumentException("Head variable " + node
+						+ " is not in the body of " + Arrays.toString(strings));
+			if (node instanceof OntologyFunction && !isGround(node))
+				throw new IllegalArgumentException(
+						"Head functions cannot contain variables: "
+								+ Arrays.toString(strings));
+		}
+		return new Rule(strings, literals[0], Arrays.copyOfRange(literals, 1,
+				literals.length));
+	}
+
+	/**
+	 * Compiles the rules against the current nodes, replacing the network.
+	 * This must happen before any logged changes are replayed, so they fire
+	 * the rules.
+	 */
+	public void compileRules() {
+		List<Rule> rules = new ArrayList<>();
+		for (String[] strings : ruleStrings_) {
+			try {
+				rules.add(compile(strings));
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+			}
+		}
+		network_ = new Network(rules);
+	}
+
+	/**
+	 * Checks if a derived edge has a derivation from the current graph.
+	 */
+	private boolean derivable(Network network, Node[] nodes) {
+		List<Rule> rules = network.heads_.get(nodes[0]);
+		if (rules == null)
+			return false;
+		for (Rule rule : rules) {
+			Map<String, Node> bindings = new HashMap<>();
+			if (!match(rule.head_, nodes, bindings))
+				continue;
+			Collection<Node[]> heads = new ArrayList<>(1);
+			join(rule, new boolean[rule.body_.length], 0, bindings, null,
+					heads, 1);
+			if (!heads.isEmpty())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Fires the rules an edge matches a body literal of, joined with the rest
+	 * of the graph and any extra edges.
+	 * 
+	 * @param network
+	 *            The rules.
+	 * @param edge
+	 *            The edge.
+	 * @param extra
+	 *            Edges to treat as part of the graph, or null.
+	 * @return The heads the edge completes.
+	 */
+	private Collection<Node[]> fire(Network network, DAGEdge edge,
+			Collection<DAGEdge> extra) {
+		Collection<Node[]> heads = new ArrayList<>();
+		List<Pattern> patterns = network.patterns_.get(edge.getNodes()[0]);
+		if (patterns == null)
+			return heads;
+		for (Pattern pattern : patterns) {
+			Rule rule = pattern.rule_;
+			Map<String, Node> bindings = new HashMap<>();
+			if (!match(rule.body_[pattern.literal_], edge.getNodes(), bindings))
+				continue;
+			boolean[] joined = new boolean[rule.body_.length];
+			joined[pattern.literal_] = true;
+			join(rule, joined, 1, bindings, extra, heads, Integer.MAX_VALUE);
+		}
+		return heads;
+	}
+
+	private void init() {
+		agenda_ = new ThreadLocal<Agenda>() {
+			@Override
+			protected Agenda initialValue() {
+				return new Agenda();
+			}
+		};
+		chainLock_ = new ReentrantLock();
+		network_ = new Network(new ArrayList<Rule>(0));
+	}
+
+	/**
+	 * Checks if a change may fire or retract a derivation.
+	 */
+	private boolean isChainable(DAGEdge edge, boolean added) {
+		Network network = network_;
+		Node predicate = edge.getNodes()[0];
+		if (network.patterns_.containsKey(predicate))
+			return true;
+		return !added && network.heads_.containsKey(predicate);
+	}
+
+	/**
+	 * Joins the unjoined body literals of a rule, collecting the heads of the
+	 * complete joins. The literal with the most bound arguments is joined
+	 * next.
+	 * 
+	 * @param rule
+	 *            The rule.
+	 * @param joined
+	 *            The literals already joined.
+	 * @param numJoined
+	 *            The number of literals already joined.
+	 * @param bindings
+	 *            The variable bindings of the joined literals.
+	 * @param extra
+	 *            Edges to treat as part of the graph, or null.
+	 * @param heads
+	 *            The collection to add the heads to.
+	 * @param limit
+	 *            The number of heads to stop at.
+	 */
+	private void join(Rule rule, boolean[] joined, int numJoined,
+			Map<String, Node> bindings, Collection<DAGEdge> extra,
+			Collection<Node[]> heads, int limit) {
+		if (numJoined == rule.body_.length) {
+			Node[] head = new Node[rule.head_.length];
+			for (int i = 0; i < head.length; i++)
+				head[i] = substitute(rule.head_[i], bindings);
+			heads.add(head);
+			return;
+		}
+
+		int next = -1;
+		int nextBound = -1;
+		for (int i = 0; i < rule.body_.length; i++) {
+			if (joined[i])
+				continue;
+			int bound = 0;
+			for (Node node : rule.body_[i])
+				if (isGround(substitute(node, bindings)))
+					bound++;
+			if (bound > nextBound) {
+				next = i;
+				nextBound = bound;
+			}
+		}
+
+		joined[next] = true;
+		for (Edge candidate : candidates(rule.body_[next], bindings, extra)) {
+			Map<String, Node> extended = new HashMap<>(bindings);
+			if (match(rule.body_[next], candidate.getNodes(), extended)) {
+				join(rule, joined, numJoined + 1, extended, extra, heads, limit);
+				if (heads.size() >= limit)
+					break;
+			}
+		}
+		joined[next] = false;
+	}
+
+	/**
+	 * Processes the changes queued on this thread until no more are derived.
+	 * Called once the outermost change on the thread has committed.
+	 */
+	public void processAgenda() {
+		Agenda agenda = agenda_.get();
+		if (agenda.processing_ || agenda.changes_.isEmpty())
+			return;
+		agenda.processing_ = true;
+		chainLock_.lock();
+		try {
+			while (!agenda.changes_.isEmpty()) {
+				if (agenda.changes_.peek().added_) {
+					Network network = network_;
+					DAGEdge edge = agenda.changes_.poll().edge_;
+					for (Node[] head : fire(network, edge, null))
+						assertDerived(head);
+				} else {
+					// Consecutive removals are retracted together
+					List<DAGEdge> removed = new ArrayList<>();
+					while (!agenda.changes_.isEmpty()
+							&& !agenda.changes_.peek().added_)
+						removed.add(agenda.changes_.poll().edge_);
+					retract(network_, removed, agenda);
+				}
+			}
+		} finally {
+			chainLock_.unlock();
+			agenda.processing_ = false;
+		}
+	}
+
+	/**
+	 * Queues a change on this thread, if it may fire or retract a derivation.
+	 */
+	private void queue(DAGEdge edge, boolean added) {
+		Agenda agenda = agenda_.get();
+		if (agenda.suppressed_ || !isChainable(edge, added))
+			return;
+		agenda.changes_.add(new Change(edge, added));
+	}
+
+	/**
+	 * Removes a rule and retracts the edges only it derived.
+	 * 
+	 * @param rule
+	 *            The rule to remove.
+	 * @return True if the rule was removed.
+	 */
+	public boolean removeRule(HornClause rule) {
+		return changeRule(compile(rule), false);
+	}
+
+	/**
+	 * Removes a compiled rule and retracts the edges only it derived.
+	 */
+	private boolean removeRule(Rule compiled) {
+		Agenda agenda = agenda_.get();
+		boolean processing = agenda.processing_;
+		agenda.processing_ = true;
+		chainLock_.lock();
+		try {
+			List<Rule> rules = new ArrayList<>(network_.rules_);
+			Rule removed = null;
+			for (Rule existing : rules)
+				if (Arrays.equals(existing.strings_, compiled.strings_))
+					removed = existing;
+			if (removed == null)
+				return false;
+			rules.remove(removed);
+			for (int i = 0; i < ruleStrings_.size(); i++)
+				if (Arrays.equals(ruleStrings_.get(i), removed.strings_))
+					ruleStrings_.remove(i--);
+
+			// The rule's derivations are removed, then re-derived by the rest
+			Collection<Node[]> heads = new ArrayList<>();
+			join(removed, new boolean[removed.body_.length], 0,
+					new HashMap<String, Node>(), null, heads,
+					Integer.MAX_VALUE);
+			List<DAGEdge> derived = new ArrayList<>();
+			for (Node[] head : heads) {
+				Edge edge = dag_.findEdge(head);
+				if (edge instanceof DAGEdge && isDerived(edge))
+					derived.add((DAGEdge) edge);
+			}
+			Network network = new Network(rules);
+			network_ = network;
+			agenda.suppressed_ = true;
+			try {
+				for (DAGEdge edge : derived)
+					dag_.removeEdge(edge);
+			} finally {
+				agenda.suppressed_ = false;
+			}
+			retract(network, derived, agenda);
+		} finally {
+			chainLock_.unlock();
+			agenda.processing_ = processing;
+		}
+		if (!processing)
+			processAgenda();
+		return true;
+	}
+
+	/**
+	 * Retracts removed edges by delete and re-derive. Every derived edge the
+	 * removed edges may have derived is removed, then every removed edge with
+	 * another derivation is asserted again, which fires its consequences.
+	 * 
+	 * @param network
+	 *            The rules.
+	 * @param removed
+	 *            The edges already removed from the graph.
+	 * @param agenda
+	 *            The agenda of this thread.
+	 */
+	private void retract(Network network, Collection<DAGEdge> removed,
+			Agenda agenda) {
+		// Over-delete, treating deleted edges as present
+		Set<DAGEdge> deleted = new LinkedHashSet<>(removed);
+		ArrayDeque<DAGEdge> toFire = new ArrayDeque<>(removed);
+		while (!toFire.isEmpty()) {
+			for (Node[] head : fire(network, toFire.poll(), deleted)) {
+				Edge edge = dag_.findEdge(head);
+				if (edge instanceof DAGEdge && isDerived(edge)
+						&& deleted.add((DAGEdge) edge))
+					toFire.add((DAGEdge) edge);
+			}
+		}
+		agenda.suppressed_ = true;
+		try {
+			for (DAGEdge edge : deleted)
+				if (!removed.contains(edge))
+					dag_.removeEdge(edge);
+		} finally {
+			agenda.suppressed_ = false;
+		}
+
+		// Re-derive
+		for (DAGEdge edge : deleted)
+			if (derivable(network, edge.getNodes()))
+				assertDerived(edge.getNodes());
+	}
+
+	@Override
+	public boolean addEdge(DAGEdge edge) {
+		queue(edge, true);
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		chainLock_.lock();
+		try {
+			ruleStrings_.clear();
+			network_ = new Network(new ArrayList<Rule>(0));
+		} finally {
+			chainLock_.unlock();
+		}
+	}
+
+	/**
+	 * Takes a predicate and returns the edges of it derived by the rules.
+	 */
+	@Override
+	public Collection<Edge> execute(Object... args)
+			throws IllegalArgumentException, ModuleException {
+		if (args.length != 1 || !(args[0] instanceof DAGNode))
+			throw new IllegalArgumentException("Requires a predicate.");
+		Collection<Edge> derived = new ArrayList<>();
+		for (Edge edge : edgeModule_.execute(args[0], 1))
+			if (isDerived(edge))
+				derived.add(edge);
+		return derived;
+	}
+
+	/**
+	 * @return The number of rules.
+	 */
+	public int getNumRules() {
+		return network_.rules_.size();
+	}
+
+	@Override
+	public boolean initialisationComplete(Collection<DAGNode> nodes,
+			Collection<DAGEdge> edges, boolean forceRebuild) {
+		// Rules are compiled against the loaded nodes
+		compileRules();
+		List<Rule> rules = network_.rules_;
+		if (!forceRebuild || rules.isEmpty())
+			return false;
+
+		System.out.print("Materialising " + rules.size() + " rules... ");
+		Agenda agenda = agenda_.get();
+		agenda.processing_ = true;
+		chainLock_.lock();
+		try {
+			for (Rule rule : rules) {
+				Collection<Node[]> heads = new ArrayList<>();
+				join(rule, new boolean[rule.body_.length], 0,
+						new HashMap<String, Node>(), null, heads,
+						Integer.MAX_VALUE);
+				for (Node[] head : heads)
+					assertDerived(head);
+			}
+		} finally {
+			chainLock_.unlock();
+			agenda.processing_ = false;
+		}
+		processAgenda();
+		System.out.println("Done!");
+		return true;
+	}
+
+	/**
+	 * @return True if an edge was derived by the rules.
+	 */
+	public boolean isDerived(Edge edge) {
+		return edge instanceof DAGEdge
+				&& CREATOR_ID.equals(((DAGEdge) edge).getCreator());
+	}
+
+	@Override
+	public boolean removeEdge(DAGEdge edge) {
+		queue(edge, false);
+		return true;
+	}
+
+	@Override
+	public void setDAG(DirectedAcyclicGraph directedAcyclicGraph) {
+		super.setDAG(directedAcyclicGraph);
+		edgeModule_ = (OntologyEdgeModule) dag_
+				.getModule(OntologyEdgeModule.class);
+	}
+
+	@Override
+	public String toString() {
+		return "Forward Chaining (" + getNumRules() + " rules)";
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		init();
+	}
+
+	/**
+	 * Checks if a node contains no variables.
+	 */
+	private static boolean isGround(Node node) {
+		if (node instanceof VariableNode)
+			return false;
+		if (node instanceof OntologyFunction)
+			for (Node arg : ((OntologyFunction) node).getNodes())
+				if (!isGround(arg))
+					return false;
+		return true;
+	}
+
+	/**
+	 * Matches a pattern against nodes, binding its variables.
+	 * 
+	 * @return True if the nodes match.
+	 */
+	private static boolean match(Node[] pattern, Node[] nodes,
+			Map<String, Node> bindings) {
+		if (pattern.length != nodes.length)
+			return false;
+		for (int i = 0; i < pattern.length; i++)
+			if (!match(pattern[i], nodes[i], bindings))
+				return false;
+		return true;
+	}
+
+	private static boolean match(Node pattern, Node node,
+			Map<String, Node> bindings) {
+		if (pattern instanceof VariableNode) {
+			Node bound = bindings.get(pattern.getName());
+			if (bound == null) {
+				bindings.put(pattern.getName(), node);
+				return true;
+			}
+			return bound.equals(node);
+		}
+		if (pattern instanceof OntologyFunction && !isGround(pattern))
+			return node instanceof OntologyFunction
+					&& match(((OntologyFunction) pattern).getNodes(),
+							((OntologyFunction) node).getNodes(), bindings);
+		return pattern.equals(node);
+	}
+
+	/**
+	 * Applies variable bindings to a node.
+	 */
+	private static Node substitute(Node node, Map<String, Node> bindings) {
+		if (node instanceof VariableNode) {
+			Node bound = bindings.get(node.getName());
+			return (bound == null) ? node : bound;
+		}
+		if (node instanceof OntologyFunction && !isGround(node)) {
+			Node[] args = ((OntologyFunction) node).getNodes();
+			Node[] substituted = new Node[args.length];
+			for (int i = 0; i < args.length; i++)
+				substituted[i] = substitute(args[i], bindings);
+			return new OntologyFunction(substituted);
+		}
+		return node;
+	}
+
+	/**
+	 * Writes a literal as a string that can be parsed back into its nodes.
+	 */
+	private static String toString(Node[] nodes) {
+		StringBuilder buffer = new StringBuilder("(");
+		for (int i = 0; i < nodes.length; i++) {
+			if (i > 0)
+				buffer.append(' ');
+			if (nodes[i] instanceof VariableNode)
+				buffer.append(nodes[i].getName());
+			else if (nodes[i] instanceof OntologyFunction)
+				buffer.append(toString(((OntologyFunction) nodes[i])
+						.getNodes()));
+			else
+				buffer.append(nodes[i].getIdentifier(true));
+		}
+		return buffer.append(')').toString();
+	}
+
+	/**
+	 * Collects the variables of a node.
+	 */
+	private static void variables(Node node, Set<String> variables) {
+		if (node instanceof VariableNode)
+			variables.add(node.getName());
+		else if (node instanceof OntologyFunction)
+			for (Node arg : ((OntologyFunction) node).getNodes())
+				variables(arg, variables);
+	}
+
+	/**
+	 * The changes queued on a thread.
+	 */
+	private static class Agenda {
+		private ArrayDeque<Change> changes_ = new ArrayDeque<>();
+		/** If the changes are being processed. */
+		private boolean processing_;
+		/** If changes made by the retraction itself are being ignored. */
+		private boolean suppressed_;
+	}
+
+	/**
+	 * An added or removed edge.
+	 */
+	private static class Change {
+		private boolean added_;
+		private DAGEdge edge_;
+
+		public Change(DAGEdge edge, boolean added) {
+			edge_ = edge;
+			added_ = added;
+		}
+	}
+
+	/**
+	 * The compiled rules, indexed by body and head predicate.
+	 */
+	private static class Network {
+		/** The rules of each head predicate. */
+		private Map<Node, List<Rule>> heads_ = new HashMap<>();
+		/** The body literals of each predicate. */
+		private Map<Node, List<Pattern>> patterns_ = new HashMap<>();
+		private List<Rule> rules_;
+
+		public Network(List<Rule> rules) {
+			rules_ = rules;
+			for (Rule rule : rules) {
+				List<Rule> headRules = heads_.get(rule.head_[0]);
+				if (headRules == null) {
+					headRules = new ArrayList<>();
+					heads_.put(rule.head_[0], headRules);
+				}
+				headRules.add(rule);
+				for (int i = 0; i < rule.body_.length; i++) {
+					List<Pattern> patterns = patterns_.get(rule.body_[i][0]);
+					if (patterns == null) {
+						patterns = new ArrayList<>();
+						patterns_.put(rule.body_[i][0], patterns);
+					}
+					patterns.add(new Pattern(rule, i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * A body literal of a rule.
+	 */
+	private static class Pattern {
+		private int literal_;
+		private Rule rule_;
+
+		public Pattern(Rule rule, int literal) {
+			rule_ = rule;
+			literal_ = literal;
+		}
+	}
+
+	/**
+	 * A compiled rule.
+	 */
+	private static class Rule {
+		private Node[][] body_;
+		private Node[] head_;
+		private String[] strings_;
+
+		public Rule(String[] strings, Node[] head, Node[][] body) {
+			strings_ = strings;
+			head_ = head;
+			body_ = body;
+		}
+
+		@Override
+		public String toString() {
+			return strings_[0] + " <= "
+					+ Arrays.toString(Arrays.copyOfRange(strings_, 1,
+							strings_.length));
+		}
+	}
+}
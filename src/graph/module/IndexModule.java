@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.module;
+
+import graph.core.DirectedAcyclicGraph;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A module whose index only speeds up queries that can also be answered from
+ * the graph. When the index no longer matches the graph snapshot it can be
+ * disabled and rebuilt in the background. Any part of the index not
+ * serialised with the module is stored in the snapshot.
+ * 
+ * @author Sam Sarjant
+ */
+public interface IndexModule {
+	/**
+	 * Disables the index, so queries are answered from the graph until it is
+	 * rebuilt.
+	 */
+	void disableIndex();
+
+	/**
+	 * @return True if the index is built and used by queries.
+	 */
+	boolean isReady();
+
+	/**
+	 * Restores the part of the index stored in the snapshot.
+	 * 
+	 * @param in
+	 *            The index, as written by {@link #writeIndex(DataOutputStream)}.
+	 * @param dag
+	 *            The DAG to resolve nodes from.
+	 * @return True if the index was restored, false if it must be rebuilt.
+	 */
+	boolean readIndex(ByteBuffer in, DirectedAcyclicGraph dag);
+
+	/**
+	 * Writes the part of the index not serialised with the module.
+	 * 
+	 * @param out
+	 *            The snapshot section to write to.
+	 * @throws IOException
+	 *             Should something go wrong.
+	 */
+	void writeIndex(DataOutputStream out) throws IOException;
+}
@@ -0,0 +1,482 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.module;
+
+import graph.core.CommonConcepts;
+import graph.core.DAGEdge;
+import graph.core.DAGNode;
+import graph.core.DirectedAcyclicGraph;
+import graph.core.Node;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Materialises the isa closure: every collection of an instance (through
+ * genls) and every instance of a collection (through its specs). Asserted
+ * isa edges are indexed directly, and the genls closure is read from the
+ * {@link TransitiveIntervalSchemaModule}, so a closure is built without any
+ * sub-queries. Built closures are kept in a bounded least-recently-used
+ * store and only the closures an isa or genls change affects are discarded.
+ * 
+ * @author Sam Sarjant
+ */
+public class IsaClosureModule extends DAGModule<Collection<Node>> implements
+		IndexModule {
+	private static final long serialVersionUID = 4417342001815096313L;
+
+	/** The maximum number of nodes held across all materialised closures. */
+	public static final int DEFAULT_CAPACITY = 2000000;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private int capacity_ = DEFAULT_CAPACITY;
+
+	/** The asserted collections of each instance. */
+	private transient Map<Node, Set<Node>> directIsa_;
+
+	/** The asserted instances of each collection. */
+	private transient Map<Node, Set<Node>> directInstances_;
+
+	/** If the isa edges have been indexed. */
+	private transient boolean indexed_;
+
+	/** The materialised collections of each instance. */
+	private transient LinkedHashMap<Node, Set<Node>> isaClosure_;
+
+	/** The materialised instances of each collection. */
+	private transient LinkedHashMap<Node, Set<Node>> instanceClosure_;
+
+	private transient TransitiveIntervalSchemaModule schemaModule_;
+
+	/** The total size of the materialised closures. */
+	private transient int weight_;
+
+	public IsaClosureModule() {
+		directIsa_ = new HashMap<>();
+		directInstances_ = new HashMap<>();
+	}
+
+	/**
+	 * @return True if the node can be stored by ID.
+	 */
+	private static boolean hasID(Node node) {
+		return node instanceof DAGNode && ((DAGNode) node).getID() != -1;
+	}
+
+	/**
+	 * Reads a node written by {@link #writeNode(DataOutputStream, Node)}.
+	 * 
+	 * @return The node, or null if it no longer exists.
+	 */
+	private static Node readNode(ByteBuffer in, DirectedAcyclicGraph dag) {
+		int id = in.getInt();
+		if (id != -1)
+			return dag.getNodeByID(id);
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return dag.findOrCreateNode(new String(bytes, UTF8), null, false);
+	}
+
+	/**
+	 * Writes a node by its ID, or by its identifier if it has no ID (e.g. an
+	 * unreified function).
+	 */
+	private static void writeNode(DataOutputStream out, Node node)
+			throws IOException {
+		if (hasID(node)) {
+			out.writeInt(((DAGNode) node).getID());
+			return;
+		}
+		byte[] bytes = node.getIdentifier(true).getBytes(UTF8);
+		out.writeInt(-1);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Adds a value to an index set.
+	 */
+	private static void index(Map<Node, Set<Node>> index, Node key, Node value) {
+		Set<Node> values = index.get(key);
+		if (values == null) {
+			values = new LinkedHashSet<>(2);
+			index.put(key, values);
+		}
+		values.add(value);
+	}
+
+	/**
+	 * Removes a value from an index set.
+	 */
+	private static void unindex(Map<Node, Set<Node>> index, Node key,
+			Node value) {
+		Set<Node> values = index.get(key);
+		if (values != null && values.remove(value) && values.isEmpty())
+			index.remove(key);
+	}
+
+	/**
+	 * Gets the genls generalisations (upwards) or specialisations (downwards)
+	 * of a collection, including the collection itself.
+	 */
+	private Collection<Node> genlsClosure(Node collection, boolean upwards) {
+		Set<Node> closure = new LinkedHashSet<>();
+		closure.add(collection);
+		if (collection instanceof DAGNode) {
+			Iterator<DAGNode> iter = schemaModule_.iterate(
+					CommonConcepts.GENLS.getNode(dag_), upwards,
+					(DAGNode) collection);
+			if (iter != null)
+				while (iter.hasNext())
+					closure.add(iter.next());
+		}
+		return closure;
+	}
+
+	/**
+	 * Initialises the materialised closure stores.
+	 */
+	private void initClosures() {
+		if (isaClosure_ == null) {
+			isaClosure_ = new LinkedHashMap<>(1024, 0.75f, true);
+			instanceClosure_ = new LinkedHashMap<>(1024, 0.75f, true);
+			weight_ = 0;
+		}
+	}
+
+	/**
+	 * Discards a materialised closure.
+	 */
+	private void invalidate(LinkedHashMap<Node, Set<Node>> closures, Node key) {
+		Set<Node> removed = closures.remove(key);
+		if (removed != null)
+			weight_ -= removed.size() + 1;
+	}
+
+	/**
+	 * Stores a closure, evicting the least recently used closures if over
+	 * capacity.
+	 */
+	private void store(LinkedHashMap<Node, Set<Node>> closures, Node key,
+			Set<Node> closure) {
+		closures.put(key, closure);
+		weight_ += closure.size() + 1;
+		evict(isaClosure_);
+		evict(instanceClosure_);
+	}
+
+	private void evict(LinkedHashMap<Node, Set<Node>> closures) {
+		Iterator<Set<Node>> iter = closures.values().iterator();
+		while (weight_ > capacity_ && iter.hasNext()) {
+			weight_ -= iter.next().size() + 1;
+			iter.remove();
+		}
+	}
+
+	/**
+	 * Updates the index for an isa edge.
+	 */
+	private void isaChanged(Node instance, Node collection, boolean added) {
+		if (added) {
+			index(directIsa_, instance, collection);
+			index(directInstances_, collection, instance);
+		} else {
+			unindex(directIsa_, instance, collection);
+			unindex(directInstances_, collection, instance);
+		}
+		if (weight_ == 0 || !isReady())
+			return;
+
+		invalidate(isaClosure_, instance);
+		for (Node genl : genlsClosure(collection, true))
+			invalidate(instanceClosure_, genl);
+	}
+
+	/**
+	 * Discards the closures affected by a genls edge.
+	 */
+	private void genlsChanged(Node spec, Node genl) {
+		if (weight_ == 0 || !isReady())
+			return;
+
+		// Instances of the spec gain or lose the generalisations of the genl
+		Iterator<Set<Node>> iter = isaClosure_.values().iterator();
+		while (iter.hasNext()) {
+			Set<Node> closure = iter.next();
+			if (closure.contains(spec)) {
+				weight_ -= closure.size() + 1;
+				iter.remove();
+			}
+		}
+		// The generalisations of the genl gain or lose the spec's instances
+		for (Node n : genlsClosure(genl, true))
+			invalidate(instanceClosure_, n);
+	}
+
+	/**
+	 * Processes an edge change.
+	 */
+	private synchronized void edgeChanged(DAGEdge edge, boolean added) {
+		Node[] nodes = edge.getNodes();
+		if (nodes.length != 3)
+			return;
+		if (nodes[0].equals(CommonConcepts.ISA.getNode(dag_)))
+			isaChanged(nodes[1], nodes[2], added);
+		else if (nodes[0].equals(CommonConcepts.GENLS.getNode(dag_)))
+			genlsChanged(nodes[1], nodes[2]);
+	}
+
+	@Override
+	public boolean addEdge(DAGEdge edge) {
+		edgeChanged(edge, true);
+		return true;
+	}
+
+	@Override
+	public synchronized void clear() {
+		indexed_ = false;
+		directIsa_.clear();
+		directInstances_.clear();
+		disableCached();
+	}
+
+	@Override
+	public synchronized void disableCached() {
+		isaClosure_ = null;
+		instanceClosure_ = null;
+		initClosures();
+	}
+
+	@Override
+	public void disableIndex() {
+		clear();
+	}
+
+	/**
+	 * Takes a node and a boolean for upwards, and returns every collection of
+	 * the node (upwards) or every instance of the node (downwards).
+	 */
+	@Override
+	public Collection<Node> execute(Object... args)
+			throws IllegalArgumentException, ModuleException {
+		if (args.length != 2)
+			throw new IllegalArgumentException(
+					"Requires a node and a boolean for upwards.");
+		if ((boolean) args[1])
+			return getAllCollections((Node) args[0]);
+		return getAllInstances((Node) args[0]);
+	}
+
+	/**
+	 * Gets every collection an instance is an instance of, through the
+	 * asserted isa edges and the genls closure of their collections.
+	 * 
+	 * @param instance
+	 *            The instance.
+	 * @return An unmodifiable set of collections, ordered by asserted
+	 *         collection, or null if the genls schema is not ready.
+	 */
+	public synchronized Set<Node> getAllCollections(Node instance) {
+		if (!isReady())
+			return null;
+		initClosures();
+		Set<Node> closure = isaClosure_.get(instance);
+		if (closure == null) {
+			closure = new LinkedHashSet<>();
+			Set<Node> direct = directIsa_.get(instance);
+			if (direct != null)
+				for (Node collection : direct)
+					closure.addAll(genlsClosure(collection, true));
+			closure = Collections.unmodifiableSet(closure);
+			store(isaClosure_, instance, closure);
+		}
+		return closure;
+	}
+
+	/**
+	 * Gets every instance of a collection: the asserted instances of the
+	 * collection and of each of its specs.
+	 * 
+	 * @param collection
+	 *            The collection.
+	 * @return An unmodifiable set of instances, ordered by spec, or null if
+	 *         the genls schema is not ready.
+	 */
+	public synchronized Set<Node> getAllInstances(Node collection) {
+		if (!isReady())
+			return null;
+		initClosures();
+		Set<Node> closure = instanceClosure_.get(collection);
+		if (closure == null) {
+			closure = new LinkedHashSet<>();
+			for (Node spec : genlsClosure(collection, false)) {
+				Set<Node> direct = directInstances_.get(spec);
+				if (direct != null)
+					closure.addAll(direct);
+			}
+			closure = Collections.unmodifiableSet(closure);
+			store(instanceClosure_, collection, closure);
+		}
+		return closure;
+	}
+
+	/**
+	 * @return The total number of nodes held by the materialised closures.
+	 */
+	public synchronized int getMaterialisedSize() {
+		return weight_;
+	}
+
+	@Override
+	public boolean initialisationComplete(Collection<DAGNode> nodes,
+			Collection<DAGEdge> edges, boolean forceRebuild) {
+		if (forceRebuild || (directIsa_.isEmpty() && !edges.isEmpty())) {
+			clear();
+			System.out.print("Indexing isa edges... ");
+			defaultRebuild(nodes, false, edges, true);
+			System.out.println("Done!");
+			indexed_ = true;
+			return true;
+		}
+		// The genls schema may have been rebuilt
+		disableCached();
+		indexed_ = true;
+		return false;
+	}
+
+	/**
+	 * Checks if two nodes are related by isa, through genls.
+	 * 
+	 * @param instance
+	 *            The instance.
+	 * @param collection
+	 *            The collection.
+	 * @return True if the instance is an instance of the collection, or null
+	 *         if the genls schema is not ready.
+	 */
+	public Boolean isInstance(Node instance, Node collection) {
+		Set<Node> collections = getAllCollections(instance);
+		if (collections == null)
+			return null;
+		return collections.contains(collection);
+	}
+
+	/**
+	 * @return True if the isa edges are indexed and the genls schema the
+	 *         closures are built from is ready.
+	 */
+	@Override
+	public boolean isReady() {
+		if (!indexed_)
+			return false;
+		if (schemaModule_ == null)
+			schemaModule_ = (TransitiveIntervalSchemaModule) dag_
+					.getModule(TransitiveIntervalSchemaModule.class);
+		return schemaModule_ != null && schemaModule_.isReady();
+	}
+
+	@Override
+	public boolean removeEdge(DAGEdge edge) {
+		edgeChanged(edge, false);
+		return true;
+	}
+
+	/**
+	 * Sets the maximum number of nodes held by the materialised closures.
+	 * 
+	 * @param capacity
+	 *            The new capacity.
+	 */
+	public synchronized void setCapacity(int capacity) {
+		capacity_ = capacity;
+		initClosures();
+		evict(isaClosure_);
+		evict(instanceClosure_);
+	}
+
+	@Override
+	public synchronized boolean readIndex(ByteBuffer in,
+			DirectedAcyclicGraph dag) {
+		if (in.get() == 0)
+			return false;
+		Map<Node, Set<Node>> directIsa = new HashMap<>();
+		Map<Node, Set<Node>> directInstances = new HashMap<>();
+		int numInstances = in.getInt();
+		for (int i = 0; i < numInstances; i++) {
+			Node instance = readNode(in, dag);
+			int numCollections = in.getInt();
+			for (int j = 0; j < numCollections; j++) {
+				Node collection = readNode(in, dag);
+				if (instance == null || collection == null)
+					return false;
+				index(directIsa, instance, collection);
+				index(directInstances, collection, instance);
+			}
+		}
+		directIsa_ = directIsa;
+		directInstances_ = directInstances;
+		disableCached();
+		return true;
+	}
+
+	@Override
+	public void setDAG(DirectedAcyclicGraph directedAcyclicGraph) {
+		super.setDAG(directedAcyclicGraph);
+		synchronized (this) {
+			initClosures();
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		// The direct indexes are restored from the snapshot or rebuilt
+		in.defaultReadObject();
+		directIsa_ = new HashMap<>();
+		directInstances_ = new HashMap<>();
+	}
+
+	@Override
+	public String toString() {
+		return "Isa Closure Module: " + directIsa_.size() + " instances, "
+				+ weight_ + " materialised";
+	}
+
+	/**
+	 * Writes the direct isa index. Nodes are written by ID where they have
+	 * one, and otherwise by identifier.
+	 */
+	@Override
+	public synchronized void writeIndex(DataOutputStream out)
+			throws IOException {
+		out.writeBoolean(indexed_);
+		if (!indexed_)
+			return;
+		out.writeInt(directIsa_.size());
+		for (Map.Entry<Node, Set<Node>> entry : directIsa_.entrySet()) {
+			writeNode(out, entry.getKey());
+			out.writeInt(entry.getValue().size());
+			for (Node collection : entry.getValue())
+				writeNode(out, collection);
+		}
+	}
+}
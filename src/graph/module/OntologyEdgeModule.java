@@ -14,6 +14,7 @@ import graph.core.DAGNode;
 import graph.core.Edge;
 import graph.core.Node;
 import graph.core.OntologyFunction;
+import graph.inference.QueryTrace;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -188,6 +189,15 @@ public class OntologyEdgeModule extends RelatedEdgeModule {
 		return arg.toString();
 	}
 
+	@Override
+	public Collection<Edge> execute(Object... args)
+			throws IllegalArgumentException {
+		Collection<Edge> edges = super.execute(args);
+		// Attribute the edges to the traced query, if any
+		QueryTrace.recordEdges(edges);
+		return edges;
+	}
+
 	/**
 	 * Gets all edges but the one given by the key.
 	 * 
@@ -11,18 +11,32 @@
 package graph.module;
 
 import graph.core.CommonConcepts;
+import graph.core.CycDAG;
+import graph.core.DAGEdge;
 import graph.core.DAGNode;
+import graph.core.DAGObject;
 import graph.core.DirectedAcyclicGraph;
 import graph.core.Edge;
 import graph.core.Node;
 import graph.core.OntologyFunction;
 import graph.core.PrimitiveNode;
 import graph.core.StringNode;
+import graph.core.LatencyHistogram;
+import graph.core.Metrics;
+import graph.core.StripedCommitLock;
+import graph.inference.QueryCache;
+import graph.inference.QueryCache.QueryKey;
+import graph.inference.QueryExplanation;
 import graph.inference.QueryObject;
+import graph.inference.QueryResultIterator;
+import graph.inference.QueryTrace;
 import graph.inference.QueryWorker;
+import graph.inference.SlowQueryLog;
 import graph.inference.Substitution;
+import graph.inference.SubstitutionJoin;
 import graph.inference.module.AndWorker;
 import graph.inference.module.AssertedSentenceWorker;
+import graph.inference.module.ConjunctPlanner;
 import graph.inference.module.DifferentWorker;
 import graph.inference.module.DisjointWithWorker;
 import graph.inference.module.EqualsWorker;
@@ -35,16 +49,43 @@ import graph.inference.module.TransitiveWorker;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class QueryModule extends DAGModule<Collection<Substitution>> {
 	private static final long serialVersionUID = 1925714026500662430L;
 
 	private static final String DEFAULT_WORKER = "_DEFAULT_";
+	private static final String TRANSITIVE_WORKER = "_TRANSITIVE_";
 
+	/**
+	 * The number of unbound results a per-binding query is assumed to cost,
+	 * relative to filtering an unbound query.
+	 */
+	private static final int INSTANTIATION_COST = 4;
+
+	/**
+	 * The number of times a query is re-run when a concurrent commit changes
+	 * the edges it read, before it is run once more holding every commit
+	 * stripe.
+	 */
+	public static final int MAX_SNAPSHOT_RETRIES = 3;
+
+	private static final LatencyHistogram QUERY_TIMER = Metrics.getInstance()
+			.histogram("query.execute");
+
+	private transient QueryCache cache_;
+	private transient SlowQueryLog slowLog_;
 	private transient Map<String, QueryWorker> inferenceModules_;
+	private transient ConjunctPlanner planner_;
 	private transient Map<String, String> regexRedirects_;
+	private transient TransitiveIntervalSchemaModule transitiveModule_;
+	private transient AtomicLong snapshotRetries_;
+	/** The latency of each worker, including any sub-queries it makes. */
+	private transient Map<String, LatencyHistogram> workerTimers_;
 
 	// private BackwardChainer backwardChainer_;
 
@@ -60,6 +101,8 @@ public class QueryModule extends DAGModule<Collection<Substitution>> {
 				this));
 		inferenceModules_.put("genls", new TransitiveWorker(this));
 		inferenceModules_.put("genlPreds", new TransitiveWorker(this));
+		inferenceModules_.put("genlMt", new TransitiveWorker(this));
+		inferenceModules_.put(TRANSITIVE_WORKER, new TransitiveWorker(this));
 		inferenceModules_.put("equals", new EqualsWorker(this));
 		inferenceModules_.put("different", new DifferentWorker(this));
 		inferenceModules_.put("isa", new IsaWorker(this));
@@ -73,12 +116,79 @@ public class QueryModule extends DAGModule<Collection<Substitution>> {
 				new GenlPredTransitiveWorker(this));
 
 		regexRedirects_ = new HashMap<>();
+		cache_ = new QueryCache();
+		snapshotRetries_ = new AtomicLong();
+		slowLog_ = new SlowQueryLog();
+		workerTimers_ = new HashMap<>();
+		for (String moduleName : inferenceModules_.keySet())
+			workerTimers_.put(moduleName,
+					Metrics.getInstance().histogram("worker." + moduleName));
+	}
+
+	/**
+	 * Invalidates any cached queries that depend on an edge.
+	 * 
+	 * @param edge
+	 *            The edge being added or removed.
+	 */
+	private void invalidateCached(DAGEdge edge) {
+		if (cache_ != null)
+			cache_.invalidate(edge.getNodes()[0]);
+	}
+
+	@Override
+	public boolean addEdge(DAGEdge edge) {
+		// A CycDAG invalidates once every module has processed the edge
+		if (!(dag_ instanceof CycDAG))
+			invalidateCached(edge);
+		return true;
 	}
 
 	public void applyModule(String moduleName, QueryObject queryObj)
 			throws IllegalArgumentException {
 		initInferenceModules();
-		inferenceModules_.get(moduleName).queryInternal(queryObj);
+		cache_.recordDependency(queryObj.getNode(0));
+		QueryTrace trace = QueryTrace.current();
+		QueryTrace.Step step = (trace != null) ? trace.enter(
+				queryObj.getNodes(), moduleName) : null;
+		long start = System.nanoTime();
+		try {
+			inferenceModules_.get(moduleName).queryInternal(queryObj);
+		} finally {
+			workerTimers_.get(moduleName).recordSince(start);
+			if (step != null)
+				trace.exit(step, queryObj.getResults());
+		}
+	}
+
+	/**
+	 * Invalidates any cached queries that a committed change affects. Called
+	 * by the DAG once every module has processed the change, so a concurrent
+	 * query cannot cache results read from indexes that are yet to be
+	 * updated.
+	 * 
+	 * @param changed
+	 *            The added or removed edge, or the removed node.
+	 */
+	public void changeCommitted(DAGObject changed) {
+		if (changed instanceof DAGEdge)
+			invalidateCached((DAGEdge) changed);
+		else if (cache_ != null)
+			cache_.clear();
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		if (cache_ != null)
+			cache_.clear();
+	}
+
+	@Override
+	public void disableCached() {
+		super.disableCached();
+		if (cache_ != null)
+			cache_.clear();
 	}
 
 	/**
@@ -94,49 +204,354 @@ public class QueryModule extends DAGModule<Collection<Substitution>> {
 		return execute(new QueryObject(asNodes));
 	}
 
+	/**
+	 * Runs a query. Readers take no locks; instead, an outermost query
+	 * snapshots the DAG's commit counters and is re-run if a concurrent commit
+	 * changed edges of the predicates it consulted, so its results reflect a
+	 * single state of those edges.
+	 * 
+	 * @param queryObj
+	 *            The query to run.
+	 * @return The results of the query.
+	 */
 	public Collection<Substitution> execute(QueryObject queryObj) {
-		String module = DEFAULT_WORKER;
-		if (inferenceModules_.containsKey(queryObj.getNode(0).toString()))
-			module = queryObj.getNode(0).getName();
-		else {
-			// Try the regex's
-			for (String regex : regexRedirects_.keySet()) {
-				if (queryObj.getNode(0).toString().matches(regex)) {
-					module = regexRedirects_.get(regex);
-					break;
+		initInferenceModules();
+		boolean outermost = !cache_.isRecording();
+		long start = System.nanoTime();
+		try {
+			return executeSnapshot(queryObj);
+		} finally {
+			QUERY_TIMER.recordSince(start);
+			long elapsed = System.nanoTime() - start;
+			if (outermost && slowLog_.isSlow(elapsed)) {
+				QueryExplanation explanation = explain(queryObj, false);
+				Collection<Substitution> results = queryObj.getResults();
+				explanation.setRun(elapsed,
+						(results == null) ? 0 : results.size(), null);
+				slowLog_.record(explanation);
+			}
+		}
+	}
+
+	/**
+	 * Explains how a query would be routed through the workers: the chosen
+	 * worker, whether a regex redirect matched, whether the interval schema
+	 * is used and, for and queries, the estimated conjunct order before any
+	 * variables are bound.
+	 * 
+	 * @param queryObj
+	 *            The query to explain.
+	 * @return The explanation of the query.
+	 */
+	public QueryExplanation explain(QueryObject queryObj) {
+		initInferenceModules();
+		return explain(queryObj, true);
+	}
+
+	/**
+	 * Runs a query, bypassing the cache for the query itself, and explains
+	 * its route along with the time, results, recursion depth and edges
+	 * touched of every sub-query made to answer it.
+	 * 
+	 * @param queryObj
+	 *            The query to run.
+	 * @return The explanation of the query and its cost.
+	 */
+	public QueryExplanation explainAnalyze(QueryObject queryObj) {
+		initInferenceModules();
+		QueryExplanation explanation = explain(queryObj, true);
+		QueryTrace trace = QueryTrace.begin();
+		long start = System.nanoTime();
+		cache_.beginRecording();
+		try {
+			executeUncached(queryObj);
+		} finally {
+			cache_.endRecording();
+			trace.end();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (queryObj.getPlan() != null)
+			explanation.setPlan(queryObj.getPlan());
+		Collection<Substitution> results = queryObj.getResults();
+		explanation.setRun(elapsed, (results == null) ? 0 : results.size(),
+				trace);
+		return explanation;
+	}
+
+	/**
+	 * Runs a query through the cache, re-running it if a concurrent commit
+	 * changed the edges it read. After {@link #MAX_SNAPSHOT_RETRIES} retries
+	 * the query is run holding every commit stripe, so no commit can overlap
+	 * it.
+	 * 
+	 * @param queryObj
+	 *            The query to run.
+	 * @return The results of the query.
+	 */
+	private Collection<Substitution> executeSnapshot(QueryObject queryObj) {
+		initInferenceModules();
+		QueryKey key = cache_.createKey(queryObj);
+		if (key != null && cache_.retrieve(key, queryObj)) {
+			QueryTrace trace = QueryTrace.current();
+			if (trace != null)
+				trace.exit(trace.enter(queryObj.getNodes(), "cached"),
+						queryObj.getResults());
+			return queryObj.getResults();
+		}
+
+		// Only outermost queries outside of a commit check their snapshot
+		StripedCommitLock commitLock = null;
+		if (dag_ instanceof CycDAG && !cache_.isRecording()
+				&& queryObj.getPriorSubstitutions() == null) {
+			commitLock = ((CycDAG) dag_).getCommitLock();
+			if (commitLock.isCommitting())
+				commitLock = null;
+		}
+
+		for (int attempt = 0;; attempt++) {
+			long[] snapshot = (commitLock != null) ? commitLock.snapshot()
+					: null;
+			int[] stripes = null;
+			boolean locked = false;
+			if (snapshot != null && attempt >= MAX_SNAPSHOT_RETRIES) {
+				stripes = commitLock.allStripes();
+				locked = commitLock.lock(stripes);
+			}
+			long modCount = cache_.getModCount();
+			Set<Node> dependencies = null;
+			try {
+				cache_.beginRecording();
+				try {
+					executeUncached(queryObj);
+				} finally {
+					dependencies = cache_.endRecording();
+				}
+				if (snapshot == null || locked
+						|| commitLock.isUnchanged(snapshot, dependencies)) {
+					if (key != null)
+						cache_.store(key, queryObj, dependencies, modCount);
+					return queryObj.getResults();
 				}
+			} finally {
+				if (locked)
+					commitLock.unlock(stripes);
 			}
+			snapshotRetries_.incrementAndGet();
+			queryObj.clearResults();
 		}
+	}
+
+	/**
+	 * Explains how a query would be routed, without running it.
+	 * 
+	 * @param queryObj
+	 *            The query to explain.
+	 * @param estimatePlan
+	 *            If the conjunct order of an and query should be estimated.
+	 *            Otherwise the query's own plan (if it was run) is used.
+	 * @return The explanation of the query.
+	 */
+	private QueryExplanation explain(QueryObject queryObj, boolean estimatePlan) {
+		QueryExplanation explanation = new QueryExplanation(queryObj.getNodes());
+		String module = selectWorker(queryObj.getNode(0), explanation);
+		QueryWorker worker = inferenceModules_.get(module);
+		explanation.setWorker(module, worker.getClass());
+		if (!estimatePlan)
+			explanation.setPlan(queryObj.getPlan());
+		else if (worker instanceof AndWorker)
+			explanation.setPlan(((AndWorker) worker).plan(queryObj.getNodes()));
+		return explanation;
+	}
 
-		// Dealing with multiple variables
+	/**
+	 * Selects the worker that answers queries of a predicate.
+	 * 
+	 * @param predicate
+	 *            The predicate of the query.
+	 * @param explanation
+	 *            An optional explanation to record the routing decisions in.
+	 * @return The name of the worker in the inference modules.
+	 */
+	private String selectWorker(Node predicate, QueryExplanation explanation) {
+		if (inferenceModules_.containsKey(predicate.toString()))
+			return predicate.getName();
+
+		// Try the regex's
+		String module = DEFAULT_WORKER;
+		for (String regex : regexRedirects_.keySet()) {
+			if (predicate.toString().matches(regex)) {
+				module = regexRedirects_.get(regex);
+				if (explanation != null)
+					explanation.setRegex(regex);
+				break;
+			}
+		}
+
+		// Other transitive predicates
+		if (transitiveModule_ == null && dag_ != null)
+			transitiveModule_ = (TransitiveIntervalSchemaModule) dag_
+					.getModule(TransitiveIntervalSchemaModule.class);
+		if (module.equals(DEFAULT_WORKER) && transitiveModule_ != null
+				&& transitiveModule_.isReady(predicate)
+				&& !hasSpecPredicates(predicate)) {
+			module = TRANSITIVE_WORKER;
+			if (explanation != null)
+				explanation.setIntervalSchema(true);
+		}
+		return module;
+	}
+
+	/**
+	 * Checks if a predicate has any spec-predicates. Only the default worker
+	 * infers through them, so such predicates cannot use the interval schema
+	 * alone.
+	 * 
+	 * @param predicate
+	 *            The predicate.
+	 * @return True if any predicate is asserted as a genlPreds of it.
+	 */
+	private boolean hasSpecPredicates(Node predicate) {
+		DAGNode genlPreds = CommonConcepts.GENLPREDS.getNode(dag_);
+		cache_.recordDependency(genlPreds);
+		OntologyEdgeModule edgeModule = (OntologyEdgeModule) dag_
+				.getModule(OntologyEdgeModule.class);
+		return edgeModule == null
+				|| !edgeModule.execute(genlPreds, 1, predicate, 3).isEmpty();
+	}
+
+	/**
+	 * Runs a query through the inference workers, bypassing the cache.
+	 * 
+	 * @param queryObj
+	 *            The query to run.
+	 */
+	private void executeUncached(QueryObject queryObj) {
+		String module = selectWorker(queryObj.getNode(0), null);
+
+		// Dealing with variables bound by earlier queries
 		Collection<Substitution> priorSubs = queryObj.getPriorSubstitutions();
-		if (queryObj.getNumVariables() > 1 && priorSubs != null
+		List<String> boundVars = null;
+		if (queryObj.getNumVariables() > 0 && priorSubs != null
 				&& !priorSubs.isEmpty()) {
-			// Iterate through prior variable matches (in toComplete) to
-			// minimise query to 1 or fewer variables.
-			Node[] nodes = queryObj.getNodes();
-			for (Substitution variableMatch : priorSubs) {
-				QueryObject instantiated = queryObj.modifyNodes(variableMatch,
-						variableMatch.applySubstitution(nodes));
-				applyModule(module, instantiated);
-				List<Node[]> justification = instantiated.getJustification();
-				if (!justification.isEmpty()) {
-					for (Node[] step : justification) {
-						if (!queryObj.getJustification().contains(step))
-							queryObj.getJustification().add(step);
-					}
-				}
+			boundVars = new ArrayList<>();
+			Set<String> priorVars = SubstitutionJoin
+					.commonVariables(priorSubs);
+			for (int i = 0; i < queryObj.getNumVariables(); i++) {
+				String var = queryObj.getVariable(i).toString();
+				if (priorVars.contains(var))
+					boundVars.add(var);
 			}
+		}
+		if (boundVars == null || boundVars.isEmpty()) {
+			applyModule(module, queryObj);
+			return;
+		}
 
-			return queryObj.getResults();
-		} else {
+		Set<Substitution> bindings = SubstitutionJoin.projectAll(priorSubs,
+				boundVars);
+		if (!instantiateBindings(queryObj, bindings)) {
+			// Semi-join: run once, keeping only results matching a binding
+			queryObj.setCandidates(boundVars, bindings);
 			applyModule(module, queryObj);
-			return queryObj.getResults();
+			return;
+		}
+
+		// Run once per distinct binding, so lookups use the bound values.
+		// Each binding gets its own results, as proofs check for them.
+		Node[] nodes = queryObj.getNodes();
+		for (Substitution variableMatch : bindings) {
+			QueryObject instantiated = new QueryObject(variableMatch,
+					variableMatch.applySubstitution(nodes));
+			applyModule(module, instantiated);
+			Collection<Substitution> results = instantiated.getResults();
+			if (results == null)
+				continue;
+			List<Node[]> justification = instantiated.getJustification();
+			if (!justification.isEmpty()) {
+				for (Node[] step : justification) {
+					if (!queryObj.getJustification().contains(step))
+						queryObj.getJustification().add(step);
+				}
+			}
+			for (Substitution result : results)
+				if (queryObj.addResult(result))
+					return;
 		}
 	}
 
+	/**
+	 * Decides whether a query with bound variables should be run once per
+	 * binding or once unbound and filtered by the bindings. Per-binding
+	 * queries pay a fixed cost each, so they are only used when the unbound
+	 * query is estimated to produce several times as many results as there
+	 * are bindings. Queries without a constant argument cannot be run
+	 * unbound, so are always instantiated.
+	 * 
+	 * @param queryObj
+	 *            The query.
+	 * @param bindings
+	 *            The distinct bindings of the query's bound variables.
+	 * @return True if the query should be instantiated per binding.
+	 */
+	private boolean instantiateBindings(QueryObject queryObj,
+			Set<Substitution> bindings) {
+		if (bindings.size() == 1 || queryObj.getAtomic() == null)
+			return true;
+		if (planner_ == null && dag_ != null)
+			planner_ = new ConjunctPlanner(dag_,
+					(OntologyEdgeModule) dag_
+							.getModule(OntologyEdgeModule.class));
+		if (planner_ == null)
+			return true;
+		long unbound = planner_.estimate(queryObj.getNodes(), null);
+		return unbound / INSTANTIATION_COST >= bindings.size();
+	}
+
+
+	/**
+	 * Gets the query result cache, for configuration and statistics.
+	 * 
+	 * @return The query cache.
+	 */
+	public QueryCache getQueryCache() {
+		initInferenceModules();
+		return cache_;
+	}
+
+	/**
+	 * @return The number of times queries have been re-run due to concurrent
+	 *         commits.
+	 */
+	public long getSnapshotRetries() {
+		return snapshotRetries_.get();
+	}
+
+	/**
+	 * @return The log of queries over the slow query threshold.
+	 */
+	public SlowQueryLog getSlowQueryLog() {
+		initInferenceModules();
+		return slowLog_;
+	}
+
+	/**
+	 * Lazily iterates the results of a query. Results are found in
+	 * increasingly large batches, so stopping after the first few results
+	 * only costs a little more than finding them.
+	 * 
+	 * @param nodes
+	 *            The query nodes.
+	 * @return An iterator over the query's substitutions.
+	 */
+	public Iterator<Substitution> iterate(Node... nodes) {
+		return new QueryResultIterator(this, nodes);
+	}
+
 	public boolean prove(Node... nodes) {
-		return execute((Object[]) nodes) != null;
+		// Only the first result is needed
+		QueryObject queryObj = new QueryObject(nodes);
+		queryObj.setLimit(1);
+		return execute(queryObj) != null;
 	}
 
 	public boolean prove(QueryObject queryObject) {
@@ -179,6 +594,52 @@ public class QueryModule extends DAGModule<Collection<Substitution>> {
 		return results;
 	}
 
+	/**
+	 * Notes that the currently executing query consulted edges of a given
+	 * predicate, so its cached result is invalidated when such edges change.
+	 * Workers must call this for any predicate they look up directly (rather
+	 * than through {@link #execute(QueryObject)} or
+	 * {@link #applyModule(String, QueryObject)}).
+	 * 
+	 * @param predicate
+	 *            The predicate consulted.
+	 */
+	public void recordDependency(Node predicate) {
+		initInferenceModules();
+		cache_.recordDependency(predicate);
+	}
+
+	/**
+	 * Notes that the currently executing query depends upon something outside
+	 * of the DAG, so it should not be cached.
+	 */
+	public void recordUncacheable() {
+		initInferenceModules();
+		cache_.recordUncacheable();
+	}
+
+	@Override
+	public boolean removeEdge(DAGEdge edge) {
+		if (!(dag_ instanceof CycDAG))
+			invalidateCached(edge);
+		return true;
+	}
+
+	@Override
+	public boolean removeNode(DAGNode node) {
+		if (!(dag_ instanceof CycDAG) && cache_ != null)
+			cache_.clear();
+		return true;
+	}
+
+	public void setCacheCapacity(int capacity) {
+		getQueryCache().setCapacity(capacity);
+	}
+
+	public void setCacheEnabled(boolean enabled) {
+		getQueryCache().setEnabled(enabled);
+	}
+
 	@Override
 	public void setDAG(DirectedAcyclicGraph directedAcyclicGraph) {
 		super.setDAG(directedAcyclicGraph);
@@ -235,6 +696,11 @@ public class QueryModule extends DAGModule<Collection<Substitution>> {
 	public Collection<DAGNode> functionResults(OntologyFunction functionNode,
 			CommonConcepts resultQuery) {
 		Collection<DAGNode> results = new ArrayList<>();
+		CommonConcepts resultArgConcept = (resultQuery == CommonConcepts.RESULT_GENL) ? CommonConcepts.RESULT_GENL_ARG
+				: (resultQuery == CommonConcepts.RESULT_ISA) ? CommonConcepts.RESULT_ISA_ARG
+						: null;
+		recordDependency(resultQuery.getNode(dag_));
+		recordDependency(resultArgConcept.getNode(dag_));
 		RelatedEdgeModule relatedModule = (RelatedEdgeModule) dag_
 				.getModule(RelatedEdgeModule.class);
 		Collection<Edge> resultEdges = relatedModule.findEdgeByNodes(
@@ -243,9 +709,6 @@ public class QueryModule extends DAGModule<Collection<Substitution>> {
 			results.add((DAGNode) e.getNodes()[2]);
 
 		// resultArgs
-		CommonConcepts resultArgConcept = (resultQuery == CommonConcepts.RESULT_GENL) ? CommonConcepts.RESULT_GENL_ARG
-				: (resultQuery == CommonConcepts.RESULT_ISA) ? CommonConcepts.RESULT_ISA_ARG
-						: null;
 		resultEdges = relatedModule.findEdgeByNodes(
 				resultArgConcept.getNode(dag_), functionNode.getNodes()[0]);
 		for (Edge e : resultEdges) {
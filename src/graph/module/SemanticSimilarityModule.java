@@ -10,26 +10,96 @@
  ******************************************************************************/
 package graph.module;
 
+import graph.core.CommonConcepts;
+import graph.core.DAGEdge;
 import graph.core.DAGNode;
+import graph.core.DirectedAcyclicGraph;
 import graph.core.Node;
+import graph.core.OntologyFunction;
 import graph.inference.CommonQuery;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 import org.apache.commons.collections4.CollectionUtils;
 
+import util.collection.WeightedSet;
 
 /**
- * A module for calculating semantic similarity between two concepts.
+ * A module for calculating semantic similarity between two concepts: the
+ * Jaccard similarity of their ancestor (isa and genls closure) sets.
+ * 
+ * Each concept's ancestors are held as a signature: the sorted IDs of its
+ * ancestors, for exact Jaccard by merging, plus a MinHash sketch for
+ * approximate Jaccard. The sketches of all concepts are banded into a
+ * locality-sensitive hash index, which finds the concepts most similar to a
+ * concept without comparing against every other concept. Signatures are
+ * cached. When an isa or genls edge changes, only the signatures of its
+ * concept and the concept's descendants are discarded, and those concepts
+ * are marked stale in the index: they are compared on every top-k search
+ * until enough are stale that the index is rebuilt.
  * 
  * @author Sam Sarjant
  */
 public class SemanticSimilarityModule extends DAGModule<Float> {
 	private static final long serialVersionUID = 5576091924279360723L;
 
+	/** The number of MinHash functions in a sketch. */
+	public static final int SKETCH_SIZE = 64;
+
+	/** The number of sketch values per LSH band. */
+	private static final int BAND_ROWS = 4;
+
+	/** The fraction of indexed concepts that may be stale before a rebuild. */
+	private static final int MAX_STALE_FRACTION = 4;
+
+	/** The maximum number of signatures held. */
+	public static final int DEFAULT_CAPACITY = 200000;
+
+	private static final long[] HASH_SEEDS = new long[SKETCH_SIZE];
+
+	private static final int[] NO_ANCESTORS = new int[0];
+
+	static {
+		Random random = new Random(SKETCH_SIZE);
+		for (int i = 0; i < HASH_SEEDS.length; i++)
+			HASH_SEEDS[i] = random.nextLong();
+	}
+
+	private int capacity_ = DEFAULT_CAPACITY;
+
+	/** The LSH buckets of each band, holding indices into indexed_. */
+	private transient List<Map<Long, int[]>> bands_;
+
+	/** The nodes in the LSH index. */
+	private transient DAGNode[] indexed_;
+
+	/** The MinHash sketches of the indexed nodes. */
+	private transient int[][] indexedSketches_;
+
+	/** The sorted ancestor IDs of each node ID. */
+	private transient LinkedHashMap<Integer, int[]> signatures_;
+
+	/** If a signature was evicted since the index was built. */
+	private transient boolean signaturesEvicted_;
+
+	/** The concepts whose ancestors changed since the index was built. */
+	private transient Set<DAGNode> stale_;
+
+	public SemanticSimilarityModule() {
+		disableCached();
+	}
+
 	@Override
 	public Float execute(Object... args) throws IllegalArgumentException,
 			ModuleException {
@@ -40,6 +110,415 @@ public class SemanticSimilarityModule extends DAGModule<Float> {
 		return semanticSimilarity((Node) args[0], (Node) args[1]);
 	}
 
+	@Override
+	public boolean addEdge(DAGEdge edge) {
+		edgeChanged(edge);
+		return true;
+	}
+
+	/**
+	 * Builds the LSH index over every node with ancestors.
+	 */
+	@SuppressWarnings("unchecked")
+	private void buildIndex() {
+		signaturesEvicted_ = false;
+		stale_.clear();
+		List<DAGNode> nodes = new ArrayList<>();
+		List<int[]> sketches = new ArrayList<>();
+		for (DAGNode node : dag_.getNodes()) {
+			int[] signature = getSignature(node);
+			if (signature.length == 0)
+				continue;
+			nodes.add(node);
+			sketches.add(sketch(signature));
+		}
+		indexed_ = nodes.toArray(new DAGNode[nodes.size()]);
+		indexedSketches_ = sketches.toArray(new int[sketches.size()][]);
+
+		int numBands = SKETCH_SIZE / BAND_ROWS;
+		List<Map<Long, List<Integer>>> buckets = new ArrayList<>(numBands);
+		for (int b = 0; b < numBands; b++)
+			buckets.add(new HashMap<Long, List<Integer>>());
+		for (int i = 0; i < indexedSketches_.length; i++) {
+			for (int b = 0; b < numBands; b++) {
+				Long key = bandKey(indexedSketches_[i], b);
+				List<Integer> bucket = buckets.get(b).get(key);
+				if (bucket == null) {
+					bucket = new ArrayList<>(2);
+					buckets.get(b).put(key, bucket);
+				}
+				bucket.add(i);
+			}
+		}
+
+		// Compact the buckets
+		List<Map<Long, int[]>> bands = new ArrayList<>(numBands);
+		for (Map<Long, List<Integer>> band : buckets) {
+			Map<Long, int[]> compact = new HashMap<>(band.size() * 2);
+			for (Map.Entry<Long, List<Integer>> entry : band.entrySet()) {
+				int[] bucket = new int[entry.getValue().size()];
+				for (int i = 0; i < bucket.length; i++)
+					bucket[i] = entry.getValue().get(i);
+				compact.put(entry.getKey(), bucket);
+			}
+			bands.add(compact);
+		}
+		bands_ = bands;
+	}
+
+	@Override
+	public synchronized void clear() {
+		disableCached();
+	}
+
+	@Override
+	public synchronized void disableCached() {
+		final int capacity = capacity_;
+		signatures_ = new LinkedHashMap<Integer, int[]>(1024, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+				if (size() <= capacity)
+					return false;
+				signaturesEvicted_ = true;
+				return true;
+			}
+		};
+		bands_ = null;
+		indexed_ = null;
+		indexedSketches_ = null;
+		stale_ = new HashSet<>();
+	}
+
+	/**
+	 * Invalidates the signatures an ancestor relation affects.
+	 */
+	private void edgeChanged(DAGEdge edge) {
+		Node[] nodes = edge.getNodes();
+		if (nodes.length != 3 || dag_ == null
+				|| !(nodes[1] instanceof DAGNode))
+			return;
+		synchronized (this) {
+			if (signatures_.isEmpty() && bands_ == null)
+				return;
+		}
+		if (nodes[0].equals(CommonConcepts.ISA.getNode(dag_))
+				|| nodes[0].equals(CommonConcepts.GENLS.getNode(dag_)))
+			invalidate(Collections.singleton((DAGNode) nodes[1]));
+		else if (nodes[0].equals(CommonConcepts.RESULT_ISA.getNode(dag_))
+				|| nodes[0].equals(CommonConcepts.RESULT_GENL.getNode(dag_))) {
+			// The ancestors of every function of the functor changed
+			FunctionIndex functionIndex = (FunctionIndex) dag_
+					.getModule(FunctionIndex.class);
+			if (functionIndex == null) {
+				disableCached();
+				return;
+			}
+			Collection<OntologyFunction> functions = functionIndex
+					.getAllFunctions((DAGNode) nodes[1]);
+			if (functions != null && !functions.isEmpty())
+				invalidate(new ArrayList<DAGNode>(functions));
+		}
+	}
+
+	/**
+	 * Discards the signatures of concepts whose ancestors changed and of
+	 * their descendants, i.e. every concept with one of them in its
+	 * signature. The affected concepts are marked stale in the index, which
+	 * is only discarded if too many are stale, or if the staleness of an
+	 * evicted signature cannot be known.
+	 * 
+	 * @param changed
+	 *            The concepts whose own ancestors changed.
+	 */
+	private synchronized void invalidate(Collection<DAGNode> changed) {
+		int[] ids = new int[changed.size()];
+		int i = 0;
+		for (DAGNode node : changed)
+			ids[i++] = node.getID();
+		Set<Integer> affected = new HashSet<>();
+		for (int id : ids)
+			affected.add(id);
+		for (Map.Entry<Integer, int[]> entry : signatures_.entrySet()) {
+			for (int id : ids) {
+				if (Arrays.binarySearch(entry.getValue(), id) >= 0) {
+					affected.add(entry.getKey());
+					break;
+				}
+			}
+		}
+		for (Integer id : affected)
+			signatures_.remove(id);
+
+		if (bands_ == null)
+			return;
+		if (signaturesEvicted_) {
+			bands_ = null;
+			return;
+		}
+		for (Integer id : affected) {
+			DAGNode node = dag_.getNodeByID(id);
+			if (node != null)
+				stale_.add(node);
+		}
+		if (stale_.size() * MAX_STALE_FRACTION > indexed_.length)
+			bands_ = null;
+	}
+
+	/**
+	 * Estimates the semantic similarity between two concepts from their
+	 * MinHash sketches.
+	 * 
+	 * @param nodeA
+	 *            A concept.
+	 * @param nodeB
+	 *            A concept.
+	 * @return The estimated Jaccard similarity of the concepts' ancestors.
+	 */
+	public float estimateSimilarity(Node nodeA, Node nodeB) {
+		return sketchSimilarity(sketch(getSignature(nodeA)),
+				sketch(getSignature(nodeB)));
+	}
+
+	/**
+	 * Finds the concepts most similar to a concept. Candidates sharing an LSH
+	 * band with the concept, and every stale concept, are ranked by exact
+	 * similarity. If there are fewer than k candidates, all indexed concepts
+	 * are ranked by their sketch estimate first.
+	 * 
+	 * @param node
+	 *            The concept to find similar concepts for.
+	 * @param k
+	 *            The maximum number of concepts to return.
+	 * @return Up to k concepts (excluding the concept itself) weighted by
+	 *         their exact similarity to the concept.
+	 */
+	public WeightedSet<Node> getMostSimilar(Node node, int k) {
+		int[] signature = getSignature(node);
+		WeightedSet<Node> results = new WeightedSet<>(k);
+		if (signature.length == 0 || k <= 0)
+			return results;
+		int[] sketch = sketch(signature);
+		DAGNode[] indexed;
+		int[][] sketches;
+		List<Map<Long, int[]>> bands;
+		Set<DAGNode> stale;
+		synchronized (this) {
+			if (bands_ == null)
+				buildIndex();
+			indexed = indexed_;
+			sketches = indexedSketches_;
+			bands = bands_;
+			stale = new HashSet<>(stale_);
+		}
+
+		// Gather the candidates from the concept's buckets. Stale concepts
+		// may no longer be in the right buckets, so are always candidates.
+		HashSet<DAGNode> candidates = new HashSet<>(stale);
+		for (int b = 0; b < bands.size(); b++) {
+			int[] bucket = bands.get(b).get(bandKey(sketch, b));
+			if (bucket != null)
+				for (int i : bucket)
+					candidates.add(indexed[i]);
+		}
+		DAGNode[] ranked;
+		if (candidates.size() - 1 < k) {
+			// Too few: take the best sketch estimates of every concept
+			List<DAGNode> all = new ArrayList<>(indexed.length + stale.size());
+			List<Float> allEstimates = new ArrayList<>(all.size());
+			for (int i = 0; i < indexed.length; i++) {
+				if (!stale.contains(indexed[i])) {
+					all.add(indexed[i]);
+					allEstimates.add(sketchSimilarity(sketch, sketches[i]));
+				}
+			}
+			for (DAGNode staleNode : stale) {
+				all.add(staleNode);
+				allEstimates.add(sketchSimilarity(sketch,
+						sketch(getSignature(staleNode))));
+			}
+			Integer[] order = new Integer[all.size()];
+			final float[] estimates = new float[all.size()];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+				estimates[i] = allEstimates.get(i);
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer o1, Integer o2) {
+					return Float.compare(estimates[o2], estimates[o1]);
+				}
+			});
+			ranked = new DAGNode[Math.min(order.length,
+					Math.max(2 * k, k + 1))];
+			for (int i = 0; i < ranked.length; i++)
+				ranked[i] = all.get(order[i]);
+		} else
+			ranked = candidates.toArray(new DAGNode[candidates.size()]);
+
+		// Rank the candidates exactly
+		final float[] exact = new float[ranked.length];
+		Integer[] order = new Integer[ranked.length];
+		for (int i = 0; i < ranked.length; i++) {
+			order[i] = i;
+			int[] candidateSignature = getSignature(ranked[i]);
+			// Stale concepts may have lost their ancestors
+			boolean excluded = ranked[i].equals(node)
+					|| candidateSignature.length == 0;
+			exact[i] = (excluded) ? -1 : jaccard(signature,
+					candidateSignature);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Float.compare(exact[o2], exact[o1]);
+			}
+		});
+		for (int i = 0; i < order.length && results.size() < k; i++)
+			if (exact[order[i]] >= 0)
+				results.add(ranked[order[i]], exact[order[i]]);
+		return results;
+	}
+
+	/**
+	 * Gets the signature of a concept: the sorted IDs of its ancestors.
+	 * 
+	 * @param node
+	 *            The concept.
+	 * @return The sorted IDs of the concept's isa and genls ancestors.
+	 */
+	public int[] getSignature(Node node) {
+		if (!(node instanceof DAGNode))
+			return toSignature(getParents(node));
+		Integer id = ((DAGNode) node).getID();
+		synchronized (this) {
+			int[] signature = signatures_.get(id);
+			if (signature != null)
+				return signature;
+		}
+		int[] signature = toSignature(getParents(node));
+		synchronized (this) {
+			signatures_.put(id, signature);
+		}
+		return signature;
+	}
+
+	/**
+	 * Calculates the Jaccard similarity of two signatures by merging them.
+	 */
+	private static float jaccard(int[] sigA, int[] sigB) {
+		int intersect = 0;
+		int a = 0;
+		int b = 0;
+		while (a < sigA.length && b < sigB.length) {
+			if (sigA[a] < sigB[b])
+				a++;
+			else if (sigA[a] > sigB[b])
+				b++;
+			else {
+				intersect++;
+				a++;
+				b++;
+			}
+		}
+		int union = sigA.length + sigB.length - intersect;
+		return 1f * intersect / union;
+	}
+
+	@Override
+	public boolean removeEdge(DAGEdge edge) {
+		edgeChanged(edge);
+		return true;
+	}
+
+	/**
+	 * Sets the maximum number of signatures held, discarding the current
+	 * signatures.
+	 * 
+	 * @param capacity
+	 *            The maximum number of signatures.
+	 */
+	public synchronized void setCapacity(int capacity) {
+		capacity_ = capacity;
+		disableCached();
+	}
+
+	@Override
+	public void setDAG(DirectedAcyclicGraph directedAcyclicGraph) {
+		super.setDAG(directedAcyclicGraph);
+		disableCached();
+	}
+
+	/**
+	 * Computes the MinHash sketch of a signature.
+	 */
+	private static int[] sketch(int[] signature) {
+		int[] sketch = new int[SKETCH_SIZE];
+		Arrays.fill(sketch, Integer.MAX_VALUE);
+		for (int id : signature) {
+			for (int i = 0; i < SKETCH_SIZE; i++) {
+				int hash = mix(id ^ HASH_SEEDS[i]);
+				if (hash < sketch[i])
+					sketch[i] = hash;
+			}
+		}
+		return sketch;
+	}
+
+	/**
+	 * The fraction of equal values between two sketches.
+	 */
+	private static float sketchSimilarity(int[] sketchA, int[] sketchB) {
+		int equal = 0;
+		for (int i = 0; i < SKETCH_SIZE; i++)
+			if (sketchA[i] == sketchB[i])
+				equal++;
+		return 1f * equal / SKETCH_SIZE;
+	}
+
+	/**
+	 * Converts a collection of ancestors into a signature.
+	 */
+	private static int[] toSignature(Collection<Node> parents) {
+		if (parents.isEmpty())
+			return NO_ANCESTORS;
+		int[] signature = new int[parents.size()];
+		int size = 0;
+		for (Node parent : parents)
+			if (parent instanceof DAGNode)
+				signature[size++] = ((DAGNode) parent).getID();
+		signature = Arrays.copyOf(signature, size);
+		Arrays.sort(signature);
+		return signature;
+	}
+
+	/**
+	 * Hashes the values of one band of a sketch.
+	 */
+	private static Long bandKey(int[] sketch, int band) {
+		long key = band;
+		for (int i = band * BAND_ROWS; i < (band + 1) * BAND_ROWS; i++)
+			key = key * 31 + sketch[i];
+		return mixLong(key);
+	}
+
+	/**
+	 * A 64-bit finaliser, truncated to an int hash.
+	 */
+	private static int mix(long value) {
+		return (int) (mixLong(value) >>> 32);
+	}
+
+	private static long mixLong(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+
 	/**
 	 * Calculates the semantic similarity between two concepts.
 	 * 
@@ -50,16 +529,11 @@ public class SemanticSimilarityModule extends DAGModule<Float> {
 	 * @return The similarity between the two concepts.
 	 */
 	public float semanticSimilarity(Node nodeA, Node nodeB) {
-		Collection<Node> parents1 = getParents(nodeA);
-		return semanticSimilarity(parents1, nodeB);
+		return jaccard(getSignature(nodeA), getSignature(nodeB));
 	}
 
 	public float semanticSimilarity(Collection<Node> parents1, Node nodeB) {
-		Collection<Node> parents2 = getParents(nodeB);
-		Collection<Node> intersect = CollectionUtils.intersection(parents1,
-				parents2);
-		Collection<Node> union = CollectionUtils.union(parents1, parents2);
-		return 1f * intersect.size() / union.size();
+		return jaccard(toSignature(parents1), getSignature(nodeB));
 	}
 
 	public Collection<Node> getParents(Node node) {
@@ -70,11 +544,14 @@ public class SemanticSimilarityModule extends DAGModule<Float> {
 	}
 
 	public float taxonomicSimilarity(Node nodeA, Node nodeB) {
-		if(((DAGNode) nodeA).getProperty("depth")==null||((DAGNode) nodeB).getProperty("depth")==null)
+		DepthModule depthModule = (DepthModule) dag_
+				.getModule(DepthModule.class);
+		if (depthModule == null)
+			return 1;
+		int depthA = depthModule.getDepth((DAGNode) nodeA);
+		int depthB = depthModule.getDepth((DAGNode) nodeB);
+		if (depthA == -1 || depthB == -1)
 			return 1;
-		
-		int depthA=Integer.parseInt(((DAGNode) nodeA).getProperty("depth"));
-		int depthB=Integer.parseInt(((DAGNode) nodeB).getProperty("depth"));	
 		
 		Collection<Node> parents1 = getParents(nodeA);
 		Collection<Node> parents2 = getParents(nodeB);
@@ -86,8 +563,8 @@ public class SemanticSimilarityModule extends DAGModule<Float> {
 		//Find lowest intersection
 		for (int i = 0; i < intersect.size(); i++) {
 			DAGNode temp = (DAGNode) intersect.get(i);
-			if (temp.getProperty("depth") != null) {
-				int d = Integer.parseInt(temp.getProperty("depth"));
+			int d = depthModule.getDepth(temp);
+			if (d != -1) {
 				if (d > depth) {
 					depth = d;
 					lowest = temp;
@@ -13,22 +13,203 @@ package graph.module;
 import graph.core.CommonConcepts;
 import graph.core.DAGEdge;
 import graph.core.DAGNode;
+import graph.core.DirectedAcyclicGraph;
 import graph.core.Node;
 import graph.core.OntologyFunction;
+import graph.inference.CommonQuery;
 import graph.inference.QueryObject;
 import graph.inference.Substitution;
 import graph.inference.VariableNode;
 
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.collections4.CollectionUtils;
 
 import util.collection.MultiMap;
 
-public class SiblingDisjointModule extends DAGModule<Collection<DAGNode>> {
+/**
+ * Indexes sibling disjointness: the sibling disjoint collection types each
+ * collection is an instance of, the member collections of each type and the
+ * asserted siblingDisjointExceptions. The index is built once with a query
+ * and then maintained incrementally as isa, genls and exception edges change,
+ * recomputing only the collections whose types may have changed.
+ * 
+ * @author Sam Sarjant
+ */
+public class SiblingDisjointModule extends DAGModule<Collection<DAGNode>>
+		implements IndexModule {
 	private static final long serialVersionUID = 1L;
+
+	/** The asserted exceptions of each collection, in both directions. */
+	private Map<DAGNode, Set<DAGNode>> exceptions_;
+
+	/** The member collections of each sibling disjoint collection type. */
+	private MultiMap<DAGNode, DAGNode> siblingDisjointMembers_;
+
 	private MultiMap<DAGNode, DAGNode> siblingDisjointParents_;
 
+	/** The sibling disjoint collection types. */
+	private Set<DAGNode> siblingTypes_;
+
+	private transient QueryModule querier_;
+
+	/**
+	 * Adds or removes an exception edge from the index.
+	 */
+	private void exceptionChanged(Node[] nodes, boolean added) {
+		if (!(nodes[1] instanceof DAGNode) || !(nodes[2] instanceof DAGNode))
+			return;
+		for (int i = 1; i <= 2; i++) {
+			DAGNode node = (DAGNode) nodes[i];
+			DAGNode other = (DAGNode) nodes[3 - i];
+			Set<DAGNode> exceptions = exceptions_.get(node);
+			if (added) {
+				if (exceptions == null) {
+					exceptions = Collections
+							.newSetFromMap(new ConcurrentHashMap<DAGNode, Boolean>());
+					exceptions_.put(node, exceptions);
+				}
+				exceptions.add(other);
+			} else if (exceptions != null) {
+				exceptions.remove(other);
+				if (exceptions.isEmpty())
+					exceptions_.remove(node);
+			}
+		}
+	}
+
+	/**
+	 * Gets the querier, initialising it if necessary.
+	 */
+	private QueryModule getQuerier() {
+		if (querier_ == null)
+			querier_ = (QueryModule) dag_.getModule(QueryModule.class);
+		return querier_;
+	}
+
+	/**
+	 * Recomputes the sibling disjoint types of a collection and, if it is (or
+	 * was) a sibling disjoint collection type, those of its members.
+	 * 
+	 * @param node
+	 *            The node whose collections may have changed.
+	 * @param visited
+	 *            The nodes already recomputed.
+	 */
+	private void recompute(DAGNode node, Set<DAGNode> visited) {
+		if (!visited.add(node))
+			return;
+		DAGNode sibType = CommonConcepts.SIBLING_DISJOINT_COLLECTION_TYPE
+				.getNode(dag_);
+		Collection<Node> collections = CommonQuery.ALLISA.runQuery(dag_, node);
+		boolean wasType = siblingTypes_.contains(node);
+		boolean isType = collections.contains(sibType);
+		if (isType)
+			siblingTypes_.add(node);
+		else
+			siblingTypes_.remove(node);
+
+		// The types of the node
+		Set<DAGNode> types = new HashSet<>();
+		for (Node collection : collections)
+			if (siblingTypes_.contains(collection))
+				types.add((DAGNode) collection);
+		setParents(node, types);
+
+		// The members of the node, if it is or was a type
+		if (isType || wasType) {
+			Collection<DAGNode> members = new ArrayList<>(
+					getSiblingDisjointMembers(node));
+			for (Node instance : CommonQuery.INSTANCES.runQuery(dag_, node))
+				if (instance instanceof DAGNode
+						&& !members.contains(instance))
+					members.add((DAGNode) instance);
+			for (DAGNode member : members)
+				recompute(member, visited);
+		}
+	}
+
+	/**
+	 * Sets the sibling disjoint types of a collection, updating the members
+	 * of the types.
+	 */
+	private void setParents(DAGNode collection, Set<DAGNode> types) {
+		Collection<DAGNode> oldTypes = new ArrayList<>(
+				getSiblingDisjointParents(collection));
+		for (DAGNode oldType : oldTypes) {
+			if (!types.contains(oldType)) {
+				siblingDisjointParents_.get(collection).remove(oldType);
+				Collection<DAGNode> members = siblingDisjointMembers_
+						.get(oldType);
+				if (members != null) {
+					members.remove(collection);
+					if (members.isEmpty())
+						siblingDisjointMembers_.remove(oldType);
+				}
+			}
+		}
+		if (siblingDisjointParents_.containsKey(collection)
+				&& siblingDisjointParents_.get(collection).isEmpty())
+			siblingDisjointParents_.remove(collection);
+		for (DAGNode type : types) {
+			if (!oldTypes.contains(type)) {
+				siblingDisjointParents_.put(collection, type);
+				siblingDisjointMembers_.put(type, collection);
+			}
+		}
+	}
+
+	/**
+	 * Updates the index for an isa or genls edge change, if the index is
+	 * built.
+	 */
+	private synchronized void edgeChanged(DAGEdge edge, boolean added) {
+		if (!isReady())
+			return;
+		Node[] nodes = edge.getNodes();
+		if (nodes.length != 3 || !(nodes[1] instanceof DAGNode))
+			return;
+		if (nodes[0].equals(CommonConcepts.SIBLING_DISJOINT_EXCEPTION
+				.getNode(dag_)))
+			exceptionChanged(nodes, added);
+		else if (nodes[0].equals(CommonConcepts.ISA.getNode(dag_)))
+			recompute((DAGNode) nodes[1], new HashSet<DAGNode>());
+		else if (nodes[0].equals(CommonConcepts.GENLS.getNode(dag_))) {
+			// The instances of the spec gain or lose collections
+			Set<DAGNode> visited = new HashSet<>();
+			for (Node instance : CommonQuery.INSTANCES.runQuery(dag_,
+					nodes[1]))
+				if (instance instanceof DAGNode)
+					recompute((DAGNode) instance, visited);
+		}
+	}
+
+	@Override
+	public boolean addEdge(DAGEdge edge) {
+		edgeChanged(edge, true);
+		return true;
+	}
+
+	@Override
+	public synchronized void clear() {
+		siblingDisjointParents_ = null;
+		siblingDisjointMembers_ = null;
+		siblingTypes_ = null;
+		exceptions_ = null;
+	}
+
 	@Override
 	public Collection<DAGNode> execute(Object... args)
 			throws IllegalArgumentException, ModuleException {
@@ -36,6 +217,13 @@ public class SiblingDisjointModule extends DAGModule<Collection<DAGNode>> {
 		return getSiblingDisjointParents(node);
 	}
 
+	/**
+	 * Gets the sibling disjoint collection types a collection is a member of.
+	 * 
+	 * @param node
+	 *            The collection.
+	 * @return The sibling disjoint collection types of the collection.
+	 */
 	@SuppressWarnings("unchecked")
 	public Collection<DAGNode> getSiblingDisjointParents(DAGNode node) {
 		if (siblingDisjointParents_.containsKey(node))
@@ -43,12 +231,26 @@ public class SiblingDisjointModule extends DAGModule<Collection<DAGNode>> {
 		return CollectionUtils.EMPTY_COLLECTION;
 	}
 
+	/**
+	 * Gets the member collections of a sibling disjoint collection type.
+	 * 
+	 * @param type
+	 *            The sibling disjoint collection type.
+	 * @return The collections that are instances of the type.
+	 */
+	@SuppressWarnings("unchecked")
+	public Collection<DAGNode> getSiblingDisjointMembers(DAGNode type) {
+		if (siblingDisjointMembers_.containsKey(type))
+			return siblingDisjointMembers_.get(type);
+		return CollectionUtils.EMPTY_COLLECTION;
+	}
+
 	@Override
 	public boolean initialisationComplete(Collection<DAGNode> nodes,
 			Collection<DAGEdge> edges, boolean forceRebuild) {
 		if (isReady() && !forceRebuild)
 			return false;
-		QueryModule querier = (QueryModule) dag_.getModule(QueryModule.class);
+		QueryModule querier = getQuerier();
 		System.out
 				.print("Building sibling disjoint collection shortcut map... ");
 
@@ -63,20 +265,223 @@ public class SiblingDisjointModule extends DAGModule<Collection<DAGNode>> {
 						CommonConcepts.ISA.getNode(dag_), instColl, sibInst));
 		Collection<Substitution> siblingCollections = querier
 				.execute(siblingDisjCollectionTypes);
-		siblingDisjointParents_ = MultiMap.createConcurrentHashSetMultiMap();
-		for (Substitution sub : siblingCollections) {
-			Node sibColl = sub.getSubstitution(sibInst);
-			Node collection = sub.getSubstitution(instColl);
-			if (sibColl instanceof DAGNode && collection instanceof DAGNode)
-				siblingDisjointParents_.put((DAGNode) collection,
-						(DAGNode) sibColl);
+		synchronized (this) {
+			siblingDisjointParents_ = MultiMap
+					.createConcurrentHashSetMultiMap();
+			siblingDisjointMembers_ = MultiMap
+					.createConcurrentHashSetMultiMap();
+			siblingTypes_ = Collections
+					.newSetFromMap(new ConcurrentHashMap<DAGNode, Boolean>());
+			for (Node type : querier.executeAndParseVar(new QueryObject(
+					CommonConcepts.ISA.getNode(dag_), sibInst,
+					CommonConcepts.SIBLING_DISJOINT_COLLECTION_TYPE
+							.getNode(dag_)), sibInst.toString()))
+				if (type instanceof DAGNode)
+					siblingTypes_.add((DAGNode) type);
+			for (Substitution sub : siblingCollections) {
+				Node sibColl = sub.getSubstitution(sibInst);
+				Node collection = sub.getSubstitution(instColl);
+				if (sibColl instanceof DAGNode && collection instanceof DAGNode) {
+					siblingDisjointParents_.put((DAGNode) collection,
+							(DAGNode) sibColl);
+					siblingDisjointMembers_.put((DAGNode) sibColl,
+							(DAGNode) collection);
+				}
+			}
+
+			// Index the exceptions
+			exceptions_ = new ConcurrentHashMap<>();
+			DAGNode exception = CommonConcepts.SIBLING_DISJOINT_EXCEPTION
+					.getNode(dag_);
+			for (DAGEdge edge : edges) {
+				Node[] edgeNodes = edge.getNodes();
+				if (edgeNodes.length == 3 && edgeNodes[0].equals(exception))
+					exceptionChanged(edgeNodes, true);
+			}
 		}
 		System.out.println("Done!");
 
 		return super.initialisationComplete(nodes, edges, forceRebuild);
 	}
 
+	/**
+	 * Checks if two collections are a sibling disjoint exception.
+	 * 
+	 * @param nodeA
+	 *            A collection.
+	 * @param nodeB
+	 *            Another collection.
+	 * @return True if siblingDisjointExceptions is asserted between them, in
+	 *         either order.
+	 */
+	public boolean isException(Node nodeA, Node nodeB) {
+		Set<DAGNode> exceptions = exceptions_.get(nodeA);
+		return exceptions != null && exceptions.contains(nodeB);
+	}
+
+	/**
+	 * Checks if a collection is excepted from any of a set of collections. An
+	 * exception between two collections also holds between their specs.
+	 */
+	private boolean isExcepted(Node node, Collection<Node> collections) {
+		Set<DAGNode> exceptions = exceptions_.get(node);
+		if (exceptions == null)
+			return false;
+		for (DAGNode exception : exceptions)
+			if (collections.contains(exception))
+				return true;
+		return false;
+	}
+
+	@Override
+	public void disableIndex() {
+		clear();
+	}
+
+	@Override
 	public boolean isReady() {
 		return siblingDisjointParents_ != null;
 	}
+
+	@Override
+	public boolean readIndex(ByteBuffer in, DirectedAcyclicGraph dag) {
+		// The maps are serialised with the module
+		return true;
+	}
+
+	@Override
+	public void writeIndex(DataOutputStream out) {
+		// The maps are serialised with the module
+	}
+
+	/**
+	 * Lazily iterates the collections that are sibling disjoint with a
+	 * collection: the other members of the sibling disjoint collection types
+	 * of the collection and its generalisations. Only members that
+	 * {@link #findSiblingDisjoint(DAGNode, DAGNode)} also finds sibling
+	 * disjoint are returned, so members sharing the typed generalisation with
+	 * the collection, or excepted from it, are skipped.
+	 * 
+	 * @param collection
+	 *            The collection.
+	 * @return An iterator over the distinct sibling disjoint collections.
+	 */
+	public Iterator<DAGNode> iterateSiblingDisjoint(final DAGNode collection) {
+		final Collection<Node> genls = new HashSet<>(
+				CommonQuery.ALLGENLS.runQuery(dag_, collection));
+		genls.add(collection);
+		final Iterator<Node> genlIter = genls.iterator();
+		return new Iterator<DAGNode>() {
+			private Iterator<DAGNode> memberIter_ = null;
+			private DAGNode next_ = null;
+			private Iterator<DAGNode> typeIter_ = null;
+			private Set<DAGNode> seen_ = new HashSet<>();
+
+			private DAGNode advance() {
+				while (true) {
+					if (memberIter_ != null && memberIter_.hasNext()) {
+						DAGNode member = memberIter_.next();
+						if (seen_.add(member) && !genls.contains(member)
+								&& findSiblingDisjoint(collection, member) != null)
+							return member;
+					} else if (typeIter_ != null && typeIter_.hasNext())
+						memberIter_ = new ArrayList<>(
+								getSiblingDisjointMembers(typeIter_.next()))
+								.iterator();
+					else if (genlIter.hasNext()) {
+						Node genl = genlIter.next();
+						if (genl instanceof DAGNode)
+							typeIter_ = new ArrayList<>(
+									getSiblingDisjointParents((DAGNode) genl))
+									.iterator();
+					} else
+						return null;
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				if (next_ == null)
+					next_ = advance();
+				return next_ != null;
+			}
+
+			@Override
+			public DAGNode next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				DAGNode result = next_;
+				next_ = null;
+				return result;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Finds the pair of generalisations and the sibling disjoint collection
+	 * type that make two collections sibling disjoint.
+	 * 
+	 * @param nodeA
+	 *            A collection.
+	 * @param nodeB
+	 *            Another collection.
+	 * @return The generalisation of nodeA, the generalisation of nodeB and
+	 *         their shared type, or null if the collections are not sibling
+	 *         disjoint or an exception holds between their generalisations.
+	 */
+	public DAGNode[] findSiblingDisjoint(DAGNode nodeA, DAGNode nodeB) {
+		Collection<Node> parentsA = new LinkedHashSet<>(
+				CommonQuery.ALLGENLS.runQuery(dag_, nodeA));
+		parentsA.add(nodeA);
+		Collection<Node> parentsB = new LinkedHashSet<>(
+				CommonQuery.ALLGENLS.runQuery(dag_, nodeB));
+		parentsB.add(nodeB);
+		for (Node parentA : parentsA)
+			if (isExcepted(parentA, parentsB))
+				return null;
+		Collection<Node> common = new HashSet<>(parentsA);
+		common.retainAll(parentsB);
+		parentsA.removeAll(common);
+		parentsB.removeAll(common);
+
+		// Note the unique parents of A under each type
+		Map<DAGNode, Collection<DAGNode>> typeParents = new HashMap<>();
+		for (Node parentA : parentsA) {
+			if (!(parentA instanceof DAGNode))
+				continue;
+			for (DAGNode type : getSiblingDisjointParents((DAGNode) parentA)) {
+				Collection<DAGNode> typed = typeParents.get(type);
+				if (typed == null) {
+					typed = new ArrayList<>(1);
+					typeParents.put(type, typed);
+				}
+				typed.add((DAGNode) parentA);
+			}
+		}
+		if (typeParents.isEmpty())
+			return null;
+
+		for (Node parentB : parentsB) {
+			if (!(parentB instanceof DAGNode))
+				continue;
+			for (DAGNode type : getSiblingDisjointParents((DAGNode) parentB)) {
+				Collection<DAGNode> typed = typeParents.get(type);
+				if (typed != null)
+					return new DAGNode[] { typed.iterator().next(),
+							(DAGNode) parentB, type };
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean removeEdge(DAGEdge edge) {
+		edgeChanged(edge, false);
+		return true;
+	}
 }
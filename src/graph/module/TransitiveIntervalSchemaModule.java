@@ -17,13 +17,21 @@ import graph.core.DirectedAcyclicGraph;
 import graph.core.Edge;
 import graph.core.Node;
 import graph.core.OntologyFunction;
+import graph.inference.QueryObject;
+import graph.inference.VariableNode;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -31,128 +39,105 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.commons.collections4.Predicate;
+import org.apache.commons.collections4.iterators.FilterIterator;
+
 public class TransitiveIntervalSchemaModule extends
-		DAGModule<Collection<DAGNode>> {
+		DAGModule<Collection<DAGNode>> implements IndexModule {
 	private static final float INTERVAL_SPLIT = 0.5f;
 	private static final long serialVersionUID = 6562719667555853873L;
 	private static final String TEMP_MARK = "tmp";
-	public static final String ANCESTOR_ID = "ancsID";
 	public static final int INITIAL_INTERVAL = 16;
 	public static final String MARK = "topMark";
 	public static final String PERMANENT_MARK = "prm";
-	public static final String PREDECESSOR_ID = "predID";
-	private IntervalSchema ancestorMap_;
-	private int interval_ = INITIAL_INTERVAL;
-	private IntervalSchema predecessorMap_;
+	private boolean incrementalSupported_ = true;
 	private transient QueryModule queryModule_;
 	private transient RelatedEdgeModule relEdgeModule_;
-	private DAGNode virtualRoot_;
-	protected DAGNode transitiveNode_;
-	private boolean incrementalSupported_ = false;
-	private boolean requiresRebuild_ = true;
+	/** The interval schemas, indexed by transitive predicate. */
+	private Map<DAGNode, PredicateSchema> schemas_;
+	/**
+	 * If the node ID index is held off-heap (in direct memory). Takes effect
+	 * on the next rebuild.
+	 */
+	public boolean offHeapIntervals_ = false;
 
 	/**
-	 * Builds a spanning tree for a given topologically sorted collection of
-	 * nodes.
+	 * Gets the predicates that always have a (reflexive) schema.
 	 * 
-	 * @param topologicalList
-	 *            The topologically sorted list of nodes.
-	 * @param predecessorTree
-	 *            If this tree is building a predecessor tree (alt. ancestor
-	 *            tree).
-	 * @return The spanning tree for the nodes.
+	 * @return The core transitive predicates.
 	 */
-	private Map<DAGNode, TreeNode> buildSpanningTree(
-			List<DAGNode> topologicalList, boolean predecessorTree) {
-		TreeNode virtualRootNode = new TreeNode();
-		Map<DAGNode, TreeNode> spanningTree = new HashMap<>();
-		spanningTree.put(virtualRoot_, virtualRootNode);
-
-		// Iterate through the list (backwards if ancestors)
-		ListIterator<DAGNode> iter = null;
-		if (predecessorTree)
-			iter = topologicalList.listIterator();
-		else
-			iter = topologicalList.listIterator(topologicalList.size());
-		while ((predecessorTree && iter.hasNext())
-				|| (!predecessorTree && iter.hasPrevious())) {
-			DAGNode n = (predecessorTree) ? iter.next() : iter.previous();
-
-			dag_.removeProperty(n, MARK);
-			// For every incoming edge
-
-			Collection<DAGNode> transitiveNodes = getTransitiveNodes(n,
-					!predecessorTree);
-
-			DAGNode currentNode = null;
-			int currentSize = -1;
-			for (DAGNode edgeNode : transitiveNodes) {
-				if (edgeNode.equals(n))
-					continue;
-				if (!spanningTree.containsKey(edgeNode))
-					continue;
-				if (currentNode == null) {
-					currentNode = edgeNode;
-					currentSize = spanningTree.get(currentNode).trans_.size();
-				} else {
-					int edgeSize = spanningTree.get(edgeNode).trans_.size();
-					if (currentSize < edgeSize) {
-						currentNode = edgeNode;
-						currentSize = edgeSize;
-					}
-				}
-			}
+	private Collection<DAGNode> corePredicates() {
+		Collection<DAGNode> core = new ArrayList<>(3);
+		core.add(CommonConcepts.GENLS.getNode(dag_));
+		core.add(CommonConcepts.GENLPREDS.getNode(dag_));
+		core.add(CommonConcepts.GENLMT.getNode(dag_));
+		return core;
+	}
 
-			// Set predecessors as remaining incoming edges + their predecessors
-			if (currentNode == null) {
-				spanningTree.put(n, new TreeNode());
-				virtualRootNode.children_.add(n);
-			} else {
-				// Predecessor info
-				TreeNode thisTreeNode = new TreeNode();
-				thisTreeNode.trans_.add(currentNode);
-				TreeNode otherTreeNode = spanningTree.get(currentNode);
-				thisTreeNode.trans_.addAll(otherTreeNode.trans_);
-				spanningTree.put(n, thisTreeNode);
+	/**
+	 * Creates and builds a schema for a predicate that has become transitive.
+	 * 
+	 * @param predicate
+	 *            The transitive predicate.
+	 */
+	private void createSchema(DAGNode predicate) {
+		if (schemas_.containsKey(predicate))
+			return;
+		PredicateSchema schema = new PredicateSchema(predicate, false);
+		schema.build(schema.schemaNodes(dag_.getNodes()));
+		schemas_.put(predicate, schema);
+		invalidateQueries(predicate);
+	}
 
-				// Ancestor info
-				otherTreeNode.children_.add(n);
-			}
-		}
-		return spanningTree;
+	/**
+	 * Gets the schema for a predicate, if it exists.
+	 * 
+	 * @param predicate
+	 *            The predicate to get the schema for.
+	 * @return The schema or null.
+	 */
+	private PredicateSchema getSchema(Object predicate) {
+		if (schemas_ == null || !(predicate instanceof DAGNode))
+			return null;
+		return schemas_.get(predicate);
 	}
 
-	private Collection<DAGNode> getTransitiveNodes(DAGNode node,
-			boolean isUpwards) {
-		int nIndex = (isUpwards) ? 2 : 3;
-		Collection<Edge> edges = relEdgeModule_.execute(transitiveNode_, 1,
-				node, nIndex);
-		Collection<DAGNode> transitiveNodes = new HashSet<>(edges.size());
-		int tIndex = (isUpwards) ? 2 : 1;
-		for (Edge edge : edges)
-			transitiveNodes.add((DAGNode) edge.getNodes()[tIndex]);
-
-		// Function chasing
-		if (transitiveNode_.equals(CommonConcepts.GENLS.getNode(dag_))
-				&& isUpwards && node instanceof OntologyFunction)
-			transitiveNodes.addAll(queryModule_.functionResults(
-					(OntologyFunction) node, CommonConcepts.RESULT_GENL));
-		return transitiveNodes;
+	/**
+	 * Invalidates cached query results for a predicate whose transitivity has
+	 * changed.
+	 * 
+	 * @param predicate
+	 *            The predicate.
+	 */
+	private void invalidateQueries(DAGNode predicate) {
+		if (queryModule_ != null)
+			queryModule_.getQueryCache().invalidate(predicate);
 	}
 
-	private boolean rebuildTrees() {
-		ancestorMap_ = null;
-		predecessorMap_ = null;
-		initialisationComplete(dag_.getNodes(), dag_.getEdges(), false);
-		return true;
+	/**
+	 * Checks if an edge declares a predicate transitive, i.e. (isa X
+	 * TransitiveBinaryPredicate).
+	 * 
+	 * @param edge
+	 *            The edge to check.
+	 * @return The newly transitive predicate or null.
+	 */
+	private DAGNode transitiveDeclaration(DAGEdge edge) {
+		Node[] nodes = edge.getNodes();
+		if (nodes.length == 3 && nodes[1] instanceof DAGNode
+				&& nodes[0].equals(CommonConcepts.ISA.getNode(dag_))
+				&& nodes[2].equals(CommonConcepts.TRANSITIVE_BINARY
+						.getNode(dag_)))
+			return (DAGNode) nodes[1];
+		return null;
 	}
 
 	@Override
@@ -160,161 +145,216 @@ public class TransitiveIntervalSchemaModule extends
 		if (!isReady())
 			return true;
 
-		if (!incrementalSupported_) {
-			requiresRebuild_ = true;
-			return true;
-		}
-
-		if (edge.getNodes()[0].equals(transitiveNode_)) {
-			DAGNode nodeObj = (DAGNode) edge.getNodes()[1];
-			String objIntIDStr = nodeObj.getProperty(PREDECESSOR_ID);
-			DAGNode nodeSubj = (DAGNode) edge.getNodes()[2];
-			String subjIntIDStr = nodeSubj.getProperty(PREDECESSOR_ID);
-			if (objIntIDStr == null) {
-				// genls NEW exist
-
-				// Create new root node for predecessorTree
-				if (!predecessorMap_.addNewRootedNode(nodeObj))
-					return rebuildTrees();
-
-				// Attach to parent descendant node in ancestorTree
-				if (!ancestorMap_.addNewLeafNode(nodeObj,
-						Integer.parseInt(nodeSubj.getProperty(ANCESTOR_ID))))
-					return rebuildTrees();
-			}
-			if (subjIntIDStr == null) {
-				// genls exist NEW
+		DAGNode transitivePred = transitiveDeclaration(edge);
+		if (transitivePred != null)
+			createSchema(transitivePred);
 
-				// Create new root node for ancestorTree
-				if (!ancestorMap_.addNewRootedNode(nodeSubj))
-					return rebuildTrees();
-				// Attach to parent descendant node in predecessorTree
-				if (!predecessorMap_.addNewLeafNode(nodeSubj,
-						Integer.parseInt(objIntIDStr)))
-					return rebuildTrees();
-			}
-
-			// Propagate the intervals
-			predecessorMap_.propagateIntervalAddition(nodeObj, nodeSubj,
-					ancestorMap_, false);
-			ancestorMap_.propagateIntervalAddition(nodeSubj, nodeObj,
-					predecessorMap_, false);
-		}
+		PredicateSchema schema = getSchema(edge.getNodes()[0]);
+		if (schema != null)
+			return schema.addEdge(edge);
 		return true;
 	}
 
+	@Override
+	public void disableCached() {
+		if (schemas_ != null)
+			for (PredicateSchema schema : schemas_.values())
+				schema.disableCached();
+	}
+
+	/**
+	 * Queries a transitive schema. Arguments are an optional transitive
+	 * predicate (genls if not given), a boolean for upwards (predecessors)
+	 * or downwards (ancestors), the node to query from and optionally a
+	 * node to prove transitivity to.
+	 */
 	@Override
 	public Collection<DAGNode> execute(Object... args)
 			throws IllegalArgumentException, ModuleException {
-		if (args.length < 2)
+		int offset = 0;
+		Object predicate = CommonConcepts.GENLS.getNode(dag_);
+		if (args.length > 0 && args[0] instanceof DAGNode) {
+			predicate = args[0];
+			offset = 1;
+		}
+		if (args.length < offset + 2)
 			return null;
 
-		boolean upwards = (boolean) args[0];
-		IntervalSchema schema = (upwards) ? predecessorMap_ : ancestorMap_;
-		DAGNode node = (DAGNode) args[1];
-		if (args.length >= 3) {
-			DAGNode otherNode = (DAGNode) args[2];
-			if (schema.isTransitive(node, otherNode))
-				return new ArrayList<DAGNode>(0);
-			else
-				return null;
+		PredicateSchema schema = getSchema(predicate);
+		if (schema == null)
+			return null;
+		boolean upwards = (boolean) args[offset];
+		DAGNode node = (DAGNode) args[offset + 1];
+		DAGNode otherNode = (args.length >= offset + 3) ? (DAGNode) args[offset + 2]
+				: null;
+		return schema.execute(upwards, node, otherNode);
+	}
+
+	/**
+	 * Lazily iterates the transitive nodes of a node, in the same order as
+	 * {@link #execute(Object...)} returns them. Only the interval runs that
+	 * are consumed are walked, so callers that stop early avoid building the
+	 * full closure. The iterator is invalidated by changes to the schema.
+	 * 
+	 * @param predicate
+	 *            The transitive predicate.
+	 * @param upwards
+	 *            If iterating upwards (predecessors) or downwards (ancestors).
+	 * @param node
+	 *            The node to iterate from.
+	 * @return An iterator over the transitive nodes, or null if the node is
+	 *         not in the schema.
+	 */
+	public Iterator<DAGNode> iterate(DAGNode predicate, boolean upwards,
+			DAGNode node) {
+		PredicateSchema schema = getSchema(predicate);
+		if (schema == null)
+			return null;
+		return schema.iterate(upwards, node);
+	}
+
+	/**
+	 * Counts the transitive nodes of a node, stopping at a maximum count.
+	 * Used for estimating result sizes without building the closure.
+	 * 
+	 * @param predicate
+	 *            The transitive predicate.
+	 * @param upwards
+	 *            If counting upwards (predecessors) or downwards (ancestors).
+	 * @param node
+	 *            The node to count from.
+	 * @param maxCount
+	 *            The count to stop at.
+	 * @return The number of transitive nodes (at most maxCount), or -1 if the
+	 *         predicate schema is not ready or the node is not in it.
+	 */
+	public int countTransitive(DAGNode predicate, boolean upwards,
+			DAGNode node, int maxCount) {
+		PredicateSchema schema = getSchema(predicate);
+		if (schema == null || !schema.isReady())
+			return -1;
+		Iterator<DAGNode> iter = schema.iterate(upwards, node);
+		if (iter == null)
+			return -1;
+		int count = 0;
+		while (count < maxCount && iter.hasNext()) {
+			iter.next();
+			count++;
 		}
-		return schema.getTransitivePredecessors(node, false);
+		return count;
 	}
 
-	public DAGNode getTransitiveNode() {
-		return transitiveNode_;
+	/**
+	 * @return The predicates that currently have an interval schema.
+	 */
+	public Collection<DAGNode> getTransitivePredicates() {
+		if (schemas_ == null)
+			return new ArrayList<>(0);
+		return new ArrayList<>(schemas_.keySet());
 	}
 
 	@Override
 	public boolean initialisationComplete(Collection<DAGNode> nodes,
 			Collection<DAGEdge> edges, boolean forceRebuild) {
-		if (!requiresRebuild_ && !forceRebuild)
-			return false;
-		virtualRoot_ = null;
 		initMembers();
-		System.out.print("Creating transitive interval schema for "
-				+ transitiveNode_ + "... ");
-
-		// Sort topologically
-		List<DAGNode> topologicalList = topologicalList(nodes);
-
-		// Build spanning tree
-		Map<DAGNode, TreeNode> predecessors = buildSpanningTree(
-				topologicalList, true);
-		Map<DAGNode, TreeNode> ancestors = buildSpanningTree(topologicalList,
-				false);
-
-		// Assign numbers and intervals
-		IntervalSchema predecessorMap = new IntervalSchema(predecessors.size(),
-				PREDECESSOR_ID);
-		predecessorMap.assignIntervals(predecessors);
-		IntervalSchema ancestorMap = new IntervalSchema(ancestors.size(),
-				ANCESTOR_ID);
-		ancestorMap.assignIntervals(ancestors);
-
-		// Link all nodes
-		predecessorMap.linkIntervals(topologicalList, true);
-		ancestorMap.linkIntervals(topologicalList, false);
-		predecessorMap_ = predecessorMap;
-		ancestorMap_ = ancestorMap;
-		System.out.println("Done!");
-		requiresRebuild_ = false;
-		return true;
+		boolean rebuilt = false;
+		for (DAGNode predicate : corePredicates())
+			if (!schemas_.containsKey(predicate))
+				schemas_.put(predicate, new PredicateSchema(predicate, true));
+
+		// genls first, as finding the other transitive predicates uses it
+		PredicateSchema genlsSchema = getSchema(CommonConcepts.GENLS
+				.getNode(dag_));
+		if (genlsSchema.requiresRebuild_ || forceRebuild) {
+			genlsSchema.build(nodes);
+			invalidateQueries(genlsSchema.transitiveNode_);
+			rebuilt = true;
+		}
+
+		Collection<Node> transitivePreds = queryModule_.executeAndParseVar(
+				new QueryObject(CommonConcepts.ISA.getNode(dag_),
+						VariableNode.DEFAULT,
+						CommonConcepts.TRANSITIVE_BINARY.getNode(dag_)),
+				VariableNode.DEFAULT.toString());
+		for (Node pred : transitivePreds)
+			if (pred instanceof DAGNode && !schemas_.containsKey(pred))
+				schemas_.put((DAGNode) pred, new PredicateSchema(
+						(DAGNode) pred, false));
+
+		for (PredicateSchema schema : schemas_.values()) {
+			if (schema != genlsSchema
+					&& (schema.requiresRebuild_ || forceRebuild)) {
+				schema.build(schema.schemaNodes(nodes));
+				invalidateQueries(schema.transitiveNode_);
+				rebuilt = true;
+			}
+		}
+		return rebuilt;
 	}
 
 	/**
 	 * Checks if the members are initialised.
 	 */
 	public void initMembers() {
-		if (transitiveNode_ == null)
-			transitiveNode_ = CommonConcepts.GENLS.getNode(dag_);
 		if (relEdgeModule_ == null)
 			relEdgeModule_ = (RelatedEdgeModule) dag_
 					.getModule(RelatedEdgeModule.class);
 		if (queryModule_ == null)
 			queryModule_ = (QueryModule) dag_.getModule(QueryModule.class);
-		if (virtualRoot_ == null)
-			virtualRoot_ = new DAGNode();
+		if (schemas_ == null)
+			schemas_ = new ConcurrentHashMap<>();
+		DAGNode genls = CommonConcepts.GENLS.getNode(dag_);
+		if (!schemas_.containsKey(genls))
+			schemas_.put(genls, new PredicateSchema(genls, true));
 	}
 
-	public boolean isReady() {
-		return predecessorMap_ != null && ancestorMap_ != null;
+	@Override
+	public void disableIndex() {
+		disableCached();
 	}
 
+	/**
+	 * @return True if the genls schema is ready.
+	 */
 	@Override
-	public void disableCached() {
-		predecessorMap_ = null;
-		ancestorMap_ = null;
+	public boolean isReady() {
+		return isReady(CommonConcepts.GENLS.getNode(dag_));
 	}
 
-	public List<Node[]> justifyTransitive(DAGNode baseNode, DAGNode transNode) {
-		List<Node[]> justification = new ArrayList<Node[]>();
-		justifyTransitiveR(baseNode, transNode, justification,
-				new HashSet<DAGNode>());
-		Collections.reverse(justification);
-
-		return justification;
+	/**
+	 * Checks if a predicate has a ready interval schema.
+	 * 
+	 * @param predicate
+	 *            The predicate to check.
+	 * @return True if queries for the predicate can use this module.
+	 */
+	public boolean isReady(Node predicate) {
+		PredicateSchema schema = getSchema(predicate);
+		return schema != null && schema.isReady();
 	}
 
-	public List<Node[]> justifyTransitiveR(DAGNode baseNode, DAGNode transNode,
-			List<Node[]> justification, Set<DAGNode> seenNodes) {
-		if (baseNode.equals(transNode))
-			return justification;
+	public List<Node[]> justifyTransitive(DAGNode baseNode, DAGNode transNode) {
+		return justifyTransitive(CommonConcepts.GENLS.getNode(dag_), baseNode,
+				transNode);
+	}
 
-		for (DAGNode directNext : getTransitiveNodes(baseNode, true)) {
-			if (!seenNodes.contains(directNext)
-					&& predecessorMap_.isTransitive(directNext, transNode)) {
-				seenNodes.add(directNext);
-				if (justifyTransitiveR(directNext, transNode, justification,
-						seenNodes) != null) {
-					justification.add(new Node[] { transitiveNode_, baseNode,
-							directNext });
-					return justification;
-				}
-			}
-		}
-		return null;
+	/**
+	 * Justifies a transitive relation with a chain of asserted edges.
+	 * 
+	 * @param predicate
+	 *            The transitive predicate.
+	 * @param baseNode
+	 *            The node to justify from.
+	 * @param transNode
+	 *            The node to justify to.
+	 * @return The chain of edges from baseNode to transNode.
+	 */
+	public List<Node[]> justifyTransitive(DAGNode predicate,
+			DAGNode baseNode, DAGNode transNode) {
+		PredicateSchema schema = getSchema(predicate);
+		if (schema == null || !schema.isReady())
+			return new ArrayList<>(0);
+		return schema.justifyTransitive(baseNode, transNode);
 	}
 
 	@Override
@@ -322,507 +362,1209 @@ public class TransitiveIntervalSchemaModule extends
 		if (!isReady())
 			return true;
 
-		if (!incrementalSupported_) {
-			requiresRebuild_ = true;
-			return true;
-		}
+		DAGNode transitivePred = transitiveDeclaration(edge);
+		if (transitivePred != null
+				&& !corePredicates().contains(transitivePred)
+				&& schemas_.remove(transitivePred) != null)
+			invalidateQueries(transitivePred);
 
-		if (edge.getNodes()[0].equals(transitiveNode_)) {
-			DAGNode nodeObj = (DAGNode) edge.getNodes()[1];
-			DAGNode nodeSubj = (DAGNode) edge.getNodes()[2];
-			predecessorMap_.removeEdge(nodeObj, nodeSubj, ancestorMap_);
-			ancestorMap_.removeEdge(nodeSubj, nodeObj, predecessorMap_);
-		}
+		PredicateSchema schema = getSchema(edge.getNodes()[0]);
+		if (schema != null)
+			return schema.removeEdge(edge);
 		return true;
 	}
 
 	@Override
-	public void setDAG(DirectedAcyclicGraph directedAcyclicGraph) {
-		super.setDAG(directedAcyclicGraph);
-		initMembers();
+	public boolean readIndex(ByteBuffer in, DirectedAcyclicGraph dag) {
+		// The schemas are serialised with the module
+		return true;
 	}
 
 	@Override
-	public Collection<String> getPertinentProperties() {
-		Collection<String> props = new ArrayList<String>(2);
-		props.add(ANCESTOR_ID);
-		props.add(PREDECESSOR_ID);
-		return props;
+	public void setDAG(DirectedAcyclicGraph directedAcyclicGraph) {
+		super.setDAG(directedAcyclicGraph);
+		initMembers();
 	}
 
 	/**
-	 * Topologically sorts a collection of nodes.
+	 * Topologically sorts a collection of nodes by genls.
 	 * 
 	 * @param nodes
 	 *            The nodes to sort.
 	 * @return The topologically sorted list of nodes.
 	 */
 	public List<DAGNode> topologicalList(Collection<DAGNode> nodes) {
-		LinkedList<DAGNode> sortedNodes = new LinkedList<>();
-		for (DAGNode n : nodes) {
-			topologicalVisit(n, sortedNodes, new HashMap<DAGNode, String>());
-		}
-		return sortedNodes;
+		return getSchema(CommonConcepts.GENLS.getNode(dag_)).topologicalList(
+				nodes);
+	}
+
+	@Override
+	public void writeIndex(DataOutputStream out) {
+		// The schemas are serialised with the module
 	}
 
 	/**
-	 * Visits a node and follows it up to establish a topological sort.
+	 * The pair of interval schemas (and spanning tree state) for a single
+	 * transitive predicate.
 	 * 
-	 * @param n
-	 *            The node to check.
-	 * @param sortedNodes
-	 *            The currently topologically sorted nodes
-	 * @param markMap
-	 *            A map to mark scanned nodes.
-	 * @return A node if there is a cycle, otherwise null.
+	 * @author Sam Sarjant
 	 */
-	public DAGNode topologicalVisit(DAGNode n, LinkedList<DAGNode> sortedNodes,
-			HashMap<DAGNode, String> markMap) {
-		String permaMark = n.getProperty(MARK);
-		if (permaMark != null && permaMark.equals(PERMANENT_MARK))
-			return null;
+	private class PredicateSchema implements Serializable {
+		private static final long serialVersionUID = 2719405723347081186L;
+		private IntervalSchema ancestorMap_;
+		private int interval_ = INITIAL_INTERVAL;
+		private IntervalSchema predecessorMap_;
+		/** If every node is considered transitive to itself. */
+		private boolean reflexive_;
+		private boolean requiresRebuild_ = true;
+		private DAGNode transitiveNode_;
+		private DAGNode virtualRoot_;
+
+		public PredicateSchema(DAGNode transitiveNode, boolean reflexive) {
+			transitiveNode_ = transitiveNode;
+			reflexive_ = reflexive;
+			virtualRoot_ = new DAGNode();
+		}
+
+		/**
+		 * Builds a spanning tree for a given topologically sorted collection of
+		 * nodes.
+		 * 
+		 * @param topologicalList
+		 *            The topologically sorted list of nodes.
+		 * @param predecessorTree
+		 *            If this tree is building a predecessor tree (alt. ancestor
+		 *            tree).
+		 * @return The spanning tree for the nodes.
+		 */
+		private Map<DAGNode, TreeNode> buildSpanningTree(
+				List<DAGNode> topologicalList, boolean predecessorTree) {
+			TreeNode virtualRootNode = new TreeNode();
+			Map<DAGNode, TreeNode> spanningTree = new HashMap<>();
+			spanningTree.put(virtualRoot_, virtualRootNode);
+
+			// Iterate through the list (backwards if ancestors)
+			ListIterator<DAGNode> iter = null;
+			if (predecessorTree)
+				iter = topologicalList.listIterator();
+			else
+				iter = topologicalList.listIterator(topologicalList.size());
+			while ((predecessorTree && iter.hasNext())
+					|| (!predecessorTree && iter.hasPrevious())) {
+				DAGNode n = (predecessorTree) ? iter.next() : iter.previous();
+
+				dag_.removeProperty(n, MARK);
+				// For every incoming edge
+
+				Collection<DAGNode> transitiveNodes = getTransitiveNodes(n,
+						!predecessorTree);
 
-		String mark = markMap.get(n);
-		if (mark != null && mark.equals(TEMP_MARK)) {
-			System.out.print("Cycle");
-			// Does it have a rewrite of?
-			if (!relEdgeModule_.execute(
-					CommonConcepts.REWRITE_OF.getNode(dag_), "1", n, "-F")
-					.isEmpty())
-				System.out.print(" (has rewriteOf)");
-			System.out.print(": " + n);
-			return n;
-		}
-		DAGNode cycleNode = null;
-		if (mark == null) {
-			markMap.put(n, TEMP_MARK);
-			Collection<DAGNode> transitiveNodes = getTransitiveNodes(n, true);
-			for (DAGNode edgeNode : transitiveNodes) {
-				if (!edgeNode.equals(n)) {
-					DAGNode tempNode = topologicalVisit(edgeNode, sortedNodes,
-							markMap);
-					if (cycleNode == null)
-						cycleNode = tempNode;
-					if (tempNode != null) {
-						System.out.print(" -> " + n);
-						if (n.equals(tempNode)) {
-							System.out.println();
-							cycleNode = null;
+				DAGNode currentNode = null;
+				int currentSize = -1;
+				for (DAGNode edgeNode : transitiveNodes) {
+					if (edgeNode.equals(n))
+						continue;
+					if (!spanningTree.containsKey(edgeNode))
+						continue;
+					if (currentNode == null) {
+						currentNode = edgeNode;
+						currentSize = spanningTree.get(currentNode).trans_.size();
+					} else {
+						int edgeSize = spanningTree.get(edgeNode).trans_.size();
+						if (currentSize < edgeSize) {
+							currentNode = edgeNode;
+							currentSize = edgeSize;
 						}
 					}
 				}
+
+				// Set predecessors as remaining incoming edges + their predecessors
+				if (currentNode == null) {
+					spanningTree.put(n, new TreeNode());
+					virtualRootNode.children_.add(n);
+				} else {
+					// Predecessor info
+					TreeNode thisTreeNode = new TreeNode();
+					thisTreeNode.trans_.add(currentNode);
+					TreeNode otherTreeNode = spanningTree.get(currentNode);
+					thisTreeNode.trans_.addAll(otherTreeNode.trans_);
+					spanningTree.put(n, thisTreeNode);
+
+					// Ancestor info
+					otherTreeNode.children_.add(n);
+				}
 			}
-			dag_.addProperty(n, MARK, PERMANENT_MARK);
-			markMap.put(n, PERMANENT_MARK);
-			sortedNodes.push(n);
+			return spanningTree;
 		}
-		return cycleNode;
-	}
-
-	private class IDOrder implements Comparator<DAGNode> {
-		private String intervalIDKey_;
-		private int order_;
 
-		public IDOrder(String intervalIDKey, boolean isReversed) {
-			intervalIDKey_ = intervalIDKey;
-			order_ = (isReversed) ? -1 : 1;
+		private Collection<DAGNode> getTransitiveNodes(DAGNode node,
+				boolean isUpwards) {
+			int nIndex = (isUpwards) ? 2 : 3;
+			Collection<Edge> edges = relEdgeModule_.execute(transitiveNode_, 1,
+					node, nIndex);
+			Collection<DAGNode> transitiveNodes = new HashSet<>(edges.size());
+			int tIndex = (isUpwards) ? 2 : 1;
+			for (Edge edge : edges)
+				transitiveNodes.add((DAGNode) edge.getNodes()[tIndex]);
+
+			// Function chasing
+			if (transitiveNode_.equals(CommonConcepts.GENLS.getNode(dag_))
+					&& isUpwards && node instanceof OntologyFunction)
+				transitiveNodes.addAll(queryModule_.functionResults(
+						(OntologyFunction) node, CommonConcepts.RESULT_GENL));
+			return transitiveNodes;
 		}
 
-		@Override
-		public int compare(DAGNode arg0, DAGNode arg1) {
+		private boolean rebuildTrees() {
+			ancestorMap_ = null;
+			predecessorMap_ = null;
+			build(schemaNodes(dag_.getNodes()));
+			return true;
+		}
 
-			return order_
-					* Integer.compare(
-							Integer.parseInt(arg0.getProperty(intervalIDKey_)),
-							Integer.parseInt(arg1.getProperty(intervalIDKey_)));
+		/**
+		 * Checks if an edge is a non-reflexive transitive edge between two DAG
+		 * nodes, which is what the schema records.
+		 * 
+		 * @param edge
+		 *            The edge to check.
+		 * @return True if the edge affects the schema.
+		 */
+		private boolean isSchemaEdge(DAGEdge edge) {
+			Node[] nodes = edge.getNodes();
+			return nodes.length == 3 && nodes[0].equals(transitiveNode_)
+					&& nodes[1] instanceof DAGNode && nodes[2] instanceof DAGNode
+					&& !nodes[1].equals(nodes[2]);
 		}
 
-	}
+		public boolean addEdge(DAGEdge edge) {
+			if (!isReady())
+				return true;
 
-	/**
-	 * The interval schema that forms the lookup data structure.
-	 * 
-	 * @author Sam Sarjant
-	 */
-	private class IntervalSchema implements Serializable {
-		private static final long serialVersionUID = -5807751667326507399L;
-		private String intervalIDKey_;
-		private SortedMap<Integer, DAGNode> inverseMap_;
-		private int maxIndex_;
-		private Map<Integer, Collection<int[]>> schemaMap_;
-		private transient Lock schemaLock_;
+			if (!incrementalSupported_) {
+				requiresRebuild_ = true;
+				return true;
+			}
 
-		public IntervalSchema(int size, String intervalIDKey) {
-			schemaMap_ = new ConcurrentHashMap<>(size);
-			inverseMap_ = new TreeMap<>();
-			intervalIDKey_ = intervalIDKey;
-			schemaLock_ = new ReentrantLock();
+			if (isSchemaEdge(edge)) {
+				DAGNode nodeObj = (DAGNode) edge.getNodes()[1];
+				DAGNode nodeSubj = (DAGNode) edge.getNodes()[2];
+				boolean newObj = predecessorMap_.getID(nodeObj) == IntervalStore.NO_ID;
+				boolean newSubj = ancestorMap_.getID(nodeSubj) == IntervalStore.NO_ID;
+
+				// New nodes are roots in the tree in which they have no children
+				// (genls NEW x: predecessorTree, genls x NEW: ancestorTree)
+				if (newObj && !predecessorMap_.addNewRootedNode(nodeObj))
+					return rebuildTrees();
+				if (newSubj && !ancestorMap_.addNewRootedNode(nodeSubj))
+					return rebuildTrees();
+
+				// And leaves of the other node in the other tree
+				if (newObj
+						&& !ancestorMap_.addNewLeafNode(nodeObj,
+								ancestorMap_.getID(nodeSubj)))
+					return rebuildTrees();
+				if (newSubj
+						&& !predecessorMap_.addNewLeafNode(nodeSubj,
+								predecessorMap_.getID(nodeObj)))
+					return rebuildTrees();
+
+				// Propagate the intervals
+				predecessorMap_.propagateIntervalAddition(nodeObj, nodeSubj,
+						ancestorMap_);
+				ancestorMap_.propagateIntervalAddition(nodeSubj, nodeObj,
+						predecessorMap_);
+			}
+			return true;
 		}
 
 		/**
-		 * Adds all intervals associated with n2 to n1, subsuming where
-		 * appropriate.
+		 * Builds the schema from scratch.
 		 * 
-		 * @param n1
-		 *            The node to add intervals to.
-		 * @param n2
-		 *            The node to add intervals from.
-		 * @return True if the intervals were changed as a result of this call.
+		 * @param nodes
+		 *            The nodes to build the schema over.
 		 */
-		private boolean addIntervals(DAGNode n1, DAGNode n2) {
-			if (n1.getProperty(intervalIDKey_) == null)
-				return false;
-			Integer n1ID = Integer.parseInt(n1.getProperty(intervalIDKey_));
-			if (n2.getProperty(intervalIDKey_) == null)
-				return false;
-			Integer n2ID = Integer.parseInt(n2.getProperty(intervalIDKey_));
-			Collection<int[]> n1Intervals = schemaMap_.get(n1ID);
-			Collection<int[]> n2Intervals = schemaMap_.get(n2ID);
-
-			boolean changed = false;
-			for (int[] intervalN2 : n2Intervals) {
-				boolean addNew = true;
-				// TODO Merge intervals when appropriate
-				// Check for subsumption
-				for (int[] intervalN1 : n1Intervals) {
-					if (intervalN1[0] <= intervalN2[0]
-							&& intervalN1[1] >= intervalN2[1]) {
-						// 1_0, 2_0, 2_1, 1_1
-						addNew = false;
-					} else {
-						if (intervalN2[0] < intervalN1[0]
-								&& intervalN2[1] >= intervalN1[0]) {
-							// 2_0, 1_0, 2_1
-							intervalN1[0] = intervalN2[0];
-							addNew = false;
-							changed = true;
-						}
-						if (intervalN2[1] > intervalN1[1]
-								&& intervalN2[0] <= intervalN1[1]) {
-							// 2_0, 1_1, 2_1
-							intervalN1[1] = intervalN2[1];
-							addNew = false;
-							changed = true;
-						}
-					}
-
-					if (!addNew)
-						break;
-				}
+		public void build(Collection<DAGNode> nodes) {
+			virtualRoot_ = new DAGNode();
+			System.out.print("Creating transitive interval schema for "
+					+ transitiveNode_ + "... ");
+
+			// Sort topologically
+			List<DAGNode> topologicalList = topologicalList(nodes);
+
+			// Build spanning tree
+			Map<DAGNode, TreeNode> predecessors = buildSpanningTree(
+					topologicalList, true);
+			Map<DAGNode, TreeNode> ancestors = buildSpanningTree(topologicalList,
+					false);
+
+			// Assign numbers and intervals
+			IntervalSchema predecessorMap = new IntervalSchema(predecessors.size(),
+					offHeapIntervals_);
+			predecessorMap.assignIntervals(predecessors);
+			IntervalSchema ancestorMap = new IntervalSchema(ancestors.size(),
+					offHeapIntervals_);
+			ancestorMap.assignIntervals(ancestors);
+
+			// Link all nodes
+			predecessorMap.linkIntervals(topologicalList, true);
+			ancestorMap.linkIntervals(topologicalList, false);
+			predecessorMap_ = predecessorMap;
+			ancestorMap_ = ancestorMap;
+			System.out.println("Done!");
+			requiresRebuild_ = false;
+		}
 
-				if (addNew)
-					n1Intervals.add(Arrays.copyOf(intervalN2, 2));
-				changed |= addNew;
-			}
-			return changed;
+		public void disableCached() {
+			predecessorMap_ = null;
+			ancestorMap_ = null;
+			requiresRebuild_ = true;
 		}
 
 		/**
-		 * Traverse a spanning tree in post-order (LRC) fashion. Assign IDs to
-		 * the nodes and record the intervals.
+		 * Queries the schema.
 		 * 
+		 * @param upwards
+		 *            If querying upwards (predecessors) or downwards.
 		 * @param node
-		 *            The current node.
-		 * @param currentIndex
-		 *            The current ID to assign.
-		 * @param internalIDKey
-		 *            The key under which the internals IDs are recorded on the
-		 *            node.
-		 * @param spanningTree
-		 *            The spanning tree.
-		 * @return The next ID after this one.
+		 *            The node to query from.
+		 * @param otherNode
+		 *            The node to prove transitivity to, or null to return all
+		 *            transitive nodes.
+		 * @return An empty collection if otherNode is transitive, otherwise the
+		 *         transitive nodes. Null if not transitive/not in the schema.
 		 */
-		private int postOrderTraverse(DAGNode node, int currentIndex,
-				String internalIDKey, Map<DAGNode, TreeNode> spanningTree) {
-			// Children first
-			int prevIndex = currentIndex;
-			TreeNode spanNode = spanningTree.get(node);
-			for (DAGNode child : spanNode.children_) {
-				currentIndex = postOrderTraverse(child, currentIndex,
-						internalIDKey, spanningTree);
+		public Collection<DAGNode> execute(boolean upwards, DAGNode node,
+				DAGNode otherNode) {
+			IntervalSchema schema = (upwards) ? predecessorMap_ : ancestorMap_;
+			if (schema == null)
+				return null;
+			if (otherNode != null) {
+				if ((reflexive_ || !node.equals(otherNode))
+						&& schema.isTransitive(node, otherNode))
+					return new ArrayList<DAGNode>(0);
+				else
+					return null;
 			}
+			Collection<DAGNode> transitive = schema.getTransitivePredecessors(
+					node, false);
+			if (!reflexive_ && transitive != null)
+				transitive.remove(node);
+			return transitive;
+		}
+
+		public DAGNode getTransitiveNode() {
+			return transitiveNode_;
+		}
+
+		public Iterator<DAGNode> iterate(boolean upwards, final DAGNode node) {
+			IntervalSchema schema = (upwards) ? predecessorMap_ : ancestorMap_;
+			if (schema == null)
+				return null;
+			Iterator<DAGNode> transitive = schema
+					.iterateTransitivePredecessors(node);
+			if (reflexive_ || transitive == null)
+				return transitive;
+			return new FilterIterator<>(transitive, new Predicate<DAGNode>() {
+				@Override
+				public boolean evaluate(DAGNode n) {
+					return !n.equals(node);
+				}
+			});
+		}
+
+		public boolean isReady() {
+			return predecessorMap_ != null && ancestorMap_ != null;
+		}
+
+		public List<Node[]> justifyTransitive(DAGNode baseNode, DAGNode transNode) {
+			List<Node[]> justification = new ArrayList<Node[]>();
+			justifyTransitiveR(baseNode, transNode, justification,
+					new HashSet<DAGNode>());
+			Collections.reverse(justification);
+
+			return justification;
+		}
 
-			// Assign ID and interval
-			currentIndex += interval_;
-			dag_.addProperty(node, internalIDKey, currentIndex + "");
-			recordID(node, currentIndex, new int[] { prevIndex + 1,
-					currentIndex });
+		public List<Node[]> justifyTransitiveR(DAGNode baseNode, DAGNode transNode,
+				List<Node[]> justification, Set<DAGNode> seenNodes) {
+			if (baseNode.equals(transNode))
+				return justification;
+
+			for (DAGNode directNext : getTransitiveNodes(baseNode, true)) {
+				if (!seenNodes.contains(directNext)
+						&& predecessorMap_.isTransitive(directNext, transNode)) {
+					seenNodes.add(directNext);
+					if (justifyTransitiveR(directNext, transNode, justification,
+							seenNodes) != null) {
+						justification.add(new Node[] { transitiveNode_, baseNode,
+								directNext });
+						return justification;
+					}
+				}
+			}
+			return null;
+		}
+
+		public boolean removeEdge(DAGEdge edge) {
+			if (!isReady())
+				return true;
 
-			return currentIndex;
+			if (!incrementalSupported_) {
+				requiresRebuild_ = true;
+				return true;
+			}
+
+			if (isSchemaEdge(edge)) {
+				DAGNode nodeObj = (DAGNode) edge.getNodes()[1];
+				DAGNode nodeSubj = (DAGNode) edge.getNodes()[2];
+				if (predecessorMap_.getID(nodeObj) == IntervalStore.NO_ID
+						|| predecessorMap_.getID(nodeSubj) == IntervalStore.NO_ID)
+					return true;
+				predecessorMap_.removeEdge(nodeObj, nodeSubj, ancestorMap_, true);
+				ancestorMap_.removeEdge(nodeSubj, nodeObj, predecessorMap_, false);
+			}
+			return true;
 		}
 
 		/**
-		 * Records ID details for a given node.
+		 * Gets the nodes this schema is built over. The genls schema covers
+		 * every node, other predicates only the nodes they are asserted on.
 		 * 
-		 * @param node
-		 *            The node to record details for.
-		 * @param id
-		 *            The spanning tree ID of the node.
-		 * @param interval
-		 *            The interval of transitive values to record for the node.
+		 * @param nodes
+		 *            All nodes.
+		 * @return The nodes to build the schema over.
 		 */
-		private void recordID(DAGNode node, int id, int[] interval) {
-			if (schemaLock_ == null)
-				schemaLock_ = new ReentrantLock();
-			schemaLock_.lock();
-			inverseMap_.put(id, node);
-			Collection<int[]> intervals = new ArrayList<>(1);
-			intervals.add(interval);
-			schemaMap_.put(id, intervals);
-			schemaLock_.unlock();
+		public Collection<DAGNode> schemaNodes(Collection<DAGNode> nodes) {
+			if (transitiveNode_.equals(CommonConcepts.GENLS.getNode(dag_)))
+				return nodes;
+			Collection<DAGNode> schemaNodes = new HashSet<>();
+			for (Edge edge : relEdgeModule_.execute(transitiveNode_, 1)) {
+				Node[] edgeNodes = edge.getNodes();
+				if (edgeNodes.length == 3 && edgeNodes[0].equals(transitiveNode_)) {
+					if (edgeNodes[1] instanceof DAGNode)
+						schemaNodes.add((DAGNode) edgeNodes[1]);
+					if (edgeNodes[2] instanceof DAGNode)
+						schemaNodes.add((DAGNode) edgeNodes[2]);
+				}
+			}
+			return schemaNodes;
 		}
 
 		/**
-		 * Removes all intervals associated with n2 from n1, reducing interval
-		 * scope where appropriate.
+		 * Topologically sorts a collection of nodes.
 		 * 
-		 * @param n1
-		 *            The node to remove intervals from.
-		 * @param n2
-		 *            This node's intervals are removed from the other node.
-		 * @return True if intervals were changed as a result of this call.
+		 * @param nodes
+		 *            The nodes to sort.
+		 * @return The topologically sorted list of nodes.
 		 */
-		private boolean removeIntervals(DAGNode n1, DAGNode n2) {
-			if (n1.equals(n2))
-				return false;
-			Integer n1ID = Integer.parseInt(n1.getProperty(intervalIDKey_));
-			Collection<int[]> n1Intervals = schemaMap_.get(n1ID);
-			Integer n2ID = Integer.parseInt(n2.getProperty(intervalIDKey_));
-			boolean changed = false;
-			for (int[] intervalN2 : schemaMap_.get(n2ID)) {
-				int[] splitInterval = null;
-				// Check for subsumption
-				for (Iterator<int[]> iter = n1Intervals.iterator(); iter
-						.hasNext();) {
-					int[] intervalN1 = iter.next();
-					if (intervalN1[0] < intervalN2[0]
-							&& intervalN1[1] > intervalN2[1]) {
-						// 1_0, 2_0, 2_1, 1_1
-						splitInterval = new int[] { intervalN2[1] + 1,
-								intervalN1[1] };
-						intervalN1[1] = intervalN2[0] - 1;
-					} else {
-						if (intervalN2[0] <= intervalN1[0]
-								&& intervalN2[1] > intervalN1[0]) {
-							// 2_0, 1_0, 2_1
-							intervalN1[0] = intervalN2[1] + 1;
-							changed = true;
-						}
-						if (intervalN2[1] >= intervalN1[1]
-								&& intervalN2[0] < intervalN1[1]) {
-							// 2_0, 1_1, 2_1
-							intervalN1[1] = intervalN2[0] - 1;
-							changed = true;
-						}
-						if (intervalN1[0] > intervalN1[1])
-							iter.remove();
-					}
-				}
-
-				if (splitInterval != null) {
-					n1Intervals.add(splitInterval);
-					changed = true;
-				}
+		public List<DAGNode> topologicalList(Collection<DAGNode> nodes) {
+			LinkedList<DAGNode> sortedNodes = new LinkedList<>();
+			for (DAGNode n : nodes) {
+				topologicalVisit(n, sortedNodes, new HashMap<DAGNode, String>());
 			}
-			return changed;
+			return sortedNodes;
 		}
 
 		/**
-		 * Adds a new node as a child of another node.
+		 * Visits a node and follows it up to establish a topological sort.
 		 * 
-		 * @param nodeSubj
-		 *            The node to add.
-		 * @param objKey
-		 *            The key of the parent to add to.
-		 * @return True if the node was added. False if the tree needs to be
-		 *         rebuilt.
+		 * @param n
+		 *            The node to check.
+		 * @param sortedNodes
+		 *            The currently topologically sorted nodes
+		 * @param markMap
+		 *            A map to mark scanned nodes.
+		 * @return A node if there is a cycle, otherwise null.
 		 */
-		public synchronized boolean addNewLeafNode(DAGNode nodeSubj, int objKey) {
-			SortedMap<Integer, DAGNode> headMap = inverseMap_.headMap(objKey);
-			int prevIndex = (headMap != null && !headMap.isEmpty()) ? headMap
-					.lastKey() : 0;
-			int childID = (int) Math.ceil(prevIndex * INTERVAL_SPLIT + objKey
-					* (1 - INTERVAL_SPLIT));
-			if (inverseMap_.containsKey(childID))
-				return false;
+		public DAGNode topologicalVisit(DAGNode n, LinkedList<DAGNode> sortedNodes,
+				HashMap<DAGNode, String> markMap) {
+			String permaMark = n.getProperty(MARK);
+			if (permaMark != null && permaMark.equals(PERMANENT_MARK))
+				return null;
 
-			dag_.addProperty(nodeSubj, intervalIDKey_, childID + "");
-			recordID(nodeSubj, childID, new int[] { prevIndex + 1, childID });
-			return true;
+			String mark = markMap.get(n);
+			if (mark != null && mark.equals(TEMP_MARK)) {
+				System.out.print("Cycle");
+				// Does it have a rewrite of?
+				if (!relEdgeModule_.execute(
+						CommonConcepts.REWRITE_OF.getNode(dag_), "1", n, "-F")
+						.isEmpty())
+					System.out.print(" (has rewriteOf)");
+				System.out.print(": " + n);
+				return n;
+			}
+			DAGNode cycleNode = null;
+			if (mark == null) {
+				markMap.put(n, TEMP_MARK);
+				Collection<DAGNode> transitiveNodes = getTransitiveNodes(n, true);
+				for (DAGNode edgeNode : transitiveNodes) {
+					if (!edgeNode.equals(n)) {
+						DAGNode tempNode = topologicalVisit(edgeNode, sortedNodes,
+								markMap);
+						if (cycleNode == null)
+							cycleNode = tempNode;
+						if (tempNode != null) {
+							System.out.print(" -> " + n);
+							if (n.equals(tempNode)) {
+								System.out.println();
+								cycleNode = null;
+							}
+						}
+					}
+				}
+				dag_.addProperty(n, MARK, PERMANENT_MARK);
+				markMap.put(n, PERMANENT_MARK);
+				sortedNodes.push(n);
+			}
+			return cycleNode;
 		}
 
 		/**
-		 * Adds a new node to the virtual root of the tree.
+		 * The interval schema that forms the lookup data structure.
 		 * 
-		 * @param node
-		 *            The node being added.
-		 * @return True if the node was added. False if the tree needs to be
-		 *         rebuilt.
+		 * @author Sam Sarjant
 		 */
-		public synchronized boolean addNewRootedNode(DAGNode node) {
-			int prevIndex = maxIndex_;
-			if (maxIndex_ > Integer.MAX_VALUE - interval_) {
-				// Too many indices. Reduce interval and restructure tree
-				interval_ /= 2;
-				return false;
+		private class IntervalSchema implements Serializable {
+			private static final long serialVersionUID = -5807751667326507400L;
+			private NavigableMap<Integer, DAGNode> inverseMap_;
+			private int maxIndex_;
+			private IntervalStore store_;
+			private transient Lock schemaLock_;
+
+			public IntervalSchema(int size, boolean offHeap) {
+				store_ = new IntervalStore(size, offHeap);
+				inverseMap_ = new TreeMap<>();
+				schemaLock_ = new ReentrantLock();
 			}
 
-			maxIndex_ += interval_;
-			dag_.addProperty(node, intervalIDKey_, maxIndex_ + "");
-			recordID(node, maxIndex_, new int[] { prevIndex + 1, maxIndex_ });
-			return true;
+			/**
+			 * Adds all intervals associated with n2 to n1, merging where
+			 * appropriate.
+			 * 
+			 * @param n1
+			 *            The node to add intervals to.
+			 * @param n2
+			 *            The node to add intervals from.
+			 * @return True if the intervals were changed as a result of this call.
+			 */
+			private boolean addIntervals(DAGNode n1, DAGNode n2) {
+				int[] n1Intervals = store_.getIntervals(n1);
+				int[] n2Intervals = store_.getIntervals(n2);
+				if (n1Intervals == null || n2Intervals == null)
+					return false;
+
+				int[] merged = IntervalStore.union(n1Intervals, n2Intervals);
+				if (merged == n1Intervals)
+					return false;
+				store_.setIntervals(n1, merged);
+				return true;
+			}
+
+			/**
+			 * Traverse a spanning tree in post-order (LRC) fashion. Assign IDs to
+			 * the nodes and record the intervals.
+			 * 
+			 * @param node
+			 *            The current node.
+			 * @param currentIndex
+			 *            The current ID to assign.
+			 * @param spanningTree
+			 *            The spanning tree.
+			 * @return The next ID after this one.
+			 */
+			private int postOrderTraverse(DAGNode node, int currentIndex,
+					Map<DAGNode, TreeNode> spanningTree) {
+				// Children first
+				int prevIndex = currentIndex;
+				TreeNode spanNode = spanningTree.get(node);
+				for (DAGNode child : spanNode.children_) {
+					currentIndex = postOrderTraverse(child, currentIndex,
+							spanningTree);
+				}
+
+				// Assign ID and interval
+				currentIndex += interval_;
+				recordID(node, currentIndex, prevIndex + 1, currentIndex);
+
+				return currentIndex;
+			}
+
+			/**
+			 * Records ID details for a given node.
+			 * 
+			 * @param node
+			 *            The node to record details for.
+			 * @param id
+			 *            The spanning tree ID of the node.
+			 * @param start
+			 *            The start of the interval of transitive values.
+			 * @param end
+			 *            The (inclusive) end of the interval of transitive values.
+			 */
+			private void recordID(DAGNode node, int id, int start, int end) {
+				if (schemaLock_ == null)
+					schemaLock_ = new ReentrantLock();
+				schemaLock_.lock();
+				inverseMap_.put(id, node);
+				store_.setID(node, id);
+				store_.setIntervals(node, new int[] { start, end });
+				schemaLock_.unlock();
+			}
+
+			/**
+			 * Re-adds the intervals of a node's direct transitive nodes after a
+			 * removal, first re-adding those of any affected direct transitive
+			 * nodes so stale intervals are never copied.
+			 * 
+			 * @param node
+			 *            The node to re-add intervals to.
+			 * @param affected
+			 *            The nodes that have had intervals removed and not yet
+			 *            re-added.
+			 * @param upwards
+			 *            If this schema records upwards (predecessor) intervals.
+			 * @param removedFrom
+			 *            The node the removed edge pointed from.
+			 * @param removedTo
+			 *            The node the removed edge pointed to.
+			 */
+			private void readdIntervals(DAGNode node, Set<DAGNode> affected,
+					boolean upwards, DAGNode removedFrom, DAGNode removedTo) {
+				affected.remove(node);
+				for (DAGNode n : getTransitiveNodes(node, upwards)) {
+					// The removed edge may still be indexed
+					if (n.equals(node)
+							|| (node.equals(removedFrom) && n.equals(removedTo)))
+						continue;
+					if (affected.contains(n))
+						readdIntervals(n, affected, upwards, removedFrom,
+								removedTo);
+					addIntervals(node, n);
+				}
+			}
+
+			/**
+			 * Makes room directly below an ID by evenly respacing the IDs of the
+			 * nodes immediately preceding it. Only the IDs between the nearest
+			 * sufficiently sparse lower bound and the given ID are renumbered, and
+			 * intervals are remapped to cover the same nodes.
+			 * 
+			 * @param upperID
+			 *            The ID to make room below (not renumbered).
+			 * @return True if room was made, false if the ID space below is
+			 *         exhausted.
+			 */
+			private boolean respaceBelow(int upperID) {
+				// Widen the window until it can hold its IDs at full spacing
+				int count = 0;
+				Integer lowerID = inverseMap_.lowerKey(upperID);
+				while (lowerID != null
+						&& (long) upperID - lowerID < (long) (count + 1)
+								* interval_) {
+					count++;
+					lowerID = inverseMap_.lowerKey(lowerID);
+				}
+				int lowerBound = (lowerID == null) ? 0 : lowerID;
+				if ((upperID - lowerBound) / (count + 1) < 2)
+					return false;
+
+				// Evenly respace the IDs in the window
+				NavigableMap<Integer, DAGNode> window = inverseMap_.subMap(
+						lowerBound, false, upperID, false);
+				TreeMap<Integer, Integer> idMap = new TreeMap<>();
+				idMap.put(lowerBound, lowerBound);
+				idMap.put(upperID, upperID);
+				Map<Integer, DAGNode> windowNodes = new HashMap<>(window);
+				int i = 1;
+				for (Integer oldID : window.keySet()) {
+					idMap.put(oldID, (int) (lowerBound + (long) i
+							* (upperID - lowerBound) / (count + 1)));
+					i++;
+				}
+				window.clear();
+				for (Map.Entry<Integer, DAGNode> entry : windowNodes.entrySet()) {
+					int newID = idMap.get(entry.getKey());
+					inverseMap_.put(newID, entry.getValue());
+					store_.setID(entry.getValue(), newID);
+				}
+				store_.remapIntervals(lowerBound, upperID, idMap);
+				return true;
+			}
+
+			/**
+			 * Removes all intervals associated with n2 from n1, reducing interval
+			 * scope where appropriate.
+			 * 
+			 * @param n1
+			 *            The node to remove intervals from.
+			 * @param n2
+			 *            This node's intervals are removed from the other node.
+			 * @return True if intervals were changed as a result of this call.
+			 */
+			private boolean removeIntervals(DAGNode n1, DAGNode n2) {
+				if (n1.equals(n2))
+					return false;
+				int[] n1Intervals = store_.getIntervals(n1);
+				int[] n2Intervals = store_.getIntervals(n2);
+				if (n1Intervals == null || n2Intervals == null)
+					return false;
+
+				int[] reduced = IntervalStore.subtract(n1Intervals, n2Intervals);
+				if (reduced == n1Intervals)
+					return false;
+				store_.setIntervals(n1, reduced);
+				return true;
+			}
+
+			/**
+			 * Adds a new node as a child of another node.
+			 * 
+			 * @param nodeSubj
+			 *            The node to add.
+			 * @param objKey
+			 *            The key of the parent to add to.
+			 * @return True if the node was added. False if the tree needs to be
+			 *         rebuilt.
+			 */
+			public synchronized boolean addNewLeafNode(DAGNode nodeSubj, int objKey) {
+				if (objKey == IntervalStore.NO_ID)
+					return false;
+				Integer prevKey = inverseMap_.lowerKey(objKey);
+				int prevIndex = (prevKey != null) ? prevKey : 0;
+				int childID = (int) Math.ceil(prevIndex * INTERVAL_SPLIT + objKey
+						* (1 - INTERVAL_SPLIT));
+				if (childID >= objKey) {
+					// No room below the parent: renumber the preceding IDs
+					if (schemaLock_ == null)
+						schemaLock_ = new ReentrantLock();
+					schemaLock_.lock();
+					try {
+						if (!respaceBelow(objKey))
+							return false;
+					} finally {
+						schemaLock_.unlock();
+					}
+					prevKey = inverseMap_.lowerKey(objKey);
+					prevIndex = (prevKey != null) ? prevKey : 0;
+					childID = (int) Math.ceil(prevIndex * INTERVAL_SPLIT + objKey
+							* (1 - INTERVAL_SPLIT));
+				}
+
+				recordID(nodeSubj, childID, prevIndex + 1, childID);
+				return true;
+			}
+
+			/**
+			 * Adds a new node to the virtual root of the tree.
+			 * 
+			 * @param node
+			 *            The node being added.
+			 * @return True if the node was added. False if the tree needs to be
+			 *         rebuilt.
+			 */
+			public synchronized boolean addNewRootedNode(DAGNode node) {
+				int prevIndex = maxIndex_;
+				if (maxIndex_ > Integer.MAX_VALUE - interval_) {
+					// Too many indices. Reduce interval and restructure tree
+					interval_ /= 2;
+					return false;
+				}
+
+				maxIndex_ += interval_;
+				recordID(node, maxIndex_, prevIndex + 1, maxIndex_);
+				return true;
+			}
+
+			/**
+			 * Assigns initial IDs and intervals to the set of nodes in a spanning
+			 * tree.
+			 * 
+			 * @param spanningTree
+			 *            The tree of nodes to assign IDs to.
+			 */
+			public void assignIntervals(Map<DAGNode, TreeNode> spanningTree) {
+				maxIndex_ = postOrderTraverse(virtualRoot_, 0, spanningTree);
+				recordID(virtualRoot_, maxIndex_, 0, Integer.MAX_VALUE);
+			}
+
+			/**
+			 * Gets the post-order ID of a node.
+			 * 
+			 * @param node
+			 *            The node to get the ID for.
+			 * @return The ID of the node or 0 if the node has no ID.
+			 */
+			public int getID(DAGNode node) {
+				return store_.getID(node);
+			}
+
+			/**
+			 * Gets all transitive predecessors for a given node, ordered by their
+			 * post-order IDs.
+			 * 
+			 * @param node
+			 *            The node to get the transitive predecessors for.
+			 * @param reversed
+			 *            If the order of elements should be reversed.
+			 * @return All transitively accessed nodes.
+			 */
+			public Collection<DAGNode> getTransitivePredecessors(DAGNode node,
+					boolean reversed) {
+				int[] intervals = store_.getIntervals(node);
+				if (intervals == null)
+					return null;
+				// Runs are sorted and disjoint, so no duplicates or re-sorting
+				List<DAGNode> transitive = new ArrayList<>();
+				for (int i = 0; i < intervals.length; i += 2) {
+					int end = intervals[i + 1];
+					transitive.addAll(inverseMap_.subMap(intervals[i],
+							(end == Integer.MAX_VALUE) ? end : end + 1).values());
+				}
+				if (reversed)
+					Collections.reverse(transitive);
+				return transitive;
+			}
+
+			/**
+			 * Lazily iterates the transitive predecessors for a given node,
+			 * ordered by their post-order IDs, walking one run at a time.
+			 * 
+			 * @param node
+			 *            The node to iterate the transitive predecessors for.
+			 * @return An iterator over the transitively accessed nodes.
+			 */
+			public Iterator<DAGNode> iterateTransitivePredecessors(DAGNode node) {
+				final int[] intervals = store_.getIntervals(node);
+				if (intervals == null)
+					return null;
+				return new Iterator<DAGNode>() {
+					private Iterator<DAGNode> current_ = Collections
+							.<DAGNode> emptyIterator();
+					private int run_ = 0;
+
+					@Override
+					public boolean hasNext() {
+						while (!current_.hasNext()) {
+							if (run_ >= intervals.length)
+								return false;
+							int end = intervals[run_ + 1];
+							current_ = inverseMap_
+									.subMap(intervals[run_],
+											(end == Integer.MAX_VALUE) ? end
+													: end + 1).values()
+									.iterator();
+							run_ += 2;
+						}
+						return true;
+					}
+
+					@Override
+					public DAGNode next() {
+						if (!hasNext())
+							throw new NoSuchElementException();
+						return current_.next();
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			/**
+			 * Asks if a given node is transitively higher than another.
+			 * 
+			 * @param node
+			 *            The base node.
+			 * @param otherNode
+			 *            The query node.
+			 * @return True if the otherNode is transitively accessed from node.
+			 */
+			public boolean isTransitive(DAGNode node, DAGNode otherNode) {
+				int otherID = store_.getID(otherNode);
+				if (otherID == IntervalStore.NO_ID)
+					return false;
+				return IntervalStore.contains(store_.getIntervals(node), otherID);
+			}
+
+			/**
+			 * Links the nodes with non-spanning tree intervals.
+			 * 
+			 * @param topologicalList
+			 *            The nodes sorted topologically.
+			 * @param predecessorTree
+			 *            If the interval schema is for predecessors (else
+			 *            ancestors).
+			 */
+			public void linkIntervals(List<DAGNode> topologicalList,
+					boolean predecessorTree) {
+				ListIterator<DAGNode> iter = null;
+				if (predecessorTree)
+					iter = topologicalList.listIterator(topologicalList.size());
+				else
+					iter = topologicalList.listIterator();
+				while ((predecessorTree && iter.hasPrevious())
+						|| (!predecessorTree && iter.hasNext())) {
+					DAGNode n = (predecessorTree) ? iter.previous() : iter.next();
+					Collection<DAGNode> transitiveNodes = getTransitiveNodes(n,
+							predecessorTree);
+					for (DAGNode edgeNode : transitiveNodes) {
+						if (edgeNode.equals(n) || edgeNode.isAnonymous())
+							continue;
+						addIntervals(n, edgeNode);
+					}
+				}
+			}
+
+			/**
+			 * Adds all intervals associated with interval node to base node and
+			 * propagates the changes to predecessors as much as necessary.
+			 * 
+			 * @param baseNode
+			 *            The node to add the intervals to.
+			 * @param intervalNode
+			 *            The node from which the intervals are added.
+			 * @param mirrorSchema
+			 *            The schema recording the opposite direction.
+			 */
+			public void propagateIntervalAddition(DAGNode baseNode,
+					DAGNode intervalNode, IntervalSchema mirrorSchema) {
+				Collection<DAGNode> predecessors = mirrorSchema
+						.getTransitivePredecessors(baseNode, true);
+				if (predecessors == null)
+					return;
+				int intervalID = store_.getID(intervalNode);
+				for (DAGNode predecessor : predecessors) {
+					// Already transitive nodes already have all the intervals
+					if (IntervalStore.contains(store_.getIntervals(predecessor),
+							intervalID))
+						continue;
+					addIntervals(predecessor, intervalNode);
+				}
+			}
+
+			/**
+			 * Removes an edge from the tree.
+			 * 
+			 * @param nodeObj
+			 *            The object of the edge.
+			 * @param nodeSubj
+			 *            The subject of the edge.
+			 * @param mirrorSchema
+			 *            The schema recording the opposite direction.
+			 * @param upwards
+			 *            If this schema records upwards (predecessor) intervals.
+			 */
+			public void removeEdge(DAGNode nodeObj, DAGNode nodeSubj,
+					IntervalSchema mirrorSchema, boolean upwards) {
+				Collection<DAGNode> predecessors = mirrorSchema
+						.getTransitivePredecessors(nodeObj, true);
+				if (predecessors == null)
+					return;
+
+				if (schemaLock_ == null)
+					schemaLock_ = new ReentrantLock();
+				schemaLock_.lock();
+				try {
+					// Remove the subject's intervals from everything that could
+					// reach it through the object
+					Set<DAGNode> affected = new HashSet<>();
+					for (DAGNode predecessor : predecessors)
+						if (removeIntervals(predecessor, nodeSubj))
+							affected.add(predecessor);
+
+					// Re-add the intervals still reachable through other paths
+					while (!affected.isEmpty())
+						readdIntervals(affected.iterator().next(), affected,
+								upwards, nodeObj, nodeSubj);
+				} finally {
+					schemaLock_.unlock();
+				}
+			}
 		}
 
-		/**
-		 * Assigns initial IDs and intervals to the set of nodes in a spanning
-		 * tree.
-		 * 
-		 * @param spanningTree
-		 *            The tree of nodes to assign IDs to.
-		 * @return The resulting IntervalSchema.
-		 */
-		public IntervalSchema assignIntervals(
-				Map<DAGNode, TreeNode> spanningTree) {
-			IntervalSchema intervalSchema = new IntervalSchema(
-					spanningTree.size() * 2, intervalIDKey_);
-			maxIndex_ = postOrderTraverse(virtualRoot_, 0, intervalIDKey_,
-					spanningTree);
-			recordID(virtualRoot_, maxIndex_,
-					new int[] { 0, Integer.MAX_VALUE });
-			return intervalSchema;
+	}
+
+	/**
+	 * Primitive storage of the post-order IDs and intervals of nodes, indexed
+	 * by the (dense) node ID. Intervals are stored as sorted, merged runs
+	 * flattened into a single array ({start0, end0, start1, end1, ...}) so
+	 * they can be binary searched. Nodes without a DAG ID (anonymous
+	 * functions) fall back to maps.
+	 * 
+	 * @author Sam Sarjant
+	 */
+	private static class IntervalStore implements Serializable {
+		private static final long serialVersionUID = 3318062446416512386L;
+		public static final int NO_ID = 0;
+		private Map<DAGNode, Integer> anonIDs_;
+		private Map<DAGNode, int[]> anonIntervals_;
+		/** Heap node ID -> post-order ID (also the serialised off-heap form). */
+		private int[] ids_;
+		private int[][] intervals_;
+		private boolean offHeap_;
+		/** Off-heap node ID -> post-order ID. */
+		private transient IntBuffer offHeapIDs_;
+
+		public IntervalStore(int size, boolean offHeap) {
+			size = Math.max(size, DAGNode.idCounter_ + 1);
+			offHeap_ = offHeap;
+			if (offHeap_)
+				offHeapIDs_ = allocateDirect(size);
+			else
+				ids_ = new int[size];
+			intervals_ = new int[size][];
+			anonIDs_ = new HashMap<>();
+			anonIntervals_ = new HashMap<>();
+		}
+
+		private static IntBuffer allocateDirect(int size) {
+			return ByteBuffer.allocateDirect(size * 4)
+					.order(ByteOrder.nativeOrder()).asIntBuffer();
 		}
 
 		/**
-		 * Gets all transitive predecessors for a given node, ordered by their
-		 * post-order IDs.
+		 * Ensures the arrays can hold a given node ID.
 		 * 
-		 * @param node
-		 *            The node to get the transitive predecessors for.
-		 * @param reversed
-		 *            If the order of elements should be reversed.
-		 * @return All transitively accessed nodes.
+		 * @param id
+		 *            The node ID to hold.
 		 */
-		public Collection<DAGNode> getTransitivePredecessors(DAGNode node,
-				boolean reversed) {
-			String predIDStr = node.getProperty(intervalIDKey_);
-			if (predIDStr == null)
-				return null;
-			int predID = Integer.parseInt(predIDStr);
-			Collection<int[]> intervals = schemaMap_.get(predID);
-			Collection<DAGNode> transitive = new TreeSet<>(new IDOrder(
-					intervalIDKey_, reversed));
-			for (int[] interval : intervals)
-				transitive.addAll(inverseMap_.subMap(interval[0],
-						interval[1] + 1).values());
+		private void ensureCapacity(int id) {
+			if (id < intervals_.length)
+				return;
+			int newSize = Math.max(id + 1, intervals_.length * 2);
+			intervals_ = Arrays.copyOf(intervals_, newSize);
+			if (offHeap_) {
+				IntBuffer newIDs = allocateDirect(newSize);
+				offHeapIDs_.rewind();
+				newIDs.put(offHeapIDs_);
+				offHeapIDs_ = newIDs;
+			} else
+				ids_ = Arrays.copyOf(ids_, newSize);
+		}
 
-			return transitive;
+		private void readObject(ObjectInputStream in) throws IOException,
+				ClassNotFoundException {
+			in.defaultReadObject();
+			if (offHeap_) {
+				offHeapIDs_ = allocateDirect(ids_.length);
+				offHeapIDs_.put(ids_);
+				ids_ = null;
+			}
+		}
+
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			if (offHeap_) {
+				ids_ = new int[offHeapIDs_.capacity()];
+				offHeapIDs_.rewind();
+				offHeapIDs_.get(ids_);
+			}
+			out.defaultWriteObject();
+			if (offHeap_)
+				ids_ = null;
 		}
 
 		/**
-		 * Asks if a given node is transitively higher than another.
+		 * Checks if a value falls within a set of runs.
 		 * 
-		 * @param node
-		 *            The base node.
-		 * @param otherNode
-		 *            The query node.
-		 * @return True if the otherNode is transitively accessed from node.
+		 * @param runs
+		 *            The sorted, disjoint runs to search (may be null).
+		 * @param value
+		 *            The value to search for.
+		 * @return True if the value is in one of the runs.
 		 */
-		public boolean isTransitive(DAGNode node, DAGNode otherNode) {
-			String predIDStr = node.getProperty(intervalIDKey_);
-			if (predIDStr == null)
-				return false;
-			int predID = Integer.parseInt(predIDStr);
-
-			String otherIDStr = otherNode.getProperty(intervalIDKey_);
-			if (otherIDStr == null)
+		public static boolean contains(int[] runs, int value) {
+			if (runs == null)
 				return false;
-			int otherID = Integer.parseInt(otherIDStr);
-
-			Collection<int[]> intervals = schemaMap_.get(predID);
-			for (int[] interval : intervals)
-				if (otherID >= interval[0] && otherID <= interval[1])
-					return true;
-			return false;
+			// Binary search for the last run starting at or before value
+			int low = 0;
+			int high = runs.length / 2 - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (runs[mid * 2] <= value)
+					low = mid + 1;
+				else
+					high = mid - 1;
+			}
+			return high >= 0 && value <= runs[high * 2 + 1];
 		}
 
 		/**
-		 * Links the nodes with non-spanning tree intervals.
+		 * Subtracts one set of runs from another.
 		 * 
-		 * @param topologicalList
-		 *            The nodes sorted topologically.
-		 * @param schema
-		 *            The interval schema to add to.
-		 * @param predecessorTree
-		 *            If the interval schema is for predecessors (else
-		 *            ancestors).
+		 * @param runs
+		 *            The runs to subtract from.
+		 * @param removed
+		 *            The runs to remove.
+		 * @return The resulting runs, or the same runs array if nothing was
+		 *         removed.
 		 */
-		public void linkIntervals(List<DAGNode> topologicalList,
-				boolean predecessorTree) {
-			ListIterator<DAGNode> iter = null;
-			if (predecessorTree)
-				iter = topologicalList.listIterator(topologicalList.size());
-			else
-				iter = topologicalList.listIterator();
-			while ((predecessorTree && iter.hasPrevious())
-					|| (!predecessorTree && iter.hasNext())) {
-				DAGNode n = (predecessorTree) ? iter.previous() : iter.next();
-				Collection<DAGNode> transitiveNodes = getTransitiveNodes(n,
-						predecessorTree);
-				for (DAGNode edgeNode : transitiveNodes) {
-					if (edgeNode.equals(n) || edgeNode.isAnonymous())
-						continue;
-					addIntervals(n, edgeNode);
+		public static int[] subtract(int[] runs, int[] removed) {
+			int[] result = new int[runs.length + removed.length];
+			int size = 0;
+			boolean changed = false;
+			int j = 0;
+			for (int i = 0; i < runs.length; i += 2) {
+				long start = runs[i];
+				long end = runs[i + 1];
+				// Skip removals entirely before this run
+				while (j < removed.length && removed[j + 1] < start)
+					j += 2;
+				int k = j;
+				while (start <= end && k < removed.length && removed[k] <= end) {
+					changed = true;
+					if (removed[k] > start) {
+						result = ensureLength(result, size + 2);
+						result[size++] = (int) start;
+						result[size++] = removed[k] - 1;
+					}
+					start = (long) removed[k + 1] + 1;
+					k += 2;
+				}
+				if (start <= end) {
+					result = ensureLength(result, size + 2);
+					result[size++] = (int) start;
+					result[size++] = (int) end;
 				}
 			}
+			if (!changed)
+				return runs;
+			return Arrays.copyOf(result, size);
+		}
+
+		private static int[] ensureLength(int[] array, int length) {
+			if (array.length >= length)
+				return array;
+			return Arrays.copyOf(array, Math.max(length, array.length * 2));
 		}
 
 		/**
-		 * Adds all intervals associated with interval node to base node and
-		 * propagates the changes to predecessors as much as necessary.
+		 * Unions two sets of runs, merging overlapping and adjacent runs.
 		 * 
-		 * @param baseNode
-		 *            The node to add the intervals to.
-		 * @param intervalNode
-		 *            The node from which the intervals are added.
+		 * @param runs
+		 *            The base runs.
+		 * @param added
+		 *            The runs to add.
+		 * @return The resulting runs, or the same base array if the union
+		 *         added nothing.
 		 */
-		public void propagateIntervalAddition(DAGNode baseNode,
-				DAGNode intervalNode, IntervalSchema mirrorSchema,
-				boolean removeFirst) {
-			Collection<DAGNode> predecessors = mirrorSchema
-					.getTransitivePredecessors(baseNode, true);
-			for (DAGNode predecessor : predecessors) {
-				// TODO Can stop early if ordered correctly.
-				addIntervals(predecessor, intervalNode);
+		public static int[] union(int[] runs, int[] added) {
+			int[] result = new int[runs.length + added.length];
+			int size = 0;
+			int i = 0, j = 0;
+			while (i < runs.length || j < added.length) {
+				int start, end;
+				if (j >= added.length
+						|| (i < runs.length && runs[i] <= added[j])) {
+					start = runs[i];
+					end = runs[i + 1];
+					i += 2;
+				} else {
+					start = added[j];
+					end = added[j + 1];
+					j += 2;
+				}
+				if (size > 0 && (long) result[size - 1] + 1 >= start) {
+					if (end > result[size - 1])
+						result[size - 1] = end;
+				} else {
+					result[size++] = start;
+					result[size++] = end;
+				}
 			}
+			if (size == runs.length && Arrays.equals(runs, Arrays.copyOf(
+					result, size)))
+				return runs;
+			return Arrays.copyOf(result, size);
 		}
 
 		/**
-		 * Removes an edge from the tree.
+		 * Remaps the interval endpoints that fall between two fixed IDs after
+		 * the IDs between them have been renumbered. Starts (which always sit
+		 * directly after an ID) follow the preceding ID and ends follow the ID
+		 * they cover.
 		 * 
-		 * @param nodeObj
-		 *            The object of the edge.
-		 * @param nodeSubj
-		 *            The subject of the edge.
-		 * @param mirrorSchema
+		 * @param lowerBound
+		 *            The fixed lower ID.
+		 * @param upperBound
+		 *            The fixed upper ID.
+		 * @param idMap
+		 *            The old to new IDs, including both bounds.
 		 */
-		public void removeEdge(DAGNode nodeObj, DAGNode nodeSubj,
-				IntervalSchema mirrorSchema) {
-			// Propagate the intervals
-			Collection<DAGNode> predecessors = mirrorSchema
-					.getTransitivePredecessors(nodeObj, true);
+		public void remapIntervals(int lowerBound, int upperBound,
+				TreeMap<Integer, Integer> idMap) {
+			for (int i = 0; i < intervals_.length; i++)
+				if (intervals_[i] != null)
+					intervals_[i] = remapRuns(intervals_[i], lowerBound,
+							upperBound, idMap);
+			for (Map.Entry<DAGNode, int[]> entry : anonIntervals_.entrySet())
+				entry.setValue(remapRuns(entry.getValue(), lowerBound,
+						upperBound, idMap));
+		}
 
-			if (schemaLock_ == null)
-				schemaLock_ = new ReentrantLock();
-			schemaLock_.lock();
-			for (DAGNode predecessor : predecessors) {
-				// Remove the subjIntervals from the obj
-				removeIntervals(predecessor, nodeSubj);
-				Collection<DAGNode> transitives = getTransitiveNodes(
-						predecessor, intervalIDKey_.equals(PREDECESSOR_ID));
-				for (DAGNode n : transitives)
-					addIntervals(predecessor, n);
-			}
-			schemaLock_.unlock();
+		private static int[] remapRuns(int[] runs, int lowerBound,
+				int upperBound, TreeMap<Integer, Integer> idMap) {
+			int[] remapped = runs;
+			for (int i = 0; i < runs.length; i++) {
+				int value = runs[i];
+				int newValue = value;
+				if (i % 2 == 0 && value > lowerBound && value <= upperBound)
+					newValue = idMap.get(idMap.lowerKey(value)) + 1;
+				else if (i % 2 == 1 && value >= lowerBound
+						&& value < upperBound)
+					newValue = idMap.get(idMap.floorKey(value));
+				if (newValue != value) {
+					if (remapped == runs)
+						remapped = Arrays.copyOf(runs, runs.length);
+					remapped[i] = newValue;
+				}
+			}
+			return remapped;
+		}
+
+		public int getID(DAGNode node) {
+			int id = node.getID();
+			if (id < 0) {
+				Integer anonID = anonIDs_.get(node);
+				return (anonID == null) ? NO_ID : anonID;
+			}
+			if (id >= intervals_.length)
+				return NO_ID;
+			return (offHeap_) ? offHeapIDs_.get(id) : ids_[id];
+		}
+
+		public int[] getIntervals(DAGNode node) {
+			int id = node.getID();
+			if (id < 0)
+				return anonIntervals_.get(node);
+			if (id >= intervals_.length)
+				return null;
+			return intervals_[id];
+		}
+
+		public void setID(DAGNode node, int postID) {
+			int id = node.getID();
+			if (id < 0) {
+				anonIDs_.put(node, postID);
+				return;
+			}
+			ensureCapacity(id);
+			if (offHeap_)
+				offHeapIDs_.put(id, postID);
+			else
+				ids_[id] = postID;
+		}
+
+		public void setIntervals(DAGNode node, int[] runs) {
+			int id = node.getID();
+			if (id < 0) {
+				anonIntervals_.put(node, runs);
+				return;
+			}
+			ensureCapacity(id);
+			intervals_[id] = runs;
 		}
 	}
 
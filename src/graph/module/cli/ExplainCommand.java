@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.module.cli;
+
+import graph.core.Node;
+import graph.core.cli.DAGPortHandler;
+import graph.inference.QueryExplanation;
+import graph.inference.QueryObject;
+import graph.module.QueryModule;
+
+import java.util.List;
+
+import core.Command;
+
+public class ExplainCommand extends Command {
+	private static final String ANALYZE = "analyze";
+
+	@Override
+	public String helpText() {
+		return "{0} [analyze] (X Y ...) : Explains how a query is routed "
+				+ "through the query module: the worker answering it, any "
+				+ "regex redirect, whether the interval schema is used and "
+				+ "the conjunct order of and queries. With analyze, the query "
+				+ "is run (bypassing the cache) and the time, results and "
+				+ "edges touched of every sub-query are listed, indented by "
+				+ "recursion depth.";
+	}
+
+	@Override
+	public String shortDescription() {
+		return "Explains the plan and cost of a query.";
+	}
+
+	@Override
+	protected void executeImpl() {
+		DAGPortHandler dagHandler = (DAGPortHandler) handler;
+		QueryModule queryModule = (QueryModule) dagHandler.getDAG().getModule(
+				QueryModule.class);
+		if (queryModule == null) {
+			print("-1|Query module is not in use for this DAG.\n");
+			return;
+		}
+
+		if (data.isEmpty()) {
+			printErrorNoData();
+			return;
+		}
+
+		String query = data.trim();
+		boolean analyze = query.startsWith(ANALYZE);
+		if (analyze)
+			query = query.substring(ANALYZE.length()).trim();
+		Node[] args = dagHandler.getDAG().parseNodes(query, null, false, false);
+		if (args == null) {
+			print("-1|Could not parse arguments.\n");
+			return;
+		}
+
+		QueryObject qo = new QueryObject(args);
+		QueryExplanation explanation = (analyze) ? queryModule
+				.explainAnalyze(qo) : queryModule.explain(qo);
+		List<String> lines = explanation.getLines();
+		print(lines.size() + "|");
+		for (String line : lines)
+			print(line + "|");
+		print("\n");
+	}
+}
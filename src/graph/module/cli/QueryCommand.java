@@ -12,6 +12,7 @@ package graph.module.cli;
 
 import graph.core.Node;
 import graph.core.cli.CollectionCommand;
+import graph.core.cli.CycDAGPortHandler;
 import graph.core.cli.DAGPortHandler;
 import graph.inference.QueryObject;
 import graph.inference.Substitution;
@@ -61,6 +62,11 @@ public class QueryCommand extends CollectionCommand {
 		}
 
 		QueryObject qo = new QueryObject(args);
+		// Only find the results up to the end of the range
+		if (rangeEnd_ != Integer.MAX_VALUE
+				&& dagHandler instanceof CycDAGPortHandler
+				&& ((CycDAGPortHandler) dagHandler).canTruncateResults())
+			qo.setLimit(rangeEnd_);
 		Collection<Substitution> substitutions = queryModule.execute(qo);
 
 		// Sort
@@ -55,7 +55,6 @@ public class SemanticSiblingsCommand extends CollectionCommand {
 		}
 
 		Node node = dag.findDAGNode(data);
-		Collection<Node> parentsA = semanticModule.getParents(node);
 
 		// First, get all siblings
 		Collection<Node> siblings = new HashSet<Node>(
@@ -65,7 +64,7 @@ public class SemanticSiblingsCommand extends CollectionCommand {
 		// Then, order by semantic similarity
 		WeightedSet<Node> weighted = new WeightedSet<>(siblings.size());
 		for (Node n : siblings)
-			weighted.add(n, semanticModule.semanticSimilarity(parentsA, n));
+			weighted.add(n, semanticModule.semanticSimilarity(node, n));
 		SortedSet<Node> ordered = weighted.getOrdered();
 		Collection<Node> results = dagHandler.postProcess(ordered, rangeStart_,
 				rangeEnd_);
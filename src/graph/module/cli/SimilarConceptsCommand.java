@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.module.cli;
+
+import graph.core.DirectedAcyclicGraph;
+import graph.core.Node;
+import graph.core.cli.DAGPortHandler;
+import graph.module.SemanticSimilarityModule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import util.collection.WeightedSet;
+import core.Command;
+
+public class SimilarConceptsCommand extends Command {
+	/** The number of concepts returned if none is given. */
+	public static final int DEFAULT_K = 10;
+
+	@Override
+	public String helpText() {
+		return "{0} concept [k] : Returns the k (default " + DEFAULT_K
+				+ ") concepts most semantically similar to concept, "
+				+ "most similar first, in the format <Node>,<Similarity>.";
+	}
+
+	@Override
+	public String shortDescription() {
+		return "Returns the concepts most semantically similar to a concept.";
+	}
+
+	@Override
+	protected void executeImpl() {
+		DAGPortHandler dagHandler = (DAGPortHandler) handler;
+		DirectedAcyclicGraph dag = dagHandler.getDAG();
+		SemanticSimilarityModule semanticModule = (SemanticSimilarityModule) dag
+				.getModule(SemanticSimilarityModule.class);
+		if (semanticModule == null) {
+			print("-1|Semantic similarity module is not in use for this DAG.\n");
+			return;
+		}
+
+		if (data.isEmpty()) {
+			printErrorNoData();
+			return;
+		}
+
+		ArrayList<String> split = new ArrayList<>(Arrays.asList(data.trim()
+				.split("\\s+")));
+		int k = DEFAULT_K;
+		if (split.size() > 1) {
+			try {
+				k = Integer.parseInt(split.get(split.size() - 1));
+				split.remove(split.size() - 1);
+			} catch (NumberFormatException e) {
+			}
+		}
+		StringBuilder concept = new StringBuilder();
+		for (String s : split)
+			concept.append(s).append(' ');
+
+		Node[] nodes = dag.parseNodes(concept.toString().trim(), null, false,
+				true);
+		if (nodes == null || nodes.length != 1 || nodes[0] == null) {
+			print("-1|Could not parse concept.\n");
+			return;
+		}
+
+		WeightedSet<Node> similar = semanticModule.getMostSimilar(nodes[0], k);
+		print(similar.size() + "|");
+		for (Node n : similar.getOrdered())
+			print(dagHandler.textIDObject(n) + "," + similar.getWeight(n)
+					+ "|");
+		print("\n");
+	}
+}
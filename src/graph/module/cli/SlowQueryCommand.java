@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package graph.module.cli;
+
+import graph.core.cli.DAGPortHandler;
+import graph.inference.QueryExplanation;
+import graph.inference.SlowQueryLog;
+import graph.module.QueryModule;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import core.Command;
+
+public class SlowQueryCommand extends Command {
+	@Override
+	public String helpText() {
+		return "{0} [threshold N|capacity N|clear] : Returns the logged "
+				+ "queries that took longer than the slow query threshold, "
+				+ "most recent first, each followed by its plan. threshold "
+				+ "sets the threshold in milliseconds (negative to disable "
+				+ "the log), capacity sets the number of queries kept and "
+				+ "clear empties the log.";
+	}
+
+	@Override
+	public String shortDescription() {
+		return "Shows or configures the slow query log.";
+	}
+
+	@Override
+	protected void executeImpl() {
+		DAGPortHandler dagHandler = (DAGPortHandler) handler;
+		QueryModule queryModule = (QueryModule) dagHandler.getDAG().getModule(
+				QueryModule.class);
+		if (queryModule == null) {
+			print("-1|Query module is not in use for this DAG.\n");
+			return;
+		}
+		SlowQueryLog log = queryModule.getSlowQueryLog();
+
+		if (!data.isEmpty()) {
+			String[] split = data.trim().split("\\s+");
+			if (split[0].equalsIgnoreCase("clear")) {
+				log.clear();
+				print("1|Slow query log cleared.\n");
+				return;
+			}
+			try {
+				if (split[0].equalsIgnoreCase("threshold"))
+					log.setThresholdMillis(Long.parseLong(split[1]));
+				else if (split[0].equalsIgnoreCase("capacity"))
+					log.setCapacity(Integer.parseInt(split[1]));
+				else {
+					print("-1|Unknown setting '" + split[0] + "'.\n");
+					return;
+				}
+			} catch (Exception e) {
+				print("-1|Expected: threshold|capacity N\n");
+				return;
+			}
+			print("1|Threshold " + log.getThresholdMillis() + "ms, capacity "
+					+ log.getCapacity() + ".\n");
+			return;
+		}
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		List<QueryExplanation> entries = log.getEntries();
+		print(entries.size() + "|");
+		for (QueryExplanation entry : entries) {
+			print(format.format(new Date(entry.getTimestamp())));
+			for (String line : entry.getLines())
+				print("\n  " + line);
+			print("|");
+		}
+		print("\n");
+	}
+}
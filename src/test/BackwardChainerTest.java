@@ -10,192 +10,230 @@
  ******************************************************************************/
 package test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
-import graph.core.DirectedAcyclicGraph;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import graph.core.CommonConcepts;
+import graph.core.CycDAG;
+import graph.core.DAGNode;
+import graph.core.Node;
+import graph.core.OntologyFunction;
+import graph.core.StringNode;
+import graph.inference.HornClause;
+import graph.inference.Literal;
+import graph.inference.Substitution;
+import graph.inference.VariableNode;
 import graph.inference.module.BackwardChainer;
 import graph.module.QueryModule;
 
 import java.io.File;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Test;
 
 public class BackwardChainerTest {
-	private DirectedAcyclicGraph dag_;
+	private CycDAG dag_;
 	private BackwardChainer sut_;
+	private Node creator_;
+	private VariableNode x_ = new VariableNode("?X");
+	private VariableNode y_ = new VariableNode("?Y");
+	private VariableNode z_ = new VariableNode("?Z");
 
 	@Before
 	public void setUp() throws Exception {
-		dag_ = new DirectedAcyclicGraph(new File("test"));
+		dag_ = new CycDAG(new File("test"));
 		QueryModule queryModule = (QueryModule) dag_
 				.getModule(QueryModule.class);
 		assertNotNull(queryModule);
+		CommonConcepts.initialise(dag_);
 		sut_ = new BackwardChainer(queryModule);
+		creator_ = new StringNode("TestCreator");
+		dag_.noChecks_ = true;
 	}
 
 	@After
 	public void tearDown() throws Exception {
+		dag_.noChecks_ = false;
 		dag_.clear();
 	}
 
-//	@Test
-//	public void testProveQuery() {
-//		DAGNode genls = new DAGNode("genls");
-//		DAGNode dog = new DAGNode("Dog");
-//		DAGNode canis = new DAGNode("CanisGenus");
-//		assertFalse(sut_.query(genls, dog, canis).size() > 0);
-//
-//		// Add assertion
-//		dag_.addEdge(new NamedEdge(genls, dog, canis));
-//		assertTrue(sut_.query(genls, dog, canis).size() > 0);
-//
-//		// Add transitivity
-//		DAGNode mammal = new DAGNode("Mammal");
-//		dag_.addEdge(new NamedEdge(genls, canis, mammal));
-//		VariableNode x = new VariableNode("?X");
-//		VariableNode y = new VariableNode("?Y");
-//		VariableNode z = new VariableNode("?Z");
-//		HornClause transitivity = new HornClause(new Literal(genls, x, z),
-//				new Literal(genls, x, y), new Literal(genls, y, z));
-//		sut_.addRule(transitivity);
-//		assertTrue(sut_.query(genls, dog, mammal).size() > 0);
-//
-//		// Further transitivity
-//		DAGNode animal = new DAGNode("Animal");
-//		dag_.addEdge(new NamedEdge(genls, mammal, animal));
-//		assertTrue(sut_.query(genls, dog, animal).size() > 0);
-//
-//		DAGNode wolf = new DAGNode("Wolf");
-//		dag_.addEdge(new NamedEdge(genls, wolf, canis));
-//		assertTrue(sut_.query(genls, wolf, animal).size() > 0);
-//		assertFalse(sut_.query(genls, wolf, dog).size() > 0);
-//
-//		// Self genls
-//		HornClause selfGenls = new HornClause(new Literal(genls, x, x));
-//		sut_.addRule(selfGenls);
-//		assertTrue(sut_.query(genls, dog, dog).size() > 0);
-//		assertTrue(sut_.query(genls, animal, animal).size() > 0);
-//		assertTrue(sut_.query(genls, dog, animal).size() > 0);
-//
-//		// Isa clauses
-//		DAGNode isa = new DAGNode("isa");
-//		HornClause transIsa = new HornClause(new Literal(isa, x, z),
-//				new Literal(isa, x, y), new Literal(genls, y, z));
-//		sut_.addRule(transIsa);
-//		DAGNode fido = new DAGNode("fido");
-//		dag_.addEdge(new NamedEdge(isa, fido, dog));
-//		assertTrue(sut_.query(isa, fido, dog).size() > 0);
-//		assertTrue(sut_.query(isa, fido, mammal).size() > 0);
-//		assertTrue(sut_.query(isa, fido, animal).size() > 0);
-//
-//		// 'Or' clause
-//
-//		// 'Not' clause
-//
-//		// Disjoint check
-//		DAGNode disjoint = new DAGNode("disjointWith");
-//		HornClause disjointRule = new HornClause(new Literal(disjoint, x, z),
-//				new Literal(disjoint, x, y), new Literal(genls, z, y));
-//		sut_.addRule(disjointRule);
-//		HornClause disjointSymmetry = new HornClause(
-//				new Literal(disjoint, x, y), new Literal(disjoint, y, x));
-//		sut_.addRule(disjointSymmetry);
-//		DAGNode plant = new DAGNode("plant");
-//		dag_.addEdge(new NamedEdge(disjoint, animal, plant));
-//		assertTrue(sut_.query(disjoint, animal, plant).size() > 0);
-//		assertTrue(sut_.query(disjoint, plant, animal).size() > 0);
-//		assertTrue(sut_.query(disjoint, dog, plant).size() > 0);
-//		assertTrue(sut_.query(disjoint, wolf, plant).size() > 0);
-//		assertFalse(sut_.query(disjoint, dog, animal).size() > 0);
-//		assertFalse(sut_.query(disjoint, dog, wolf).size() > 0);
-//		assertFalse(sut_.query(disjoint, dog, dog).size() > 0);
-//
-//		DAGNode tree = new DAGNode("tree");
-//		dag_.addEdge(new NamedEdge(genls, tree, plant));
-//		assertTrue(sut_.query(disjoint, animal, tree).size() > 0);
-//		assertTrue(sut_.query(disjoint, tree, animal).size() > 0);
-//		assertTrue(sut_.query(disjoint, dog, tree).size() > 0);
-//	}
-//
-//	@Test
-//	public void testAskQuery() throws Exception {
-//		DAGNode genls = new DAGNode("genls");
-//		DAGNode dog = new DAGNode("Dog");
-//		DAGNode canis = new DAGNode("CanisGenus");
-//		VariableNode x = new VariableNode("?X");
-//		Collection<Substitution> results = sut_.query(genls, dog, x);
-//		assertNull(results);
-//
-//		// Add assertion
-//		results = sut_.query(genls, dog, canis);
-//		assertNotNull(results);
-//		assertEquals(results.size(), 1);
-//		assertTrue(results.contains(new Substitution(x.toString(), canis)));
-//
-//		results = sut_.query(genls, x, dog);
-//		assertNull(results);
-//		results = sut_.query(genls, x, canis);
-//		assertNotNull(results);
-//		assertEquals(results.size(), 1);
-//		assertTrue(results.contains(new Substitution(x.toString(), dog)));
-//
-//		// Add transitivity
-//		DAGNode mammal = new DAGNode("Mammal");
-//		dag_.addEdge(new NamedEdge(genls, canis, mammal));
-//		VariableNode y = new VariableNode("?Y");
-//		VariableNode z = new VariableNode("?Z");
-//		HornClause transitivity = new HornClause(new Literal(genls, x, z),
-//				new Literal(genls, x, y), new Literal(genls, y, z));
-//		sut_.addRule(transitivity);
-//		results = sut_.query(genls, dog, x);
-//		assertNotNull(results);
-//		assertEquals(results.size(), 2);
-//		assertTrue(results.contains(new Substitution(x.toString(), canis)));
-//		assertTrue(results.contains(new Substitution(x.toString(), mammal)));
-//		results = sut_.query(genls, x, mammal);
-//		assertNotNull(results);
-//		assertEquals(results.size(), 2);
-//		assertTrue(results.contains(new Substitution(x.toString(), canis)));
-//		assertTrue(results.contains(new Substitution(x.toString(), dog)));
-//
-//		// Further transitivity
-//		DAGNode animal = new DAGNode("Animal");
-//		dag_.addEdge(new NamedEdge(genls, mammal, animal));
-//		results = sut_.query(genls, dog, y);
-//		assertNotNull(results);
-//		assertEquals(results.size(), 3);
-//		assertTrue(results.contains(new Substitution(y.toString(), canis)));
-//		assertTrue(results.contains(new Substitution(y.toString(), mammal)));
-//		assertTrue(results.contains(new Substitution(y.toString(), animal)));
-//		results = sut_.query(genls, canis, y);
-//		assertNotNull(results);
-//		assertEquals(results.size(), 2);
-//		assertTrue(results.contains(new Substitution(y.toString(), mammal)));
-//		assertTrue(results.contains(new Substitution(y.toString(), animal)));
-//
-//		DAGNode wolf = new DAGNode("Wolf");
-//		dag_.addEdge(new NamedEdge(genls, wolf, canis));
-//		results = sut_.query(genls, dog, y);
-//		assertNotNull(results);
-//		assertEquals(results.size(), 3);
-//		assertTrue(results.contains(new Substitution(y.toString(), canis)));
-//		assertTrue(results.contains(new Substitution(y.toString(), mammal)));
-//		assertTrue(results.contains(new Substitution(y.toString(), animal)));
-//		results = sut_.query(genls, x, canis);
-//		assertNotNull(results);
-//		assertEquals(results.size(), 2);
-//		assertTrue(results.contains(new Substitution(x.toString(), dog)));
-//		assertTrue(results.contains(new Substitution(x.toString(), wolf)));
-//
-//		// Self genls
-//		HornClause selfGenls = new HornClause(new Literal(genls, x, x));
-//		sut_.addRule(selfGenls);
-//		results = sut_.query(genls, dog, x);
-//		assertNotNull(results);
-//		assertEquals(results.size(), 4);
-//		assertTrue(results.contains(new Substitution(x.toString(), dog)));
-//		assertTrue(results.contains(new Substitution(x.toString(), canis)));
-//		assertTrue(results.contains(new Substitution(x.toString(), mammal)));
-//		assertTrue(results.contains(new Substitution(x.toString(), animal)));
-//	}
+	private DAGNode node(String name) {
+		return (DAGNode) dag_.findOrCreateNode(name, creator_, true);
+	}
+
+	private void assertEdge(Node... nodes) {
+		dag_.findOrCreateEdge(nodes, creator_, true);
+	}
+
+	private Set<Node> bindings(Collection<Substitution> results,
+			VariableNode var) {
+		assertNotNull(results);
+		Set<Node> bound = new HashSet<>();
+		for (Substitution sub : results)
+			bound.add(sub.getSubstitution(var.toString()));
+		return bound;
+	}
+
+	private Set<Node> set(Node... nodes) {
+		Set<Node> set = new HashSet<>();
+		for (Node n : nodes)
+			set.add(n);
+		return set;
+	}
+
+	@Test
+	public void testLeftRecursion() {
+		DAGNode parent = node("parentOf");
+		DAGNode ancestor = node("ancestorOf");
+		DAGNode a = node("NodeA");
+		DAGNode b = node("NodeB");
+		DAGNode c = node("NodeC");
+		DAGNode d = node("NodeD");
+		DAGNode e = node("NodeE");
+		assertEdge(parent, a, b);
+		assertEdge(parent, b, c);
+		assertEdge(parent, c, d);
+		// A cycle back to the start
+		assertEdge(parent, d, a);
+
+		sut_.addRule(new HornClause(new Literal(ancestor, x_, z_),
+				new Literal(ancestor, x_, y_), new Literal(parent, y_, z_)));
+		sut_.addRule(new HornClause(new Literal(ancestor, x_, y_),
+				new Literal(parent, x_, y_)));
+		assertEquals(set(a, b, c, d), bindings(sut_.query(ancestor, a, x_), x_));
+		assertEquals(set(a, b, c, d), bindings(sut_.query(ancestor, x_, c), x_));
+		assertEquals(16, sut_.query(ancestor, x_, y_).size());
+		assertEquals(1, sut_.query(ancestor, b, a).size());
+		assertNull(sut_.query(ancestor, a, e));
+		assertEquals(0, sut_.query(ancestor, e, x_).size());
+
+		// Repeated variables
+		assertEquals(set(a, b, c, d), bindings(sut_.query(ancestor, x_, x_),
+				x_));
+	}
+
+	@Test
+	public void testSymmetricTransitive() {
+		DAGNode related = node("relatedTo");
+		DAGNode[] nodes = new DAGNode[8];
+		for (int i = 0; i < nodes.length; i++)
+			nodes[i] = node("Item" + i);
+		for (int i = 1; i < nodes.length; i++)
+			assertEdge(related, nodes[i - 1], nodes[i]);
+		DAGNode loner = node("Loner");
+
+		// Naive chaining loops forever on these
+		sut_.addRule(new HornClause(new Literal(related, x_, y_),
+				new Literal(related, y_, x_)));
+		sut_.addRule(new HornClause(new Literal(related, x_, z_),
+				new Literal(related, x_, y_), new Literal(related, y_, z_)));
+		assertEquals(set(nodes), bindings(sut_.query(related, nodes[3], x_),
+				x_));
+		assertEquals(set(nodes), bindings(sut_.query(related, x_, nodes[0]),
+				x_));
+		assertEquals(64, sut_.query(related, x_, y_).size());
+		assertEquals(1, sut_.query(related, nodes[7], nodes[0]).size());
+		assertNull(sut_.query(related, nodes[0], loner));
+	}
+
+	@Test
+	public void testRulesAndFacts() {
+		DAGNode genls = CommonConcepts.GENLS.getNode(dag_);
+		DAGNode isaRule = node("isaViaRule");
+		DAGNode dog = node("Dog");
+		DAGNode canis = node("CanisGenus");
+		DAGNode mammal = node("Mammal");
+		DAGNode fido = node("Fido");
+		assertEdge(genls, dog, canis);
+		assertEdge(genls, canis, mammal);
+		assertEdge(isaRule, fido, dog);
+
+		// Base facts come from the query module, genls transitivity included
+		sut_.addRule(new HornClause(new Literal(isaRule, x_, z_),
+				new Literal(isaRule, x_, y_), new Literal(genls, y_, z_)));
+		assertEquals(set(dog, canis, mammal), bindings(
+				sut_.query(isaRule, fido, x_), x_));
+
+		// Facts with variables
+		sut_.addRule(new HornClause(new Literal(isaRule, x_, x_)));
+		assertEquals(1, sut_.query(isaRule, mammal, mammal).size());
+		assertEquals(set(fido, dog, canis, mammal), bindings(
+				sut_.query(isaRule, x_, mammal), x_));
+		Collection<Substitution> results = sut_.query(isaRule, y_, x_);
+		assertTrue(bindings(results, y_).contains(fido));
+	}
+
+	@Test
+	public void testFindPertinentClauses() {
+		DAGNode likes = node("likes");
+		DAGNode food = node("food");
+		DAGNode fido = node("Fido");
+		DAGNode rex = node("Rex");
+		DAGNode bone = node("Bone");
+		HornClause fidoRule = new HornClause(new Literal(likes, fido, x_),
+				new Literal(food, x_));
+		HornClause boneFact = new HornClause(new Literal(likes, x_, bone));
+		HornClause rexRule = new HornClause(new Literal(likes, rex, x_),
+				new Literal(food, x_), new Literal(likes, fido, x_));
+		sut_.addRule(rexRule);
+		sut_.addRule(fidoRule);
+		sut_.addRule(boneFact);
+
+		// Ranked by weight, then indexed by first argument
+		Collection<HornClause> clauses = sut_.findPertinentClauses(
+				new Literal(likes, y_, z_), 0);
+		Iterator<HornClause> iter = clauses.iterator();
+		assertEquals(3, clauses.size());
+		assertEquals(boneFact.getHead(), iter.next().getHead());
+		assertEquals(fidoRule, iter.next());
+		assertEquals(rexRule, iter.next());
+		clauses = sut_.findPertinentClauses(new Literal(likes, fido, z_), 0);
+		assertEquals(2, clauses.size());
+		assertTrue(clauses.contains(fidoRule));
+		assertEquals(1, sut_.findPertinentClauses(new Literal(likes, bone, z_),
+				0).size());
+
+		assertEdge(food, bone);
+		assertEquals(set(bone), bindings(sut_.query(likes, rex, x_), x_));
+		// The fact leaves the variable unbound
+		Set<Node> likers = bindings(sut_.query(likes, x_, bone), x_);
+		assertEquals(3, likers.size());
+		assertTrue(likers.containsAll(set(fido, rex)));
+	}
+
+	@Test
+	public void testBudgets() {
+		DAGNode natural = node("naturalNumber");
+		DAGNode succFn = node("SuccFn");
+		DAGNode zero = node("Zero");
+		DAGNode deeper = node("deeper");
+
+		// Infinitely many answers
+		sut_.addRule(new HornClause(new Literal(natural, zero)));
+		sut_.addRule(new HornClause(new Literal(natural, new OntologyFunction(
+				succFn, x_)), new Literal(natural, x_)));
+		assertEquals(1, sut_.query(natural,
+				new OntologyFunction(succFn, new OntologyFunction(succFn,
+						zero))).size());
+		sut_.setMaxDepth(10);
+		assertEquals(11, sut_.query(natural, x_).size());
+
+		// Infinitely many subgoals
+		sut_.addRule(new HornClause(new Literal(deeper, x_), new Literal(
+				deeper, new OntologyFunction(succFn, x_))));
+		assertNull(sut_.query(deeper, zero));
+
+		// Out of time
+		sut_.setMaxDepth(2000);
+		sut_.setTimeBudget(1);
+		long start = System.currentTimeMillis();
+		assertTrue(sut_.query(natural, x_).size() < 2000);
+		assertTrue(System.currentTimeMillis() - start < 5000);
+	}
 }
@@ -18,6 +18,8 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import graph.core.CommonConcepts;
 import graph.core.CycDAG;
+import graph.core.DAGEdge;
+import graph.core.DAGObject;
 import graph.core.DisjointErrorEdge;
 import graph.core.ErrorEdge;
 import graph.core.DAGNode;
@@ -27,8 +29,19 @@ import graph.core.OntologyFunction;
 import graph.core.PrimitiveNode;
 import graph.core.SemanticArgErrorEdge;
 import graph.core.StringNode;
+import graph.inference.Substitution;
+import graph.inference.VariableNode;
+import graph.module.QueryModule;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.After;
 import org.junit.Before;
@@ -340,6 +353,96 @@ public class CycDAGTest {
 		sut_.removeEdge(edge);
 	}
 
+	@Test
+	public void testConcurrentWriters() throws Exception {
+		final Node creator = new StringNode("TestCreator");
+		final Node isa = CommonConcepts.ISA.getNode(sut_);
+		Node genls = CommonConcepts.GENLS.getNode(sut_);
+		Node collection = CommonConcepts.COLLECTION.getNode(sut_);
+		final Node dog = sut_.findOrCreateNode("Dog", creator, true);
+		final Node cat = sut_.findOrCreateNode("Cat", creator, true);
+		final Node mammal = sut_.findOrCreateNode("Mammal", creator, true);
+		for (Node n : new Node[] { dog, cat, mammal })
+			assertEdge(sut_.findOrCreateEdge(new Node[] { isa, n, collection },
+					creator, true));
+		assertEdge(sut_.findOrCreateEdge(new Node[] { genls, dog, mammal },
+				creator, true));
+		assertEdge(sut_.findOrCreateEdge(new Node[] { genls, cat, mammal },
+				creator, true));
+		assertEdge(sut_.findOrCreateEdge(new Node[] {
+				CommonConcepts.DISJOINTWITH.getNode(sut_), cat, dog }, creator,
+				true));
+		final int numInstances = 200;
+		final Node[] instances = new Node[numInstances];
+		for (int i = 0; i < numInstances; i++)
+			instances[i] = sut_.findOrCreateNode("Pet" + i, creator, true);
+
+		// Pairs of writers race to assert disjoint collections
+		final List<Throwable> errors = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> writers = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final boolean dogFirst = t % 2 == 0;
+			writers.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (Node instance : instances) {
+							Node first = (dogFirst) ? dog : cat;
+							Node second = (dogFirst) ? cat : dog;
+							sut_.findOrCreateEdge(new Node[] { isa, instance,
+									first }, creator, true);
+							sut_.findOrCreateEdge(new Node[] { isa, instance,
+									second }, creator, true);
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			});
+		}
+
+		// A reader only ever sees the instances grow
+		final QueryModule querier = (QueryModule) sut_
+				.getModule(QueryModule.class);
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					int previous = 0;
+					while (writing.get()) {
+						Collection<Substitution> results = querier.execute(
+								isa, new VariableNode("?X"), mammal);
+						int size = (results == null) ? 0 : results.size();
+						assertTrue(size >= previous);
+						previous = size;
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			}
+		};
+		reader.start();
+		for (Thread writer : writers)
+			writer.start();
+		for (Thread writer : writers)
+			writer.join();
+		writing.set(false);
+		reader.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+
+		// Every instance is in exactly one of the disjoint collections
+		for (Node instance : instances) {
+			boolean isDog = sut_.findEdge(isa, instance, dog) != null;
+			boolean isCat = sut_.findEdge(isa, instance, cat) != null;
+			assertTrue(instance.toString(), isDog ^ isCat);
+		}
+		Collection<Substitution> results = querier.execute(isa,
+				new VariableNode("?X"), mammal);
+		assertEquals(numInstances, results.size());
+	}
+
 	private void assertEdge(Edge edge) {
 		assertFalse(edge.toString(), edge instanceof ErrorEdge);
 	}
@@ -375,4 +478,70 @@ public class CycDAGTest {
 		assertEquals(nodes[0], CommonConcepts.NOT.getNode(sut_));
 		assertTrue(nodes[1] instanceof OntologyFunction);
 	}
+
+	@Test
+	public void testPipelinedAssertionLoad() throws Exception {
+		File assertionFile = File.createTempFile("assertions", ".txt");
+		assertionFile.deleteOnExit();
+		BufferedWriter out = new BufferedWriter(new FileWriter(assertionFile));
+		out.write("(#$isa #$ThingFn #$UnreifiableFunction)\n");
+		for (int i = 0; i < 1000; i++) {
+			out.write("(#$isa #$Item" + i + " #$Collection)\n");
+			out.write("(#$genls #$Item" + i + " #$Item" + (i / 2)
+					+ ")\t#$BaseKB\n");
+			if (i % 7 == 0)
+				out.write("(#$comment #$Item" + i + " \"The #$Item" + (i + 1)
+						+ " of #$Item" + i + "s (#$isa #$Item" + i
+						+ " #$Collection).\")\n");
+			if (i % 11 == 0)
+				out.write("(#$genls (#$ThingFn #$Item" + i + ") #$Item" + i
+						+ ")\n");
+			if (i % 13 == 0) {
+				out.write("(#$isa ?X #$Item" + i + ")\n");
+				out.write("(#$isa #$Item" + i + " #$Collection)\n");
+			}
+			if (i == 500)
+				out.write("(#$isa #$OtherFn #$UnreifiableFunction)\n");
+			if (i % 17 == 0)
+				out.write("(#$genls (#$OtherFn #$Item" + i + ") #$Item" + i
+						+ ")\n");
+		}
+		out.close();
+
+		Node creator = new StringNode("TestCreator");
+		sut_.readAssertionFileSequential(assertionFile, creator);
+		ArrayList<String> sequential = describeDAG();
+		assertTrue(sequential.size() > 3000);
+
+		sut_.clear();
+		setUp();
+		sut_.loaderThreads_ = 4;
+		sut_.readAssertionFile(assertionFile, creator);
+		assertEquals(sequential, describeDAG());
+	}
+
+	/**
+	 * Describes the nodes and edges of the DAG in ID order, relative to the
+	 * first ID, such that two identically loaded DAGs have equal descriptions.
+	 */
+	private ArrayList<String> describeDAG() {
+		Comparator<DAGObject> idComparator = new Comparator<DAGObject>() {
+			@Override
+			public int compare(DAGObject o1, DAGObject o2) {
+				return Integer.compare(o1.getID(), o2.getID());
+			}
+		};
+		ArrayList<DAGObject> nodes = new ArrayList<DAGObject>(sut_.getNodes());
+		Collections.sort(nodes, idComparator);
+		ArrayList<DAGObject> edges = new ArrayList<DAGObject>(sut_.getEdges());
+		Collections.sort(edges, idComparator);
+
+		ArrayList<String> description = new ArrayList<>();
+		for (DAGObject node : nodes)
+			description.add((node.getID() - nodes.get(0).getID()) + " " + node);
+		for (DAGObject edge : edges)
+			description.add((edge.getID() - edges.get(0).getID()) + " " + edge
+					+ " " + ((DAGEdge) edge).getProperty(CycDAG.MICROTHEORY));
+		return description;
+	}
 }
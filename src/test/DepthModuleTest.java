@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package test;
+
+import static org.junit.Assert.*;
+import graph.core.CommonConcepts;
+import graph.core.CycDAG;
+import graph.core.DAGNode;
+import graph.core.Node;
+import graph.core.StringNode;
+import graph.module.DepthModule;
+
+import java.io.File;
+import java.util.Collection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DepthModuleTest {
+	private CycDAG dag_;
+	private DepthModule sut_;
+
+	@Before
+	public void setUp() throws Exception {
+		dag_ = new CycDAG(new File("test"));
+		sut_ = (DepthModule) dag_.getModule(DepthModule.class);
+		CommonConcepts.initialise(dag_);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dag_.clear();
+		dag_.noChecks_ = false;
+	}
+
+	@Test
+	public void testDepths() {
+		Node creator = new StringNode("TestCreator");
+		setUpDAG(creator);
+		DAGNode thing = CommonConcepts.THING.getNode(dag_);
+		DAGNode animal = (DAGNode) dag_.findOrCreateNode("Animal", creator,
+				true);
+		DAGNode dog = (DAGNode) dag_.findOrCreateNode("Dog", creator, true);
+		DAGNode boxer = (DAGNode) dag_.findOrCreateNode("Boxer-Dog", creator,
+				true);
+		DAGNode fido = (DAGNode) dag_.findOrCreateNode("Fido", creator, true);
+		DAGNode loner = (DAGNode) dag_.findOrCreateNode("Loner", creator, true);
+		DAGNode cycleA = (DAGNode) dag_.findOrCreateNode("CycleA", creator,
+				true);
+		DAGNode cycleB = (DAGNode) dag_.findOrCreateNode("CycleB", creator,
+				true);
+
+		assertEquals(0, sut_.getDepth(thing));
+		assertEquals(1, sut_.getDepth(animal));
+		assertEquals(2, sut_.getDepth(dog));
+		// Longest path, not shortest
+		assertEquals(3, sut_.getDepth(boxer));
+		assertEquals(4, sut_.getDepth(fido));
+		// No parents
+		assertEquals(1, sut_.getDepth(loner));
+		// Cycles still get depths
+		assertTrue(sut_.getDepth(cycleA) > 0);
+		assertTrue(sut_.getDepth(cycleB) > 0);
+
+		Collection<DAGNode> depthThree = sut_.getNodesAtDepth(3);
+		assertTrue(depthThree.contains(boxer));
+		assertFalse(depthThree.contains(dog));
+		assertTrue(sut_.getNodesAtDepth(0).contains(thing));
+		assertNull(dog.getProperty(DepthModule.DEPTH_PROPERTY));
+	}
+
+	@Test
+	public void testIncremental() {
+		Node creator = new StringNode("TestCreator");
+		setUpDAG(creator);
+		Node genls = CommonConcepts.GENLS.getNode(dag_);
+		DAGNode animal = (DAGNode) dag_.findOrCreateNode("Animal", creator,
+				true);
+		DAGNode dog = (DAGNode) dag_.findOrCreateNode("Dog", creator, true);
+		DAGNode boxer = (DAGNode) dag_.findOrCreateNode("Boxer-Dog", creator,
+				true);
+		DAGNode fido = (DAGNode) dag_.findOrCreateNode("Fido", creator, true);
+		DAGNode loner = (DAGNode) dag_.findOrCreateNode("Loner", creator, true);
+		dag_.noChecks_ = true;
+
+		// New node
+		DAGNode mammal = (DAGNode) dag_.findOrCreateNode("Mammal", creator,
+				true);
+		assertEquals(1, sut_.getDepth(mammal));
+
+		// Inserting a level pushes the depths down
+		dag_.findOrCreateEdge(new Node[] { genls, mammal, animal }, creator,
+				true);
+		assertEquals(2, sut_.getDepth(mammal));
+		assertEquals(2, sut_.getDepth(dog));
+		dag_.findOrCreateEdge(new Node[] { genls, dog, mammal }, creator, true);
+		assertEquals(3, sut_.getDepth(dog));
+		assertEquals(4, sut_.getDepth(boxer));
+		assertEquals(5, sut_.getDepth(fido));
+		assertTrue(sut_.getNodesAtDepth(5).contains(fido));
+		assertFalse(sut_.getNodesAtDepth(4).contains(fido));
+
+		// Unrelated nodes are untouched
+		assertEquals(1, sut_.getDepth(loner));
+
+		// Removal pulls them back up
+		assertTrue(dag_.removeEdge(dag_.findEdge(genls, dog, mammal)));
+		assertEquals(2, sut_.getDepth(dog));
+		assertEquals(3, sut_.getDepth(boxer));
+		assertEquals(4, sut_.getDepth(fido));
+		assertTrue(sut_.getNodesAtDepth(4).contains(fido));
+
+		// Results match a full recalculation
+		int[] expected = { sut_.getDepth(mammal), sut_.getDepth(dog),
+				sut_.getDepth(boxer), sut_.getDepth(fido) };
+		sut_.initialisationComplete(dag_.getNodes(), dag_.getEdges(), true);
+		assertArrayEquals(expected, new int[] { sut_.getDepth(mammal),
+				sut_.getDepth(dog), sut_.getDepth(boxer), sut_.getDepth(fido) });
+	}
+
+	private void setUpDAG(Node creator) {
+		Node genls = CommonConcepts.GENLS.getNode(dag_);
+		Node isa = CommonConcepts.ISA.getNode(dag_);
+		Node thing = CommonConcepts.THING.getNode(dag_);
+		dag_.noChecks_ = true;
+		Node animal = dag_.findOrCreateNode("Animal", creator, true);
+		Node dog = dag_.findOrCreateNode("Dog", creator, true);
+		Node boxer = dag_.findOrCreateNode("Boxer-Dog", creator, true);
+		Node fido = dag_.findOrCreateNode("Fido", creator, true);
+		dag_.findOrCreateNode("Loner", creator, true);
+		Node cycleA = dag_.findOrCreateNode("CycleA", creator, true);
+		Node cycleB = dag_.findOrCreateNode("CycleB", creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, animal, thing }, creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { genls, dog, animal }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, boxer, dog }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, boxer, thing }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { isa, fido, boxer }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, cycleA, cycleB }, creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { genls, cycleB, cycleA }, creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { genls, cycleA, thing }, creator,
+				true);
+		dag_.noChecks_ = false;
+		sut_.initialisationComplete(dag_.getNodes(), dag_.getEdges(), true);
+	}
+}
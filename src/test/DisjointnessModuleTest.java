@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package test;
+
+import static org.junit.Assert.*;
+import graph.core.CommonConcepts;
+import graph.core.CycDAG;
+import graph.core.DAGNode;
+import graph.core.Edge;
+import graph.core.Node;
+import graph.core.StringNode;
+import graph.inference.QueryObject;
+import graph.inference.Substitution;
+import graph.inference.VariableNode;
+import graph.module.DisjointnessModule;
+import graph.module.QueryModule;
+import graph.module.TransitiveIntervalSchemaModule;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DisjointnessModuleTest {
+	private CycDAG dag_;
+	private QueryModule querier_;
+	private DisjointnessModule sut_;
+
+	@Before
+	public void setUp() throws Exception {
+		dag_ = new CycDAG(new File("test"));
+		sut_ = (DisjointnessModule) dag_.getModule(DisjointnessModule.class);
+		querier_ = (QueryModule) dag_.getModule(QueryModule.class);
+		CommonConcepts.initialise(dag_);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dag_.clear();
+		dag_.noChecks_ = false;
+	}
+
+	@Test
+	public void testDisjointRoots() {
+		Node creator = new StringNode("TestCreator");
+		setUpDAG(creator);
+		DAGNode dog = (DAGNode) dag_.findOrCreateNode("Dog", creator, true);
+		DAGNode boxer = (DAGNode) dag_.findOrCreateNode("Boxer-Dog", creator,
+				true);
+		DAGNode cat = (DAGNode) dag_.findOrCreateNode("Cat", creator, true);
+		DAGNode siamese = (DAGNode) dag_.findOrCreateNode("SiameseCat",
+				creator, true);
+		DAGNode pet = (DAGNode) dag_.findOrCreateNode("Pet", creator, true);
+		DAGNode plant = (DAGNode) dag_.findOrCreateNode("Plant", creator, true);
+		DAGNode animal = (DAGNode) dag_
+				.findOrCreateNode("Animal", creator, true);
+		assertTrue(sut_.isReady());
+
+		assertArrayEquals(new DAGNode[] { cat, dog },
+				sut_.findDisjointRoots(cat, dog));
+		assertArrayEquals(new DAGNode[] { dog, cat },
+				sut_.findDisjointRoots(boxer, siamese));
+		assertArrayEquals(new DAGNode[] { plant, animal },
+				sut_.findDisjointRoots(plant, boxer));
+		assertNull(sut_.findDisjointRoots(boxer, dog));
+		assertNull(sut_.findDisjointRoots(boxer, pet));
+		assertNull(sut_.findDisjointRoots(pet, plant));
+
+		Collection<DAGNode> roots = sut_.getDisjointRoots(boxer);
+		assertEquals(2, roots.size());
+		assertTrue(roots.contains(dog));
+		assertTrue(roots.contains(animal));
+	}
+
+	@Test
+	public void testQuery() {
+		Node creator = new StringNode("TestCreator");
+		setUpDAG(creator);
+		DAGNode disjoint = CommonConcepts.DISJOINTWITH.getNode(dag_);
+		DAGNode genls = CommonConcepts.GENLS.getNode(dag_);
+		DAGNode dog = (DAGNode) dag_.findOrCreateNode("Dog", creator, true);
+		DAGNode boxer = (DAGNode) dag_.findOrCreateNode("Boxer-Dog", creator,
+				true);
+		DAGNode cat = (DAGNode) dag_.findOrCreateNode("Cat", creator, true);
+		DAGNode siamese = (DAGNode) dag_.findOrCreateNode("SiameseCat",
+				creator, true);
+		DAGNode plant = (DAGNode) dag_.findOrCreateNode("Plant", creator, true);
+		DAGNode animal = (DAGNode) dag_
+				.findOrCreateNode("Animal", creator, true);
+
+		// Justification runs from the first argument to the second
+		QueryObject qo = new QueryObject(disjoint, siamese, boxer);
+		assertNotNull(querier_.execute(qo));
+		List<Node[]> justification = qo.getJustification();
+		assertEquals(3, justification.size());
+		assertArrayEquals(new Node[] { genls, siamese, cat },
+				justification.get(0));
+		assertArrayEquals(new Node[] { disjoint, cat, dog },
+				justification.get(1));
+		assertArrayEquals(new Node[] { genls, boxer, dog },
+				justification.get(2));
+		assertNull(querier_.execute(disjoint, boxer, dog));
+
+		// Variable
+		VariableNode x = VariableNode.DEFAULT;
+		Collection<Substitution> results = querier_.execute(disjoint, boxer,
+				x);
+		assertEquals(2, results.size());
+		assertTrue(results.contains(new Substitution(x, cat)));
+		assertTrue(results.contains(new Substitution(x, plant)));
+		results = querier_.execute(disjoint, x, animal);
+		assertEquals(1, results.size());
+		assertTrue(results.contains(new Substitution(x, plant)));
+	}
+
+	@Test
+	public void testIncremental() {
+		Node creator = new StringNode("TestCreator");
+		setUpDAG(creator);
+		DAGNode disjoint = CommonConcepts.DISJOINTWITH.getNode(dag_);
+		DAGNode genls = CommonConcepts.GENLS.getNode(dag_);
+		DAGNode dog = (DAGNode) dag_.findOrCreateNode("Dog", creator, true);
+		DAGNode boxer = (DAGNode) dag_.findOrCreateNode("Boxer-Dog", creator,
+				true);
+		DAGNode cat = (DAGNode) dag_.findOrCreateNode("Cat", creator, true);
+		DAGNode pet = (DAGNode) dag_.findOrCreateNode("Pet", creator, true);
+		DAGNode plant = (DAGNode) dag_.findOrCreateNode("Plant", creator, true);
+		DAGNode fern = (DAGNode) dag_.findOrCreateNode("Fern", creator, true);
+		assertNull(sut_.findDisjointRoots(fern, boxer));
+		assertNull(sut_.findDisjointRoots(pet, boxer));
+
+		// New genls edge under a root
+		dag_.noChecks_ = true;
+		dag_.findOrCreateEdge(new Node[] { genls, fern, plant }, creator, true);
+		assertNotNull(sut_.findDisjointRoots(fern, boxer));
+
+		// New disjointWith edge on a new root
+		DAGNode rock = (DAGNode) dag_.findOrCreateNode("Rock", creator, true);
+		dag_.findOrCreateEdge(new Node[] { disjoint, pet, rock }, creator, true);
+		assertArrayEquals(new DAGNode[] { rock, pet },
+				sut_.findDisjointRoots(rock, boxer));
+
+		// Removals
+		Edge edge = dag_.findEdge(disjoint, cat, dog);
+		assertTrue(dag_.removeEdge(edge));
+		assertNull(sut_.findDisjointRoots(boxer, cat));
+		edge = dag_.findEdge(genls, fern, plant);
+		assertTrue(dag_.removeEdge(edge));
+		assertNull(sut_.findDisjointRoots(fern, boxer));
+		assertNull(querier_.execute(disjoint, fern, boxer));
+		assertNotNull(querier_.execute(disjoint, plant, boxer));
+	}
+
+	private void setUpDAG(Node creator) {
+		DAGNode genls = CommonConcepts.GENLS.getNode(dag_);
+		DAGNode disjoint = CommonConcepts.DISJOINTWITH.getNode(dag_);
+		dag_.noChecks_ = true;
+		Node thing = dag_.findOrCreateNode("Thing", creator, true);
+		Node animal = dag_.findOrCreateNode("Animal", creator, true);
+		Node plant = dag_.findOrCreateNode("Plant", creator, true);
+		Node dog = dag_.findOrCreateNode("Dog", creator, true);
+		Node boxer = dag_.findOrCreateNode("Boxer-Dog", creator, true);
+		Node cat = dag_.findOrCreateNode("Cat", creator, true);
+		Node siamese = dag_.findOrCreateNode("SiameseCat", creator, true);
+		Node pet = dag_.findOrCreateNode("Pet", creator, true);
+		dag_.findOrCreateNode("Fern", creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, animal, thing }, creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { genls, plant, thing }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, pet, thing }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, dog, animal }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, dog, pet }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, cat, animal }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, boxer, dog }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, siamese, cat }, creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { disjoint, cat, dog }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { disjoint, plant, animal }, creator,
+				true);
+		dag_.noChecks_ = false;
+		TransitiveIntervalSchemaModule schemaModule = (TransitiveIntervalSchemaModule) dag_
+				.getModule(TransitiveIntervalSchemaModule.class);
+		schemaModule.initialisationComplete(dag_.getNodes(), dag_.getEdges(),
+				true);
+		sut_.initialisationComplete(dag_.getNodes(), dag_.getEdges(), false);
+	}
+}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import graph.core.CommonConcepts;
+import graph.core.CycDAG;
+import graph.core.DAGEdge;
+import graph.core.DAGNode;
+import graph.core.Edge;
+import graph.core.Node;
+import graph.core.StringNode;
+import graph.inference.HornClause;
+import graph.inference.Literal;
+import graph.inference.VariableNode;
+import graph.module.ForwardChainingModule;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ForwardChainingModuleTest {
+	private CycDAG dag_;
+	private ForwardChainingModule sut_;
+	private Node creator_;
+	private VariableNode x_ = new VariableNode("?X");
+	private VariableNode y_ = new VariableNode("?Y");
+	private VariableNode z_ = new VariableNode("?Z");
+
+	@Before
+	public void setUp() throws Exception {
+		dag_ = new CycDAG(new File("test"));
+		sut_ = (ForwardChainingModule) dag_
+				.getModule(ForwardChainingModule.class);
+		assertNotNull(sut_);
+		CommonConcepts.initialise(dag_);
+		creator_ = new StringNode("TestCreator");
+		dag_.noChecks_ = true;
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dag_.noChecks_ = false;
+		dag_.clear();
+		sut_.clear();
+	}
+
+	private DAGNode node(String name) {
+		return (DAGNode) dag_.findOrCreateNode(name, creator_, true);
+	}
+
+	private Edge assertEdge(Node... nodes) {
+		return dag_.findOrCreateEdge(nodes, creator_, true);
+	}
+
+	@Test
+	public void testDerivedEdges() {
+		DAGNode parent = node("parentOf");
+		DAGNode grandparent = node("grandparentOf");
+		DAGNode ancestor = node("ancestorOf");
+		DAGNode a = node("NodeA");
+		DAGNode b = node("NodeB");
+		DAGNode c = node("NodeC");
+		DAGNode d = node("NodeD");
+		assertEdge(parent, a, b);
+		assertEdge(parent, b, c);
+
+		// Existing edges are materialised when the rule is added
+		assertTrue(sut_.addRule(new HornClause(new Literal(grandparent, x_,
+				z_), new Literal(parent, x_, y_), new Literal(parent, y_, z_))));
+		assertFalse(sut_.addRule(new HornClause(new Literal(grandparent, x_,
+				z_), new Literal(parent, x_, y_), new Literal(parent, y_, z_))));
+		assertEquals(1, sut_.getNumRules());
+		DAGEdge derived = (DAGEdge) dag_.findEdge(grandparent, a, c);
+		assertNotNull(derived);
+		assertTrue(sut_.isDerived(derived));
+		assertEquals(ForwardChainingModule.CREATOR.getIdentifier(true),
+				derived.getCreator());
+		assertFalse(sut_.isDerived(dag_.findEdge(parent, a, b)));
+
+		// New edges fire the rule, and the rules chain
+		sut_.addRule(new HornClause(new Literal(ancestor, x_, y_), new Literal(
+				grandparent, x_, y_)));
+		assertNotNull(dag_.findEdge(ancestor, a, c));
+		assertEdge(parent, c, d);
+		assertNotNull(dag_.findEdge(grandparent, b, d));
+		assertNotNull(dag_.findEdge(ancestor, b, d));
+		assertEquals(2, sut_.execute(grandparent).size());
+		assertEquals(0, sut_.execute(parent).size());
+	}
+
+	@Test
+	public void testRecursiveRules() {
+		DAGNode related = node("relatedTo");
+		DAGNode[] nodes = new DAGNode[6];
+		for (int i = 0; i < nodes.length; i++)
+			nodes[i] = node("Item" + i);
+		sut_.addRule(new HornClause(new Literal(related, x_, y_), new Literal(
+				related, y_, x_)));
+		sut_.addRule(new HornClause(new Literal(related, x_, z_), new Literal(
+				related, x_, y_), new Literal(related, y_, z_)));
+
+		// The closure is materialised as the edges arrive
+		for (int i = 1; i < nodes.length; i++)
+			assertEdge(related, nodes[i - 1], nodes[i]);
+		assertNotNull(dag_.findEdge(related, nodes[5], nodes[0]));
+		assertNotNull(dag_.findEdge(related, nodes[2], nodes[2]));
+		assertEquals(36 - 5, sut_.execute(related).size());
+	}
+
+	@Test
+	public void testRetraction() {
+		DAGNode link = node("linkedTo");
+		DAGNode reach = node("reaches");
+		DAGNode a = node("NodeA");
+		DAGNode b = node("NodeB");
+		DAGNode c = node("NodeC");
+		DAGNode d = node("NodeD");
+		HornClause base = new HornClause(new Literal(reach, x_, y_),
+				new Literal(link, x_, y_));
+		HornClause transitive = new HornClause(new Literal(reach, x_, z_),
+				new Literal(reach, x_, y_), new Literal(link, y_, z_));
+		sut_.addRule(base);
+		sut_.addRule(transitive);
+		Edge ab = assertEdge(link, a, b);
+		Edge bc = assertEdge(link, b, c);
+		assertEdge(link, c, d);
+		assertEquals(6, sut_.execute(reach).size());
+
+		// Removing a base edge retracts what depended on it
+		assertTrue(dag_.removeEdge(bc));
+		assertNull(dag_.findEdge(reach, a, c));
+		assertNull(dag_.findEdge(reach, a, d));
+		assertNull(dag_.findEdge(reach, b, d));
+		assertNotNull(dag_.findEdge(reach, a, b));
+		assertNotNull(dag_.findEdge(reach, c, d));
+		assertEquals(2, sut_.execute(reach).size());
+
+		// Edges with another derivation are kept
+		assertEdge(link, b, c);
+		assertEdge(link, a, c);
+		assertEquals(6, sut_.execute(reach).size());
+		assertTrue(dag_.removeEdge(ab));
+		assertNull(dag_.findEdge(reach, a, b));
+		assertNotNull(dag_.findEdge(reach, a, c));
+		assertNotNull(dag_.findEdge(reach, a, d));
+		assertEquals(5, sut_.execute(reach).size());
+
+		// Removing a rule retracts only what it alone derived
+		assertTrue(sut_.removeRule(transitive));
+		assertFalse(sut_.removeRule(transitive));
+		assertNull(dag_.findEdge(reach, a, d));
+		assertNotNull(dag_.findEdge(reach, a, c));
+		assertEquals(3, sut_.execute(reach).size());
+	}
+
+	@Test
+	public void testInvalidRules() {
+		DAGNode parent = node("parentOf");
+		DAGNode grandparent = node("grandparentOf");
+		try {
+			sut_.addRule(new HornClause(new Literal(grandparent, x_, z_),
+					new Literal(parent, x_, y_)));
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+		}
+		assertEquals(0, sut_.getNumRules());
+	}
+}
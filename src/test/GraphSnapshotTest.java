@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import graph.core.CommonConcepts;
+import graph.core.CycDAG;
+import graph.core.DAGEdge;
+import graph.core.DAGNode;
+import graph.core.Edge;
+import graph.core.ErrorEdge;
+import graph.core.GraphSnapshot;
+import graph.core.ModuleSection;
+import graph.core.Node;
+import graph.core.OntologyFunction;
+import graph.core.PrimitiveNode;
+import graph.core.StringNode;
+import graph.module.DAGModule;
+import graph.module.DepthModule;
+import graph.module.IndexModule;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import util.collection.HashIndexedCollection;
+
+public class GraphSnapshotTest {
+	private static final File ROOT_DIR = new File("snapshotTest");
+
+	private CycDAG sut_;
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+
+	private Set<String> edgeStrings(Iterable<? extends Edge> edges) {
+		Set<String> strings = new HashSet<>();
+		for (Edge edge : edges)
+			strings.add(((DAGEdge) edge).getID() + " " + edge.toString(false));
+		return strings;
+	}
+
+	private Edge populate() {
+		Node creator = new StringNode("TestCreator");
+		DAGNode dog = (DAGNode) sut_.findOrCreateNode("Dog", creator, true);
+		DAGNode canis = (DAGNode) sut_.findOrCreateNode("Canis", creator, true);
+		DAGNode fruitFn = (DAGNode) sut_.findOrCreateNode("FruitFn", creator,
+				true);
+		Node genls = CommonConcepts.GENLS.getNode(sut_);
+		Node isa = CommonConcepts.ISA.getNode(sut_);
+		Node collection = CommonConcepts.COLLECTION.getNode(sut_);
+		Node function = CommonConcepts.FUNCTION.getNode(sut_);
+		sut_.findOrCreateEdge(new Node[] { isa, dog, collection }, creator,
+				true);
+		sut_.findOrCreateEdge(new Node[] { isa, canis, collection }, creator,
+				true);
+		sut_.findOrCreateEdge(new Node[] { genls, dog, canis }, creator, true);
+		sut_.findOrCreateEdge(new Node[] { isa, fruitFn, function }, creator,
+				true);
+		sut_.findOrCreateEdge(new Node[] {
+				CommonConcepts.COMMENT.getNode(sut_), dog,
+				new StringNode("A \"dog\", été") }, creator, true);
+		sut_.findOrCreateEdge(new Node[] {
+				CommonConcepts.ARITY.getNode(sut_), fruitFn,
+				PrimitiveNode.parseNode("1") }, creator, true);
+		OntologyFunction dogFruit = sut_.findOrCreateFunctionNode(true, false,
+				creator, fruitFn, dog);
+		Edge edge = sut_.findOrCreateEdge(new Node[] { isa, dogFruit,
+				collection }, creator, true);
+		assertFalse(edge instanceof ErrorEdge);
+		return edge;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		delete(ROOT_DIR);
+		sut_ = new CycDAG(ROOT_DIR);
+		CommonConcepts.initialise(sut_);
+		CommonConcepts.createCommonAssertions(sut_);
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		sut_.waitForRebuild();
+		sut_.clear();
+		delete(ROOT_DIR);
+	}
+
+	@Test
+	public void testWriteOpen() throws IOException {
+		populate();
+		File file = new File(ROOT_DIR, "writeOpen.snap");
+		final long[] sectionChecksum = new long[1];
+		long checksum = GraphSnapshot.write(file, sut_.getNodes(),
+				sut_.getEdges(),
+				Collections.singleton(new GraphSnapshot.Section() {
+					@Override
+					public String getName() {
+						return "Test";
+					}
+
+					@Override
+					public void write(DataOutputStream out, long graphChecksum)
+							throws IOException {
+						sectionChecksum[0] = graphChecksum;
+						out.writeLong(graphChecksum);
+						out.writeUTF("index");
+					}
+				}));
+
+		GraphSnapshot snapshot = GraphSnapshot.open(file);
+		assertTrue(snapshot.verify());
+		assertEquals(checksum, snapshot.getGraphChecksum());
+		assertEquals(checksum, sectionChecksum[0]);
+		ByteBuffer section = snapshot.getSection(GraphSnapshot.MODULE_PREFIX
+				+ "Test");
+		assertNotNull(section);
+		assertEquals(checksum, section.getLong());
+
+		HashIndexedCollection<DAGNode> nodes = new HashIndexedCollection<>();
+		HashIndexedCollection<DAGEdge> edges = new HashIndexedCollection<>();
+		snapshot.load(nodes, edges);
+		assertEquals(sut_.getNumNodes(), nodes.size());
+		assertEquals(sut_.getNumEdges(), edges.size());
+		for (DAGNode node : sut_.getNodes()) {
+			DAGNode loaded = nodes.get(node.getID());
+			assertEquals(node.getName(), loaded.getName());
+			assertEquals(node.getClass(), loaded.getClass());
+			assertEquals(Arrays.toString(node.getProperties()),
+					Arrays.toString(loaded.getProperties()));
+		}
+		assertEquals(edgeStrings(sut_.getEdges()), edgeStrings(edges));
+		for (DAGEdge edge : sut_.getEdges())
+			assertTrue(Arrays.equals(edge.getProperties(), edges.get(
+					edge.getID()).getProperties()));
+
+		// Identical content, identical checksum
+		assertEquals(checksum, GraphSnapshot.write(file, sut_.getNodes(),
+				sut_.getEdges(), null));
+		file.delete();
+	}
+
+	@Test
+	public void testRestart() {
+		Edge edge = populate();
+		int numNodes = sut_.getNumNodes();
+		int numEdges = sut_.getNumEdges();
+		Set<String> edgeStrings = edgeStrings(sut_.getEdges());
+		sut_.saveState();
+		assertTrue(new File(ROOT_DIR, GraphSnapshot.SNAPSHOT_FILE).exists());
+		assertFalse(new File(ROOT_DIR, "nodes.dat").exists());
+		assertFalse(new File(ROOT_DIR, "edges.dat").exists());
+
+		sut_ = new CycDAG(ROOT_DIR);
+		assertNotNull(sut_.getSnapshot());
+		assertEquals(numNodes, sut_.getNumNodes());
+		assertEquals(numEdges, sut_.getNumEdges());
+		assertEquals(edgeStrings, edgeStrings(sut_.getEdges()));
+		assertEquals(edge.toString(),
+				sut_.getEdgeByID(((DAGEdge) edge).getID()).toString());
+
+		// New objects continue from the stored counters
+		sut_.initialise();
+		numNodes = sut_.getNumNodes();
+		DAGNode cat = (DAGNode) sut_.findOrCreateNode("Cat",
+				new StringNode("TestCreator"), true);
+		assertEquals(numNodes + 1, sut_.getNumNodes());
+		assertEquals(cat, sut_.getNodeByID(cat.getID()));
+	}
+
+	@Test
+	public void testModuleIndexes() throws Exception {
+		sut_.loadAssertions_ = false;
+		sut_.initialise();
+		populate();
+		DAGNode dog = (DAGNode) sut_.findOrCreateNode("Dog", null, false);
+		int depth = ((DepthModule) sut_.getModule(DepthModule.class))
+				.getDepth(dog);
+		assertTrue(depth > 0);
+		sut_.saveState();
+
+		// Every module matches the snapshot and its index is restored
+		sut_ = new CycDAG(ROOT_DIR);
+		sut_.loadAssertions_ = false;
+		for (DAGModule<?> module : sut_.getModules())
+			assertTrue(module.toString(), ModuleSection.restore(
+					sut_.getSnapshot(), module, sut_));
+		sut_.initialise();
+		for (DAGModule<?> module : sut_.getModules())
+			if (module instanceof IndexModule)
+				assertTrue(module.toString(),
+						((IndexModule) module).isReady());
+
+		// A module file that no longer matches is rebuilt in the background
+		DepthModule depthModule = (DepthModule) sut_
+				.getModule(DepthModule.class);
+		depthModule.disableCached();
+		depthModule.saveModule(ROOT_DIR);
+		sut_ = new CycDAG(ROOT_DIR);
+		sut_.loadAssertions_ = false;
+		depthModule = (DepthModule) sut_.getModule(DepthModule.class);
+		assertFalse(ModuleSection.restore(sut_.getSnapshot(), depthModule,
+				sut_));
+		sut_.initialise();
+		sut_.waitForRebuild();
+		assertTrue(depthModule.isReady());
+		assertEquals(depth, depthModule.getDepth(dog));
+	}
+}
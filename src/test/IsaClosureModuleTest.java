@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package test;
+
+import static org.junit.Assert.*;
+import graph.core.CommonConcepts;
+import graph.core.CycDAG;
+import graph.core.Edge;
+import graph.core.Node;
+import graph.core.OntologyFunction;
+import graph.core.StringNode;
+import graph.inference.CommonQuery;
+import graph.module.IsaClosureModule;
+import graph.module.QueryModule;
+import graph.module.TransitiveIntervalSchemaModule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IsaClosureModuleTest {
+	private CycDAG dag_;
+	private IsaClosureModule sut_;
+	private TransitiveIntervalSchemaModule schemaModule_;
+
+	@Before
+	public void setUp() throws Exception {
+		dag_ = new CycDAG(new File("test"));
+		sut_ = (IsaClosureModule) dag_.getModule(IsaClosureModule.class);
+		schemaModule_ = (TransitiveIntervalSchemaModule) dag_
+				.getModule(TransitiveIntervalSchemaModule.class);
+		CommonConcepts.initialise(dag_);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dag_.clear();
+		dag_.noChecks_ = false;
+	}
+
+	@Test
+	public void testClosure() {
+		Node creator = new StringNode("TestCreator");
+		setUpDAG(creator);
+		Node dog = dag_.findOrCreateNode("Dog", creator, true);
+		Node canis = dag_.findOrCreateNode("Canis", creator, true);
+		Node mammal = dag_.findOrCreateNode("Mammal", creator, true);
+		Node pet = dag_.findOrCreateNode("Pet", creator, true);
+		Node cat = dag_.findOrCreateNode("Cat", creator, true);
+		Node thing = dag_.findOrCreateNode("Thing", creator, true);
+		Node fido = dag_.findOrCreateNode("Fido", creator, true);
+		Node garfield = dag_.findOrCreateNode("Garfield", creator, true);
+		Node plant = dag_.findOrCreateNode("Plant", creator, true);
+		assertTrue(sut_.isReady());
+
+		Collection<Node> collections = sut_.getAllCollections(fido);
+		assertEquals(5, collections.size());
+		assertTrue(collections.contains(dog));
+		assertTrue(collections.contains(canis));
+		assertTrue(collections.contains(mammal));
+		assertTrue(collections.contains(pet));
+		assertTrue(collections.contains(thing));
+		assertTrue(sut_.isInstance(fido, mammal));
+		assertFalse(sut_.isInstance(fido, cat));
+		assertFalse(sut_.isInstance(fido, plant));
+
+		Collection<Node> instances = sut_.getAllInstances(mammal);
+		assertEquals(2, instances.size());
+		assertTrue(instances.contains(fido));
+		assertTrue(instances.contains(garfield));
+		assertEquals(0, sut_.getAllInstances(plant).size());
+		assertTrue(sut_.getMaterialisedSize() > 0);
+
+		// The query module answers from the closure
+		Set<Node> queried = new HashSet<Node>(CommonQuery.ALLISA.runQuery(
+				dag_, fido));
+		assertEquals(new HashSet<Node>(collections), queried);
+		queried = new HashSet<Node>(CommonQuery.INSTANCES.runQuery(dag_,
+				mammal));
+		assertEquals(new HashSet<Node>(instances), queried);
+		QueryModule querier = (QueryModule) dag_.getModule(QueryModule.class);
+		Node isa = CommonConcepts.ISA.getNode(dag_);
+		assertNotNull(querier.execute(isa, fido, thing));
+		assertNull(querier.execute(isa, fido, cat));
+	}
+
+	@Test
+	public void testIncremental() {
+		Node creator = new StringNode("TestCreator");
+		setUpDAG(creator);
+		Node isa = CommonConcepts.ISA.getNode(dag_);
+		Node genls = CommonConcepts.GENLS.getNode(dag_);
+		Node dog = dag_.findOrCreateNode("Dog", creator, true);
+		Node canis = dag_.findOrCreateNode("Canis", creator, true);
+		Node mammal = dag_.findOrCreateNode("Mammal", creator, true);
+		Node pet = dag_.findOrCreateNode("Pet", creator, true);
+		Node plant = dag_.findOrCreateNode("Plant", creator, true);
+		Node fido = dag_.findOrCreateNode("Fido", creator, true);
+		Node garfield = dag_.findOrCreateNode("Garfield", creator, true);
+		Node rex = dag_.findOrCreateNode("Rex", creator, true);
+
+		// Materialise, then modify
+		assertFalse(sut_.isInstance(fido, plant));
+		assertEquals(2, sut_.getAllInstances(mammal).size());
+		assertEquals(2, sut_.getAllInstances(pet).size());
+
+		// New isa edge
+		dag_.noChecks_ = true;
+		dag_.findOrCreateEdge(new Node[] { isa, rex, dog }, creator, true);
+		assertTrue(sut_.isInstance(rex, mammal));
+		assertEquals(3, sut_.getAllInstances(mammal).size());
+		assertTrue(sut_.getAllInstances(pet).contains(rex));
+
+		// New genls edge above an instance's collection
+		dag_.findOrCreateEdge(new Node[] { genls, canis, plant }, creator,
+				true);
+		assertTrue(sut_.isInstance(fido, plant));
+		assertTrue(sut_.isInstance(rex, plant));
+		assertFalse(sut_.isInstance(garfield, plant));
+		assertEquals(2, sut_.getAllInstances(plant).size());
+
+		// Removal of the genls edge
+		Edge edge = dag_.findEdge(genls, canis, plant);
+		assertTrue(dag_.removeEdge(edge));
+		assertFalse(sut_.isInstance(fido, plant));
+		assertEquals(0, sut_.getAllInstances(plant).size());
+
+		// Removal of an isa edge
+		edge = dag_.findEdge(isa, fido, dog);
+		assertTrue(dag_.removeEdge(edge));
+		assertFalse(sut_.isInstance(fido, mammal));
+		assertEquals(0, sut_.getAllCollections(fido).size());
+		assertEquals(2, sut_.getAllInstances(mammal).size());
+		assertFalse(sut_.getAllInstances(pet).contains(fido));
+
+		// A small capacity still answers correctly
+		sut_.setCapacity(4);
+		assertTrue(sut_.getMaterialisedSize() <= 4);
+		assertEquals(2, sut_.getAllInstances(mammal).size());
+		assertTrue(sut_.isInstance(rex, pet));
+		sut_.setCapacity(IsaClosureModule.DEFAULT_CAPACITY);
+	}
+
+	@Test
+	public void testIndex() throws Exception {
+		Node creator = new StringNode("TestCreator");
+		setUpDAG(creator);
+		Node isa = CommonConcepts.ISA.getNode(dag_);
+		Node dog = dag_.findOrCreateNode("Dog", creator, true);
+		Node mammal = dag_.findOrCreateNode("Mammal", creator, true);
+		Node puppyFn = dag_.findOrCreateNode("PuppyFn", creator, true);
+		Node fido = dag_.findOrCreateNode("Fido", creator, true);
+		Node puppy = new OntologyFunction(puppyFn, fido);
+		dag_.noChecks_ = true;
+		dag_.findOrCreateEdge(new Node[] { isa, puppy, dog }, creator, true);
+		assertTrue(sut_.isInstance(puppy, mammal));
+
+		// Unreified functions are written by identifier
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		sut_.writeIndex(new DataOutputStream(bytes));
+		ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+		assertEquals(1, in.get(0));
+		assertTrue(sut_.readIndex(in, dag_));
+		assertFalse(in.hasRemaining());
+		assertTrue(sut_.isInstance(puppy, mammal));
+		assertTrue(sut_.getAllInstances(dog).contains(puppy));
+		assertTrue(sut_.isInstance(fido, mammal));
+	}
+
+	private void setUpDAG(Node creator) {
+		Node genls = CommonConcepts.GENLS.getNode(dag_);
+		Node isa = CommonConcepts.ISA.getNode(dag_);
+		dag_.noChecks_ = true;
+		Node thing = dag_.findOrCreateNode("Thing", creator, true);
+		Node dog = dag_.findOrCreateNode("Dog", creator, true);
+		Node mammal = dag_.findOrCreateNode("Mammal", creator, true);
+		Node canis = dag_.findOrCreateNode("Canis", creator, true);
+		Node pet = dag_.findOrCreateNode("Pet", creator, true);
+		Node cat = dag_.findOrCreateNode("Cat", creator, true);
+		Node plant = dag_.findOrCreateNode("Plant", creator, true);
+		Node fido = dag_.findOrCreateNode("Fido", creator, true);
+		Node garfield = dag_.findOrCreateNode("Garfield", creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, dog, canis }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, dog, pet }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, cat, pet }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, pet, thing }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, canis, mammal }, creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { genls, cat, mammal }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, mammal, thing }, creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { genls, plant, thing }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { isa, fido, dog }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { isa, garfield, cat }, creator, true);
+		dag_.noChecks_ = false;
+		schemaModule_.initialisationComplete(dag_.getNodes(), dag_.getEdges(),
+				true);
+		sut_.initialisationComplete(dag_.getNodes(), dag_.getEdges(), false);
+	}
+}
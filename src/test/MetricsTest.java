@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package test;
+
+import static org.junit.Assert.*;
+import graph.core.CommonConcepts;
+import graph.core.CycDAG;
+import graph.core.DAGNode;
+import graph.core.LatencyHistogram;
+import graph.core.Metrics;
+import graph.core.Node;
+import graph.core.StringNode;
+import graph.inference.CommonQuery;
+import graph.inference.QueryObject;
+import graph.module.QueryModule;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetricsTest {
+	private CycDAG dag_;
+
+	@Before
+	public void setUp() throws Exception {
+		dag_ = new CycDAG(new File("test"));
+		CommonConcepts.initialise(dag_);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Metrics.getInstance().setEnabled(true);
+		dag_.clear();
+	}
+
+	@Test
+	public void testHistogram() {
+		LatencyHistogram sut = new LatencyHistogram("test");
+		assertEquals(0, sut.getPercentile(50));
+		for (int i = 1; i <= 1000; i++)
+			sut.record(i * 1000);
+		assertEquals(1000, sut.getCount());
+		assertEquals(1000000, sut.getMax());
+		assertEquals(500500, sut.getMean(), 0.001);
+
+		// Percentiles are within the precision of a sub-bucket
+		assertEquals(500000, sut.getPercentile(50), 500000 / 16);
+		assertEquals(990000, sut.getPercentile(99), 990000 / 16);
+		assertEquals(1000000, sut.getPercentile(100));
+		assertEquals(1000, sut.getPercentile(0), 1000 / 16);
+
+		// Small values are exact
+		sut.reset();
+		assertEquals(0, sut.getCount());
+		sut.record(3);
+		sut.record(7);
+		assertEquals(3, sut.getPercentile(50));
+		assertEquals(7, sut.getPercentile(99));
+	}
+
+	@Test
+	public void testInstrumentation() {
+		Metrics metrics = Metrics.getInstance();
+		long edges = metrics.getCount("edge.total");
+		long arity = metrics.getCount("edge.arity");
+		long disjoint = metrics.getCount("edge.disjointness");
+		long isa = metrics.getCount("worker.isa");
+		long genls = metrics.getCount("commonQuery.ALLGENLS");
+
+		Node creator = new StringNode("TestCreator");
+		DAGNode dog = (DAGNode) dag_.findOrCreateNode("Dog", creator, true);
+		DAGNode mammal = (DAGNode) dag_.findOrCreateNode("Mammal", creator,
+				true);
+		DAGNode fido = (DAGNode) dag_.findOrCreateNode("Fido", creator, true);
+		dag_.findOrCreateEdge(new Node[] { CommonConcepts.GENLS.getNode(dag_),
+				dog, mammal }, creator, true);
+		dag_.findOrCreateEdge(
+				new Node[] { CommonConcepts.ISA.getNode(dag_), fido, dog },
+				creator, true);
+		assertTrue(metrics.getCount("edge.total") >= edges + 2);
+		assertTrue(metrics.getCount("edge.arity") >= arity + 2);
+		assertTrue(metrics.getCount("edge.disjointness") >= disjoint + 2);
+
+		CommonQuery.ALLGENLS.runQuery(dag_, dog);
+		assertTrue(metrics.getCount("commonQuery.ALLGENLS") > genls);
+		QueryModule querier = (QueryModule) dag_.getModule(QueryModule.class);
+		querier.execute(new QueryObject(CommonConcepts.ISA.getNode(dag_), fido,
+				mammal));
+		assertTrue(metrics.getCount("worker.isa") > isa);
+
+		// Nothing is recorded while disabled
+		metrics.setEnabled(false);
+		genls = metrics.getCount("commonQuery.ALLGENLS");
+		CommonQuery.ALLGENLS.runQuery(dag_, dog);
+		assertEquals(genls, metrics.getCount("commonQuery.ALLGENLS"));
+		assertTrue(metrics.getReport().contains("worker.isa"));
+	}
+}
@@ -26,15 +26,30 @@ import graph.core.OntologyFunction;
 import graph.core.PrimitiveNode;
 import graph.core.StringNode;
 import graph.inference.CommonQuery;
+import graph.inference.QueryCache;
+import graph.inference.QueryExplanation;
 import graph.inference.QueryObject;
+import graph.inference.QueryPlan;
+import graph.inference.QueryTrace;
+import graph.inference.SlowQueryLog;
 import graph.inference.Substitution;
+import graph.inference.SubstitutionJoin;
+import graph.inference.VariableLayout;
 import graph.inference.VariableNode;
 import graph.module.DateParseModule;
+import graph.module.EdgeStatisticsModule;
 import graph.module.QueryModule;
+import graph.module.TransitiveIntervalSchemaModule;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.naming.NamingException;
 
@@ -159,6 +174,204 @@ public class QueryModuleTest {
 		assertEquals(results.size(), 0);
 	}
 
+	@Test
+	public void testConjunctPlanner() {
+		Node creator = new StringNode("TestCreator");
+		DAGNode genls = CommonConcepts.GENLS.getNode(dag_);
+		DAGNode isa = CommonConcepts.ISA.getNode(dag_);
+		DAGNode and = CommonConcepts.AND.getNode(dag_);
+		EdgeStatisticsModule stats = (EdgeStatisticsModule) dag_
+				.getModule(EdgeStatisticsModule.class);
+		assertNotNull(stats);
+		int isaCount = stats.getCount(isa);
+		int genlsCount = stats.getCount(genls);
+
+		DAGNode dog = (DAGNode) dag_.findOrCreateNode("Dog", creator, true);
+		DAGNode cat = (DAGNode) dag_.findOrCreateNode("Cat", creator, true);
+		DAGNode mammal = (DAGNode) dag_.findOrCreateNode("Mammal", creator,
+				true);
+		DAGNode champion = (DAGNode) dag_.findOrCreateNode("Champion",
+				creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, dog, mammal }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, cat, mammal }, creator, true);
+		DAGNode pet0 = null;
+		for (int i = 0; i < 40; i++) {
+			DAGNode pet = (DAGNode) dag_.findOrCreateNode("Pet" + i, creator,
+					true);
+			if (i == 0)
+				pet0 = pet;
+			dag_.findOrCreateEdge(new Node[] { isa, pet,
+					(i % 2 == 0) ? dog : cat }, creator, true);
+		}
+		Edge championEdge = dag_.findOrCreateEdge(new Node[] { isa, pet0,
+				champion }, creator, true);
+
+		// Statistics are maintained as edges are added and removed
+		assertEquals(stats.getCount(isa), isaCount + 41);
+		assertEquals(stats.getCount(genls), genlsCount + 2);
+		assertEquals(stats.getCount(isa, 2, dog), 20);
+		assertEquals(stats.getCount(isa, 2, champion), 1);
+		assertEquals(stats.getCount(isa, 1, pet0), 2);
+		assertEquals(stats.getCount(genls, 2, mammal), 2);
+		assertEquals(stats.getNodeCount(pet0, 1), 2);
+		assertEquals(stats.getNodeCount(mammal, 2), 2);
+		dag_.removeEdge(championEdge);
+		assertEquals(stats.getCount(isa, 2, champion), 0);
+		assertEquals(stats.getCount(isa), isaCount + 40);
+		championEdge = dag_.findOrCreateEdge(new Node[] { isa, pet0,
+				champion }, creator, true);
+		assertEquals(stats.getCount(isa, 2, champion), 1);
+
+		// The most selective conjunct is evaluated first
+		TransitiveIntervalSchemaModule intervalModule = (TransitiveIntervalSchemaModule) dag_
+				.getModule(TransitiveIntervalSchemaModule.class);
+		intervalModule.initialisationComplete(dag_.getNodes(),
+				dag_.getEdges(), true);
+		VariableNode x = VariableNode.DEFAULT;
+		VariableNode y = new VariableNode("?Y");
+		OntologyFunction isaMammal = new OntologyFunction(isa, x, mammal);
+		OntologyFunction isaChampion = new OntologyFunction(isa, x, champion);
+		OntologyFunction isaY = new OntologyFunction(isa, x, y);
+		QueryObject qo = new QueryObject(and, isaMammal, isaY, isaChampion);
+		Collection<Substitution> results = sut_.execute(qo);
+		List<QueryPlan.Step> steps = qo.getPlan().getSteps();
+		assertEquals(steps.size(), 3);
+		assertEquals(steps.get(0).getConjunct(), isaChampion);
+		assertEquals(steps.get(0).getEstimate(), 1);
+		assertEquals(steps.get(0).getActual(), 1);
+		// Ties prefer the conjunct binding fewer new variables
+		assertEquals(steps.get(1).getConjunct(), isaMammal);
+		assertEquals(steps.get(1).getActual(), 1);
+		assertEquals(steps.get(2).getConjunct(), isaY);
+		Set<Node> types = new HashSet<>();
+		for (Substitution sub : results) {
+			assertEquals(sub.getSubstitution(x), pet0);
+			types.add(sub.getSubstitution(y));
+		}
+		assertTrue(types.contains(dog));
+		assertTrue(types.contains(champion));
+
+		// Results do not depend on the order of the conjuncts
+		sut_.getQueryCache().clear();
+		assertEquals(
+				new HashSet<>(sut_.execute(and, isaChampion, isaMammal, isaY)),
+				new HashSet<>(results));
+		assertEquals(sut_.execute(and, isaMammal, isaChampion).size(), 1);
+	}
+
+	@Test
+	public void testHashJoin() {
+		Node creator = new StringNode("TestCreator");
+		DAGNode isa = CommonConcepts.ISA.getNode(dag_);
+		DAGNode and = CommonConcepts.AND.getNode(dag_);
+		DAGNode dog = (DAGNode) dag_.findOrCreateNode("Dog", creator, true);
+		DAGNode cat = (DAGNode) dag_.findOrCreateNode("Cat", creator, true);
+		DAGNode pet = (DAGNode) dag_.findOrCreateNode("Pet", creator, true);
+		List<DAGNode> dogs = new ArrayList<>();
+		for (int i = 0; i < 320; i++) {
+			DAGNode d = (DAGNode) dag_.findOrCreateNode("Dog" + i, creator,
+					true);
+			dogs.add(d);
+			dag_.findOrCreateEdge(new Node[] { isa, d, dog }, creator, true);
+			if (i % 10 == 0)
+				dag_.findOrCreateEdge(new Node[] { isa, d, pet }, creator,
+						true);
+			DAGNode c = (DAGNode) dag_.findOrCreateNode("Cat" + i, creator,
+					true);
+			dag_.findOrCreateEdge(new Node[] { isa, c, cat }, creator, true);
+		}
+		VariableNode x = VariableNode.DEFAULT;
+		VariableNode y = new VariableNode("?Y");
+
+		// Joins on shared variables
+		Collection<Substitution> results = sut_.execute(and,
+				new OntologyFunction(isa, x, dog), new OntologyFunction(isa,
+						x, pet));
+		assertEquals(results.size(), 32);
+		for (Substitution sub : results)
+			assertEquals(dogs.indexOf(sub.getSubstitution(x)) % 10, 0);
+
+		// Cross products are not truncated
+		results = sut_.execute(and, new OntologyFunction(isa, x, dog),
+				new OntologyFunction(isa, y, cat));
+		assertEquals(results.size(), 320 * 320);
+
+		// Substitutions with differing variables
+		List<Substitution> left = new ArrayList<>();
+		left.add(new Substitution(x, dog));
+		Substitution both = new Substitution(x, cat);
+		both.addSubstitution(y, pet);
+		left.add(both);
+		List<Substitution> right = new ArrayList<>();
+		right.add(new Substitution(y, pet));
+		right.add(new Substitution(y, dog));
+		Collection<Substitution> joined = SubstitutionJoin.join(left, right);
+		assertEquals(joined.size(), 3);
+		assertTrue(joined.contains(both));
+
+		// Semi-join candidates filter results
+		QueryObject qo = new QueryObject(isa, x, dog);
+		Set<Substitution> candidates = new HashSet<>();
+		candidates.add(new Substitution(x, dogs.get(3)));
+		candidates.add(new Substitution(x, dogs.get(7)));
+		candidates.add(new Substitution(x, pet));
+		List<String> candidateVars = new ArrayList<>();
+		candidateVars.add(x.toString());
+		qo.setCandidates(candidateVars, candidates);
+		results = sut_.execute(qo);
+		assertEquals(results.size(), 2);
+		assertTrue(results.contains(new Substitution(x, dogs.get(3))));
+		assertTrue(results.contains(new Substitution(x, dogs.get(7))));
+	}
+
+	@Test
+	public void testSubstitution() {
+		Node creator = new StringNode("TestCreator");
+		DAGNode dog = (DAGNode) dag_.findOrCreateNode("Dog", creator, true);
+		DAGNode cat = (DAGNode) dag_.findOrCreateNode("Cat", creator, true);
+
+		// Layouts are interned
+		assertTrue(VariableLayout.of("?X", "?Y") == VariableLayout.EMPTY
+				.extend("?X").extend("?Y"));
+		assertEquals(VariableLayout.of("?X", "?Y").indexOf("?Y"), 1);
+		assertEquals(VariableLayout.of("?X").indexOf("?Y"), -1);
+
+		// Equality and hashing do not depend on variable order
+		Substitution xy = new Substitution("?X", dog);
+		xy.addSubstitution("?Y", cat);
+		Substitution yx = new Substitution("?Y", cat);
+		yx.addSubstitution("?X", dog);
+		assertEquals(xy, yx);
+		assertEquals(xy.hashCode(), yx.hashCode());
+		Map<String, Node> map = new HashMap<>();
+		map.put("?X", dog);
+		map.put("?Y", cat);
+		assertEquals(xy.getSubstitutionMap(), map);
+		assertEquals(new Substitution(map), xy);
+
+		// The map is a live view
+		Substitution sub = xy.clone();
+		sub.getSubstitutionMap().put("?Y", dog);
+		assertFalse(sub.equals(xy));
+		assertEquals(sub.getSubstitution("?Y"), dog);
+		assertEquals(xy.getSubstitution("?Y"), cat);
+		sub.getSubstitutionMap().remove("?X");
+		assertEquals(sub, new Substitution("?Y", dog));
+		sub.addSubstitutions(xy);
+		assertEquals(sub, xy);
+
+		// Query results share the query's layout
+		DAGNode genls = CommonConcepts.GENLS.getNode(dag_);
+		dag_.findOrCreateEdge(new Node[] { genls, dog, cat }, creator, true);
+		Collection<Substitution> results = sut_.execute(genls, dog,
+				VariableNode.DEFAULT);
+		assertEquals(results.size(), 2);
+		VariableLayout layout = VariableLayout.of("?X");
+		for (Substitution result : results)
+			assertTrue(result.getLayout() == layout);
+		assertTrue(results.contains(new Substitution("?X", cat)));
+	}
+
 	@Test
 	public void testExecuteDisjointWith() {
 		Node creator = new StringNode("TestCreator");
@@ -1204,4 +1417,223 @@ public class QueryModuleTest {
 		qo = new QueryObject(laterThan, dateA, dateB);
 		assertNotNull(sut_.execute(qo));
 	}
+
+	@Test
+	public void testQueryCache() {
+		Node creator = new StringNode("TestCreator");
+		DAGNode genls = CommonConcepts.GENLS.getNode(dag_);
+		DAGNode dog = (DAGNode) dag_.findOrCreateNode("Dog", creator, true);
+		DAGNode canis = (DAGNode) dag_.findOrCreateNode("Canis", creator, true);
+		DAGNode mammal = (DAGNode) dag_.findOrCreateNode("Mammal", creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { genls, dog, canis }, creator, true);
+		QueryCache cache = sut_.getQueryCache();
+		cache.clear();
+
+		VariableNode x = VariableNode.DEFAULT;
+		Collection<Substitution> results = sut_.execute(genls, dog, x);
+		assertEquals(results.size(), 2);
+		long hits = cache.getHits();
+
+		// Alpha-equivalent query is a hit, using the caller's variable
+		VariableNode y = new VariableNode("?Y");
+		results = sut_.execute(genls, dog, y);
+		assertEquals(cache.getHits(), hits + 1);
+		assertEquals(results.size(), 2);
+		assertTrue(results.contains(new Substitution(y, dog)));
+		assertTrue(results.contains(new Substitution(y, canis)));
+
+		// Mutating the returned results does not affect the cache
+		results.clear();
+		results = sut_.execute(genls, dog, x);
+		assertEquals(results.size(), 2);
+
+		// A new genls edge invalidates the entry
+		dag_.findOrCreateEdge(new Node[] { genls, canis, mammal }, creator,
+				true);
+		results = sut_.execute(genls, dog, x);
+		assertEquals(results.size(), 3);
+		assertTrue(results.contains(new Substitution(x, mammal)));
+
+		// Proofs are cached too
+		assertTrue(sut_.prove(genls, dog, mammal));
+		hits = cache.getHits();
+		assertTrue(sut_.prove(genls, dog, mammal));
+		assertEquals(cache.getHits(), hits + 1);
+
+		// Uncacheable queries bypass the cache
+		hits = cache.getHits();
+		QueryObject qo = new QueryObject(genls, dog, x);
+		qo.setCacheable(false);
+		results = sut_.execute(qo);
+		assertEquals(results.size(), 3);
+		assertEquals(cache.getHits(), hits);
+
+		// Queries restricted to candidates are neither stored nor served
+		cache.clear();
+		qo = new QueryObject(genls, dog, x);
+		List<String> candidateVars = new ArrayList<>();
+		candidateVars.add(x.toString());
+		Set<Substitution> candidates = new HashSet<>();
+		candidates.add(new Substitution(x, canis));
+		qo.setCandidates(candidateVars, candidates);
+		results = sut_.execute(qo);
+		assertEquals(results.size(), 1);
+		assertEquals(sut_.execute(genls, dog, x).size(), 3);
+
+		// Disabling the cache
+		sut_.setCacheEnabled(false);
+		results = sut_.execute(genls, dog, x);
+		assertEquals(results.size(), 3);
+		assertEquals(cache.size(), 0);
+		sut_.setCacheEnabled(true);
+	}
+
+	@Test
+	public void testExplain() {
+		Node creator = new StringNode("TestCreator");
+		DAGNode genls = CommonConcepts.GENLS.getNode(dag_);
+		DAGNode isa = CommonConcepts.ISA.getNode(dag_);
+		DAGNode and = CommonConcepts.AND.getNode(dag_);
+		DAGNode dog = (DAGNode) dag_.findOrCreateNode("Dog", creator, true);
+		DAGNode mammal = (DAGNode) dag_.findOrCreateNode("Mammal", creator,
+				true);
+		DAGNode fido = (DAGNode) dag_.findOrCreateNode("Fido", creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, dog, mammal }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { isa, fido, dog }, creator, true);
+		VariableNode x = VariableNode.DEFAULT;
+
+		// Routing only
+		QueryExplanation explanation = sut_.explain(new QueryObject(isa, x,
+				mammal));
+		assertEquals(explanation.getWorker(), "isa");
+		assertNull(explanation.getRegex());
+		assertEquals(explanation.getResults(), QueryPlan.NOT_EVALUATED);
+		assertNull(explanation.getTrace());
+		OntologyFunction isaDog = new OntologyFunction(isa, x, dog);
+		OntologyFunction isaMammal = new OntologyFunction(isa, x, mammal);
+		explanation = sut_.explain(new QueryObject(and, isaMammal, isaDog));
+		assertEquals(explanation.getWorker(), "and");
+		assertEquals(explanation.getPlan().getSteps().size(), 2);
+
+		// Analysis runs the query and traces its sub-queries
+		explanation = sut_.explainAnalyze(new QueryObject(and, isaMammal,
+				isaDog));
+		assertEquals(explanation.getResults(), 1);
+		List<QueryTrace.Step> steps = explanation.getTrace().getSteps();
+		assertEquals(steps.get(0).getWorker(), "and");
+		assertEquals(steps.get(0).getDepth(), 0);
+		assertEquals(steps.get(0).getResults(), 1);
+		assertTrue(steps.size() > 2);
+		assertEquals(steps.get(1).getDepth(), 1);
+		assertTrue(explanation.getTrace().getTotalEdges() > 0);
+		assertTrue(explanation.getPlan().getSteps().get(0).getActual() >= 0);
+		assertNull(QueryTrace.current());
+
+		// Slow queries are logged with their plans
+		SlowQueryLog log = sut_.getSlowQueryLog();
+		log.clear();
+		sut_.execute(isa, x, mammal);
+		assertTrue(log.getEntries().isEmpty());
+		log.setThresholdMillis(0);
+		sut_.getQueryCache().clear();
+		sut_.execute(and, isaMammal, isaDog);
+		assertEquals(log.getEntries().size(), 1);
+		explanation = log.getEntries().get(0);
+		assertEquals(explanation.getWorker(), "and");
+		assertEquals(explanation.getResults(), 1);
+		assertEquals(explanation.getPlan().getSteps().size(), 2);
+		log.setThresholdMillis(SlowQueryLog.DISABLED);
+		log.clear();
+	}
+
+	@Test
+	public void testQueryLimit() {
+		Node creator = new StringNode("TestCreator");
+		DAGNode genls = CommonConcepts.GENLS.getNode(dag_);
+		DAGNode isa = CommonConcepts.ISA.getNode(dag_);
+		DAGNode dog = (DAGNode) dag_.findOrCreateNode("Dog", creator, true);
+		DAGNode cat = (DAGNode) dag_.findOrCreateNode("Cat", creator, true);
+		DAGNode mammal = (DAGNode) dag_.findOrCreateNode("Mammal", creator,
+				true);
+		DAGNode animal = (DAGNode) dag_.findOrCreateNode("Animal", creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { genls, dog, mammal }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, cat, mammal }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, mammal, animal }, creator,
+				true);
+		for (int i = 0; i < 40; i++) {
+			DAGNode pet = (DAGNode) dag_.findOrCreateNode("Pet" + i, creator,
+					true);
+			dag_.findOrCreateEdge(new Node[] { isa, pet,
+					(i % 2 == 0) ? dog : cat }, creator, true);
+		}
+		QueryCache cache = sut_.getQueryCache();
+		VariableNode x = VariableNode.DEFAULT;
+
+		for (int pass = 0; pass < 2; pass++) {
+			if (pass == 1) {
+				// Second pass uses the interval schema
+				TransitiveIntervalSchemaModule intervalModule = (TransitiveIntervalSchemaModule) dag_
+						.getModule(TransitiveIntervalSchemaModule.class);
+				intervalModule.initialisationComplete(dag_.getNodes(),
+						dag_.getEdges(), true);
+			}
+			cache.clear();
+
+			// Limited queries stop early and are not cached
+			QueryObject qo = new QueryObject(genls, x, animal);
+			qo.setLimit(2);
+			Collection<Substitution> results = sut_.execute(qo);
+			assertEquals(results.size(), 2);
+			assertTrue(qo.isLimitReached());
+			assertEquals(cache.size(), 0);
+			List<Substitution> full = new ArrayList<>(sut_.execute(genls, x,
+					animal));
+			assertEquals(full.size(), 4);
+			assertEquals(new ArrayList<>(results), full.subList(0, 2));
+
+			// Limited queries are answered from complete cached results
+			qo = new QueryObject(genls, x, animal);
+			qo.setLimit(3);
+			long hits = cache.getHits();
+			results = sut_.execute(qo);
+			assertEquals(cache.getHits(), hits + 1);
+			assertEquals(new ArrayList<>(results), full.subList(0, 3));
+
+			// A limit larger than the results is complete
+			qo = new QueryObject(genls, x, animal);
+			qo.setLimit(10);
+			qo.setCacheable(false);
+			assertEquals(sut_.execute(qo).size(), 4);
+			assertFalse(qo.isLimitReached());
+
+			// Isa instances
+			qo = new QueryObject(isa, x, animal);
+			qo.setLimit(1);
+			qo.setCacheable(false);
+			results = sut_.execute(qo);
+			assertEquals(results.size(), 1);
+			Collection<Substitution> allPets = sut_.execute(isa, x, animal);
+			assertEquals(allPets.size(), 40);
+			assertTrue(allPets.containsAll(results));
+
+			// Iterating the results
+			cache.clear();
+			Iterator<Substitution> iter = sut_.iterate(isa, x, animal);
+			Set<Substitution> iterated = new HashSet<>();
+			while (iter.hasNext())
+				assertTrue(iterated.add(iter.next()));
+			assertEquals(iterated, new HashSet<>(allPets));
+			iter = sut_.iterate(isa, x, mammal);
+			assertTrue(allPets.contains(iter.next()));
+
+			// Proofs
+			assertTrue(sut_.prove(genls, dog, animal));
+			assertFalse(sut_.prove(genls, animal, dog));
+			assertTrue(sut_.prove(isa, dag_.findOrCreateNode("Pet3", creator),
+					animal));
+			assertFalse(sut_.iterate(genls, animal, dog).hasNext());
+		}
+	}
 }
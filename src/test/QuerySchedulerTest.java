@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package test;
+
+import static org.junit.Assert.*;
+import graph.core.cli.AddCycEdgeCommand;
+import graph.core.cli.QueryScheduler;
+import graph.core.cli.QueryScheduler.Lane;
+import graph.core.cli.SyncCommand;
+import graph.module.cli.QueryCommand;
+import graph.module.cli.SimilarConceptsCommand;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import core.Command;
+
+public class QuerySchedulerTest {
+	private QueryScheduler sut_;
+
+	@Before
+	public void setUp() throws Exception {
+		sut_ = new QueryScheduler(2, 1, 1);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		sut_.shutdown();
+	}
+
+	@Test
+	public void testChooseLane() {
+		assertEquals(Lane.BATCH, sut_.chooseLane(new QueryCommand()));
+		assertEquals(Lane.WRITE, sut_.chooseLane(new AddCycEdgeCommand()));
+		assertEquals(Lane.INTERACTIVE,
+				sut_.chooseLane(new SimilarConceptsCommand()));
+	}
+
+	@Test
+	public void testLanes() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		BlockingCommand batch = new BlockingCommand(release);
+		assertTrue(sut_.addCommand(batch, Lane.BATCH));
+		assertTrue(batch.started_.await(10, TimeUnit.SECONDS));
+
+		// Interactive commands are not held up by the batch lane
+		BlockingCommand interactive = new BlockingCommand(null);
+		assertTrue(sut_.addCommand(interactive, Lane.INTERACTIVE));
+		sut_.waitForCompletion(interactive);
+		assertTrue(interactive.finished_);
+		assertFalse(batch.finished_);
+		assertEquals(1, sut_.getActiveCount(Lane.BATCH));
+		assertEquals(1, sut_.getCompleted(Lane.INTERACTIVE));
+
+		release.countDown();
+		sut_.waitForCompletion(batch);
+		assertTrue(batch.finished_);
+		assertEquals(1, sut_.getCompleted(Lane.BATCH));
+	}
+
+	@Test
+	public void testAdmission() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		BlockingCommand running = new BlockingCommand(release);
+		assertTrue(sut_.addCommand(running, Lane.BATCH));
+		assertTrue(running.started_.await(10, TimeUnit.SECONDS));
+
+		// One command may wait, the next is rejected
+		BlockingCommand queued = new BlockingCommand(release);
+		assertTrue(sut_.addCommand(queued, Lane.BATCH));
+		assertEquals(1, sut_.getQueueDepth(Lane.BATCH));
+		BlockingCommand rejected = new BlockingCommand(release);
+		assertFalse(sut_.addCommand(rejected, Lane.BATCH));
+		assertEquals(1, sut_.getRejected(Lane.BATCH));
+		sut_.waitForCompletion(rejected);
+		assertFalse(rejected.finished_);
+
+		// Raising the capacity admits more
+		sut_.setCapacity(Lane.BATCH, 2);
+		assertTrue(sut_.addCommand(rejected, Lane.BATCH));
+		assertEquals(2, sut_.getPeakQueueDepth(Lane.BATCH));
+
+		release.countDown();
+		sut_.waitForCompletion(running);
+		sut_.waitForCompletion(queued);
+		sut_.waitForCompletion(rejected);
+		assertTrue(queued.finished_);
+		assertTrue(rejected.finished_);
+		assertEquals(3, sut_.getCompleted(Lane.BATCH));
+		assertEquals(0, sut_.getQueueDepth(Lane.BATCH));
+	}
+
+	@Test
+	public void testSubmit() throws Exception {
+		// Subcommands of a batch command run their writes on the write lane
+		final BlockingCommand read = new BlockingCommand(null);
+		final RecordingWriteCommand write = new RecordingWriteCommand();
+		Command parent = new Command() {
+			@Override
+			protected void executeImpl() {
+				sut_.submit(read);
+				sut_.submit(write);
+			}
+
+			@Override
+			public String shortDescription() {
+				return "Runs two subcommands.";
+			}
+		};
+		assertTrue(sut_.addCommand(parent, Lane.BATCH));
+		sut_.waitForCompletion(parent);
+		assertTrue(read.finished_);
+		assertTrue(write.thread_.startsWith("write"));
+		assertEquals(1, sut_.getCompleted(Lane.WRITE));
+		assertEquals(1, sut_.getCompleted(Lane.BATCH));
+	}
+
+	@Test
+	public void testGetNextCommand() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		BlockingCommand running = new BlockingCommand(release);
+		assertTrue(sut_.addCommand(running, Lane.BATCH));
+		assertTrue(running.started_.await(10, TimeUnit.SECONDS));
+
+		// A waiting command can be taken and run by another thread
+		BlockingCommand queued = new BlockingCommand(null);
+		assertTrue(sut_.addCommand(queued, Lane.BATCH));
+		assertSame(queued, sut_.getNextCommand());
+		assertEquals(0, sut_.getQueueDepth(Lane.BATCH));
+		queued.execute();
+		sut_.completed(queued);
+		sut_.waitForCompletion(queued);
+		assertTrue(queued.finished_);
+		assertFalse(running.finished_);
+		assertEquals(1, sut_.getCompleted(Lane.BATCH));
+
+		release.countDown();
+		sut_.waitForCompletion(running);
+		assertEquals(2, sut_.getCompleted(Lane.BATCH));
+	}
+
+	/**
+	 * A write command that records the thread it ran on.
+	 */
+	private static class RecordingWriteCommand extends SyncCommand {
+		private volatile String thread_;
+
+		@Override
+		protected void executeImpl() {
+			thread_ = Thread.currentThread().getName();
+		}
+	}
+
+	/**
+	 * A command that waits for a latch before finishing.
+	 */
+	private static class BlockingCommand extends Command {
+		private volatile boolean finished_;
+		private CountDownLatch release_;
+		private CountDownLatch started_ = new CountDownLatch(1);
+
+		public BlockingCommand(CountDownLatch release) {
+			release_ = release;
+		}
+
+		@Override
+		protected void executeImpl() {
+			started_.countDown();
+			try {
+				if (release_ != null)
+					release_.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			finished_ = true;
+		}
+
+		@Override
+		public String shortDescription() {
+			return "Blocks until released.";
+		}
+	}
+}
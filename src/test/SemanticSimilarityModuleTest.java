@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package test;
+
+import static org.junit.Assert.*;
+import graph.core.CommonConcepts;
+import graph.core.CycDAG;
+import graph.core.Node;
+import graph.core.StringNode;
+import graph.module.SemanticSimilarityModule;
+import graph.module.TransitiveIntervalSchemaModule;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashSet;
+
+import org.apache.commons.collections4.CollectionUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import util.collection.WeightedSet;
+
+public class SemanticSimilarityModuleTest {
+	private CycDAG dag_;
+	private SemanticSimilarityModule sut_;
+
+	@Before
+	public void setUp() throws Exception {
+		dag_ = new CycDAG(new File("test"));
+		sut_ = (SemanticSimilarityModule) dag_
+				.getModule(SemanticSimilarityModule.class);
+		CommonConcepts.initialise(dag_);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dag_.clear();
+		dag_.noChecks_ = false;
+	}
+
+	@Test
+	public void testSimilarity() {
+		Node creator = new StringNode("TestCreator");
+		setUpDAG(creator);
+		Node dog = dag_.findOrCreateNode("Dog", creator, true);
+		Node cat = dag_.findOrCreateNode("Cat", creator, true);
+		Node oak = dag_.findOrCreateNode("Oak", creator, true);
+		Node fido = dag_.findOrCreateNode("Fido", creator, true);
+
+		// Exact similarity matches the ancestor set Jaccard
+		for (Node[] pair : new Node[][] { { dog, cat }, { dog, oak },
+				{ fido, dog }, { cat, oak } }) {
+			Collection<Node> parentsA = new HashSet<>(sut_.getParents(pair[0]));
+			Collection<Node> parentsB = new HashSet<>(sut_.getParents(pair[1]));
+			float expected = 1f
+					* CollectionUtils.intersection(parentsA, parentsB).size()
+					/ CollectionUtils.union(parentsA, parentsB).size();
+			assertEquals(expected, sut_.semanticSimilarity(pair[0], pair[1]),
+					0.0001);
+			assertEquals(expected, sut_.semanticSimilarity(parentsA, pair[1]),
+					0.0001);
+		}
+		assertTrue(sut_.semanticSimilarity(dog, cat) > sut_
+				.semanticSimilarity(dog, oak));
+		assertEquals(1f, sut_.estimateSimilarity(dog, dog), 0.0001);
+		assertEquals(sut_.semanticSimilarity(dog, cat),
+				sut_.estimateSimilarity(dog, cat), 0.25);
+	}
+
+	@Test
+	public void testMostSimilar() {
+		Node creator = new StringNode("TestCreator");
+		setUpDAG(creator);
+		Node genls = CommonConcepts.GENLS.getNode(dag_);
+		Node dog = dag_.findOrCreateNode("Dog", creator, true);
+		Node cat = dag_.findOrCreateNode("Cat", creator, true);
+		Node wolf = dag_.findOrCreateNode("Wolf", creator, true);
+		Node oak = dag_.findOrCreateNode("Oak", creator, true);
+		Node canis = dag_.findOrCreateNode("Canis", creator, true);
+
+		Node fido = dag_.findOrCreateNode("Fido", creator, true);
+		WeightedSet<Node> similar = sut_.getMostSimilar(dog, 3);
+		assertEquals(3, similar.size());
+		assertFalse(similar.contains(dog));
+		assertEquals(fido, similar.getOrdered().first());
+		assertTrue(similar.contains(canis));
+		assertTrue(similar.contains(wolf));
+		assertFalse(similar.contains(oak));
+		assertEquals(sut_.semanticSimilarity(dog, wolf),
+				similar.getWeight(wolf), 0.0001);
+
+		// Changes to the taxonomy are reflected
+		similar = sut_.getMostSimilar(wolf, 10);
+		assertEquals(0.5, similar.getWeight(cat), 0.0001);
+		dag_.noChecks_ = true;
+		dag_.findOrCreateEdge(new Node[] { genls, cat, canis }, creator, true);
+		similar = sut_.getMostSimilar(wolf, 10);
+		assertEquals(4f / 6, similar.getWeight(cat), 0.0001);
+		assertEquals(sut_.semanticSimilarity(dog, wolf),
+				sut_.semanticSimilarity(cat, wolf), 0.0001);
+
+		// Only the changed concept and its descendants are recomputed
+		Node predator = dag_.findOrCreateNode("Predator", creator, true);
+		int[] oakSignature = sut_.getSignature(oak);
+		int[] dogSignature = sut_.getSignature(dog);
+		dag_.findOrCreateEdge(new Node[] { genls, canis, predator }, creator,
+				true);
+		assertSame(oakSignature, sut_.getSignature(oak));
+		assertEquals(dogSignature.length + 1, sut_.getSignature(dog).length);
+		similar = sut_.getMostSimilar(wolf, 10);
+		assertEquals(5f / 7, similar.getWeight(dog), 0.0001);
+		assertEquals(sut_.semanticSimilarity(cat, wolf),
+				similar.getWeight(cat), 0.0001);
+
+		// Larger k than concepts returns everything
+		similar = sut_.getMostSimilar(dog, 100);
+		assertTrue(similar.contains(oak));
+	}
+
+	private void setUpDAG(Node creator) {
+		Node genls = CommonConcepts.GENLS.getNode(dag_);
+		Node isa = CommonConcepts.ISA.getNode(dag_);
+		Node thing = CommonConcepts.THING.getNode(dag_);
+		dag_.noChecks_ = true;
+		Node animal = dag_.findOrCreateNode("Animal", creator, true);
+		Node mammal = dag_.findOrCreateNode("Mammal", creator, true);
+		Node canis = dag_.findOrCreateNode("Canis", creator, true);
+		Node dog = dag_.findOrCreateNode("Dog", creator, true);
+		Node wolf = dag_.findOrCreateNode("Wolf", creator, true);
+		Node cat = dag_.findOrCreateNode("Cat", creator, true);
+		Node plant = dag_.findOrCreateNode("Plant", creator, true);
+		Node oak = dag_.findOrCreateNode("Oak", creator, true);
+		Node fido = dag_.findOrCreateNode("Fido", creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, animal, thing }, creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { genls, plant, thing }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, mammal, animal }, creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { genls, canis, mammal }, creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { genls, dog, canis }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, wolf, canis }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, cat, mammal }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, oak, plant }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { isa, fido, dog }, creator, true);
+		dag_.noChecks_ = false;
+		TransitiveIntervalSchemaModule schemaModule = (TransitiveIntervalSchemaModule) dag_
+				.getModule(TransitiveIntervalSchemaModule.class);
+		schemaModule.initialisationComplete(dag_.getNodes(), dag_.getEdges(),
+				true);
+	}
+}
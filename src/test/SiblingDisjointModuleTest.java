@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package test;
+
+import static org.junit.Assert.*;
+import graph.core.CommonConcepts;
+import graph.core.CycDAG;
+import graph.core.DAGNode;
+import graph.core.Edge;
+import graph.core.Node;
+import graph.core.StringNode;
+import graph.inference.QueryObject;
+import graph.inference.Substitution;
+import graph.inference.VariableNode;
+import graph.module.QueryModule;
+import graph.module.SiblingDisjointModule;
+
+import java.io.File;
+import java.util.Collection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SiblingDisjointModuleTest {
+	private CycDAG dag_;
+	private QueryModule querier_;
+	private SiblingDisjointModule sut_;
+
+	@Before
+	public void setUp() throws Exception {
+		dag_ = new CycDAG(new File("test"));
+		sut_ = (SiblingDisjointModule) dag_
+				.getModule(SiblingDisjointModule.class);
+		querier_ = (QueryModule) dag_.getModule(QueryModule.class);
+		CommonConcepts.initialise(dag_);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dag_.clear();
+		dag_.noChecks_ = false;
+	}
+
+	@Test
+	public void testProof() {
+		Node creator = new StringNode("TestCreator");
+		setUpDAG(creator);
+		DAGNode disjoint = CommonConcepts.DISJOINTWITH.getNode(dag_);
+		DAGNode foodType = (DAGNode) dag_.findOrCreateNode("FoodType",
+				creator, true);
+		DAGNode fruit = (DAGNode) dag_.findOrCreateNode("Fruit", creator, true);
+		DAGNode meat = (DAGNode) dag_.findOrCreateNode("Meat", creator, true);
+		DAGNode vegetable = (DAGNode) dag_.findOrCreateNode("Vegetable",
+				creator, true);
+		DAGNode apple = (DAGNode) dag_.findOrCreateNode("Apple", creator, true);
+		DAGNode beef = (DAGNode) dag_.findOrCreateNode("Beef", creator, true);
+		DAGNode carrot = (DAGNode) dag_.findOrCreateNode("Carrot", creator,
+				true);
+		assertTrue(sut_.isReady());
+
+		Collection<DAGNode> members = sut_.getSiblingDisjointMembers(foodType);
+		assertEquals(3, members.size());
+		assertTrue(sut_.getSiblingDisjointParents(fruit).contains(foodType));
+
+		assertArrayEquals(new DAGNode[] { fruit, meat, foodType },
+				sut_.findSiblingDisjoint(apple, beef));
+		QueryObject qo = new QueryObject(disjoint, apple, beef);
+		assertNotNull(querier_.execute(qo));
+		assertFalse(qo.getJustification().isEmpty());
+		assertNotNull(querier_.execute(disjoint, meat, vegetable));
+		assertNull(querier_.execute(disjoint, apple, fruit));
+		assertNull(querier_.execute(disjoint, fruit, fruit));
+
+		// Exceptions apply to the sibling and its specs
+		assertNull(sut_.findSiblingDisjoint(fruit, vegetable));
+		assertNull(querier_.execute(disjoint, fruit, vegetable));
+		assertNull(querier_.execute(disjoint, apple, carrot));
+	}
+
+	@Test
+	public void testVariable() {
+		Node creator = new StringNode("TestCreator");
+		setUpDAG(creator);
+		DAGNode disjoint = CommonConcepts.DISJOINTWITH.getNode(dag_);
+		DAGNode fruit = (DAGNode) dag_.findOrCreateNode("Fruit", creator, true);
+		DAGNode meat = (DAGNode) dag_.findOrCreateNode("Meat", creator, true);
+		DAGNode vegetable = (DAGNode) dag_.findOrCreateNode("Vegetable",
+				creator, true);
+		DAGNode apple = (DAGNode) dag_.findOrCreateNode("Apple", creator, true);
+		VariableNode x = VariableNode.DEFAULT;
+
+		Collection<Substitution> results = querier_.execute(disjoint, apple, x);
+		assertEquals(1, results.size());
+		assertTrue(results.contains(new Substitution(x, meat)));
+		results = querier_.execute(disjoint, x, meat);
+		assertEquals(2, results.size());
+		assertTrue(results.contains(new Substitution(x, fruit)));
+		assertTrue(results.contains(new Substitution(x, vegetable)));
+
+		// Limited
+		QueryObject qo = new QueryObject(disjoint, x, meat);
+		qo.setLimit(1);
+		assertEquals(1, querier_.execute(qo).size());
+	}
+
+	@Test
+	public void testSharedAncestor() {
+		Node creator = new StringNode("TestCreator");
+		DAGNode isa = CommonConcepts.ISA.getNode(dag_);
+		DAGNode genls = CommonConcepts.GENLS.getNode(dag_);
+		DAGNode disjoint = CommonConcepts.DISJOINTWITH.getNode(dag_);
+		DAGNode collection = CommonConcepts.COLLECTION.getNode(dag_);
+		DAGNode sibType = CommonConcepts.SIBLING_DISJOINT_COLLECTION_TYPE
+				.getNode(dag_);
+		dag_.noChecks_ = true;
+		DAGNode animalType = (DAGNode) dag_.findOrCreateNode("AnimalType",
+				creator, true);
+		DAGNode mammal = (DAGNode) dag_.findOrCreateNode("Mammal", creator,
+				true);
+		DAGNode dog = (DAGNode) dag_.findOrCreateNode("Dog", creator, true);
+		DAGNode bird = (DAGNode) dag_.findOrCreateNode("Bird", creator, true);
+		DAGNode mammalPet = (DAGNode) dag_.findOrCreateNode("MammalPet",
+				creator, true);
+		dag_.findOrCreateEdge(new Node[] { isa, animalType, sibType },
+				creator, true);
+		for (Node animal : new Node[] { mammal, dog, bird }) {
+			dag_.findOrCreateEdge(new Node[] { isa, animal, collection },
+					creator, true);
+			dag_.findOrCreateEdge(new Node[] { isa, animal, animalType },
+					creator, true);
+		}
+		dag_.findOrCreateEdge(new Node[] { isa, mammalPet, collection },
+				creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, dog, mammal }, creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { genls, mammalPet, mammal },
+				creator, true);
+		dag_.noChecks_ = false;
+		sut_.initialisationComplete(dag_.getNodes(), dag_.getEdges(), true);
+
+		// Dog and MammalPet share the typed Mammal, so are not disjoint
+		assertNull(sut_.findSiblingDisjoint(mammalPet, dog));
+		assertNull(querier_.execute(disjoint, mammalPet, dog));
+		VariableNode x = VariableNode.DEFAULT;
+		Collection<Substitution> results = querier_.execute(disjoint,
+				mammalPet, x);
+		assertEquals(1, results.size());
+		assertTrue(results.contains(new Substitution(x, bird)));
+		results = querier_.execute(disjoint, dog, x);
+		assertEquals(1, results.size());
+		assertTrue(results.contains(new Substitution(x, bird)));
+	}
+
+	@Test
+	public void testIncremental() {
+		Node creator = new StringNode("TestCreator");
+		setUpDAG(creator);
+		DAGNode isa = CommonConcepts.ISA.getNode(dag_);
+		DAGNode genls = CommonConcepts.GENLS.getNode(dag_);
+		DAGNode disjoint = CommonConcepts.DISJOINTWITH.getNode(dag_);
+		DAGNode exception = CommonConcepts.SIBLING_DISJOINT_EXCEPTION
+				.getNode(dag_);
+		DAGNode sibType = CommonConcepts.SIBLING_DISJOINT_COLLECTION_TYPE
+				.getNode(dag_);
+		DAGNode collection = CommonConcepts.COLLECTION.getNode(dag_);
+		DAGNode foodType = (DAGNode) dag_.findOrCreateNode("FoodType",
+				creator, true);
+		DAGNode meat = (DAGNode) dag_.findOrCreateNode("Meat", creator, true);
+		DAGNode apple = (DAGNode) dag_.findOrCreateNode("Apple", creator, true);
+		DAGNode beef = (DAGNode) dag_.findOrCreateNode("Beef", creator, true);
+		dag_.noChecks_ = true;
+
+		// New member, through a new spec
+		DAGNode dairy = (DAGNode) dag_.findOrCreateNode("Dairy", creator, true);
+		DAGNode cheese = (DAGNode) dag_.findOrCreateNode("Cheese", creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { isa, dairy, collection }, creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { isa, cheese, collection }, creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { genls, cheese, dairy }, creator,
+				true);
+		assertNull(querier_.execute(disjoint, cheese, beef));
+		dag_.findOrCreateEdge(new Node[] { isa, dairy, foodType }, creator,
+				true);
+		assertTrue(sut_.getSiblingDisjointMembers(foodType).contains(dairy));
+		assertNotNull(querier_.execute(disjoint, cheese, beef));
+
+		// New exception
+		dag_.findOrCreateEdge(new Node[] { exception, apple, dairy }, creator,
+				true);
+		assertNull(querier_.execute(disjoint, apple, cheese));
+		assertNotNull(querier_.execute(disjoint, cheese, beef));
+
+		// Removed member
+		Edge edge = dag_.findEdge(isa, meat, foodType);
+		assertTrue(dag_.removeEdge(edge));
+		assertFalse(sut_.getSiblingDisjointMembers(foodType).contains(meat));
+		assertNull(querier_.execute(disjoint, apple, beef));
+
+		// A new sibling disjoint collection type
+		DAGNode colour = (DAGNode) dag_.findOrCreateNode("ColourType",
+				creator, true);
+		DAGNode red = (DAGNode) dag_.findOrCreateNode("Red", creator, true);
+		DAGNode blue = (DAGNode) dag_.findOrCreateNode("Blue", creator, true);
+		dag_.findOrCreateEdge(new Node[] { isa, colour, collection }, creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { isa, red, colour }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { isa, blue, colour }, creator, true);
+		assertNull(querier_.execute(disjoint, red, blue));
+		dag_.findOrCreateEdge(new Node[] { isa, colour, sibType }, creator,
+				true);
+		assertNotNull(querier_.execute(disjoint, red, blue));
+		edge = dag_.findEdge(isa, colour, sibType);
+		assertTrue(dag_.removeEdge(edge));
+		assertNull(querier_.execute(disjoint, red, blue));
+	}
+
+	private void setUpDAG(Node creator) {
+		DAGNode isa = CommonConcepts.ISA.getNode(dag_);
+		DAGNode genls = CommonConcepts.GENLS.getNode(dag_);
+		DAGNode collection = CommonConcepts.COLLECTION.getNode(dag_);
+		DAGNode sibType = CommonConcepts.SIBLING_DISJOINT_COLLECTION_TYPE
+				.getNode(dag_);
+		DAGNode exception = CommonConcepts.SIBLING_DISJOINT_EXCEPTION
+				.getNode(dag_);
+		dag_.noChecks_ = true;
+		Node foodType = dag_.findOrCreateNode("FoodType", creator, true);
+		Node fruit = dag_.findOrCreateNode("Fruit", creator, true);
+		Node meat = dag_.findOrCreateNode("Meat", creator, true);
+		Node vegetable = dag_.findOrCreateNode("Vegetable", creator, true);
+		Node apple = dag_.findOrCreateNode("Apple", creator, true);
+		Node beef = dag_.findOrCreateNode("Beef", creator, true);
+		Node carrot = dag_.findOrCreateNode("Carrot", creator, true);
+		dag_.findOrCreateEdge(new Node[] { isa, foodType, sibType }, creator,
+				true);
+		for (Node food : new Node[] { fruit, meat, vegetable }) {
+			dag_.findOrCreateEdge(new Node[] { isa, food, collection },
+					creator, true);
+			dag_.findOrCreateEdge(new Node[] { isa, food, foodType }, creator,
+					true);
+		}
+		dag_.findOrCreateEdge(new Node[] { genls, apple, fruit }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, beef, meat }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genls, carrot, vegetable }, creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { exception, fruit, vegetable },
+				creator, true);
+		dag_.noChecks_ = false;
+		sut_.initialisationComplete(dag_.getNodes(), dag_.getEdges(), true);
+	}
+}
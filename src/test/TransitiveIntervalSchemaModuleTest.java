@@ -18,6 +18,9 @@ import graph.core.Edge;
 import graph.core.ErrorEdge;
 import graph.core.Node;
 import graph.core.StringNode;
+import graph.inference.QueryCache;
+import graph.inference.VariableNode;
+import graph.module.QueryModule;
 import graph.module.TransitiveIntervalSchemaModule;
 
 import java.io.File;
@@ -128,6 +131,135 @@ public class TransitiveIntervalSchemaModuleTest {
 		assertTrue(result.contains(cat));
 	}
 
+	@Test
+	public void testOffHeap() {
+		Node creator = new StringNode("TestCreator");
+		setUpDAG(creator);
+
+		Node dog = dag_.findOrCreateNode("Dog", creator, true);
+		Node cat = dag_.findOrCreateNode("Cat", creator, true);
+		Node thing = dag_.findOrCreateNode("Thing", creator, true);
+		Node mammal = dag_.findOrCreateNode("Mammal", creator, true);
+		sut_.offHeapIntervals_ = true;
+		sut_.initialisationComplete(dag_.getNodes(), dag_.getEdges(), true);
+		sut_.offHeapIntervals_ = false;
+		assertNotNull(sut_.execute(true, dog, thing));
+		assertNull(sut_.execute(true, dog, cat));
+		assertNotNull(sut_.execute(false, mammal, cat));
+		Collection<DAGNode> result = sut_.execute(true, dog);
+		assertEquals(result.size(), 5);
+		assertFalse(result.contains(cat));
+	}
+
+	@Test
+	public void testTransitivePredicates() {
+		Node creator = new StringNode("TestCreator");
+		setUpDAG(creator);
+
+		DAGNode isa = CommonConcepts.ISA.getNode(dag_);
+		DAGNode genlPreds = CommonConcepts.GENLPREDS.getNode(dag_);
+		DAGNode transitive = CommonConcepts.TRANSITIVE_BINARY.getNode(dag_);
+		DAGNode capitalCity = (DAGNode) dag_.findOrCreateNode("capitalCity",
+				creator, true);
+		DAGNode capitalState = (DAGNode) dag_.findOrCreateNode(
+				"capitalCityOfState", creator, true);
+		DAGNode geoSub = (DAGNode) dag_.findOrCreateNode(
+				"geopoliticalSubdivision", creator, true);
+		DAGNode northOf = (DAGNode) dag_.findOrCreateNode("northOf", creator,
+				true);
+		DAGNode a = (DAGNode) dag_.findOrCreateNode("Arctic", creator, true);
+		DAGNode b = (DAGNode) dag_.findOrCreateNode("Equator", creator, true);
+		DAGNode c = (DAGNode) dag_.findOrCreateNode("Antarctic", creator, true);
+		dag_.noChecks_ = true;
+		dag_.findOrCreateEdge(new Node[] { genlPreds, capitalState,
+				capitalCity }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genlPreds, capitalCity, geoSub },
+				creator, true);
+		dag_.findOrCreateEdge(new Node[] { isa, northOf, transitive },
+				creator, true);
+		dag_.findOrCreateEdge(new Node[] { northOf, a, b }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { northOf, b, c }, creator, true);
+		sut_.initialisationComplete(dag_.getNodes(), dag_.getEdges(), true);
+
+		// genlPreds (reflexive)
+		assertTrue(sut_.isReady(genlPreds));
+		assertNotNull(sut_.execute(genlPreds, true, capitalState, geoSub));
+		assertNull(sut_.execute(genlPreds, true, geoSub, capitalState));
+		Collection<DAGNode> result = sut_.execute(genlPreds, true,
+				capitalState);
+		assertEquals(result.size(), 3);
+		assertTrue(result.contains(capitalState));
+
+		// Declared transitive (not reflexive)
+		assertTrue(sut_.isReady(northOf));
+		assertNotNull(sut_.execute(northOf, true, a, c));
+		assertNull(sut_.execute(northOf, true, c, a));
+		assertNull(sut_.execute(northOf, true, a, a));
+		result = sut_.execute(northOf, false, c);
+		assertEquals(result.size(), 2);
+		assertTrue(result.contains(a));
+		assertTrue(result.contains(b));
+		assertEquals(sut_.justifyTransitive(northOf, a, c).size(), 2);
+
+		// Predicates becoming transitive after initialisation
+		DAGNode southOf = (DAGNode) dag_.findOrCreateNode("southOf", creator,
+				true);
+		dag_.findOrCreateEdge(new Node[] { southOf, c, b }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { southOf, b, a }, creator, true);
+		assertFalse(sut_.isReady(southOf));
+		dag_.findOrCreateEdge(new Node[] { isa, southOf, transitive },
+				creator, true);
+		assertTrue(sut_.isReady(southOf));
+		assertNotNull(sut_.execute(southOf, true, c, a));
+		DAGNode plant = (DAGNode) dag_.findOrCreateNode("Plant", creator, true);
+		dag_.findOrCreateEdge(new Node[] { southOf, a, plant }, creator, true);
+		assertNotNull(sut_.execute(southOf, true, c, plant));
+		dag_.removeEdge(dag_.findEdge(isa, southOf, transitive));
+		assertFalse(sut_.isReady(southOf));
+	}
+
+	@Test
+	public void testSpecPredicates() {
+		Node creator = new StringNode("TestCreator");
+		setUpDAG(creator);
+		QueryModule querier = (QueryModule) dag_.getModule(QueryModule.class);
+
+		DAGNode isa = CommonConcepts.ISA.getNode(dag_);
+		DAGNode genlPreds = CommonConcepts.GENLPREDS.getNode(dag_);
+		DAGNode transitive = CommonConcepts.TRANSITIVE_BINARY.getNode(dag_);
+		DAGNode northOf = (DAGNode) dag_.findOrCreateNode("northOf", creator,
+				true);
+		DAGNode dueNorthOf = (DAGNode) dag_.findOrCreateNode("dueNorthOf",
+				creator, true);
+		DAGNode a = (DAGNode) dag_.findOrCreateNode("Arctic", creator, true);
+		DAGNode b = (DAGNode) dag_.findOrCreateNode("Equator", creator, true);
+		DAGNode c = (DAGNode) dag_.findOrCreateNode("Antarctic", creator, true);
+		dag_.noChecks_ = true;
+		dag_.findOrCreateEdge(new Node[] { northOf, a, b }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { dueNorthOf, b, c }, creator, true);
+		dag_.findOrCreateEdge(new Node[] { genlPreds, dueNorthOf, northOf },
+				creator, true);
+		sut_.initialisationComplete(dag_.getNodes(), dag_.getEdges(), true);
+		VariableNode x = VariableNode.DEFAULT;
+		assertEquals(1, querier.execute(northOf, b, x).size());
+
+		// Spec-predicate results are kept once the predicate is transitive
+		dag_.findOrCreateEdge(new Node[] { isa, northOf, transitive },
+				creator, true);
+		assertTrue(sut_.isReady(northOf));
+		assertEquals(1, querier.execute(northOf, b, x).size());
+
+		// Cached results do not survive a rebuild of the schemas
+		QueryCache cache = querier.getQueryCache();
+		assertEquals(1, querier.execute(northOf, b, x).size());
+		long misses = cache.getMisses();
+		assertEquals(1, querier.execute(northOf, b, x).size());
+		assertEquals(misses, cache.getMisses());
+		sut_.initialisationComplete(dag_.getNodes(), dag_.getEdges(), true);
+		assertEquals(1, querier.execute(northOf, b, x).size());
+		assertTrue(cache.getMisses() > misses);
+	}
+
 	@Test
 	public void testAddition() {
 		Node creator = new StringNode("TestCreator");
@@ -175,6 +307,38 @@ public class TransitiveIntervalSchemaModuleTest {
 		assertNotNull(sut_.execute(true, cow, thing));
 	}
 
+	@Test
+	public void testRepeatedLeafAddition() {
+		Node creator = new StringNode("TestCreator");
+		setUpDAG(creator);
+
+		DAGNode genls = CommonConcepts.GENLS.getNode(dag_);
+		DAGNode mammal = (DAGNode) dag_.findOrCreateNode("Mammal", creator,
+				true);
+		DAGNode thing = (DAGNode) dag_.findOrCreateNode("Thing", creator, true);
+		DAGNode dog = (DAGNode) dag_.findOrCreateNode("Dog", creator, true);
+		sut_.initialisationComplete(dag_.getNodes(), dag_.getEdges(), false);
+
+		// Exhausts the ID space below Mammal, forcing renumbering
+		dag_.noChecks_ = true;
+		DAGNode[] species = new DAGNode[40];
+		for (int i = 0; i < species.length; i++) {
+			species[i] = (DAGNode) dag_.findOrCreateNode("Species" + i,
+					creator, true);
+			assertFalse(dag_.findOrCreateEdge(new Node[] { genls, species[i],
+					mammal }, creator, true) instanceof ErrorEdge);
+		}
+		assertTrue(sut_.isReady());
+		for (DAGNode n : species) {
+			assertNotNull(sut_.execute(true, n, mammal));
+			assertNotNull(sut_.execute(true, n, thing));
+			assertNull(sut_.execute(true, n, dog));
+			assertTrue(sut_.execute(false, mammal).contains(n));
+		}
+		assertNotNull(sut_.execute(true, dog, mammal));
+		assertEquals(sut_.execute(false, mammal).size(), 44);
+	}
+
 	@Test
 	public void testRemoval() {
 		Node creator = new StringNode("TestCreator");
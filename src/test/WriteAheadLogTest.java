@@ -0,0 +1,312 @@
+/*******************************************************************************
+ * Copyright (C) 2013 University of Waikato, Hamilton, New Zealand.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sam Sarjant - initial API and implementation
+ ******************************************************************************/
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import graph.core.CommonConcepts;
+import graph.core.CycDAG;
+import graph.core.DAGEdge;
+import graph.core.DAGNode;
+import graph.core.Edge;
+import graph.core.Node;
+import graph.core.OntologyFunction;
+import graph.core.StringNode;
+import graph.core.WriteAheadLog;
+import graph.inference.HornClause;
+import graph.inference.Literal;
+import graph.inference.VariableNode;
+import graph.module.ForwardChainingModule;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteAheadLogTest {
+	private static final File ROOT_DIR = new File("walTest");
+
+	private CycDAG sut_;
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+
+	private CycDAG restart() throws InterruptedException {
+		CycDAG dag = new CycDAG(ROOT_DIR);
+		dag.loadAssertions_ = false;
+		dag.initialise();
+		dag.waitForCompaction();
+		return dag;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		delete(ROOT_DIR);
+		ROOT_DIR.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		if (sut_ != null) {
+			sut_.waitForCompaction();
+			sut_.clear();
+		}
+		delete(ROOT_DIR);
+	}
+
+	@Test
+	public void testReplay() throws InterruptedException {
+		sut_ = restart();
+		Node creator = new StringNode("TestCreator");
+		Node isa = CommonConcepts.ISA.getNode(sut_);
+		Node collection = CommonConcepts.COLLECTION.getNode(sut_);
+		DAGNode dog = (DAGNode) sut_.findOrCreateNode("Dog", creator, true);
+		DAGNode cat = (DAGNode) sut_.findOrCreateNode("Cat", creator, true);
+		DAGNode fruitFn = (DAGNode) sut_.findOrCreateNode("FruitFn", creator,
+				true);
+		sut_.findOrCreateNode("Lonely", creator, true);
+		sut_.findOrCreateEdge(new Node[] { isa, fruitFn,
+				CommonConcepts.FUNCTION.getNode(sut_) }, creator, true);
+		sut_.findOrCreateEdge(new Node[] { isa, dog, collection }, creator,
+				"BiologyMt", true);
+		Edge catEdge = sut_.findOrCreateEdge(
+				new Node[] { isa, cat, collection }, creator, true);
+		OntologyFunction dogFruit = sut_.findOrCreateFunctionNode(true, false,
+				creator, fruitFn, dog);
+		assertNotNull(dogFruit);
+		sut_.addProperty(dog, "colour", "brown");
+		sut_.addProperty((DAGEdge) catEdge, "note", "removed");
+		assertTrue(sut_.removeEdge(catEdge));
+		int numNodes = sut_.getNumNodes();
+		int numEdges = sut_.getNumEdges();
+		assertTrue(WriteAheadLog.segments(ROOT_DIR).length > 0);
+
+		// Crash without saving: the changes are replayed on restart
+		sut_ = restart();
+		assertEquals(numNodes, sut_.getNumNodes());
+		assertEquals(numEdges, sut_.getNumEdges());
+		dog = (DAGNode) sut_.findOrCreateNode("Dog", null, false);
+		assertEquals("brown", dog.getProperty("colour"));
+		assertNotNull(sut_.findOrCreateNode("Lonely", null, false));
+		assertNotNull(sut_.findOrCreateNode("(FruitFn Dog)", null, false));
+		DAGEdge edge = (DAGEdge) sut_.findEdge(isa, dog, collection);
+		assertNotNull(edge);
+		assertEquals("BiologyMt", edge.getProperty(CycDAG.MICROTHEORY));
+		assertEquals("\"TestCreator\"", edge.getCreator());
+		assertNull(sut_.findEdge(isa,
+				sut_.findOrCreateNode("Cat", null, false), collection));
+
+		// The replayed log was compacted into the saved state
+		long[] segments = WriteAheadLog.segments(ROOT_DIR);
+		assertEquals(1, segments.length);
+		assertEquals(0, new File(ROOT_DIR, WriteAheadLog.LOG_PREFIX
+				+ segments[0]).length());
+
+		// Changes after the compaction are logged in the new segment
+		assertTrue(sut_.removeEdge(edge));
+		sut_ = restart();
+		assertEquals(numNodes, sut_.getNumNodes());
+		assertEquals(numEdges - 1, sut_.getNumEdges());
+	}
+
+	@Test
+	public void testLoggedNodes() throws Exception {
+		sut_ = restart();
+		final Node creator = new StringNode("TestCreator");
+		DAGNode fruitFn = (DAGNode) sut_.findOrCreateNode("FruitFn", creator,
+				true);
+		sut_.findOrCreateEdge(new Node[] { CommonConcepts.ISA.getNode(sut_),
+				fruitFn, CommonConcepts.FUNCTION.getNode(sut_) }, creator, true);
+
+		// Threads racing to create the same nodes log each creation once
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 50; i++) {
+						sut_.findOrCreateNode("Item" + i, creator, true);
+						sut_.findOrCreateNode("(FruitFn Item" + i + ")",
+								creator, true);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		sut_.findOrCreateNode("Item0", creator, true);
+
+		final List<String> logged = new ArrayList<>();
+		WriteAheadLog.replay(ROOT_DIR, new WriteAheadLog.Replayer() {
+			@Override
+			public void replay(byte type, int flags, String[] fields) {
+				if (fields[0] != null && fields[0].contains("Item"))
+					logged.add(fields[0]);
+			}
+		});
+		assertEquals(100, logged.size());
+		assertEquals(100, new HashSet<>(logged).size());
+	}
+
+	@Test
+	public void testRuleReplay() throws InterruptedException {
+		sut_ = restart();
+		sut_.noChecks_ = true;
+		Node creator = new StringNode("TestCreator");
+		DAGNode parent = (DAGNode) sut_.findOrCreateNode("parentOf", creator,
+				true);
+		DAGNode grandparent = (DAGNode) sut_.findOrCreateNode(
+				"grandparentOf", creator, true);
+		Node[] people = new Node[5];
+		for (int i = 0; i < people.length; i++)
+			people[i] = sut_.findOrCreateNode("Person" + i, creator, true);
+		sut_.findOrCreateEdge(new Node[] { parent, people[0], people[1] },
+				creator, true);
+		Edge edge = sut_.findOrCreateEdge(new Node[] { parent, people[1],
+				people[2] }, creator, true);
+		VariableNode x = new VariableNode("?X");
+		VariableNode y = new VariableNode("?Y");
+		VariableNode z = new VariableNode("?Z");
+		HornClause rule = new HornClause(new Literal(grandparent, x, z),
+				new Literal(parent, x, y), new Literal(parent, y, z));
+		ForwardChainingModule chainer = (ForwardChainingModule) sut_
+				.getModule(ForwardChainingModule.class);
+		assertTrue(chainer.addRule(rule));
+		assertNotNull(sut_.findEdge(grandparent, people[0], people[2]));
+		sut_.findOrCreateEdge(new Node[] { parent, people[2], people[3] },
+				creator, true);
+		sut_.findOrCreateEdge(new Node[] { parent, people[3], people[4] },
+				creator, true);
+		assertTrue(sut_.removeEdge(edge));
+		assertNull(sut_.findEdge(grandparent, people[0], people[2]));
+		sut_.noChecks_ = false;
+		int numEdges = sut_.getNumEdges();
+
+		// Crash without saving: the rule and its derivations are replayed
+		sut_ = restart();
+		chainer = (ForwardChainingModule) sut_
+				.getModule(ForwardChainingModule.class);
+		assertEquals(1, chainer.getNumRules());
+		assertEquals(numEdges, sut_.getNumEdges());
+		assertNull(sut_.findEdge(grandparent, people[0], people[2]));
+		assertNull(sut_.findEdge(grandparent, people[1], people[3]));
+		assertTrue(chainer.isDerived(sut_.findEdge(grandparent, people[2],
+				people[4])));
+
+		// New edges fire the restored rule
+		sut_.noChecks_ = true;
+		sut_.findOrCreateEdge(new Node[] { parent, people[1], people[2] },
+				creator, true);
+		assertTrue(chainer.isDerived(sut_.findEdge(grandparent, people[1],
+				people[3])));
+
+		// Removed rules stay removed, along with their derivations
+		assertTrue(chainer.removeRule(rule));
+		sut_.noChecks_ = false;
+		sut_ = restart();
+		chainer = (ForwardChainingModule) sut_
+				.getModule(ForwardChainingModule.class);
+		assertEquals(0, chainer.getNumRules());
+		assertEquals(0, chainer.execute(grandparent).size());
+	}
+
+	@Test
+	public void testTornRecord() throws Exception {
+		WriteAheadLog log = new WriteAheadLog(ROOT_DIR);
+		for (int i = 0; i < 3; i++)
+			log.sync(log.append((byte) 1, i, "record" + i, null));
+		log.close();
+		File segment = new File(ROOT_DIR, WriteAheadLog.LOG_PREFIX
+				+ log.getSegment());
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			file.setLength(file.length() - 3);
+		}
+
+		final List<String> replayed = new ArrayList<>();
+		WriteAheadLog.Replayer replayer = new WriteAheadLog.Replayer() {
+			@Override
+			public void replay(byte type, int flags, String[] fields) {
+				assertEquals(1, type);
+				assertEquals(replayed.size(), flags);
+				assertNull(fields[1]);
+				replayed.add(fields[0]);
+			}
+		};
+		assertEquals(2, WriteAheadLog.replay(ROOT_DIR, replayer));
+		assertEquals("[record0, record1]", replayed.toString());
+
+		// Records after a torn segment are in the next segment
+		log = new WriteAheadLog(ROOT_DIR);
+		assertEquals(segment.getName(), WriteAheadLog.LOG_PREFIX
+				+ (log.getSegment() - 1));
+		log.sync(log.append((byte) 1, 2, "record2", null));
+		log.close();
+		replayed.clear();
+		assertEquals(3, WriteAheadLog.replay(ROOT_DIR, replayer));
+
+		WriteAheadLog.deleteBefore(ROOT_DIR, log.getSegment());
+		assertEquals(1, WriteAheadLog.segments(ROOT_DIR).length);
+	}
+
+	@Test
+	public void testConcurrentSync() throws Exception {
+		final WriteAheadLog log = new WriteAheadLog(ROOT_DIR);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 50; i++)
+							log.sync(log.append((byte) thread, 0, "" + i));
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(200, log.getAppended());
+
+		// Rotation starts a new segment, unless the current one is empty
+		long segment = log.rotate();
+		assertEquals(segment, log.rotate());
+		log.close();
+		final int[] counts = new int[threads.length];
+		assertEquals(200, WriteAheadLog.replay(ROOT_DIR,
+				new WriteAheadLog.Replayer() {
+					@Override
+					public void replay(byte type, int flags, String[] fields) {
+						assertEquals("" + counts[type], fields[0]);
+						counts[type]++;
+					}
+				}));
+		assertFalse(new File(ROOT_DIR, WriteAheadLog.LOG_PREFIX + segment)
+				.length() > 0);
+	}
+}